@@ -18,7 +18,6 @@ package edu.gatech.kestrel.activeregion;
 
 import java.util.Arrays;
 
-import edu.gatech.kanalyze.KAnalyzeConstants;
 import edu.gatech.kanalyze.util.Base;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
 import edu.gatech.kestrel.refreader.ReferenceRegion;
@@ -89,9 +88,6 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 	 */
 	private final int[] rightEndKmer;
 	
-	/** Translates bytes to bases. */
-	private static final Base[] BYTE_TO_BASE = KAnalyzeConstants.getByteToBaseArray();
-	
 	
 	/**
 	 * Create a new active region.
@@ -114,6 +110,37 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 	public ActiveRegion(ReferenceRegion refSequence, int startKmerIndex, int endKmerIndex, int[] count, KmerUtil kUtil)
 			throws NullPointerException, IllegalArgumentException {
 		
+		this(refSequence, startKmerIndex, endKmerIndex, count, 0, kUtil);
+		
+		return;
+	}
+	
+	/**
+	 * Create a new active region from an array of k-mer counts over part of the reference sequence.
+	 * 
+	 * @param refSequence Reference sequence.
+	 * @param startKmerIndex Index of the k-mer array over <code>refSequence.sequence</code> where the
+	 *   active region starts, or <code>-1</code> to indicate that the active region reaches the
+	 *   left end of the sequence.
+	 * @param endKmerIndex Index of <code>refSequence.sequence</code> where the active region ends,
+	 *   or <code>-1</code> to indicate that the active region reaches the right end of the sequence.
+	 * @param count Array of k-mer counts over the k-mers in <code>refSequence</code> starting at
+	 *   k-mer index <code>countOffset</code>. If <code>endKmerIndex</code> is <code>-1</code>, this
+	 *   array must reach the last k-mer in <code>refSequence</code>.
+	 * @param countOffset Index of the k-mer in <code>refSequence</code> counted by the first element
+	 *   of <code>count</code>.
+	 * @param kUtil K-mer utility.
+	 *   
+	 * @throws NullPointerException If <code>refSequence</code>, <code>count</code>, or
+	 * <code>kUtil</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>startKmerIndex</code> and <code>endKmerIndex</code> do not
+	 *   define an active region contained within this reference sequence or if both are <code>-1</code>,
+	 *   if the k-mers bordering this active region contain ambiguous bases, or if <code>count</code> does
+	 *   not cover the active region.
+	 */
+	public ActiveRegion(ReferenceRegion refSequence, int startKmerIndex, int endKmerIndex, int[] count, int countOffset, KmerUtil kUtil)
+			throws NullPointerException, IllegalArgumentException {
+		
 		// Check arguments
 		if (refSequence == null)
 			throw new NullPointerException("Cannot create active region on reference sequence: null");
@@ -127,8 +154,11 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 		if (startKmerIndex < -1)
 			throw new IllegalArgumentException("Cannot create active region: Start k-mer index is less than -1: " + startKmerIndex);
 		
-		if (endKmerIndex < -1 || endKmerIndex >= count.length)
-			throw new IllegalArgumentException(String.format("Cannot create active region: End k-mer index is not between -1 and the last k-emr in the reference (%d): %d", count.length - 1, endKmerIndex));
+		if (endKmerIndex < -1 || endKmerIndex >= count.length + countOffset)
+			throw new IllegalArgumentException(String.format("Cannot create active region: End k-mer index is not between -1 and the last k-emr in the reference (%d): %d", count.length + countOffset - 1, endKmerIndex));
+		
+		if (countOffset < 0 || (startKmerIndex < countOffset && startKmerIndex != -1) || (startKmerIndex == -1 && countOffset > 0))
+			throw new IllegalArgumentException(String.format("Cannot create active region: Start k-mer index (%d) is not in the count array starting at k-mer index %d", startKmerIndex, countOffset));
 		
 		if (endKmerIndex > refSequence.size - kUtil.kSize)
 			throw new IllegalArgumentException(String.format("Cannot create active region: The end k-mer at index (%d) extends past the right end of the reference sequence (length %d) for the given k-mer size (%d)", endKmerIndex, refSequence.size, kUtil.kSize));
@@ -171,7 +201,7 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 		if (endKmerIndex == -1) {
 			this.rightEnd = true;
 			
-			this.endKmerIndex = count.length - 1;
+			this.endKmerIndex = count.length + countOffset - 1;
 			this.endIndex = refSequence.size - 1;
 			
 			rightEndKmer = null;
@@ -189,7 +219,7 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 		}
 		
 		// Set fields
-		this.stats = RegionStats.getStats(count, this.startKmerIndex, this.endKmerIndex);
+		this.stats = RegionStats.getStats(count, this.startKmerIndex - countOffset, this.endKmerIndex - countOffset);
 		
 		return;
 	}
@@ -312,22 +342,23 @@ public class ActiveRegion implements Comparable<ActiveRegion>{
 		assert (kUtil != null) :
 			"kUtil is null";
 		
-		// Create k-mer and cache sequence
+		// Create k-mer
 		int[] kmer = new int[kUtil.kmerArraySize];
-		byte[] sequence = refRegion.sequence;
 		int endIndex = index + kUtil.kSize;
+		Base base;  // Next base of the k-mer
 		
 		// Check range
-		assert (endIndex <= sequence.length) :
-			String.format("index (%d) + kSize (%d) > sequence.length (%d)", index, kUtil.kSize, sequence.length);
+		assert (endIndex <= refRegion.size) :
+			String.format("index (%d) + kSize (%d) > refRegion.size (%d)", index, kUtil.kSize, refRegion.size);
 		
 		// Build k-mer
-		try {
-			for (; index < endIndex; ++index)
-				kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+		for (; index < endIndex; ++index) {
+			base = refRegion.getKmerBase(index);
 			
-		} catch (NullPointerException ex) {
-			return null;
+			if (base == null)
+				return null;
+			
+			kUtil.append(kmer, base);
 		}
 		
 		return kmer;
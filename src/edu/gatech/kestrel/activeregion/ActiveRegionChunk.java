@@ -0,0 +1,254 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.activeregion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.gatech.kestrel.refreader.ReferenceRegion;
+
+/**
+ * One chunk of a reference region split so that its active regions can be found in parallel. A
+ * chunk owns the k-mers from <code>start</code> to <code>end</code>, and its scan starts to the
+ * left of <code>start</code> so that it is likely to visit the same k-mers the scan over the
+ * whole region visits. Since the scan over a region only carries the index of the next k-mer from
+ * one step to the next, two scans that visit the same k-mer find the same active regions from
+ * that k-mer on. Chunks are created by <code>ActiveRegionDetector.getChunks()</code> and scanned
+ * by <code>ActiveRegionDetector.getActiveRegions(ActiveRegionChunk, int)</code>.
+ * 
+ * @see ActiveRegionDetector#getChunks(ReferenceRegion, int)
+ */
+public class ActiveRegionChunk {
+	
+	/** Reference region this chunk is part of. */
+	public final ReferenceRegion refRegion;
+	
+	/** Number of k-mers in <code>refRegion</code>. */
+	public final int kmerCount;
+	
+	/** Index of the first k-mer owned by this chunk. */
+	public final int start;
+	
+	/** Index of the k-mer after the last k-mer owned by this chunk. */
+	public final int end;
+	
+	/** Index of the first k-mer the scan over this chunk starts from. */
+	public final int scanStart;
+	
+	/** Difference threshold the chunk was scanned with or <code>-1</code> if it was not scanned. */
+	private int diffThreshold;
+	
+	/** Active regions found by the scan or <code>null</code> if the chunk was not scanned. */
+	private RegionHaplotype[] haplotypes;
+	
+	/** Index of the first k-mer at or after <code>end</code> the scan would visit next. */
+	private int nextIndex;
+	
+	/** Set for each k-mer from <code>start</code> the scan visited. */
+	private final boolean[] visited;
+	
+	/**
+	 * Create a chunk.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param kmerCount Number of k-mers in <code>refRegion</code>.
+	 * @param start Index of the first k-mer owned by this chunk.
+	 * @param end Index of the k-mer after the last k-mer owned by this chunk.
+	 * @param scanStart Index of the first k-mer the scan starts from.
+	 * @param syncLength Number of k-mers from <code>start</code> the scan records visits to.
+	 */
+	ActiveRegionChunk(ReferenceRegion refRegion, int kmerCount, int start, int end, int scanStart, int syncLength) {
+		
+		// Check arguments
+		assert (refRegion != null) :
+			"Reference region is null";
+		
+		assert (scanStart > 0 && start < end && scanStart < end && end <= kmerCount) :
+			String.format("Chunk bounds are not valid: scanStart=%d, start=%d, end=%d, kmerCount=%d", scanStart, start, end, kmerCount);
+		
+		// Set fields
+		this.refRegion = refRegion;
+		this.kmerCount = kmerCount;
+		this.start = start;
+		this.end = end;
+		this.scanStart = scanStart;
+		
+		diffThreshold = -1;
+		haplotypes = null;
+		nextIndex = -1;
+		visited = new boolean[Math.max(Math.min(syncLength, end - start), 0)];
+		
+		return;
+	}
+	
+	/**
+	 * Get a chunk with the same k-mers that is scanned from a different k-mer. When a chunk did
+	 * not visit the k-mer the scan over the chunks before it stops at, the chunk is scanned again
+	 * from that k-mer.
+	 * 
+	 * @param scanStart Index of the first k-mer the scan starts from.
+	 * 
+	 * @return A new chunk that has not been scanned.
+	 * 
+	 * @throws IllegalArgumentException If <code>scanStart</code> is not in this chunk.
+	 */
+	public ActiveRegionChunk getRescan(int scanStart)
+			throws IllegalArgumentException {
+		
+		if (scanStart < start || scanStart >= end)
+			throw new IllegalArgumentException(String.format("Cannot rescan chunk from k-mer index %d: Index is not in [%d, %d)", scanStart, start, end));
+		
+		return new ActiveRegionChunk(refRegion, kmerCount, start, end, scanStart, visited.length);
+	}
+	
+	/**
+	 * Determine if this chunk has been scanned.
+	 * 
+	 * @return <code>true</code> if this chunk has been scanned.
+	 */
+	public boolean isScanned() {
+		return haplotypes != null;
+	}
+	
+	/**
+	 * Determine if the scan over this chunk visited a k-mer. A scan visits every k-mer it does not
+	 * skip over after finding an active region or a peak.
+	 * 
+	 * @param index Index of the k-mer.
+	 * 
+	 * @return <code>true</code> if the scan visited the k-mer at <code>index</code>, and
+	 *   <code>false</code> if it did not or if visits to the k-mer were not recorded.
+	 * 
+	 * @throws IllegalStateException If this chunk has not been scanned.
+	 */
+	public boolean isVisited(int index)
+			throws IllegalStateException {
+		
+		if (! isScanned())
+			throw new IllegalStateException("Chunk has not been scanned");
+		
+		if (index == scanStart)
+			return true;
+		
+		return index >= start && index - start < visited.length && visited[index - start];
+	}
+	
+	/**
+	 * Get the index of the k-mer the scan would visit after it leaves this chunk. This is where the
+	 * scan over the next chunk must be synchronized.
+	 * 
+	 * @return Index of the next k-mer at or after <code>end</code>. If an active region reaches the
+	 *   end of the reference region, this is <code>kmerCount</code>.
+	 * 
+	 * @throws IllegalStateException If this chunk has not been scanned.
+	 */
+	public int getNextIndex()
+			throws IllegalStateException {
+		
+		if (! isScanned())
+			throw new IllegalStateException("Chunk has not been scanned");
+		
+		return nextIndex;
+	}
+	
+	/**
+	 * Get the difference threshold this chunk was scanned with.
+	 * 
+	 * @return Difference threshold.
+	 * 
+	 * @throws IllegalStateException If this chunk has not been scanned.
+	 */
+	public int getDifferenceThreshold()
+			throws IllegalStateException {
+		
+		if (! isScanned())
+			throw new IllegalStateException("Chunk has not been scanned");
+		
+		return diffThreshold;
+	}
+	
+	/**
+	 * Get active regions the scan found starting at or after a k-mer.
+	 * 
+	 * @param fromIndex Index of the k-mer where the scan over the whole region and the scan over
+	 *   this chunk are synchronized. Active regions the scan started before this k-mer are not
+	 *   returned.
+	 * 
+	 * @return An array of active regions in the order they were found.
+	 * 
+	 * @throws IllegalStateException If this chunk has not been scanned.
+	 */
+	public RegionHaplotype[] getHaplotypes(int fromIndex)
+			throws IllegalStateException {
+		
+		List<RegionHaplotype> haplotypeList;  // Haplotypes to return
+		
+		if (! isScanned())
+			throw new IllegalStateException("Chunk has not been scanned");
+		
+		haplotypeList = new ArrayList<>();
+		
+		// Scans to the right start an active region on the k-mer before the one where the count changes
+		for (RegionHaplotype regionHaplotype : haplotypes)
+			if (regionHaplotype.activeRegion.startKmerIndex >= fromIndex - 1)
+				haplotypeList.add(regionHaplotype);
+		
+		return haplotypeList.toArray(new RegionHaplotype[haplotypeList.size()]);
+	}
+	
+	/**
+	 * Get a string describing this chunk.
+	 * 
+	 * @return A string describing this chunk.
+	 */
+	@Override
+	public String toString() {
+		return String.format("ActiveRegionChunk[region=%s, start=%d, end=%d, scanStart=%d]", refRegion.name, start, end, scanStart);
+	}
+	
+	/**
+	 * Record a visit to a k-mer.
+	 * 
+	 * @param index Index of the k-mer.
+	 */
+	void setVisited(int index) {
+		
+		if (index >= start && index - start < visited.length)
+			visited[index - start] = true;
+		
+		return;
+	}
+	
+	/**
+	 * Set the result of the scan over this chunk.
+	 * 
+	 * @param haplotypes Active regions found in the order they were found.
+	 * @param nextIndex Index of the k-mer the scan would visit next.
+	 * @param diffThreshold Difference threshold the chunk was scanned with.
+	 */
+	void setResult(RegionHaplotype[] haplotypes, int nextIndex, int diffThreshold) {
+		
+		assert (haplotypes != null) :
+			"Haplotypes is null";
+		
+		this.haplotypes = haplotypes;
+		this.nextIndex = nextIndex;
+		this.diffThreshold = diffThreshold;
+		
+		return;
+	}
+}
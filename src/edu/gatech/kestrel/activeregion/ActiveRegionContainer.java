@@ -47,12 +47,30 @@ public class ActiveRegionContainer {
 	public ActiveRegionContainer(ReferenceRegion refRegion, RegionHaplotype[] haplotypes, int[] count)
 			throws NullPointerException, IllegalArgumentException {
 		
+		this(refRegion, haplotypes, RegionStats.getStats(count, 0, count.length));  // throws NullPointerException
+		
+		return;
+	}
+	
+	/**
+	 * Create a new active region container with k-mer frequency stats computed by the caller.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param haplotypes Active regions from the reference. 
+	 * @param stats K-mer frequency stats over the reference region.
+	 * 
+	 * @throws NullPointerException If <code>refRegion</code> or <code>stats</code> is <code>null</code>. 
+	 * @throws IllegalArgumentException If <code>haplotypes</code> is <code>null</code>.
+	 */
+	public ActiveRegionContainer(ReferenceRegion refRegion, RegionHaplotype[] haplotypes, RegionStats stats)
+			throws NullPointerException, IllegalArgumentException {
+		
 		// Check arguments
 		if (refRegion == null)
 			throw new NullPointerException("Reference region is null");
 		
-		if (count == null)
-			throw new NullPointerException("Count array is null");
+		if (stats == null)
+			throw new NullPointerException("Region stats is null");
 		
 		if (haplotypes == null)
 			haplotypes = new RegionHaplotype[0];
@@ -61,10 +79,8 @@ public class ActiveRegionContainer {
 			if (haplotypes[index] == null)
 				throw new IllegalArgumentException("Haplotypes contains a null reference at index " + index);
 		
-		// Get stats
-		stats = RegionStats.getStats(count, 0, count.length);
-		
 		// Set fields
+		this.stats = stats;
 		this.refRegion = refRegion;
 		this.haplotypes = Arrays.copyOf(haplotypes, haplotypes.length);
 		
@@ -19,16 +19,17 @@ package edu.gatech.kestrel.activeregion;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import edu.gatech.kanalyze.KAnalyzeConstants;
 import edu.gatech.kanalyze.util.Base;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
 import edu.gatech.kestrel.align.AlignmentWeight;
 import edu.gatech.kestrel.align.KmerAligner;
 import edu.gatech.kestrel.align.KmerAlignmentBuilder;
+import edu.gatech.kestrel.align.SnvHaplotypeBuilder;
 import edu.gatech.kestrel.counter.CountMap;
 import edu.gatech.kestrel.refreader.ReferenceRegion;
 
@@ -90,6 +91,10 @@ import edu.gatech.kestrel.refreader.ReferenceRegion;
  * allow end scans that are arbitrarily long. Overflow detection is employed, so this value may be set
  * arbitrarily high.
  * <p/>
+ * When <code>streamWindowSize</code> is set, long reference regions are not loaded into one array of
+ * counts. The difference threshold is found in a first pass over the counts, and the scan reads counts in
+ * overlapping windows that extend as far past the last k-mer a scan may start from as that scan may read.
+ * <p/>
  * A k-mer count is a surrogate for read depth, and read depth is not typically uniform over the
  * reference region. When the read depth declines over an active region, the counts may not recover
  * and the right end of an active region may be missed. This can result in active regions that are
@@ -201,6 +206,12 @@ public class ActiveRegionDetector {
 	 */
 	private int scanLimit;
 	
+	/**
+	 * Look up k-mer counts in windows of this many k-mers instead of allocating counts for the
+	 * whole reference region. If <code>0</code>, counts for the whole region are kept in memory.
+	 */
+	private int streamWindowSize;
+	
 	/**
 	 * Lower asymptotic bound for the exponential decay function applied the recovery threshold
 	 * in an active region scan. The minimum decay value will not be less than this proportion
@@ -224,6 +235,18 @@ public class ActiveRegionDetector {
 	/** Maximum number of repeated k-mers in a haplotype assembly. */
 	private int maxRepeatCount;
 	
+	/** If <code>true</code>, haplotypes are aligned in banded mode. */
+	private boolean bandedAlignment;
+	
+	/** If <code>true</code>, haplotypes are assembled best-first. */
+	private boolean bestFirstAssembly;
+	
+	/** Pool haplotype branches are explored in or <code>null</code> to explore them in the calling thread. */
+	private ForkJoinPool branchPool;
+	
+	/** If <code>true</code>, short active regions are tested for single-base substitutions before they are assembled. */
+	private boolean snvFastPath;
+	
 	/** Alignment weights. */
 	private AlignmentWeight alignmentWeight;
 	
@@ -251,12 +274,12 @@ public class ActiveRegionDetector {
 	/** Builds haplotypes from active regions. */
 	private KmerAlignmentBuilder alignmentBuilder;
 	
+	/** Builds haplotypes of short active regions with single-base substitutions. */
+	private SnvHaplotypeBuilder snvHaplotypeBuilder;
+	
 	/** Get the complement of a base. */
 	private static final Base[] BASE_COMPLEMENT = new Base[] {Base.T, Base.G, Base.C, Base.A};
 	
-	/** Translate a nucleotide from a byte to a base. */
-	private static final Base[] BYTE_TO_BASE = KAnalyzeConstants.getByteToBaseArray();
-	
 	
 	/** Default minimum k-mer difference. */
 	public static final int DEFAULT_MINIMUM_DIFFERENCE = 5;
@@ -279,6 +302,9 @@ public class ActiveRegionDetector {
 	/** Default end-scan limit factor. */
 	public static final double DEFAULT_SCAN_LIMIT_FACTOR = 7.0;
 	
+	/** Default streaming window size (disabled). */
+	public static final int DEFAULT_STREAM_WINDOW_SIZE = 0;
+	
 	/** Default alignment trace attribute. */
 	public static final boolean DEFAULT_TRACE_HAPLOTYPE_ALIGNMENT = false;
 	
@@ -291,6 +317,15 @@ public class ActiveRegionDetector {
 	/** Default number of times k-mers may be repeated in an assembly. */
 	public static final int DEFAULT_MAX_REPEAT_COUNT = 0;
 	
+	/** Default banded alignment property. */
+	public static final boolean DEFAULT_BANDED_ALIGNMENT = false;
+	
+	/** Default best-first assembly property. */
+	public static final boolean DEFAULT_BEST_FIRST_ASSEMBLY = false;
+	
+	/** Default SNV fast path property. */
+	public static final boolean DEFAULT_SNV_FAST_PATH = true;
+	
 	/** Default value for right anchor recovery. */
 	public static final boolean DEFAULT_RECOVER_RIGHT_ANCHOR = true;
 	
@@ -325,11 +360,16 @@ public class ActiveRegionDetector {
 		setCallAmbiguousRegions(DEFAULT_CALL_AMBIGUOUS_REGIONS);
 		setRecoverRightAnchor(DEFAULT_RECOVER_RIGHT_ANCHOR);
 		setMaxRepeatCount(DEFAULT_MAX_REPEAT_COUNT);
+		setBandedAlignment(DEFAULT_BANDED_ALIGNMENT);
+		setBestFirstAssembly(DEFAULT_BEST_FIRST_ASSEMBLY);
+		setBranchPool(null);
+		setSnvFastPath(DEFAULT_SNV_FAST_PATH);
 		
 		setPeakScanLength(DEFAULT_PEAK_SCAN_LENGTH);
 		setDecayMinimum(DEFAULT_EXP_MIN);
 		setDecayAlpha(DEFAULT_EXP_ALPHA);
 		setScanLimitFactor(DEFAULT_SCAN_LIMIT_FACTOR);
+		setStreamWindowSize(DEFAULT_STREAM_WINDOW_SIZE);
 		setEmitWildtypeActiveRegions(DEFAULT_EMIT_WILDTYPE_ACTIVE_REGIONS);
 		
 		setTraceHaplotypeAlignment(DEFAULT_TRACE_HAPLOTYPE_ALIGNMENT);
@@ -351,15 +391,190 @@ public class ActiveRegionDetector {
 	public ActiveRegionContainer getActiveRegions(ReferenceRegion refRegion)
 			throws NullPointerException {
 		
+		// Check arguments
+		if (refRegion == null)
+			throw new NullPointerException("Reference sequence is null");
+		
+		return getActiveRegions(refRegion, null, 0);
+	}
+	
+	/**
+	 * Get active regions in one chunk of a reference region. The chunk is scanned with the
+	 * difference threshold of the whole reference region, so active regions found after the scan
+	 * over the chunk visits a k-mer the scan over the whole region visits are the same as the
+	 * active regions the scan over the whole region finds.
+	 * 
+	 * @param chunk Chunk to scan. Results are set in this object.
+	 * @param diffThreshold Difference threshold of the whole reference region.
+	 * 
+	 * @return <code>chunk</code>.
+	 * 
+	 * @throws NullPointerException If <code>chunk</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>diffThreshold</code> is less than <code>1</code>.
+	 * @throws IllegalStateException If <code>chunk</code> was already scanned.
+	 * 
+	 * @see #getChunks(ReferenceRegion, int)
+	 * @see #getDifferenceThreshold(CountHistogram)
+	 */
+	public ActiveRegionChunk getActiveRegions(ActiveRegionChunk chunk, int diffThreshold)
+			throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		
+		// Check arguments
+		if (chunk == null)
+			throw new NullPointerException("Cannot get active regions in chunk: null");
+		
+		if (diffThreshold < 1)
+			throw new IllegalArgumentException("Cannot get active regions in chunk: Difference threshold is less than 1: " + diffThreshold);
+		
+		if (chunk.isScanned())
+			throw new IllegalStateException("Cannot get active regions in chunk: Chunk was already scanned: " + chunk);
+		
+		getActiveRegions(chunk.refRegion, chunk, diffThreshold);
+		
+		return chunk;
+	}
+	
+	/**
+	 * Split a reference region into chunks so that active regions can be found in each chunk in
+	 * parallel. Chunks are no smaller than four times the length a scan may read past the k-mer it
+	 * starts from, and the scan over each chunk after the first starts twice this length before the
+	 * chunk so that it visits the same k-mers the scan over the whole region visits. To get the
+	 * same active regions as <code>getActiveRegions(ReferenceRegion)</code>:
+	 * <ol>
+	 *   <li>Add the difference histogram of every chunk (<code>getDifferenceHistogram()</code>).</li>
+	 *   <li>Get the difference threshold from it (<code>getDifferenceThreshold()</code>).</li>
+	 *   <li>Scan each chunk with this threshold (<code>getActiveRegions(ActiveRegionChunk, int)</code>).</li>
+	 *   <li>
+	 *     In order, take the active regions of each chunk from the next index of the chunk before it
+	 *     (<code>getNextIndex()</code>). If the chunk did not visit that k-mer (<code>isVisited()</code>),
+	 *     scan it again from there (<code>getRescan()</code>).
+	 *   </li>
+	 * </ol>
+	 * Reference regions are not split if wildtype active regions are emitted, because the results
+	 * would not be the same.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param chunkSize Number of k-mers in each chunk. Chunks may be larger to divide the k-mers
+	 *   evenly.
+	 * 
+	 * @return An array of chunks in reference order, or <code>null</code> if the region should not
+	 *   be split.
+	 * 
+	 * @throws NullPointerException If <code>refRegion</code> is <code>null</code>.
+	 * 
+	 * @see #getActiveRegions(ActiveRegionChunk, int)
+	 * @see #getChunks(ReferenceRegion, int, int, int, int)
+	 */
+	public ActiveRegionChunk[] getChunks(ReferenceRegion refRegion, int chunkSize)
+			throws NullPointerException {
+		
+		// Check arguments
+		if (refRegion == null)
+			throw new NullPointerException("Cannot split reference region: null");
+		
+		if (emitWildtypeActiveRegions)
+			return null;
+		
+		return getChunks(refRegion, chunkSize, kSize, scanLimit, peakScanLength);
+	}
+	
+	/**
+	 * Split a reference region into chunks without a detector. The chunks are the same as the
+	 * chunks <code>getChunks(ReferenceRegion, int)</code> returns for a detector with the same
+	 * k-mer size, scan limit, and peak scan length that does not emit wildtype active regions.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param chunkSize Number of k-mers in each chunk. Chunks may be larger to divide the k-mers
+	 *   evenly.
+	 * @param kSize K-mer size.
+	 * @param scanLimit End-scan limit length (see <code>getScanLimit()</code>).
+	 * @param peakScanLength Number of k-mers to scan during peak detection.
+	 * 
+	 * @return An array of chunks in reference order, or <code>null</code> if the region should not
+	 *   be split.
+	 * 
+	 * @throws NullPointerException If <code>refRegion</code> is <code>null</code>.
+	 * 
+	 * @see #getChunks(ReferenceRegion, int)
+	 * @see #getScanLimit(AlignmentWeight, double, int)
+	 */
+	public static ActiveRegionChunk[] getChunks(ReferenceRegion refRegion, int chunkSize, int kSize, int scanLimit, int peakScanLength)
+			throws NullPointerException {
+		
+		// Declarations
+		int refCountSize;  // Number of k-mers in the reference region
+		int scanLength;    // Number of k-mers a scan may read past the k-mer it starts from
+		int nChunk;        // Number of chunks
+		int start;         // Index of the first k-mer owned by a chunk
+		int end;           // Index of the k-mer after the last k-mer owned by a chunk
+		
+		ActiveRegionChunk[] chunks;  // Chunks to return
+		
+		// Check arguments
+		if (refRegion == null)
+			throw new NullPointerException("Cannot split reference region: null");
+		
+		if (chunkSize < 1)
+			return null;
+		
+		// Get chunk size
+		refCountSize = Math.max(refRegion.size - kSize + 1, 0);
+		scanLength = (int) Math.min((long) scanLimit + peakScanLength + 1, Integer.MAX_VALUE / 8);
+		
+		chunkSize = Math.max(chunkSize, scanLength * 4);  // Scans after the first chunk never reach the left end
+		nChunk = refCountSize / chunkSize;
+		
+		if (nChunk < 2)
+			return null;
+		
+		// Create chunks
+		chunks = new ActiveRegionChunk[nChunk];
+		
+		for (int index = 0; index < nChunk; ++index) {
+			start = (int) ((long) refCountSize * index / nChunk);
+			end = (int) ((long) refCountSize * (index + 1) / nChunk);
+			
+			chunks[index] = new ActiveRegionChunk(refRegion, refCountSize, start, end, (index == 0) ? 1 : start - scanLength * 2, scanLength);
+		}
+		
+		return chunks;
+	}
+	
+	/**
+	 * Get active regions.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param chunk Chunk of <code>refRegion</code> to scan or <code>null</code> to scan the whole
+	 *   region.
+	 * @param diffThreshold Difference threshold if <code>chunk</code> is not <code>null</code>.
+	 * 
+	 * @return An array of active regions, or <code>null</code> if <code>chunk</code> is not
+	 *   <code>null</code> (results are set in <code>chunk</code>).
+	 */
+	private ActiveRegionContainer getActiveRegions(ReferenceRegion refRegion, ActiveRegionChunk chunk, int diffThreshold) {
+		
 		// Declarations
 		List<RegionHaplotype> haplotypeList;  // List of haplotypes and their active regions
 		
 		int diffThresholdR;  // Difference threshold for a forward scan
 		int diffThresholdL;  // Difference threshold for a reverse scan
 		
-		int[] refCount;     // Array of counts for each k-mer
-		int refCountIndex;  // Current element of refCount
-		int refCountSize;   // Length of refCount
+		int[] refCount;     // Array of counts for each k-mer (or for each k-mer in a window if streaming)
+		int refCountIndex;  // Index of the current k-mer
+		int refCountSize;   // Number of k-mers in the reference region
+		int scanStop;       // Active region scans are not started from this index or later
+		
+		int countOffset;     // Index of the k-mer counted by refCount[0]
+		int countEnd;        // Index of the k-mer after the last k-mer counted by refCount
+		int searchEnd;       // Active region scans are not started from this index in refCount or later
+		int windowStep;      // Number of k-mers scans are started from in each window
+		int windowOverlap;   // Number of k-mers a window extends past searchEnd
+		int windowOffset;    // Index of the k-mer counted by the first element of the next window
+		int windowEnd;       // Index of the k-mer after the last k-mer counted by the next window
+		int[] windowCount;   // Counts for the next window
+		
+		CountHistogram countHist;  // Histogram of k-mer counts over the reference region (streaming)
+		RegionStats countStats;    // K-mer count stats over the reference region or null to compute them from refCount
 		
 		int recoveryValue;     // Value computed to end a specific active region
 		int scanEndIndex;      // refCountIndex where an active region scan ends
@@ -380,45 +595,100 @@ public class ActiveRegionDetector {
 		double expDecayRange;     // Range of exponential decay from anchor k-mer count to the lower bound
 		double expDecayMinValue;  // Exponential decay asymptotic lower bound
 		
-		KmerAlignmentBuilder alignmentBuilder;  // Builds haplotypes from active regions
-		
 		ActiveRegion activeRegion;  // An active region (variant calling will be attempted over this region)
 		Haplotype[] haplotypes;     // Haplotypes called from an active region
 		
 		// Check arguments
-		if (refRegion == null)
-			throw new NullPointerException("Reference sequence is null");
+		assert (refRegion != null) :
+			"Reference sequence is null";
 		
 		// Init
-		alignmentBuilder = this.alignmentBuilder;
-		
 		haplotypeList = new ArrayList<>();
 		
 		noAmbiguousBases = ! callAmbiguousRegions;
 		lastRegionEnd = 0;
 		
-		// Get counts
-		refCount = getCounts(refRegion);
-		refCountSize = refCount.length;
+		refCountSize = Math.max(refRegion.size - kSize + 1, 0);
 		
-		if (refCountSize < 2)
-			return new ActiveRegionContainer(refRegion, null, refCount);
+		windowOverlap = (int) Math.min((long) scanLimit + peakScanLength + 1, Integer.MAX_VALUE / 4);
+		windowStep = Math.max(streamWindowSize, 2 * windowOverlap + 1) - windowOverlap;  // Scans reaching the left end are in the first window
+		
+		countOffset = 0;
+		countStats = null;
+		
+		// Get counts and set the scan and recovery thresholds
+		if (chunk != null) {
+			diffThresholdR = diffThreshold - 1;  // Subtract 1: Code uses < and >, not <= and >=
+			
+			// Count from the left anchor of the first scan to as far as the last scan may read
+			searchEnd = chunk.end;
+			countOffset = chunk.scanStart - 1;
+			countEnd = (int) Math.min((long) searchEnd + windowOverlap, refCountSize);
+			
+			refCount = new int[countEnd - countOffset];
+			fillCounts(refRegion, refCount, countOffset, countOffset, countEnd);
+			
+		} else if (streamWindowSize > 0 && ! emitWildtypeActiveRegions && (long) windowStep + windowOverlap < refCountSize) {
+			countHist = new CountHistogram();
+			
+			diffThresholdR = getStreamingThreshold(refRegion, refCountSize, countHist) - 1;  // Subtract 1: Code uses < and >, not <= and >=
+			countStats = RegionStats.getStats(countHist);
+			
+			logger.trace("Streaming counts: {} k-mers in windows of {} (overlap={})", refCountSize, windowStep + windowOverlap, windowOverlap);
+			
+			searchEnd = windowStep;
+			countEnd = searchEnd + windowOverlap;
+			
+			refCount = new int[countEnd];
+			fillCounts(refRegion, refCount, 0, 0, countEnd);
+			
+		} else {
+			refCount = getCounts(refRegion);
+			
+			if (refCountSize < 2)
+				return new ActiveRegionContainer(refRegion, null, refCount);
+			
+			diffThresholdR = getDifferenceThreshold(refCount, 0, refCountSize) - 1;  // Subtract 1: Code uses < and >, not <= and >=
+			
+			searchEnd = refCountSize;
+			countEnd = refCountSize;
+		}
 		
-		// Set the scan and recovery thresholds
-		diffThresholdR = getDifferenceThreshold(refCount, 0, refCountSize) - 1;  // Subtract 1: Code uses < and >, not <= and >=
 		diffThresholdL = -diffThresholdR;
 		
 		logger.trace("Difference threshold: {}", diffThresholdR + 1);
 		
 		// Scan counts for variants
-		refCountIndex = 1;
+		refCountIndex = countOffset + 1;
 		countL = refCount[0];
+		
+		scanStop = (chunk != null) ? chunk.end : refCountSize;
 				
 		// Search for active regions over the reference
 		REF_SEARCH:
-		while (refCountIndex < refCountSize) {
+		while (refCountIndex < scanStop) {
 			
-			countR = refCount[refCountIndex];
+			if (chunk != null)
+				chunk.setVisited(refCountIndex);
+			
+			// Move to the next window (streaming). Windows overlap by one k-mer on the left for the left anchor.
+			while (refCountIndex >= searchEnd) {
+				windowOffset = searchEnd - 1;
+				windowEnd = (int) Math.min((long) searchEnd + windowStep + windowOverlap, refCountSize);
+				searchEnd = (int) Math.min((long) searchEnd + windowStep, refCountSize);
+				
+				// Copy counts shared with the last window and look up the rest
+				windowCount = new int[windowEnd - windowOffset];
+				
+				System.arraycopy(refCount, windowOffset - countOffset, windowCount, 0, countEnd - windowOffset);
+				fillCounts(refRegion, windowCount, windowOffset, countEnd, windowEnd);
+				
+				refCount = windowCount;
+				countOffset = windowOffset;
+				countEnd = windowEnd;
+			}
+			
+			countR = refCount[refCountIndex - countOffset];
 			
 			countDiff = countL - countR;
 			
@@ -451,7 +721,7 @@ public class ActiveRegionDetector {
 						
 						logger.trace("Right scan: Constant search: index={}, threshold={}, value={}", refCountIndex, diffThresholdR, recoveryValue);
 						
-						while (scanEndIndex < refCountSize && refCount[scanEndIndex] < recoveryValue)
+						while (scanEndIndex < countEnd && refCount[scanEndIndex - countOffset] < recoveryValue)
 							++scanEndIndex;
 						
 					} else {
@@ -468,8 +738,8 @@ public class ActiveRegionDetector {
 						logger.trace("Right scan: Exponential search: index={}, range={}, min={}, lambda={}", refCountIndex, expDecayRange, expDecayMinValue, expDecayLambda);
 						
 						while (
-								scanEndIndex < refCountSize &&
-								refCount[scanEndIndex] <
+								scanEndIndex < countEnd &&
+								refCount[scanEndIndex - countOffset] <
 									expDecayRange * Math.exp((refCountIndex - scanEndIndex) * expDecayLambda) + expDecayMinValue  // range * e^{-(scanEndIndex - refCountIndex) * lambda} + min
 							) {
 							
@@ -496,13 +766,13 @@ public class ActiveRegionDetector {
 					peakScanIndex = scanEndIndex;
 					peakScanLimit = scanEndIndex + peakScanLength;
 					
-					if (peakScanLimit > refCountSize)
-						peakScanLimit = refCountSize;
+					if (peakScanLimit > countEnd)
+						peakScanLimit = countEnd;
 					
 					// Perform peak detection
 					while (peakScanIndex < peakScanLimit) {
 						
-						if (refCount[peakScanIndex] < recoveryValue) {
+						if (refCount[peakScanIndex - countOffset] < recoveryValue) {
 							
 							++nPeak;
 							
@@ -578,10 +848,10 @@ public class ActiveRegionDetector {
 						continue REF_SEARCH;
 					}
 					
-					activeRegion = new ActiveRegion(refRegion, refCountIndex - 1, scanEndIndex, refCount, kUtil);
+					activeRegion = new ActiveRegion(refRegion, refCountIndex - 1, scanEndIndex, refCount, countOffset, kUtil);
 					
 					// Get haplotypes
-					haplotypes = alignmentBuilder.getHaplotypes(activeRegion);
+					haplotypes = getHaplotypes(activeRegion);
 					
 					if (haplotypes.length == 0 || (haplotypes.length == 1 && haplotypes[0].isWildtype())) {
 						
@@ -599,7 +869,7 @@ public class ActiveRegionDetector {
 					
 					haplotypeList.add(new RegionHaplotype(activeRegion, haplotypes));
 					
-					countL = refCount[scanEndIndex];
+					countL = refCount[scanEndIndex - countOffset];
 					refCountIndex = scanEndIndex + 1;
 					lastRegionEnd = scanEndIndex;
 					
@@ -613,9 +883,9 @@ public class ActiveRegionDetector {
 						scanEndIndex = refCountIndex + kSize;
 						
 						RECOVERY_SCAN:
-						while (scanEndIndex < refCountSize) {
+						while (scanEndIndex < countEnd) {
 							
-							if (refCount[scanEndIndex] - refCount[scanEndIndex - 1] > diffThresholdR) {
+							if (refCount[scanEndIndex - countOffset] - refCount[scanEndIndex - 1 - countOffset] > diffThresholdR) {
 								logger.trace("Right-scan (from={}, to=RIGHT_END, left={}, right={}, diff={}): Recovery scan found k-mer increase at {}", refCountIndex - 1, countL, countR, countDiff, scanEndIndex);
 								break RECOVERY_SCAN;
 							}
@@ -659,10 +929,10 @@ public class ActiveRegionDetector {
 						
 					}
 					
-					activeRegion = new ActiveRegion(refRegion, refCountIndex - 1, scanEndIndex, refCount, kUtil);
+					activeRegion = new ActiveRegion(refRegion, refCountIndex - 1, scanEndIndex, refCount, countOffset, kUtil);
 					
 					// Get haplotypes
-					haplotypes = alignmentBuilder.getHaplotypes(activeRegion);
+					haplotypes = getHaplotypes(activeRegion);
 					
 					if (haplotypes.length == 0 || (haplotypes.length == 1 && haplotypes[0].isWildtype())) {
 						
@@ -694,7 +964,7 @@ public class ActiveRegionDetector {
 						logger.trace("Right-scan (from={}, to={}, left={}, right={}, diff={}): Found {} haplotype(s)", refCountIndex - 1, scanEndIndex, countL, countR, countDiff, haplotypes.length);
 						
 						refCountIndex = scanEndIndex + 1;
-						countL = refCount[scanEndIndex];
+						countL = refCount[scanEndIndex - countOffset];
 					}
 					
 					
@@ -719,19 +989,19 @@ public class ActiveRegionDetector {
 					scanEndIndex = refCountIndex + 1;
 					lastScanIndex = refCountIndex + peakScanLength;
 					
-					if (lastScanIndex >= refCountSize)
-						lastScanIndex = refCountSize;
+					if (lastScanIndex >= countEnd)
+						lastScanIndex = countEnd;
 					
 					while (scanEndIndex < lastScanIndex) {
 						
-						if (refCount[scanEndIndex] <= recoveryValue &&  // Peak count lowers again
-							refCount[refCountIndex] - refCount[scanEndIndex] < diffThresholdR)  // Right side of peak must not drop into a valley
+						if (refCount[scanEndIndex - countOffset] <= recoveryValue &&  // Peak count lowers again
+							refCount[refCountIndex - countOffset] - refCount[scanEndIndex - countOffset] < diffThresholdR)  // Right side of peak must not drop into a valley
 						{ 
 							
 							logger.trace("Skipping peak from {} to {}", refCountIndex, scanEndIndex);
 							
 							// Peak detected, skip it
-							countL = refCount[scanEndIndex];
+							countL = refCount[scanEndIndex - countOffset];
 							refCountIndex = scanEndIndex + 1;
 							continue REF_SEARCH;
 						}
@@ -775,7 +1045,7 @@ public class ActiveRegionDetector {
 						
 						logger.trace("Left scan: Constant search: index={}, threshold={}, value={}", refCountIndex, diffThresholdR, recoveryValue);
 						
-						while (scanEndIndex >= lastScanIndex && refCount[scanEndIndex] < recoveryValue)
+						while (scanEndIndex >= lastScanIndex && refCount[scanEndIndex - countOffset] < recoveryValue)
 							--scanEndIndex;
 						
 					} else {
@@ -796,7 +1066,7 @@ public class ActiveRegionDetector {
 						
 						while (
 								scanEndIndex >= lastScanIndex &&
-								refCount[scanEndIndex] <
+								refCount[scanEndIndex - countOffset] <
 									expDecayRange * Math.exp((refCountIndex - scanEndIndex) * expDecayLambda) + expDecayMinValue  // range * e^{-(scanEndIndex - refCountIndex) * lambda} + min
 							) {
 							
@@ -820,7 +1090,7 @@ public class ActiveRegionDetector {
 					// Perform peak detection
 					while (peakScanIndex > peakScanLimit) {
 						
-						if (refCount[peakScanIndex] > recoveryValue) {
+						if (refCount[peakScanIndex - countOffset] > recoveryValue) {
 							
 							++nPeak;
 							
@@ -872,7 +1142,7 @@ public class ActiveRegionDetector {
 					RECOVERY_SCAN:
 					while (scanEndIndex > 0) {
 						
-						if (refCount[scanEndIndex - 1] - refCount[scanEndIndex] > diffThresholdR) {
+						if (refCount[scanEndIndex - 1 - countOffset] - refCount[scanEndIndex - countOffset] > diffThresholdR) {
 							logger.trace("Left-scan (from={}, to=LEFT_END, left={}, right={}, diff={}): Recovery scan found k-mer increase at {}", refCountIndex - 1, countL, countR, countDiff, scanEndIndex);
 							break RECOVERY_SCAN;
 						}
@@ -923,10 +1193,10 @@ public class ActiveRegionDetector {
 				}
 				
 				// Create active region
-				activeRegion = new ActiveRegion(refRegion, scanEndIndex, refCountIndex, refCount, kUtil);
+				activeRegion = new ActiveRegion(refRegion, scanEndIndex, refCountIndex, refCount, countOffset, kUtil);
 				
 				// Get haplotypes
-				haplotypes = alignmentBuilder.getHaplotypes(activeRegion);
+				haplotypes = getHaplotypes(activeRegion);
 				
 				if (haplotypes.length == 0 || (haplotypes.length == 1 && haplotypes[0].isWildtype())) {
 					
@@ -965,6 +1235,13 @@ public class ActiveRegionDetector {
 			}
 		}
 		
+		// Set chunk results
+		if (chunk != null) {
+			chunk.setResult(haplotypeList.toArray(new RegionHaplotype[haplotypeList.size()]), refCountIndex, diffThresholdR + 1);
+			
+			return null;
+		}
+		
 		// Add wildtype active regions
 		if (emitWildtypeActiveRegions) {
 			
@@ -1024,7 +1301,7 @@ public class ActiveRegionDetector {
 					activeRegion = new ActiveRegion(refRegion, refCountIndex, scanEndIndex, refCount, kUtil);
 					
 					// Get wildtype haplotype
-					haplotypes = alignmentBuilder.getHaplotypes(activeRegion);
+					haplotypes = getHaplotypes(activeRegion);
 					
 					// Add active region
 					haplotypeList.add(new RegionHaplotype(activeRegion, haplotypes));
@@ -1036,6 +1313,9 @@ public class ActiveRegionDetector {
 		}
 		
 		// Return active regions
+		if (countStats != null)
+			return new ActiveRegionContainer(refRegion, haplotypeList.toArray(new RegionHaplotype[0]), countStats);
+		
 		return new ActiveRegionContainer(refRegion, haplotypeList.toArray(new RegionHaplotype[0]), refCount);
 	}
 	
@@ -1302,6 +1582,126 @@ public class ActiveRegionDetector {
 		return maxRepeatCount;
 	}
 	
+	/**
+	 * Set banded alignment. When banded, haplotypes are aligned by computing only cells near
+	 * the best alignment so far instead of the full length of the active region. Large active
+	 * regions align much faster, but alignments with large gaps may be missed.
+	 * 
+	 * @param bandedAlignment <code>true</code> to align haplotypes in banded mode.
+	 * 
+	 * @see #DEFAULT_BANDED_ALIGNMENT
+	 */
+	public void setBandedAlignment(boolean bandedAlignment) {
+		this.bandedAlignment = bandedAlignment;
+		
+		if (alignmentBuilder != null)
+			alignmentBuilder.setBandedAlignment(bandedAlignment);
+		
+		return;
+	}
+	
+	/**
+	 * Get banded alignment.
+	 * 
+	 * @return <code>true</code> if haplotypes are aligned in banded mode.
+	 * 
+	 * @see #setBandedAlignment(boolean)
+	 */
+	public boolean getBandedAlignment() {
+		return bandedAlignment;
+	}
+	
+	/**
+	 * Set best-first assembly. By default, when a haplotype assembly branches, the last branch
+	 * found is followed to its end before the others. In best-first mode, the branch with the
+	 * greatest minimum k-mer depth is followed next, and when the maximum number of haplotypes
+	 * is reached, branches that cannot produce a haplotype with a greater depth than the
+	 * haplotypes already found are discarded.
+	 * 
+	 * @param bestFirstAssembly <code>true</code> to assemble haplotypes best-first.
+	 * 
+	 * @see #DEFAULT_BEST_FIRST_ASSEMBLY
+	 */
+	public void setBestFirstAssembly(boolean bestFirstAssembly) {
+		this.bestFirstAssembly = bestFirstAssembly;
+		
+		if (alignmentBuilder != null)
+			alignmentBuilder.setBestFirst(bestFirstAssembly);
+		
+		return;
+	}
+	
+	/**
+	 * Get best-first assembly.
+	 * 
+	 * @return <code>true</code> if haplotypes are assembled best-first.
+	 * 
+	 * @see #setBestFirstAssembly(boolean)
+	 */
+	public boolean getBestFirstAssembly() {
+		return bestFirstAssembly;
+	}
+	
+	/**
+	 * Set the pool haplotype branches are explored in. When set, saved branches of a haplotype
+	 * assembly are explored by tasks in this pool while its threads are idle. The pool may be
+	 * shared by several detectors.
+	 * 
+	 * @param branchPool Pool or <code>null</code> to explore all branches in the calling thread.
+	 * 
+	 * @see KmerAlignmentBuilder#setBranchPool(ForkJoinPool)
+	 */
+	public void setBranchPool(ForkJoinPool branchPool) {
+		this.branchPool = branchPool;
+		
+		if (alignmentBuilder != null)
+			alignmentBuilder.setBranchPool(branchPool);
+		
+		return;
+	}
+	
+	/**
+	 * Get the pool haplotype branches are explored in.
+	 * 
+	 * @return Pool or <code>null</code> if all branches are explored in the calling thread.
+	 * 
+	 * @see #setBranchPool(ForkJoinPool)
+	 */
+	public ForkJoinPool getBranchPool() {
+		return branchPool;
+	}
+	
+	/**
+	 * Set the SNV fast path. When set, an active region that is anchored on both ends and is at
+	 * most a few bases longer than an isolated SNV region (<code>2 * kSize + 1</code>) is first
+	 * tested for single-base substitutions by looking up their k-mers. If the test finds the
+	 * haplotypes the assembler would find, they are used without assembling or aligning the
+	 * region. If the test is ambiguous (no substitution is supported, other k-mers branch from the
+	 * haplotypes, or the assembly limits would be reached), the region is assembled.
+	 * 
+	 * @param snvFastPath <code>true</code> to test short regions for single-base substitutions.
+	 * 
+	 * @see #DEFAULT_SNV_FAST_PATH
+	 * @see SnvHaplotypeBuilder
+	 */
+	public void setSnvFastPath(boolean snvFastPath) {
+		this.snvFastPath = snvFastPath;
+		
+		return;
+	}
+	
+	/**
+	 * Get the SNV fast path.
+	 * 
+	 * @return <code>true</code> if short regions are tested for single-base substitutions before
+	 *   they are assembled.
+	 * 
+	 * @see #setSnvFastPath(boolean)
+	 */
+	public boolean getSnvFastPath() {
+		return snvFastPath;
+	}
+	
 	/**
 	 * If set to <code>true</code>, allow active regions to include ambiguous bases.
 	 * 
@@ -1411,9 +1811,6 @@ public class ActiveRegionDetector {
 	public void setScanLimitFactor(double scanLimitFactor)
 			throws IllegalArgumentException {
 		
-		int maxGapSize = alignmentWeight.getMaxExclusiveGapSize(kSize);
-		double scanLimitDb;  // Scan limit as a double
-		
 		// Check arguments
 		if (scanLimitFactor < 0.0)
 			throw new IllegalArgumentException("Scan limit factor must not be negative: " + scanLimitFactor);
@@ -1421,6 +1818,44 @@ public class ActiveRegionDetector {
 		// Set limit
 		this.scanLimitFactor = scanLimitFactor;
 		
+		scanLimit = getScanLimit(alignmentWeight, scanLimitFactor, kSize);
+		
+		return;
+	}
+	
+	/**
+	 * Get the end-scan limit length for an alignment weight vector, scan limit factor, and
+	 * k-mer size. The limit is the scan limit factor multiplied by the k-mer size plus the
+	 * maximum length of a gap. It is never less than the k-mer size or greater than
+	 * <code>Integer.MAX_VALUE</code>.
+	 * 
+	 * @param alignmentWeight Alignment weight vector.
+	 * @param scanLimitFactor The scan limit factor.
+	 * @param kSize K-mer size.
+	 * 
+	 * @return End-scan limit length.
+	 * 
+	 * @throws NullPointerException If <code>alignmentWeight</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>scanLimitFactor</code> is negative.
+	 * 
+	 * @see #setScanLimitFactor(double)
+	 */
+	public static int getScanLimit(AlignmentWeight alignmentWeight, double scanLimitFactor, int kSize)
+			throws NullPointerException, IllegalArgumentException {
+		
+		int maxGapSize;      // Maximum length of a gap
+		double scanLimitDb;  // Scan limit as a double
+		int scanLimit;       // Scan limit
+		
+		// Check arguments
+		if (alignmentWeight == null)
+			throw new NullPointerException("Cannot get scan limit: Alignment weight is null");
+		
+		if (scanLimitFactor < 0.0)
+			throw new IllegalArgumentException("Scan limit factor must not be negative: " + scanLimitFactor);
+		
+		maxGapSize = alignmentWeight.getMaxExclusiveGapSize(kSize);
+		
 		// Safe set (avoid integer overflow)
 		scanLimitDb = maxGapSize + scanLimitFactor * kSize;
 		
@@ -1433,7 +1868,7 @@ public class ActiveRegionDetector {
 		if (scanLimit < kSize)
 			scanLimit = kSize;
 		
-		return;
+		return scanLimit;
 	}
 	
 	/**
@@ -1460,6 +1895,47 @@ public class ActiveRegionDetector {
 		return scanLimit;
 	}
 	
+	/**
+	 * Set the number of k-mers in each window when streaming k-mer counts over a reference region.
+	 * When set, reference regions with more k-mers than a window are not loaded into one count array.
+	 * The difference threshold and region statistics are computed in a first pass over the counts, and
+	 * active regions are found in a second pass over overlapping windows. Each window extends past
+	 * the k-mers scans are started from by the scan limit and the peak scan length, and the scan
+	 * state is carried from one window to the next, so the active regions are the same as those
+	 * found without streaming. The window is never smaller than twice the scan limit. Counts are
+	 * looked up twice in this mode. This setting is ignored if wildtype active regions are emitted
+	 * or if the scan limit is too large for windows.
+	 * 
+	 * @param streamWindowSize Number of k-mers in each window or <code>0</code> to keep counts for
+	 *   the whole reference region in memory.
+	 * 
+	 * @throws IllegalArgumentException If <code>streamWindowSize</code> is negative.
+	 * 
+	 * @see #DEFAULT_STREAM_WINDOW_SIZE
+	 */
+	public void setStreamWindowSize(int streamWindowSize)
+			throws IllegalArgumentException {
+		
+		if (streamWindowSize < 0)
+			throw new IllegalArgumentException("Stream window size is negative: " + streamWindowSize);
+		
+		this.streamWindowSize = streamWindowSize;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of k-mers in each window when streaming k-mer counts over a reference region.
+	 * 
+	 * @return Number of k-mers in each window or <code>0</code> if counts for the whole reference
+	 *   region are kept in memory.
+	 * 
+	 * @see #setStreamWindowSize(int)
+	 */
+	public int getStreamWindowSize() {
+		return streamWindowSize;
+	}
+	
 	/**
 	 * Attache a trace matrix to each haplotype if set to <code>true</code>. Enabling this option
 	 * will have significant performance and memory consumption implications, and it should only
@@ -1545,7 +2021,32 @@ public class ActiveRegionDetector {
 	}
 	
 	/**
-	 * Get k-mer counts from the reference sequence and populate the tree of ambiguous regions.
+	 * Get haplotypes of an active region. The region is tested for single-base substitutions
+	 * first if the SNV fast path is set, and it is assembled if the test does not resolve it.
+	 * 
+	 * @param activeRegion Active region.
+	 * 
+	 * @return Haplotypes in <code>activeRegion</code> or an empty array if no haplotypes were found.
+	 * 
+	 * @see #setSnvFastPath(boolean)
+	 */
+	private Haplotype[] getHaplotypes(ActiveRegion activeRegion) {
+		
+		Haplotype[] haplotypes;  // Haplotypes from the SNV test
+		
+		// Test for substitutions (the trace matrix is only recorded by assembly)
+		if (snvFastPath && ! traceHaplotypeAlignment) {
+			haplotypes = snvHaplotypeBuilder.getHaplotypes(activeRegion, alignmentBuilder.getMaxHaplotypes(), alignmentBuilder.getMaxState());
+			
+			if (haplotypes != null)
+				return haplotypes;
+		}
+		
+		return alignmentBuilder.getHaplotypes(activeRegion);
+	}
+	
+	/**
+	 * Get k-mer counts from the reference sequence. Runs of ambiguous bases are skipped in bulk.
 	 * 
 	 * @param refSequence Sequence to get k-mer counts from.
 	 * 
@@ -1561,7 +2062,6 @@ public class ActiveRegionDetector {
 		
 		CountMap counter;  // K-mer counter
 		
-		byte[] sequence;  // Sequence (refSequence.sequence)
 		int seqIndex;     // Current location in sequence
 		int seqLength;    // Size of sequence (refSequence.size)
 		
@@ -1597,7 +2097,6 @@ public class ActiveRegionDetector {
 		
 		counter = this.counter;
 		
-		sequence = refSequence.sequence;
 		seqIndex = 0;
 		seqLength = refSequence.size;
 		
@@ -1622,15 +2121,15 @@ public class ActiveRegionDetector {
 			
 			// Load k-mers and get counts
 			while (seqIndex < lastBaseLoad) {
-				base = BYTE_TO_BASE[sequence[seqIndex]];
+				base = refSequence.getKmerBase(seqIndex);
 				
-				// Handle ambiguous bases
+				// Handle ambiguous bases (skip the whole run)
 				if (base == null) {  // Ambiguous base
 					
-					while (countIndex <= seqIndex)
-						count[countIndex++] = 0;
+					seqIndex = refSequence.getNextUnambiguousIndex(seqIndex);
 					
-					++seqIndex;
+					while (countIndex < seqIndex && countIndex < countLength)
+						count[countIndex++] = 0;
 					
 					continue REF_LOOP;
 				}
@@ -1646,7 +2145,7 @@ public class ActiveRegionDetector {
 			// Get k-mer counts
 			while (seqIndex < seqLength) {
 				
-				base = BYTE_TO_BASE[sequence[seqIndex]];
+				base = refSequence.getKmerBase(seqIndex);
 				
 				if (base == null)
 					continue REF_LOOP;  // Let the k-mer load loop deal with ambiguous bases
@@ -1654,7 +2153,7 @@ public class ActiveRegionDetector {
 				kUtil.append(fwdKmer, base);
 				kUtil.prepend(revKmer, BASE_COMPLEMENT[base.intVal]);
 				
-				count[countIndex++] = counter.get(fwdKmer) + (countReverseKmers ? counter.get(revKmer) : 0);
+				count[countIndex++] = countReverseKmers ? counter.getBothStrands(fwdKmer, revKmer) : counter.get(fwdKmer);
 				
 				++seqIndex;
 			}
@@ -1668,9 +2167,85 @@ public class ActiveRegionDetector {
 		return count;
 	}
 	
+	/**
+	 * Look up the counts of a range of k-mers from the reference sequence. K-mers with
+	 * ambiguous bases are given a count of <code>0</code>.
+	 * 
+	 * @param refSequence Sequence to get k-mer counts from.
+	 * @param count Array of k-mer counts to fill.
+	 * @param countOffset Index of the k-mer counted by the first element of <code>count</code>.
+	 * @param start Index of the first k-mer to look up (inclusive).
+	 * @param end Index of the last k-mer to look up (exclusive).
+	 */
+	private void fillCounts(ReferenceRegion refSequence, int[] count, int countOffset, int start, int end) {
+		
+		// Declarations
+		int seqIndex;     // Current location in sequence
+		int countIndex;   // Location in counts where the next k-mer count is written
+		int nLoaded;      // Number of unambiguous bases at the end of fwdKmer
+		
+		int[] fwdKmer;  // Forward k-mer
+		int[] revKmer;  // Reverse-complement of fwdKmer
+		Base base;      // Current nucleotide base
+		
+		// Check arguments
+		assert (refSequence != null) :
+			"refSequence is null";
+		
+		assert (count != null) :
+			"count is null";
+		
+		assert (start >= countOffset && start <= end && end <= count.length + countOffset) :
+			String.format("Count range is out of bounds: start=%d, end=%d, offset=%d, length=%d", start, end, countOffset, count.length);
+		
+		// Init
+		fwdKmer = new int[kUtil.kmerArraySize];
+		revKmer = new int[kUtil.kmerArraySize];
+		
+		seqIndex = start;
+		countIndex = start;
+		nLoaded = 0;
+		
+		// Read bases and get k-mer counts
+		while (countIndex < end) {
+			
+			base = refSequence.getKmerBase(seqIndex++);
+			
+			if (base != null) {
+				kUtil.append(fwdKmer, base);
+				kUtil.prepend(revKmer, BASE_COMPLEMENT[base.intVal]);
+				
+				++nLoaded;
+				
+			} else {
+				nLoaded = 0;  // Ambiguous base
+				
+				// Skip the run of ambiguous bases. K-mers ending in the run have no count.
+				seqIndex = Math.min(refSequence.getNextUnambiguousIndex(seqIndex), end + kSize - 1);
+				
+				while (countIndex <= seqIndex - kSize)
+					count[countIndex++ - countOffset] = 0;
+			}
+			
+			// Get the count of the k-mer ending at the last base read
+			if (seqIndex - countIndex == kSize) {
+				
+				if (nLoaded >= kSize)
+					count[countIndex - countOffset] = countReverseKmers ? counter.getBothStrands(fwdKmer, revKmer) : counter.get(fwdKmer);
+				else
+					count[countIndex - countOffset] = 0;
+				
+				++countIndex;
+			}
+		}
+		
+		return;
+	}
+	
 	/**
 	 * Get the difference threshold by computing a quantile over the set of
-	 * differences between each neighboring k-mer.
+	 * differences between each neighboring k-mer. Differences are tallied in a
+	 * histogram, so the quantile is exact without copying and sorting them.
 	 * 
 	 * @param count Count array to compute quantiles from.
 	 * @param start Start index of the count range to analyze (inclusive).
@@ -1686,14 +2261,9 @@ public class ActiveRegionDetector {
 		int lastCount;
 		int thisCount;
 		int thisCountDiff;
-		int loc;
-		double offset;
 		
-		int[] countDiff;
-		int nCount;       // Number of elements in count while getting differences, and one less than
-		                  // the length of countDiff while computing quantiles
-		
-		int diffQuantileValue;  // Difference threshold quantile value
+		CountHistogram diffHist;  // Histogram of count differences
+		int nCount;               // Number of elements in count while getting differences
 		
 		// Check arguments
 		assert (count != null) :
@@ -1705,7 +2275,7 @@ public class ActiveRegionDetector {
 			"Count array length is less than 3: " + nCount;
 		
 		nCount -= 1;  // Convert to the number of count differences (1 less than the number of counts) 
-		countDiff = new int[nCount];
+		diffHist = new CountHistogram();
 		
 		// Convert to count differences
 		lastCount = count[start];
@@ -1714,22 +2284,193 @@ public class ActiveRegionDetector {
 			thisCount = count[start + index];
 			thisCountDiff = lastCount - thisCount;
 			
-			countDiff[index] = (thisCountDiff < 0) ? -thisCountDiff : thisCountDiff;  // Absolute value of diff
+			diffHist.add((thisCountDiff < 0) ? -thisCountDiff : thisCountDiff);  // Absolute value of diff
 			
 			lastCount = thisCount;
 		}
 		
-		nCount -= 1;  // One less difference than k-mer count differences (simplifies quantile calculations)
+		// Get quantile
+		return getDifferenceQuantile(diffHist);
+	}
+	
+	/**
+	 * Get the difference threshold by streaming k-mer counts over the reference in windows. The
+	 * threshold is the same as the one computed by <code>getDifferenceThreshold()</code> over an
+	 * array of all counts in the region.
+	 * 
+	 * @param refSequence Sequence to get k-mer counts from.
+	 * @param countLength Number of k-mers in <code>refSequence</code>. Must be at least
+	 *   <code>3</code>.
+	 * @param countHist Every k-mer count is added to this histogram.
+	 * 
+	 * @return The difference threshold.
+	 * 
+	 * @see #getDifferenceThreshold(int[], int, int)
+	 */
+	private int getStreamingThreshold(ReferenceRegion refSequence, int countLength, CountHistogram countHist) {
+		
+		// Declarations
+		int[] count;       // Counts in the current window
+		int windowOffset;  // Index of the k-mer counted by count[0]
+		int windowEnd;     // Index of the k-mer after the last k-mer counted by count
+		
+		CountHistogram diffHist;  // Histogram of count differences
+		int lastCount;            // Count of the last k-mer
+		int thisCountDiff;        // Difference between the last and current k-mer count
+		
+		// Check arguments
+		assert (countLength > 2) :
+			"Count array length is less than 3: " + countLength;
+		
+		// Init
+		count = new int[Math.min(Math.max(streamWindowSize, 1), countLength)];
+		diffHist = new CountHistogram();
+		
+		lastCount = -1;
+		
+		// Get counts in windows
+		for (windowOffset = 0; windowOffset < countLength; windowOffset = windowEnd) {
+			
+			windowEnd = (int) Math.min((long) windowOffset + count.length, countLength);
+			
+			fillCounts(refSequence, count, windowOffset, windowOffset, windowEnd);
+			
+			for (int index = 0; index < windowEnd - windowOffset; ++index) {
+				
+				countHist.add(count[index]);
+				
+				// Differences match getDifferenceThreshold(): The first difference is 0, and the last is not included
+				if (windowOffset + index < countLength - 1) {
+					
+					if (lastCount < 0)
+						lastCount = count[index];
+					
+					thisCountDiff = lastCount - count[index];
+					
+					diffHist.add((thisCountDiff < 0) ? -thisCountDiff : thisCountDiff);  // Absolute value of diff
+					
+					lastCount = count[index];
+				}
+			}
+		}
+		
+		return getDifferenceQuantile(diffHist);
+	}
+	
+	/**
+	 * Get the differences between neighboring k-mer counts in one chunk of a reference region. The
+	 * histograms of all chunks of a region added together contain the same differences the
+	 * difference threshold of the whole region is computed from.
+	 * 
+	 * @param chunk Chunk.
+	 * 
+	 * @return A histogram of absolute differences for k-mers owned by <code>chunk</code>.
+	 * 
+	 * @throws NullPointerException If <code>chunk</code> is <code>null</code>.
+	 * 
+	 * @see #getChunks(ReferenceRegion, int)
+	 * @see #getDifferenceThreshold(CountHistogram)
+	 */
+	public CountHistogram getDifferenceHistogram(ActiveRegionChunk chunk)
+			throws NullPointerException {
+		
+		// Declarations
+		int[] count;        // Counts from the k-mer before the chunk to the end of the chunk
+		int countOffset;    // Index of the k-mer counted by count[0]
+		int diffEnd;        // Index of the k-mer after the last k-mer with a difference
+		int thisCountDiff;  // Difference between the last and current k-mer count
 		
-		// Sort
-		Arrays.sort(countDiff);
+		CountHistogram diffHist;  // Histogram to return
+		
+		// Check arguments
+		if (chunk == null)
+			throw new NullPointerException("Cannot get count difference histogram for chunk: null");
+		
+		// Init
+		countOffset = Math.max(chunk.start - 1, 0);
+		count = new int[chunk.end - countOffset];
+		
+		diffEnd = Math.min(chunk.end, chunk.kmerCount - 1);
+		
+		diffHist = new CountHistogram();
+		
+		// Get counts
+		fillCounts(chunk.refRegion, count, countOffset, countOffset, chunk.end);
+		
+		// Differences match getDifferenceThreshold(): The first difference is 0, and the last is not included
+		for (int index = chunk.start; index < diffEnd; ++index) {
+			
+			if (index == 0) {
+				diffHist.add(0);
+				continue;
+			}
+			
+			thisCountDiff = count[index - 1 - countOffset] - count[index - countOffset];
+			
+			diffHist.add((thisCountDiff < 0) ? -thisCountDiff : thisCountDiff);  // Absolute value of diff
+		}
+		
+		return diffHist;
+	}
+	
+	/**
+	 * Get the difference threshold from a histogram of differences between neighboring k-mer counts.
+	 * 
+	 * @param diffHist Histogram of absolute differences, such as the sum of the histograms of
+	 *   all chunks of a reference region.
+	 * 
+	 * @return The difference threshold.
+	 * 
+	 * @throws NullPointerException If <code>diffHist</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>diffHist</code> has less than two differences.
+	 * 
+	 * @see #getDifferenceHistogram(ActiveRegionChunk)
+	 */
+	public int getDifferenceThreshold(CountHistogram diffHist)
+			throws NullPointerException, IllegalArgumentException {
+		
+		// Check arguments
+		if (diffHist == null)
+			throw new NullPointerException("Cannot get difference threshold from histogram: null");
+		
+		if (diffHist.size() < 2)
+			throw new IllegalArgumentException("Cannot get difference threshold from histogram: Histogram has less than 2 differences: " + diffHist.size());
+		
+		return getDifferenceQuantile(diffHist);
+	}
+	
+	/**
+	 * Get the difference threshold from a histogram of differences between neighboring k-mers.
+	 * 
+	 * @param diffHist Histogram of absolute k-mer count differences. Must contain at least two
+	 *   differences.
+	 * 
+	 * @return The difference threshold.
+	 * 
+	 * @see #setDifferenceQuantile(double)
+	 */
+	private int getDifferenceQuantile(CountHistogram diffHist) {
+		
+		// Declarations
+		long loc;
+		double offset;
+		
+		long nCount;  // One less than the number of differences (simplifies quantile calculations)
+		
+		int diffQuantileValue;  // Difference threshold quantile value
+		
+		// Check arguments
+		assert (diffHist != null && diffHist.size() > 1) :
+			"Count difference histogram is null or has less than 2 elements";
+		
+		nCount = diffHist.size() - 1;
 		
 		// Calculate difference quantile
 		if (differenceQuantile > 0.0) {
-			loc = (int) (nCount * differenceQuantile);
+			loc = (long) (nCount * differenceQuantile);
 			offset = (nCount * differenceQuantile) - loc;
 			
-			diffQuantileValue = (int) (countDiff[loc] * (1 - offset) + countDiff[loc + 1] * offset);
+			diffQuantileValue = (int) (diffHist.get(loc) * (1 - offset) + diffHist.get(loc + 1) * offset);
 			
 			if (diffQuantileValue < minimumDifference)
 				diffQuantileValue = minimumDifference;
@@ -1795,6 +2536,11 @@ public class ActiveRegionDetector {
 	 */
 	private void initAlignmentBuilder() {
 		alignmentBuilder = new KmerAlignmentBuilder(kUtil, counter, alignmentWeight, countReverseKmers, maxRepeatCount, traceHaplotypeAlignment);
+		alignmentBuilder.setBandedAlignment(bandedAlignment);
+		alignmentBuilder.setBestFirst(bestFirstAssembly);
+		alignmentBuilder.setBranchPool(branchPool);
+		
+		snvHaplotypeBuilder = new SnvHaplotypeBuilder(kUtil, counter, alignmentWeight, countReverseKmers);
 		
 		return;
 	}
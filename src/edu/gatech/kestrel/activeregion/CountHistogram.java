@@ -0,0 +1,226 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.activeregion;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A histogram of non-negative values, such as k-mer counts or differences between neighboring
+ * k-mer counts. Values are ranked as if they were sorted in an array, so order statistics match
+ * those computed by sorting every value, but memory only grows with the range of values. Small
+ * values are tallied in an array, and large values, which are rare in k-mer count data, are
+ * tallied in a map.
+ */
+public class CountHistogram {
+	
+	/** Frequency of each value less than the length of this array. */
+	private long[] freq;
+	
+	/** Frequency of values too large for <code>freq</code>. */
+	private final TreeMap<Integer, Long> largeFreq;
+	
+	/** Number of values added. */
+	private long n;
+	
+	/** Minimum value added. */
+	private int min;
+	
+	/** Maximum value added. */
+	private int max;
+	
+	/** Initial length of <code>freq</code>. */
+	private static final int INIT_ARRAY_SIZE = 256;
+	
+	/** Values this large or larger are not tallied in <code>freq</code>. */
+	private static final int MAX_ARRAY_SIZE = 1 << 16;
+	
+	/**
+	 * Create an empty histogram.
+	 */
+	public CountHistogram() {
+		
+		freq = new long[INIT_ARRAY_SIZE];
+		largeFreq = new TreeMap<>();
+		
+		n = 0;
+		min = Integer.MAX_VALUE;
+		max = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Add a value.
+	 * 
+	 * @param value Value to add.
+	 * 
+	 * @throws IllegalArgumentException If <code>value</code> is negative.
+	 */
+	public void add(int value)
+			throws IllegalArgumentException {
+		
+		if (value < 0)
+			throw new IllegalArgumentException("Cannot add negative value to histogram: " + value);
+		
+		add(value, 1);
+		
+		return;
+	}
+	
+	/**
+	 * Add all values from another histogram.
+	 * 
+	 * @param countHist Histogram to add values from.
+	 * 
+	 * @throws NullPointerException If <code>countHist</code> is <code>null</code>.
+	 */
+	public void add(CountHistogram countHist)
+			throws NullPointerException {
+		
+		if (countHist == null)
+			throw new NullPointerException("Cannot add values from histogram: null");
+		
+		if (countHist.n == 0)
+			return;
+		
+		for (int value = countHist.min; value < countHist.freq.length; ++value)
+			if (countHist.freq[value] > 0)
+				add(value, countHist.freq[value]);
+		
+		for (Map.Entry<Integer, Long> entry : countHist.largeFreq.entrySet())
+			add(entry.getKey(), entry.getValue());
+		
+		return;
+	}
+	
+	/**
+	 * Add a value one or more times.
+	 * 
+	 * @param value Value to add. Must not be negative.
+	 * @param count Number of times to add <code>value</code>. Must be positive.
+	 */
+	private void add(int value, long count) {
+		
+		Long lastFreq;  // Frequency of a large value before this value is added
+		
+		if (value < freq.length) {
+			freq[value] += count;
+			
+		} else if (value < MAX_ARRAY_SIZE) {
+			freq = Arrays.copyOf(freq, Math.min(Integer.highestOneBit(value) << 1, MAX_ARRAY_SIZE));
+			freq[value] += count;
+			
+		} else {
+			lastFreq = largeFreq.get(value);
+			largeFreq.put(value, (lastFreq == null) ? count : lastFreq + count);
+		}
+		
+		n += count;
+		
+		if (value < min)
+			min = value;
+		
+		if (value > max)
+			max = value;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of values added.
+	 * 
+	 * @return Number of values added.
+	 */
+	public long size() {
+		return n;
+	}
+	
+	/**
+	 * Get the minimum value.
+	 * 
+	 * @return Minimum value.
+	 * 
+	 * @throws IllegalStateException If no values were added.
+	 */
+	public int getMin()
+			throws IllegalStateException {
+		
+		if (n == 0)
+			throw new IllegalStateException("Cannot get the minimum value: Histogram is empty");
+		
+		return min;
+	}
+	
+	/**
+	 * Get the maximum value.
+	 * 
+	 * @return Maximum value.
+	 * 
+	 * @throws IllegalStateException If no values were added.
+	 */
+	public int getMax()
+			throws IllegalStateException {
+		
+		if (n == 0)
+			throw new IllegalStateException("Cannot get the maximum value: Histogram is empty");
+		
+		return max;
+	}
+	
+	/**
+	 * Get a value by its rank. This is the value that would be found at index <code>rank</code>
+	 * if all values were sorted into an array.
+	 * 
+	 * @param rank Rank of the value (<code>0</code> is the minimum value).
+	 * 
+	 * @return The value at <code>rank</code>.
+	 * 
+	 * @throws IllegalArgumentException If <code>rank</code> is negative or is not less than the
+	 *   number of values added.
+	 */
+	public int get(long rank)
+			throws IllegalArgumentException {
+		
+		long nSeen;  // Number of values less than or equal to the current value
+		
+		// Check arguments
+		if (rank < 0 || rank >= n)
+			throw new IllegalArgumentException(String.format("Rank is not in range [0, %d): %d", n, rank));
+		
+		// Find value
+		nSeen = 0;
+		
+		for (int value = min; value < freq.length; ++value) {
+			nSeen += freq[value];
+			
+			if (nSeen > rank)
+				return value;
+		}
+		
+		for (Map.Entry<Integer, Long> entry : largeFreq.entrySet()) {
+			nSeen += entry.getValue();
+			
+			if (nSeen > rank)
+				return entry.getKey();
+		}
+		
+		// Unreachable: Ranks are checked against the number of values
+		throw new IllegalStateException(String.format("Rank %d was not found in %d values", rank, n));
+	}
+}
@@ -20,6 +20,7 @@ import java.util.Arrays;
 
 import edu.gatech.kestrel.align.AlignNode;
 import edu.gatech.kestrel.align.TraceMatrix;
+import edu.gatech.kestrel.refreader.ReferenceRegion;
 
 /**
  * Represents one haplotype over an active region.
@@ -161,7 +162,7 @@ public class Haplotype {
 		int refIndex;  // Reference sequence index
 		int conIndex;  // Consensus sequence index
 		
-		byte[] reference;  // Reference sequence
+		ReferenceRegion reference;  // Reference region
 		byte[] consensus;  // Consensus sequence
 		
 		// Check arguments
@@ -178,7 +179,7 @@ public class Haplotype {
 		refIndex = activeRegion.startIndex;
 		conIndex = 0;
 		
-		reference = activeRegion.refRegion.sequence;
+		reference = activeRegion.refRegion;
 		consensus = this.sequence;
 		
 		// Traverse
@@ -186,14 +187,14 @@ public class Haplotype {
 			
 			if (node.type == AlignNode.MATCH) {
 				for (int index = 0; index < node.n; ++index) {
-					refBuilder.append((char) reference[refIndex++]);
+					refBuilder.append((char) reference.getBaseByIndex(refIndex++));
 					conBuilder.append((char) consensus[conIndex++]);
 					barBuilder.append('|');
 				}
 				
 			} else if (node.type == AlignNode.MISMATCH) {
 				for (int index = 0; index < node.n; ++index) {
-					refBuilder.append((char) reference[refIndex++]);
+					refBuilder.append((char) reference.getBaseByIndex(refIndex++));
 					conBuilder.append((char) consensus[conIndex++]);
 					barBuilder.append(' ');
 				}
@@ -207,7 +208,7 @@ public class Haplotype {
 				
 			} else if (node.type == AlignNode.DEL) {
 				for (int index = 0; index < node.n; ++index) {
-					refBuilder.append((char) reference[refIndex++]);
+					refBuilder.append((char) reference.getBaseByIndex(refIndex++));
 					conBuilder.append('-');
 					barBuilder.append(' ');
 				}
@@ -172,11 +172,12 @@ public final class RegionStats {
 			
 			kUtil.append(kmer, base);
 			
-			count[countIndex] = counter.get(kmer);
-			
 			if (countRev) {
 				kUtil.prepend(revKmer, base.getComplement());
-				count[countIndex] += counter.get(revKmer);
+				count[countIndex] = counter.getBothStrands(kmer, revKmer);
+				
+			} else {
+				count[countIndex] = counter.get(kmer);
 			}
 			
 			// Next base
@@ -315,6 +316,76 @@ public final class RegionStats {
 		);
 	}
 	
+	/**
+	 * Get summary statistics from a histogram of k-mer counts. The statistics are the same as those
+	 * computed from an array of the counts added to the histogram.
+	 * 
+	 * @param countHist Histogram of k-mer counts.
+	 * 
+	 * @return Summary statistics for the k-mers in <code>countHist</code>.
+	 * 
+	 * @throws NullPointerException If <code>countHist</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>countHist</code> is empty or contains more than
+	 *   <code>Integer.MAX_VALUE</code> counts.
+	 * 
+	 * @see #getStats(int[], int, int)
+	 */
+	public static final RegionStats getStats(CountHistogram countHist)
+			throws NullPointerException, IllegalArgumentException {
+		
+		int nCount;  // Number of counts in countHist
+		int nLess1;  // nCount - 1 (saved to avoid repetitive calculation)
+		
+		int loc;       // First of two counts (rank in countHist) for linear interpolation of counts
+		float offset;  // Offset for linear interpolation of counts
+		
+		float pct25;  // 25th percentile
+		float pct50;  // 50th percentile
+		float pct75;  // 75th percentile
+		
+		// Check arguments
+		if (countHist == null)
+			throw new NullPointerException("Cannot get stats from count histogram: null");
+		
+		if (countHist.size() < 1 || countHist.size() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Number of counts in the histogram is not in range [1, Integer.MAX_VALUE]: " + countHist.size());
+		
+		nCount = (int) countHist.size();
+		
+		if (nCount == 1)
+			return new RegionStats(countHist.getMin(), countHist.getMin(), countHist.getMin(), countHist.getMin(), countHist.getMin(), 1);
+		
+		nLess1 = nCount - 1;
+		
+		// 25th percentile
+		loc = (int) (nLess1 * .25F);
+		offset = (nLess1 * .25F) - loc;
+		
+		pct25 = countHist.get(loc) * (1 - offset) + countHist.get(loc + 1) * offset;
+		
+		// 50th percentile
+		loc = (int) (nLess1 * .5F);
+		offset = (nLess1 * .5F) - loc;
+		
+		pct50 = countHist.get(loc) * (1 - offset) + countHist.get(loc + 1) * offset;
+		
+		// 75th percentile
+		loc = (int) (nLess1 * .75F);
+		offset = (nLess1 * .75F) - loc;
+		
+		pct75 = countHist.get(loc) * (1 - offset) + countHist.get(loc + 1) * offset;
+		
+		// Generate summary statistics
+		return new RegionStats(
+				countHist.getMin(),
+				pct25,
+				pct50,
+				pct75,
+				countHist.getMax(),
+				nCount
+		);
+	}
+	
 	/**
 	 * Get a string representation of these stats.
 	 */
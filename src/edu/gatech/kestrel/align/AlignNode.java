@@ -43,19 +43,22 @@ public final class AlignNode implements Comparable<AlignNode> {
 	public final AlignNode next;
 	
 	/** Assign to <code>type</code> to indicate the two current bases are aligned and they match. */
-	public static final byte MATCH = TraceNode.TYPE_MATCH;
+	public static final byte MATCH = 1;
 	
 	/** Assign to <code>type</code> to indicate the two current bases are aligned and they do not match. */
-	public static final byte MISMATCH = TraceNode.TYPE_MISMATCH;
+	public static final byte MISMATCH = 2;
 	
 	/** Assign to <code>type</code> to indicate a gap in the reference sequence at this position. */
-	public static final byte INS = TraceNode.TYPE_GAP_REF;
+	public static final byte INS = 3;
 	
 	/** Assign to <code>type</code> to indicate a gap in the consensus sequence at this position. */
-	public static final byte DEL = TraceNode.TYPE_GAP_CON;
+	public static final byte DEL = 4;
 	
-	/** Converts type constants to a string. */
-	public static final char[] CIGAR_CHARS = TraceNode.getCigarArray();
+	/**
+	 * Converts type constants to a string. Note that <code>CIGAR_CHARS[0]</code> (*) should never
+	 * show up in a CIGAR string, but it is in this array as a placeholder for type <code>0</code>.
+	 */
+	public static final char[] CIGAR_CHARS = new char[] {'*', '=', 'X', 'I', 'D'};
 	
 	/**
 	 * Create a new alignment node.
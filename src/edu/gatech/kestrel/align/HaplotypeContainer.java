@@ -22,7 +22,8 @@ import org.slf4j.LoggerFactory;
 import edu.gatech.kestrel.activeregion.Haplotype;
 
 /**
- * Manage haplotypes for the aligner.
+ * Manage haplotypes for the aligner. Haplotypes may be added by several threads exploring
+ * branches of the same active region.
  */
 public class HaplotypeContainer {
 	
@@ -67,7 +68,7 @@ public class HaplotypeContainer {
 	 * 
 	 * @throws NullPointerException If <code>haplotype</code> is <code>null</code>.
 	 */
-	public void add(Haplotype haplotype)
+	public synchronized void add(Haplotype haplotype)
 			throws NullPointerException {
 		
 		Haplotype rmHaplotype;  // Removed haplotype if the container was trimmed to make space
@@ -105,16 +106,45 @@ public class HaplotypeContainer {
 	 * 
 	 * @return Number of haplotypes in this container.
 	 */
-	public int size() {
+	public synchronized int size() {
 		return size;
 	}
 	
+	/**
+	 * Get the minimum k-mer depth a haplotype must exceed to be added to this container. A
+	 * haplotype at or below this depth is rejected.
+	 * 
+	 * @return The least minimum k-mer depth of haplotypes in this container if it is full, or
+	 *   <code>0</code> if it is not full.
+	 */
+	public synchronized int getMinDepthLimit() {
+		
+		HaplotypeNode nextNode;  // Current node being analyzed
+		int minDepth;            // Least minimum k-mer depth
+		
+		if (size < limit)
+			return 0;
+		
+		nextNode = haplotypeHead;
+		minDepth = Integer.MAX_VALUE;
+		
+		while (nextNode != null) {
+			
+			if (nextNode.haplotype.stats.min < minDepth)
+				minDepth = nextNode.haplotype.stats.min;
+			
+			nextNode = nextNode.next;
+		}
+		
+		return minDepth;
+	}
+	
 	/**
 	 * Get an array of haplotypes.
 	 * 
 	 * @return Array of haplotypes.
 	 */
-	public Haplotype[] toArray() {
+	public synchronized Haplotype[] toArray() {
 		
 		HaplotypeNode nextNode = haplotypeHead;
 		
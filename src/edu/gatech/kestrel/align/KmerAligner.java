@@ -16,19 +16,22 @@
 
 package edu.gatech.kestrel.align;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.gatech.kanalyze.util.Base;
-import edu.gatech.kanalyze.util.KmerHashSet;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
 import edu.gatech.kestrel.KestrelConstants;
 import edu.gatech.kestrel.activeregion.ActiveRegion;
 import edu.gatech.kestrel.activeregion.Haplotype;
 import edu.gatech.kestrel.activeregion.RegionStats;
+import edu.gatech.kestrel.align.state.KmerPathSet;
 import edu.gatech.kestrel.align.state.RestoredState;
+import edu.gatech.kestrel.align.state.ScoreColumn;
 import edu.gatech.kestrel.align.state.StateStackNode;
-import edu.gatech.kestrel.align.state.TraceNodeContainer;
 import edu.gatech.kestrel.counter.CountMap;
 
 /**
@@ -68,6 +71,13 @@ public final class KmerAligner {
 	/** Length of the reference sequence (<code>refBaseEnd - refBaseStart + 1</code>. */
 	private int refLength;
 	
+	/**
+	 * Bases of the reference sequence from <code>refBaseStart</code> to <code>refBaseEnd</code>
+	 * unpacked from the reference region. Index <code>0</code> is the base at <code>refBaseStart</code>.
+	 * Always length <code>referenceCapacity</code>.
+	 */
+	private byte[] refSequence;
+	
 	/**
 	 * If <code>true</code>, this alignment is build from right to left. This is set if the active
 	 * region reaches the left end of the sequence and it the alignment must anchor on the right
@@ -83,43 +93,102 @@ public final class KmerAligner {
 	
 	/**
 	 * The last column of the alignment score matrix for aligned bases. Always length
-	 * <code>refLength</code>.
+	 * <code>refLength</code>. A cell with a score of <code>0</code> cannot be reached.
 	 */
-	private TraceNode[] matrixColAlign;
+	private float[] matrixColAlign;
 	
 	/**
 	 * The last column of the alignment score matrix for gaps in the reference sequence (insertions).
 	 * Always length <code>refLength</code>.
 	 */
-	private TraceNode[] matrixColGapRef;
+	private float[] matrixColGapRef;
 	
 	/**
 	 * The last column of the alignment score matrix for gaps in the consensus sequence (deletions).
 	 * Always length <code>refLength</code>.
 	 */
-	private TraceNode[] matrixColGapCon;
+	private float[] matrixColGapCon;
 	
 	/**
 	 * As a base is added to the alignment, this is the new <code>matrixColAlign</code> as it
 	 * is being built.
 	 */
-	private TraceNode[] matrixColAlignNext;
+	private float[] matrixColAlignNext;
 	
 	/**
 	 * As a base is added to the alignment, this is the new <code>matrixColGapRef</code> as it
 	 * is being built.
 	 */
-	private TraceNode[] matrixColGapRefNext;
+	private float[] matrixColGapRefNext;
 	
 	/**
 	 * As a base is added to the alignment, this is the new <code>matrixColGapCon</code> as it
 	 * is being built.
 	 */
-	private TraceNode[] matrixColGapConNext;
+	private float[] matrixColGapConNext;
+	
+	/**
+	 * As a base is added to the alignment, this is the trace code of each cell in the new
+	 * column as it is being built.
+	 */
+	private short[] traceCodeNext;
+	
+	/** Transitions into each cell of the alignment used to build alignments. */
+	private TraceTable traceTable;
 	
 	/** Size of column matrices. May be larger than the reference length (aligner is reusable). */
 	private int referenceCapacity;
 	
+	/**
+	 * First row of the <code>matrixCol</code> columns that may have a non-zero score. All rows
+	 * outside <code>scoreStart</code> and <code>scoreEnd</code> are <code>0</code>.
+	 */
+	private int scoreStart;
+	
+	/** Row after the last row of the <code>matrixCol</code> columns that may have a non-zero score. */
+	private int scoreEnd;
+	
+	/**
+	 * First row of the <code>matrixCol...Next</code> columns that may still have scores from an
+	 * earlier column. These rows are cleared before a new column is built.
+	 */
+	private int nextStart;
+	
+	/** Row after the last row of the <code>matrixCol...Next</code> columns that may still have scores. */
+	private int nextEnd;
+	
+	/**
+	 * If <code>true</code>, only cells within <code>bandWidth</code> rows of <code>bandCenter</code>
+	 * are computed when a base is added.
+	 */
+	private boolean banded;
+	
+	/**
+	 * Number of rows on each side of <code>bandCenter</code> computed in banded mode. This starts at
+	 * the largest gap the alignment weights allow and doubles when a cell on the edge of the band
+	 * has a non-zero score.
+	 */
+	private int bandWidth;
+	
+	/** Row the band is centered on when the next base is added. */
+	private int bandCenter;
+	
+	/**
+	 * If <code>true</code>, saved states are ordered by their minimum k-mer depth and the upper
+	 * bound of their alignment score, and the best state is restored first. If <code>false</code>,
+	 * the last state saved is restored first.
+	 */
+	private boolean bestFirst;
+	
+	/** Upper bound of the alignment score that can be reached by extending the last column. */
+	private float maxPotentialScore;
+	
+	/**
+	 * Scores of the last column saved with a state or <code>null</code> if the last column has
+	 * changed since a state was saved. States saved at the same position share this object.
+	 */
+	private ScoreColumn savedColumn;
+	
 	/** The consensus sequence. */
 	private byte[] consensus;
 	
@@ -158,6 +227,25 @@ public final class KmerAligner {
 	 */
 	private int maxState;
 	
+	/**
+	 * Number of states saved by all aligners exploring the active region, or <code>null</code> if
+	 * this aligner explores the region alone. When set, <code>maxState</code> limits the number of
+	 * saves counted here, and saves beyond the limit are rejected.
+	 */
+	private AtomicInteger sharedStateCount;
+	
+	/**
+	 * Key of the branch being aligned. The key of the first branch is empty, and the key of a
+	 * branch started from a saved state is the key of that state.
+	 */
+	private int[] branchKey;
+	
+	/** Number of states saved since the branch being aligned was started. */
+	private int branchStateCount;
+	
+	/** Key of the first branch of an active region. */
+	private static final int[] FIRST_BRANCH_KEY = new int[0];
+	
 	/**
 	 * A cache of type lists used for building alignments.
 	 */
@@ -213,14 +301,18 @@ public final class KmerAligner {
 		kSize = kUtil.kSize;
 		
 		// Create alignment matrix columns
-		matrixColAlign = new TraceNode[0];
-		matrixColGapRef = new TraceNode[0];
-		matrixColGapCon = new TraceNode[0];
+		matrixColAlign = new float[0];
+		matrixColGapRef = new float[0];
+		matrixColGapCon = new float[0];
+		
+		matrixColAlignNext = new float[0];
+		matrixColGapRefNext = new float[0];
+		matrixColGapConNext = new float[0];
 		
-		matrixColAlignNext = new TraceNode[0];
-		matrixColGapRefNext = new TraceNode[0];
-		matrixColGapConNext = new TraceNode[0];
+		traceCodeNext = new short[0];
+		traceTable = new TraceTable();
 		
+		refSequence = new byte[0];
 		referenceCapacity = 0;
 		
 		// Initialize the type list cache
@@ -230,12 +322,18 @@ public final class KmerAligner {
 		// Initialize other fields
 		reverse = false;
 		allowEndDeletion = false;
+		banded = false;
+		bestFirst = false;
 		
 		// Initialize saved states
 		stateStack = null;
 		nState = 0;
 		
 		maxState = DEFAULT_MAX_STATE;
+		sharedStateCount = null;
+		
+		branchKey = FIRST_BRANCH_KEY;
+		branchStateCount = 0;
 		
 		return;
 	}
@@ -287,15 +385,22 @@ public final class KmerAligner {
 			if (referenceCapacity < 0 || referenceCapacity > KestrelConstants.MAX_ARRAY_SIZE)
 				referenceCapacity = KestrelConstants.MAX_ARRAY_SIZE;
 			
-			matrixColAlign = new TraceNode[referenceCapacity];
-			matrixColGapRef = new TraceNode[referenceCapacity];
-			matrixColGapCon = new TraceNode[referenceCapacity];
+			matrixColAlign = new float[referenceCapacity];
+			matrixColGapRef = new float[referenceCapacity];
+			matrixColGapCon = new float[referenceCapacity];
+			
+			matrixColAlignNext = new float[referenceCapacity];
+			matrixColGapRefNext = new float[referenceCapacity];
+			matrixColGapConNext = new float[referenceCapacity];
+			
+			traceCodeNext = new short[referenceCapacity];
 			
-			matrixColAlignNext = new TraceNode[referenceCapacity];
-			matrixColGapRefNext = new TraceNode[referenceCapacity];
-			matrixColGapConNext = new TraceNode[referenceCapacity];
+			refSequence = new byte[referenceCapacity];
 		}
 		
+		// Copy reference bases
+		activeRegion.refRegion.getSequence(refBaseStart, refSequence, 0, refLength);
+		
 		// Create consensus sequence
 		newConsensusCapacity = (int) (refLength * CONS_SIZE_MULTIPLIER);
 		
@@ -323,6 +428,9 @@ public final class KmerAligner {
 		stateStack = null;
 		nState = 0;
 		
+		branchKey = FIRST_BRANCH_KEY;
+		branchStateCount = 0;
+		
 		// Initialize alignment
 		initAlignment();
 		
@@ -336,68 +444,92 @@ public final class KmerAligner {
 	 */
 	private void initAlignment() {
 		
-		TraceNode lastNode;  // Last trace-node object
-		float initScore;     // Initial alignment score
+		float lastScore;  // Score of the last consensus-gap cell
+		float initScore;  // Initial alignment score
 		
 		byte[] sequence;   // Reference sequence
 		byte[] consensus;  // Consensus sequence
 		
 		// Init
-		lastNode = null;
 		initScore = alnWeight.getInitialScore(kSize);
 		
-		sequence = activeRegion.refRegion.sequence;
+		sequence = refSequence;
 		consensus = this.consensus;
 		
 		// Assign default values to matrix columns
 		for (int index = 0; index < refLength; ++index) {
-			matrixColAlign[index] = TraceNode.ZERO_NODE;
-			matrixColGapRef[index] = TraceNode.ZERO_NODE;
-			matrixColGapCon[index] = TraceNode.ZERO_NODE;
+			matrixColAlign[index] = 0.0F;
+			matrixColGapRef[index] = 0.0F;
+			matrixColGapCon[index] = 0.0F;
+			
+			matrixColAlignNext[index] = 0.0F;
+			matrixColGapRefNext[index] = 0.0F;
+			matrixColGapConNext[index] = 0.0F;
+			
+			traceCodeNext[index] = 0;
 		}
 		
-		matrixColAlignNext[0] = TraceNode.ZERO_NODE;
-		matrixColGapRefNext[0] = TraceNode.ZERO_NODE;
-		matrixColGapConNext[0] = TraceNode.ZERO_NODE;
+		nextStart = 0;
+		nextEnd = 0;
+		
+		savedColumn = null;
+		
+		traceTable.clear();
 		
 		// Begin match by aligning the k-mer that seeded the alignment
 		if (trace) {
 			traceMatrix = new TraceMatrix(refLength);
 			
 			for (int count = 0; count < kSize; ++count) {
-				lastNode = new TraceNode(initScore, TraceNode.TYPE_MATCH, lastNode);
 				traceMatrix.nextCol();
-				traceMatrix.set(count, TraceNode.TYPE_MATCH, TraceNode.TYPE_MATCH);
+				traceMatrix.set(count, AlignNode.MATCH, AlignNode.MATCH);
 			}
-			
-		} else {
-			for (int count = 0; count < kSize; ++count)
-				lastNode = new TraceNode(initScore, TraceNode.TYPE_MATCH, lastNode);
 		}
 		
 		// Assign match matrix column
-		matrixColAlign[kSize - 1] = lastNode;
+		matrixColAlign[kSize - 1] = initScore;
+		traceCodeNext[kSize - 1] = TraceTable.ALIGN_SEED;
+		
+		scoreStart = kSize - 1;
+		scoreEnd = kSize;
 		
 		// Allow a gap to open in the haplotype at this position
 		if (initScore + alnWeight.newGap > 0) {
-			matrixColGapCon[kSize] = new TraceNode(initScore + alnWeight.newGap, TraceNode.TYPE_GAP_CON, lastNode);
+			matrixColGapCon[kSize] = initScore + alnWeight.newGap;
+			traceCodeNext[kSize] = TraceTable.FROM_ALIGN << TraceTable.SHIFT_GAP_CON;
 			
-			lastNode = matrixColGapCon[kSize];
+			lastScore = matrixColGapCon[kSize];
+			scoreEnd = kSize + 1;
 			
-			for (int index = kSize + 1; index < refLength && lastNode.score + alnWeight.gapExtend > 0; ++index) {
-				matrixColGapCon[index] = new TraceNode(lastNode.score + alnWeight.gapExtend, TraceNode.TYPE_GAP_CON, lastNode);
-				lastNode = matrixColGapCon[index];
+			for (int index = kSize + 1; index < refLength && lastScore + alnWeight.gapExtend > 0; ++index) {
+				matrixColGapCon[index] = lastScore + alnWeight.gapExtend;
+				traceCodeNext[index] = TraceTable.FROM_GAP_CON << TraceTable.SHIFT_GAP_CON;
+				
+				lastScore = matrixColGapCon[index];
+				scoreEnd = index + 1;
 			}
 		}
 		
+		// Store transitions for the seed column
+		traceTable.setColumn(kSize, (byte) 0, traceCodeNext, scoreStart, scoreEnd);
+		
+		for (int index = scoreStart; index < scoreEnd; ++index)
+			traceCodeNext[index] = 0;
+		
+		// Center the band on the row after the seed
+		bandWidth = alnWeight.getMaxExclusiveGapSize(kSize) + 1;
+		bandCenter = kSize;
+		
+		maxPotentialScore = initScore + (refLength - kSize) * alnWeight.match;
+		
 		// Store bases in the consensus sequence
 		if (reverse) {
 			for (int index = 0; index < kSize; ++index)
-				consensus[index] = sequence[refBaseEnd - index];
+				consensus[index] = sequence[refLength - index - 1];
 			
 		} else {
 			for (int index = 0; index < kSize; ++index)
-				consensus[index] = sequence[refBaseStart + index];
+				consensus[index] = sequence[index];
 		}
 		
 		consensusSize = kSize;
@@ -432,18 +564,24 @@ public final class KmerAligner {
 		float conGapScore;  // Score if a gap is inserted in the consensus sequence
 		float maxScore;     // Maximum of the align and gap scores
 		
-		int refLength;     // Length of the reference sequence
-		int refIndex;      // Index of reference sequence at the current base
+		int refLength;       // Length of the reference sequence
+		int refIndex;        // Index of reference sequence at the current base
+		byte[] refSequence;  // Reference sequence
 		
 		float addAlignScore;  // alnWeight.match if bases match, and alnWeight.mismatch if they do not
 		byte alignType;       // ALN_MATCH if bases match, or ALN_MISMATCH if they do not
 		
-		TraceNode lastNode;
+		int code;  // Trace code of the current cell
+		
+		int rowStart;  // First row computed in the new column
+		int rowLimit;  // Rows at or after this index are not computed in the new column
+		int alignEnd;  // Row after the last row computed in the align table
+		int rowEnd;    // Row after the last row computed in the new column
 		
 		float maxPotScore;     // Maximum potential score
 		float newMaxPotScore;  // New maximum potential score (calculated and compared to maxPotScore
 		
-		TraceNode[] tnSwap;  // Matrix column swap
+		float[] colSwap;  // Matrix column swap
 		
 		// Check arguments and state
 		if (notInit)
@@ -458,31 +596,52 @@ public final class KmerAligner {
 		
 		// Init
 		refLength = this.refLength;
+		refSequence = this.refSequence;
 		
 		maxPotScore = 0.0F;
 		
 		// Add base to the consensus sequence
 		consensus[consensusSize++] = base.baseCharByte;
 		
+		savedColumn = null;
+		
+		// Clear scores left in the new columns from an earlier column
+		for (int index = nextStart; index < nextEnd; ++index) {
+			matrixColAlignNext[index] = 0.0F;
+			matrixColGapRefNext[index] = 0.0F;
+			matrixColGapConNext[index] = 0.0F;
+		}
+		
+		// Get rows that may be reached from cells with a non-zero score in the last column
+		rowStart = scoreStart;
+		rowLimit = refLength;
+		
+		if (banded) {
+			rowStart = Math.max(rowStart, bandCenter - bandWidth);
+			rowLimit = Math.min(rowLimit, bandCenter + bandWidth + 1);
+		}
+		
+		alignEnd = Math.min(scoreEnd + 1, rowLimit);
+		
 		//
 		// Align table
 		//
-		for (int index = 1; index < refLength; ++index) { // Start at 1, can never align from the top of the matrix
+		for (int index = Math.max(rowStart, 1); index < alignEnd; ++index) { // Start at 1, can never align from the top of the matrix
 			
 			// Get index of the reference base
 			if (reverse)
-				refIndex = refBaseEnd - index;
+				refIndex = refLength - index - 1;
 			else
-				refIndex = index + refBaseStart;
+				refIndex = index;
 			
 			// Set score (match or mismatch)
-			if (activeRegion.refRegion.sequence[refIndex] == base.baseCharByte) {
+			if (refSequence[refIndex] == base.baseCharByte) {
 				addAlignScore = alnWeight.match;
-				alignType = TraceNode.TYPE_MATCH;
+				alignType = AlignNode.MATCH;
 				
 			} else {
 				addAlignScore = alnWeight.mismatch;
-				alignType = TraceNode.TYPE_MISMATCH;
+				alignType = AlignNode.MISMATCH;
 			}
 			
 			alignScore = 0.0F;
@@ -490,52 +649,51 @@ public final class KmerAligner {
 			conGapScore = 0.0F;
 			maxScore = 0.0F;
 			
-			lastNode = null;
+			code = 0;
 			
 			// Align from align table
-			if (matrixColAlign[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColAlign[index - 1] > 0.0F) {
 				
-				alignScore = matrixColAlign[index - 1].score + addAlignScore;
+				alignScore = matrixColAlign[index - 1] + addAlignScore;
 				
 				if (alignScore > maxScore)
 					maxScore = alignScore;
 			}
 			
 			// Align from ref-gap table
-			if (matrixColGapRef[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColGapRef[index - 1] > 0.0F) {
 				
-				refGapScore = matrixColGapRef[index  - 1].score + addAlignScore;
+				refGapScore = matrixColGapRef[index  - 1] + addAlignScore;
 				
 				if (refGapScore > maxScore)
 					maxScore = refGapScore;
 			}
 			
 			// Align from con-gap table
-			if (matrixColGapCon[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColGapCon[index - 1] > 0.0F) {
 				
-				conGapScore = matrixColGapCon[index - 1].score + addAlignScore;
+				conGapScore = matrixColGapCon[index - 1] + addAlignScore;
 				
 				if (conGapScore > maxScore)
 					maxScore = conGapScore;
 			}
 			
-			// Add node(s)
+			// Add transition(s)
 			if (maxScore > 0.0F) {
 				
-				if (alignScore == maxScore) {
-					lastNode = new TraceNode(maxScore, alignType, matrixColAlign[index - 1], lastNode);
-					matrixColAlignNext[index] = lastNode;
-				}
+				if (alignScore == maxScore)
+					code |= TraceTable.FROM_ALIGN;
 				
-				if (refGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, alignType, matrixColGapRef[index - 1], lastNode);
-					matrixColAlignNext[index] = lastNode;
-				}
+				if (refGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_REF;
 				
-				if (conGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, alignType, matrixColGapCon[index - 1], lastNode);
-					matrixColAlignNext[index] = lastNode;
-				}
+				if (conGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_CON;
+				
+				if (alignType == AlignNode.MISMATCH)
+					code |= TraceTable.ALIGN_MISMATCH;
+				
+				matrixColAlignNext[index] = maxScore;
 				
 				// Calculate maximum potential score from this location
 				newMaxPotScore = maxScore + (refLength - index - 1) * alnWeight.match;
@@ -544,18 +702,20 @@ public final class KmerAligner {
 					maxPotScore = newMaxPotScore;
 				
 			} else {
-				matrixColAlignNext[index] = TraceNode.ZERO_NODE;
+				matrixColAlignNext[index] = 0.0F;
 			}
+			
+			traceCodeNext[index] = (short) code;
 		}
 		
 		// If score of the bottom element is the maximum, record this as a start position
-		maxScore = matrixColAlignNext[refLength - 1].score;
+		maxScore = matrixColAlignNext[refLength - 1];
 		
 		if (maxScore >= maxAlignmentScore && maxScore > 0) {
 			
 			// Replace if maxScore > maxAlignmentScore, and append if maxScore == maxAlignmentScore
 			maxAlignmentScoreNode = new MaxAlignmentScoreNode(
-					matrixColAlignNext[refLength - 1], consensusSize,
+					TraceTable.TABLE_ALIGN, maxScore, consensusSize,
 					maxScore > maxAlignmentScore ? null : maxAlignmentScoreNode  // Replace list if greater, prepend if equal
 			);
 			
@@ -567,59 +727,56 @@ public final class KmerAligner {
 		// Insertion table (reference gap)
 		//
 		
-		for (int index = 0; index < refLength; ++index) {
+		for (int index = rowStart; index < scoreEnd && index < rowLimit; ++index) {
 			
 			alignScore = 0.0F;
 			refGapScore = 0.0F;
 			conGapScore = 0.0F;
 			maxScore = 0.0F;
 			
-			lastNode = null;
+			code = 0;
 			
 			// Gap from align table
-			if (matrixColAlign[index] != TraceNode.ZERO_NODE) {
-				alignScore = matrixColAlign[index].score + alnWeight.newGap;
+			if (matrixColAlign[index] > 0.0F) {
+				alignScore = matrixColAlign[index] + alnWeight.newGap;
 				
 				if (alignScore > maxScore)
 					maxScore = alignScore;
 			}
 			
 			// Gap from ref-gap table
-			if (matrixColGapRef[index] != TraceNode.ZERO_NODE) {
-				refGapScore = matrixColGapRef[index].score + alnWeight.gapExtend;
+			if (matrixColGapRef[index] > 0.0F) {
+				refGapScore = matrixColGapRef[index] + alnWeight.gapExtend;
 				
 				if (refGapScore > maxScore)
 					maxScore = refGapScore;
 			}
 			
 			// Gap from con-gap table
-			if (matrixColGapCon[index] != TraceNode.ZERO_NODE) {
-				conGapScore = matrixColGapCon[index].score + alnWeight.newGap;
+			if (matrixColGapCon[index] > 0.0F) {
+				conGapScore = matrixColGapCon[index] + alnWeight.newGap;
 				
 				if (conGapScore > maxScore)
 					maxScore = conGapScore;
 			}
 			
-			// Add node(s)
+			// Add transition(s)
 			if (maxScore > 0.0F) {
 				
-				if (alignScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_REF, matrixColAlign[index], lastNode);
-					matrixColGapRefNext[index] = lastNode;
-				}
+				if (alignScore == maxScore)
+					code |= TraceTable.FROM_ALIGN;
 				
-				if (refGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_REF, matrixColGapRef[index], lastNode);
-					matrixColGapRefNext[index] = lastNode;
-				}
+				if (refGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_REF;
 				
-				if (conGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_REF, matrixColGapCon[index], lastNode);
-					matrixColGapRefNext[index] = lastNode;
-				}
+				if (conGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_CON;
+				
+				matrixColGapRefNext[index] = maxScore;
+				traceCodeNext[index] |= (short) (code << TraceTable.SHIFT_GAP_REF);
 				
 			} else {
-				matrixColGapRefNext[index] = TraceNode.ZERO_NODE;
+				matrixColGapRefNext[index] = 0.0F;
 			}
 		}
 		
@@ -627,59 +784,65 @@ public final class KmerAligner {
 		// Deletion table (haplotype gap)
 		//
 		
-		for (int index = 1; index < refLength; ++index) { // Start at 1, can never align from the top of the matrix
+		rowEnd = alignEnd;
+		
+		for (int index = Math.max(rowStart + 1, 1); index < rowLimit; ++index) { // Start at 1, can never align from the top of the matrix
+			
+			// Stop after the last row reached by a consensus gap
+			if (index > alignEnd && matrixColGapConNext[index - 1] == 0.0F)
+				break;
 			
 			alignScore = 0.0F;
 			refGapScore = 0.0F;
 			conGapScore = 0.0F;
 			maxScore = 0.0F;
 			
-			lastNode = null;
+			code = 0;
 			
 			// Align from align table
-			if (matrixColAlignNext[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColAlignNext[index - 1] > 0.0F) {
 				
-				alignScore = matrixColAlignNext[index - 1].score + alnWeight.newGap;
+				alignScore = matrixColAlignNext[index - 1] + alnWeight.newGap;
 				
 				if (alignScore > maxScore)
 					maxScore = alignScore;
 			}
 			
 			// Align from ref-gap table
-			if (matrixColGapRefNext[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColGapRefNext[index - 1] > 0.0F) {
 				
-				refGapScore = matrixColGapRefNext[index  - 1].score + alnWeight.newGap;
+				refGapScore = matrixColGapRefNext[index  - 1] + alnWeight.newGap;
 				
 				if (refGapScore > maxScore)
 					maxScore = refGapScore;
 			}
 			
 			// Align from con-gap table
-			if (matrixColGapConNext[index - 1] != TraceNode.ZERO_NODE) {
+			if (matrixColGapConNext[index - 1] > 0.0F) {
 				
-				conGapScore = matrixColGapConNext[index - 1].score + alnWeight.gapExtend;
+				conGapScore = matrixColGapConNext[index - 1] + alnWeight.gapExtend;
 				
 				if (conGapScore > maxScore)
 					maxScore = conGapScore;
 			}
 			
-			// Add node(s)
+			// Add transition(s)
 			if (maxScore > 0.0F) {
 				
-				if (alignScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_CON, matrixColAlignNext[index - 1], lastNode);
-					matrixColGapConNext[index] = lastNode;
-				}
+				if (alignScore == maxScore)
+					code |= TraceTable.FROM_ALIGN;
 				
-				if (refGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_CON, matrixColGapRefNext[index - 1], lastNode);
-					matrixColGapConNext[index] = lastNode;
-				}
+				if (refGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_REF;
 				
-				if (conGapScore == maxScore) {
-					lastNode = new TraceNode(maxScore, TraceNode.TYPE_GAP_CON, matrixColGapConNext[index - 1], lastNode);
-					matrixColGapConNext[index] = lastNode;
-				}
+				if (conGapScore == maxScore)
+					code |= TraceTable.FROM_GAP_CON;
+				
+				matrixColGapConNext[index] = maxScore;
+				traceCodeNext[index] |= (short) (code << TraceTable.SHIFT_GAP_CON);
+				
+				if (index >= rowEnd)
+					rowEnd = index + 1;
 				
 				// Calculate maximum potential score from this location
 				if (allowEndDeletion) {
@@ -690,20 +853,20 @@ public final class KmerAligner {
 				}
 				
 			} else {
-				matrixColGapConNext[index] = TraceNode.ZERO_NODE;
+				matrixColGapConNext[index] = 0.0F;
 			}
 		}
 		
 		if (allowEndDeletion) {
 			
 			// If score of the bottom element is the maximum, record this as a start position
-			maxScore = matrixColGapConNext[refLength - 1].score;
+			maxScore = matrixColGapConNext[refLength - 1];
 			
 			if (maxScore >= maxAlignmentScore && maxScore > 0) {
 				
 				// Replace if maxScore > maxAlignmentScore, and append if maxScore == maxAlignmentScore
 				maxAlignmentScoreNode = new MaxAlignmentScoreNode(
-						matrixColGapConNext[refLength - 1], consensusSize,
+						TraceTable.TABLE_GAP_CON, maxScore, consensusSize,
 						maxScore > maxAlignmentScore ? null : maxAlignmentScoreNode  // Replace list if greater, append if equal
 				);
 				
@@ -711,72 +874,132 @@ public final class KmerAligner {
 			}
 		}
 		
+		// Store transitions
+		traceTable.setColumn(consensusSize, base.baseCharByte, traceCodeNext, rowStart, rowEnd);
+		
 		// Set trace matrix if enabled
 		if (trace) {
 			
-			TraceNode node;
-			
 			traceMatrix.nextCol();
 			
-			for (int index = 0; index < refLength; ++index) {
+			for (int index = rowStart; index < rowEnd; ++index) {
 				
-				// Align table
-				node = matrixColAlignNext[index];
+				code = traceCodeNext[index];
+				alignType = ((code & TraceTable.ALIGN_MISMATCH) != 0) ? AlignNode.MISMATCH : AlignNode.MATCH;
 				
-				if (node != TraceNode.ZERO_NODE) {
-					
-					while (node != null) {
-						
-						traceMatrix.set(index, node.nextNode.type, node.type);
-						
-						node = node.branchNode;
-					}
-				}
+				// Align table
+				setTraceMatrix(index, code >> TraceTable.SHIFT_ALIGN, alignType);
 				
 				// Insertion (reference gap)
-				node = matrixColGapRefNext[index];
-				
-				if (node != TraceNode.ZERO_NODE) {
-					
-					while (node != null) {
-						
-						traceMatrix.set(index, node.nextNode.type, node.type);
-						
-						node = node.branchNode;
-					}
-				}
+				setTraceMatrix(index, code >> TraceTable.SHIFT_GAP_REF, AlignNode.INS);
 				
 				// Deletion (consensus gap)
-				node = matrixColGapConNext[index];
-				
-				if (node != TraceNode.ZERO_NODE) {
-					
-					while (node != null) {
-						
-						traceMatrix.set(index, node.nextNode.type, node.type);
-						
-						node = node.branchNode;
-					}
-				}
+				setTraceMatrix(index, code >> TraceTable.SHIFT_GAP_CON, AlignNode.DEL);
 			}
 		}
 		
+		for (int index = rowStart; index < rowEnd; ++index)
+			traceCodeNext[index] = 0;
+		
 		// Advance matrix columns
-		tnSwap = matrixColAlign;
+		colSwap = matrixColAlign;
 		matrixColAlign = matrixColAlignNext;
-		matrixColAlignNext = tnSwap;
+		matrixColAlignNext = colSwap;
 		
-		tnSwap = matrixColGapRef;
+		colSwap = matrixColGapRef;
 		matrixColGapRef = matrixColGapRefNext;
-		matrixColGapRefNext = tnSwap;
+		matrixColGapRefNext = colSwap;
 		
-		tnSwap = matrixColGapCon;
+		colSwap = matrixColGapCon;
 		matrixColGapCon = matrixColGapConNext;
-		matrixColGapConNext = tnSwap;
+		matrixColGapConNext = colSwap;
+		
+		nextStart = scoreStart;
+		nextEnd = scoreEnd;
+		
+		scoreStart = rowStart;
+		scoreEnd = rowEnd;
+		
+		// Move the band and widen it if a cell on its edge has a non-zero score
+		if (banded) {
+			
+			if ((rowStart > nextStart && hasScore(rowStart)) || (rowLimit < refLength && hasScore(rowLimit - 1))) {
+				bandWidth = Math.min(bandWidth * 2, refLength);
+				
+				logger.trace("Widening alignment band: {} rows on each side: {}", bandWidth, activeRegion.toString());
+			}
+			
+			setBandCenter();
+		}
+		
+		maxPotentialScore = maxPotScore;
 		
 		return maxPotScore >= maxAlignmentScore && maxPotScore > 0.0F;
 	}
+	
+	/**
+	 * Determine if a row of the last column has a non-zero score in any table.
+	 * 
+	 * @param row Row.
+	 * 
+	 * @return <code>true</code> if the row has a non-zero score.
+	 */
+	private boolean hasScore(int row) {
+		return matrixColAlign[row] > 0.0F || matrixColGapRef[row] > 0.0F || matrixColGapCon[row] > 0.0F;
+	}
+	
+	/**
+	 * Center the band on the row after the highest-scoring cell of the last column. If the last
+	 * column has no non-zero scores, the band is not moved.
+	 */
+	private void setBandCenter() {
+		
+		float maxScore;  // Maximum score in the last column
+		
+		maxScore = 0.0F;
+		
+		for (int index = scoreStart; index < scoreEnd; ++index) {
 			
+			if (matrixColAlign[index] > maxScore) {
+				maxScore = matrixColAlign[index];
+				bandCenter = index + 1;
+			}
+			
+			if (matrixColGapRef[index] > maxScore) {
+				maxScore = matrixColGapRef[index];
+				bandCenter = index + 1;
+			}
+			
+			if (matrixColGapCon[index] > maxScore) {
+				maxScore = matrixColGapCon[index];
+				bandCenter = index + 1;
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Set transitions into one cell of the trace matrix.
+	 * 
+	 * @param row Row of the cell.
+	 * @param flags <code>TraceTable.FROM_</code> flags of the cell in the lowest bits.
+	 * @param typeTo Type of the cell.
+	 */
+	private void setTraceMatrix(int row, int flags, byte typeTo) {
+		
+		if ((flags & TraceTable.FROM_ALIGN) != 0)
+			traceMatrix.set(row, AlignNode.MATCH, typeTo);
+		
+		if ((flags & TraceTable.FROM_GAP_REF) != 0)
+			traceMatrix.set(row, AlignNode.INS, typeTo);
+		
+		if ((flags & TraceTable.FROM_GAP_CON) != 0)
+			traceMatrix.set(row, AlignNode.DEL, typeTo);
+		
+		return;
+	}
+	
 	/**
 	 * Save an alignment state.
 	 * 
@@ -784,19 +1007,19 @@ public final class KmerAligner {
 	 *   to be added when the alignment restores this state.
 	 * @param nextBase Base that should be added when this state is restored.
 	 * @param minDepth Minimum depth for all k-mers in the alignment up to this point.
+	 * @param kmerPathMark Mark of the k-mer path set for cycle detection
+	 *   (see <code>KmerPathSet.getMark()</code>).
+	 * @param repeatCount Number of repeated k-mers in the alignment up to this point.
 	 * 
-	 * @throws NullPointerException If <code>kmer</code> or <code>nextBase</code> is
-	 *   <code>null</code>.
-	 * @throws IllegalArgumentException If <code>minDepth</code> is less than <code>1</code>.
+	 * @throws NullPointerException If <code>kmer</code>, <code>nextBase</code>, or
+	 *   <code>kmerPathMark</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>minDepth</code> is less than <code>1</code>
+	 *   or if <code>repeatCount</code> is negative.
 	 */
-	public final void saveState(int[] kmer, Base nextBase, int minDepth, KmerHashSet kmerHash, int repeatCount)
+	public final void saveState(int[] kmer, Base nextBase, int minDepth, KmerPathSet.Mark kmerPathMark, int repeatCount)
 			throws NullPointerException, IllegalArgumentException {
 		
-		TraceNodeContainer alignContainer;
-		TraceNodeContainer gapRefContainer;
-		TraceNodeContainer gapConContainer;
-		
-		int index;
+		StateStackNode newState;  // New state
 		
 		// Check arguments
 		if (kmer == null)
@@ -808,73 +1031,59 @@ public final class KmerAligner {
 		if (minDepth < 1)
 			throw new IllegalArgumentException("Minimum depth may not be less than 1: " + minDepth);
 		
-		if (kmerHash == null)
-			throw new NullPointerException("Connot save state with k-mer hash: null");
+		if (kmerPathMark == null)
+			throw new NullPointerException("Cannot save state with k-mer path mark: null");
 		
 		if (repeatCount < 0)
 			throw new IllegalArgumentException("Repeat count must be non-negative: " + repeatCount);
 		
 		// Check max depth
-		if (nState == maxState) {
+		if (sharedStateCount != null && ! bestFirst) {
 			
-			if (! removeLastMinState(minDepth)) {
-				logger.trace("Rejecting state save: State stack is at capacity: {} [minDepth={}]", kUtil.toBaseString(kmer), minDepth);
+			if (sharedStateCount.incrementAndGet() > maxState) {
+				logger.trace("Rejecting state save: Shared state budget is exhausted: {} [minDepth={}]", kUtil.toBaseString(kmer), minDepth);
 				return;
 			}
-		}
-		
-		// Store alignment matrix column
-		alignContainer = null;
-		index = 0;
-		
-		while (index < refLength) {
 			
-			if (matrixColAlign[index] != TraceNode.ZERO_NODE)
-				alignContainer = new TraceNodeContainer(index, matrixColAlign[index], alignContainer);
-			
-			++index;
-		}
-		
-		// Store reference-gap matrix column
-		gapRefContainer = null;
-		index = 0;
-		
-		while (index < refLength) {
-			if (matrixColGapRef[index] != TraceNode.ZERO_NODE)
-				gapRefContainer = new TraceNodeContainer(index, matrixColGapRef[index], gapRefContainer);
+		} else if (nState == maxState) {
 			
-			++index;
+			if (bestFirst ? ! removeWorstState(minDepth, maxPotentialScore) : ! removeLastMinState(minDepth)) {
+				logger.trace("Rejecting state save: State stack is at capacity: {} [minDepth={}]", kUtil.toBaseString(kmer), minDepth);
+				return;
+			}
 		}
 		
-		// Store consensus-gap matrix column
-		gapConContainer = null;
-		index = 0;
-		
-		while (index < refLength) {
-			if (matrixColGapCon[index] != TraceNode.ZERO_NODE)
-				gapConContainer = new TraceNodeContainer(index, matrixColGapCon[index], gapConContainer);
-			
-			++index;
-		}
+		// Save scores (shared by all states saved before the next base is added)
+		if (savedColumn == null)
+			savedColumn = new ScoreColumn(matrixColAlign, matrixColGapRef, matrixColGapCon, scoreStart, scoreEnd);
 		
 		// Save state
-		stateStack = new StateStackNode(
+		newState = new StateStackNode(
 				kmer,
 				nextBase,
 				consensusSize,
-				alignContainer,
-				gapRefContainer,
-				gapConContainer,
+				savedColumn,
+				traceTable.getColumn(consensusSize),
 				maxAlignmentScore,
 				maxAlignmentScoreNode,
 				minDepth,
-				stateStack,
-				new KmerHashSet(kmerHash),
-				repeatCount
+				maxPotentialScore,
+				null,
+				kmerPathMark,
+				repeatCount,
+				getStateKey()
 		);
 		
-		if (stateStack.nextNodeDown != null)  // Set upward link on previous state
-			stateStack.nextNodeDown.nextNodeUp = stateStack;
+		if (bestFirst) {
+			insertState(newState);
+			
+		} else {
+			newState.nextNodeDown = stateStack;
+			stateStack = newState;
+			
+			if (stateStack.nextNodeDown != null)  // Set upward link on previous state
+				stateStack.nextNodeDown.nextNodeUp = stateStack;
+		}
 		
 		++nState;
 		
@@ -882,85 +1091,196 @@ public final class KmerAligner {
 	}
 	
 	/**
-	 * Restore the last state cached.
+	 * Restore the last state cached, or the best state if states are restored best-first.
 	 * 
 	 * @return The state being resumed or <code>null</code> if there are no
 	 *   states to restore.
+	 * 
+	 * @see #setBestFirst(boolean)
 	 */
 	public final RestoredState restoreState() {
 		
-		TraceNodeContainer container;  
-		StateStackNode thisState;      // State to be restored
+		// Check if there is a state to restore
+		if (stateStack == null)
+			return null;
+		
+		return restoreState(popState());
+	}
+	
+	/**
+	 * Remove the state <code>restoreState()</code> would restore next without restoring it. The
+	 * state may be restored later by this aligner or by another aligner initialized with the same
+	 * active region (see <code>restoreState(StateStackNode)</code>).
+	 * 
+	 * @return The state or <code>null</code> if there are no states to restore.
+	 */
+	public final StateStackNode popState() {
 		
-		int index;  // Index for traversing tables
+		StateStackNode thisState;  // State removed from the stack
 		
-		// Check if there is a state to restore
 		if (stateStack == null)
 			return null;
 		
 		thisState = stateStack;
 		
+		// Remove from state stack
+		stateStack = stateStack.nextNodeDown;
+		
+		if (bestFirst) {
+			if (stateStack != null)
+				stateStack.nextNodeUp = null;
+			
+			--nState;
+		}
+		
+		return thisState;
+	}
+	
+	/**
+	 * Restore a saved state. The state may have been saved by this aligner or by another aligner
+	 * initialized with the same active region, and it is restored on its own consensus path.
+	 * 
+	 * @param thisState State to restore. This state must have been removed from the stack of the
+	 *   aligner that saved it (see <code>popState()</code>).
+	 * 
+	 * @return The state being resumed.
+	 * 
+	 * @throws NullPointerException If <code>thisState</code> is <code>null</code>.
+	 * @throws IllegalStateException If <code>init()</code> was not called at least once.
+	 */
+	public final RestoredState restoreState(StateStackNode thisState)
+			throws NullPointerException, IllegalStateException {
+		
+		TraceColumn traceColumn;  // Trace column on the path of the restored state
+		
+		// Check arguments and state
+		if (thisState == null)
+			throw new NullPointerException("Cannot restore state: null");
+		
+		if (notInit)
+			throw new IllegalStateException("Aligner was not initialized (must call init())");
+		
 		// Restore fields
+		while (consensusCapacity < thisState.consensusSize)
+			expandConsensus();  // throws IllegalStateException
+		
 		consensusSize = thisState.consensusSize;
 		maxAlignmentScore = thisState.maxAlignmentScore;
-		maxAlignmentScoreNode = thisState.maxAlignmentScoreNode;
 		
-		// Restore alignment table
-		container = stateStack.alignContainer;
-		index = refLength - 1;
+		branchKey = thisState.branchKey;
+		branchStateCount = 0;
+		maxAlignmentScoreNode = thisState.maxAlignmentScoreNode;
 		
-		while (container != null) {
-			
-			while (index > container.index)
-				matrixColAlign[index--] = TraceNode.ZERO_NODE;
-			
-			matrixColAlign[index--] = container.node;
-			container = container.next;
+		// Restore tables
+		for (int index = scoreStart; index < scoreEnd; ++index) {
+			matrixColAlign[index] = 0.0F;
+			matrixColGapRef[index] = 0.0F;
+			matrixColGapCon[index] = 0.0F;
 		}
 		
-		while (index >= 0)
-			matrixColAlign[index--] = TraceNode.ZERO_NODE;
+		thisState.scoreColumn.restore(matrixColAlign, matrixColGapRef, matrixColGapCon);
 		
-		// Restore reference gap table
-		container = thisState.gapRefContainer;
-		index = refLength - 1;
+		scoreStart = thisState.scoreColumn.start;
+		scoreEnd = thisState.scoreColumn.end;
 		
-		while (container != null) {
+		if (banded)
+			setBandCenter();
+		
+		// Restore trace columns and consensus bases replaced by another path since the state was
+		// saved (a state from another aligner restores its full path, and the seed bases are already set)
+		traceColumn = thisState.traceColumn;
+		
+		while (traceColumn != null && traceTable.getColumn(traceColumn.col) != traceColumn) {
+			traceTable.restoreColumn(traceColumn);  // throws IllegalStateException
 			
-			while (index > container.index)
-				matrixColGapRef[index--] = TraceNode.ZERO_NODE;
+			if (traceColumn.prev != null)
+				consensus[traceColumn.col - 1] = traceColumn.base;
 			
-			matrixColGapRef[index--] = container.node;
-			container = container.next;
+			traceColumn = traceColumn.prev;
 		}
 		
-		while (index >= 0)
-			matrixColGapRef[index--] = TraceNode.ZERO_NODE;
+		// Add base
+		addBase(thisState.nextBase);
+		
+		// Return k-mer
+		return thisState.getRestoredState();
+	}
+	
+	/**
+	 * Get the key of the branch being aligned. Keys order branches the way one aligner restores
+	 * them last-first: A branch comes before the branches started from its states, and these
+	 * come in the reverse order their states were saved. Two keys are compared element by
+	 * element, the key with the greater element at the first difference comes first, and a key
+	 * comes before the keys it is a prefix of. Keys are only ordered this way while no saved state
+	 * is removed or rejected.
+	 * 
+	 * @return Key of the branch being aligned. The array must not be modified.
+	 */
+	public final int[] getBranchKey() {
+		return branchKey;
+	}
+	
+	/**
+	 * Get the key of the next state saved on the branch being aligned.
+	 * 
+	 * @return Key of the next state.
+	 */
+	private int[] getStateKey() {
+		
+		int[] stateKey = Arrays.copyOf(branchKey, branchKey.length + 1);  // Key of the next state
+		
+		stateKey[branchKey.length] = branchStateCount++;
+		
+		return stateKey;
+	}
+	
+	/**
+	 * Determine if this aligner has more than one saved state.
+	 * 
+	 * @return <code>true</code> if this aligner has more than one saved state.
+	 */
+	public final boolean hasMultipleCachedStates() {
+		return stateStack != null && stateStack.nextNodeDown != null;
+	}
+	
+	/**
+	 * Remove saved states that cannot produce a haplotype with a minimum k-mer depth greater than
+	 * a limit. This has no effect unless states are restored best-first.
+	 * 
+	 * @param minDepthLimit States with a minimum k-mer depth at or below this limit are removed.
+	 * 
+	 * @see #setBestFirst(boolean)
+	 */
+	public final void pruneStates(int minDepthLimit) {
+		
+		StateStackNode stateNode;  // Last state that is kept
 		
-		// Restore consensus gap table
-		container = thisState.gapConContainer;
-		index = refLength - 1;
+		if (! bestFirst || stateStack == null)
+			return;
 		
-		while (container != null) {
+		// States are ordered by minimum depth
+		if (stateStack.minDepth <= minDepthLimit) {
+			logger.trace("Pruning {} saved states: Minimum depth is at or below {}", nState, minDepthLimit);
 			
-			while (index > container.index)
-				matrixColGapCon[index--] = TraceNode.ZERO_NODE;
+			stateStack = null;
+			nState = 0;
 			
-			matrixColGapCon[index--] = container.node;
-			container = container.next;
+			return;
 		}
 		
-		while (index >= 0)
-			matrixColGapCon[index--] = TraceNode.ZERO_NODE;
+		stateNode = stateStack;
 		
-		// Add base
-		addBase(thisState.nextBase);
+		while (stateNode.nextNodeDown != null && stateNode.nextNodeDown.minDepth > minDepthLimit)
+			stateNode = stateNode.nextNodeDown;
 		
-		// Remove from state stack
-		stateStack = stateStack.nextNodeDown;
+		while (stateNode.nextNodeDown != null) {
+			logger.trace("Pruning saved state: {} [minDepth={}]", kUtil.toBaseString(stateNode.nextNodeDown.kmer), stateNode.nextNodeDown.minDepth);
+			
+			stateNode.nextNodeDown = stateNode.nextNodeDown.nextNodeDown;
+			--nState;
+		}
 		
-		// Return k-mer
-		return thisState.getRestoredState();
+		return;
 	}
 	
 	/**
@@ -989,6 +1309,9 @@ public final class KmerAligner {
 		// Declarations
 		MaxAlignmentScoreNode scoreNode;  // Current node
 		
+		MaxAlignmentScoreNode[] claimedNodes;  // Nodes to build haplotypes from
+		int nClaimed;                          // Number of elements in claimedNodes
+		
 		Haplotype[] haplotypeList;  // List of haplotypes
 		int index;                  // Index of haplotypeList
 		
@@ -1011,27 +1334,25 @@ public final class KmerAligner {
 		index = 0;
 		
 		while (scoreNode != null) {
-			
-			if (! scoreNode.haplotypeBuilt)
-				++index;
-			
+			++index;
 			scoreNode = scoreNode.next;
 		}
 		
+		// Claim nodes haplotypes were not built for (nodes may be shared with other aligners)
+		claimedNodes = new MaxAlignmentScoreNode[index];
+		nClaimed = 0;
+		
+		for (scoreNode = maxAlignmentScoreNode; scoreNode != null; scoreNode = scoreNode.next)
+			if (scoreNode.claimHaplotype())
+				claimedNodes[nClaimed++] = scoreNode;
+		
 		// Create haplotype list
-		haplotypeList = new Haplotype[index];
-		scoreNode = maxAlignmentScoreNode;
-		index = 0;
+		haplotypeList = new Haplotype[nClaimed];
 		
 		// Fill haplotypes
-		while (scoreNode != null) {
+		for (index = 0; index < nClaimed; ++index) {
 			
-			// Skip haplotypes that have already been constructed
-			if (scoreNode.haplotypeBuilt) {
-				scoreNode = scoreNode.next;
-				
-				continue;
-			}
+			scoreNode = claimedNodes[index];
 			
 			// Create consensus for haplotype
 			haploConsensusSize = scoreNode.nConsensusBases;
@@ -1048,14 +1369,7 @@ public final class KmerAligner {
 			
 			// Create haplotype
 			stats = RegionStats.getStats(haploConsensus, 0, haploConsensusSize, counter, countReverseKmers);
-			haplotypeList[index] = new Haplotype(haploConsensus, activeRegion, getAlignment(scoreNode.traceNode), scoreNode.traceNode.score, traceMatrix, stats);
-			
-			// Flag
-			scoreNode.haplotypeBuilt = true;
-			
-			// Next max score node
-			scoreNode = scoreNode.next;
-			++index;
+			haplotypeList[index] = new Haplotype(haploConsensus, activeRegion, getAlignment(scoreNode), scoreNode.score, traceMatrix, stats);
 		}
 		
 		// Return haplotypes
@@ -1157,6 +1471,83 @@ public final class KmerAligner {
 		return maxState;
 	}
 	
+	/**
+	 * Count saved states in a counter shared by all aligners exploring the same active region.
+	 * <code>maxState</code> then limits the number of states saved by all of these aligners, and
+	 * saves beyond this limit are rejected instead of trimming other states. Aligners restoring
+	 * states last-first explore the same branches in any order until the limit is reached, so a
+	 * counter above <code>maxState</code> shows the region must be explored again by one aligner
+	 * to get its result. The counter has no effect when states are restored best-first.
+	 * 
+	 * @param sharedStateCount Shared counter, or <code>null</code> to limit the states of this
+	 *   aligner alone.
+	 * 
+	 * @see #setMaxState(int)
+	 */
+	public void setSharedStateCount(AtomicInteger sharedStateCount) {
+		
+		this.sharedStateCount = sharedStateCount;
+		
+		return;
+	}
+	
+	/**
+	 * Set banded alignment. When banded, each base added to the alignment only computes cells
+	 * near the row of the highest-scoring cell of the last column instead of the full reference
+	 * length. The band starts at the largest gap the alignment weights allow after the seed
+	 * k-mer (<code>AlignmentWeight.getMaxExclusiveGapSize()</code>) on each side, and it doubles
+	 * each time a cell on its edge has a non-zero score. Alignments with gaps that open and close
+	 * outside the band are not found.
+	 * 
+	 * @param banded <code>true</code> to compute only cells in the band.
+	 */
+	public void setBanded(boolean banded) {
+		this.banded = banded;
+		
+		return;
+	}
+	
+	/**
+	 * Get banded alignment.
+	 * 
+	 * @return <code>true</code> if only cells in the band are computed.
+	 * 
+	 * @see #setBanded(boolean)
+	 */
+	public boolean getBanded() {
+		return banded;
+	}
+	
+	/**
+	 * Set best-first state restoration. By default, the last state saved is restored first, which
+	 * explores one branch of the assembly to its end before the next. In best-first mode, saved
+	 * states are ordered by their minimum k-mer depth and then by the upper bound of their alignment
+	 * score, the best state is restored first, and a full state list discards its worst state.
+	 * States are restored on their own consensus path even if another path replaced it. If the
+	 * haplotype container is full, <code>pruneStates()</code> removes states that cannot produce a
+	 * haplotype it would accept.
+	 * 
+	 * @param bestFirst <code>true</code> to restore the best state first.
+	 * 
+	 * @see #pruneStates(int)
+	 */
+	public void setBestFirst(boolean bestFirst) {
+		this.bestFirst = bestFirst;
+		
+		return;
+	}
+	
+	/**
+	 * Get best-first state restoration.
+	 * 
+	 * @return <code>true</code> if the best state is restored first.
+	 * 
+	 * @see #setBestFirst(boolean)
+	 */
+	public boolean getBestFirst() {
+		return bestFirst;
+	}
+	
 	/**
 	 * Remove haplotypes that do not end in a deletion (if <code>allowEndDeletion</code>
 	 * is <code>true</code> and that do not end in a k-mer that matches the corresponding
@@ -1185,22 +1576,23 @@ public final class KmerAligner {
 		// Init
 		kSize = this.kSize;
 		
-		refSeq = activeRegion.refRegion.sequence;
+		refSeq = refSequence;
 		conSeq = consensus;
 		
-		// Check nodes
+		// Check nodes (nodes may be shared with aligners in other threads, but every aligner removes
+		// the same nodes, so a node an unlink in another thread missed is removed again here)
 		nextNode = maxAlignmentScoreNode;
 		lastNode = null;
 		
 		while (nextNode != null) {
 			remove = false;
-
+			
 			// Start at the index of the last k-mer int the consensus sequence
 			conIndex = nextNode.nConsensusBases - kSize;
 			
 			// Search for k matches
 			if (reverse) {
-				refIndex = activeRegion.startIndex + kSize - 1;
+				refIndex = kSize - 1;
 				
 				while (conIndex < nextNode.nConsensusBases) {
 					if (refSeq[refIndex--] != conSeq[conIndex++]) {
@@ -1210,7 +1602,7 @@ public final class KmerAligner {
 				}
 				
 			} else {
-				refIndex = activeRegion.endIndex - kSize + 1;
+				refIndex = refLength - kSize;
 				
 				while (conIndex < nextNode.nConsensusBases) {
 					if (refSeq[refIndex++] != conSeq[conIndex++]) {
@@ -1245,12 +1637,12 @@ public final class KmerAligner {
 	/**
 	 * Get alignments from this aligner in random order (<code>Haplotype</code> will sort them).
 	 * 
-	 * @param traceNode Maximum-score trace node.
+	 * @param scoreNode Maximum-score node where trace-back begins.
 	 * 
 	 * @return An array of alignments characterizing the relationship between the reference and
 	 *   consensus sequences.
 	 */
-	private AlignNode[] getAlignment(TraceNode traceNode) {
+	private AlignNode[] getAlignment(MaxAlignmentScoreNode scoreNode) {
 		
 		int nAlign;  // Number of alignments
 		
@@ -1260,30 +1652,94 @@ public final class KmerAligner {
 		
 		TypeList typeList;  // TypeList object in the current alignment
 		
+		int table;  // Table of the current cell
+		int row;    // Row of the current cell
+		int col;    // Column of the current cell
+		int code;   // Trace code of the current cell
+		int flags;  // Transitions into the current cell
+		
 		// Init
 		nAlign = 1;
-		alignmentStart = new AlignStart(traceNode, getTypeList(null), null);
+		alignmentStart = new AlignStart(scoreNode.table, refLength - 1, scoreNode.nConsensusBases, getTypeList(null), null);
 		thisStart = alignmentStart;
 		lastStart = alignmentStart;
 		
 		// Trace
 		while (thisStart != null) {
 			
-			// Get trace node
-			traceNode = thisStart.traceNode;
+			// Get start cell
+			table = thisStart.table;
+			row = thisStart.row;
+			col = thisStart.col;
 			typeList = thisStart.typeList;
 			
-			while (traceNode != null) {
+			while (true) {
+				
+				code = traceTable.get(col, row);
+				
+				// Add type and move to the previous cell
+				if (table == TraceTable.TABLE_ALIGN) {
+					
+					// Seed k-mer
+					if ((code & TraceTable.ALIGN_SEED) != 0) {
+						
+						for (int count = 0; count < kSize; ++count)
+							typeList.add(AlignNode.MATCH);
+						
+						break;
+					}
+					
+					typeList.add(((code & TraceTable.ALIGN_MISMATCH) != 0) ? AlignNode.MISMATCH : AlignNode.MATCH);
+					flags = code >> TraceTable.SHIFT_ALIGN;
+					
+					--col;
+					--row;
+					
+				} else if (table == TraceTable.TABLE_GAP_REF) {
+					typeList.add(AlignNode.INS);
+					flags = code >> TraceTable.SHIFT_GAP_REF;
+					
+					--col;
+					
+				} else {
+					typeList.add(AlignNode.DEL);
+					flags = code >> TraceTable.SHIFT_GAP_CON;
+					
+					--row;
+				}
 				
-				// Handle branches
-				if (traceNode.branchNode != null) {
-					lastStart.next = new AlignStart(traceNode.branchNode, getTypeList(typeList), null);
-					lastStart = lastStart.next;
-					++nAlign;
+				assert ((flags & (TraceTable.FROM_ALIGN | TraceTable.FROM_GAP_REF | TraceTable.FROM_GAP_CON)) != 0) :
+					String.format("getAlignment(): No transition into cell: table=%d, col=%d, row=%d", table, col, row);
+				
+				// Handle branches (follow the first transition, and add an alignment start for the others)
+				table = -1;
+				
+				if ((flags & TraceTable.FROM_GAP_CON) != 0)
+					table = TraceTable.TABLE_GAP_CON;
+				
+				if ((flags & TraceTable.FROM_GAP_REF) != 0) {
+					
+					if (table < 0) {
+						table = TraceTable.TABLE_GAP_REF;
+						
+					} else {
+						lastStart.next = new AlignStart(TraceTable.TABLE_GAP_REF, row, col, getTypeList(typeList), null);
+						lastStart = lastStart.next;
+						++nAlign;
+					}
 				}
 				
-				typeList.add(traceNode.type);
-				traceNode = traceNode.nextNode;
+				if ((flags & TraceTable.FROM_ALIGN) != 0) {
+					
+					if (table < 0) {
+						table = TraceTable.TABLE_ALIGN;
+						
+					} else {
+						lastStart.next = new AlignStart(TraceTable.TABLE_ALIGN, row, col, getTypeList(typeList), null);
+						lastStart = lastStart.next;
+						++nAlign;
+					}
+				}
 			}
 			
 			// Move to next start and extend
@@ -1416,6 +1872,98 @@ public final class KmerAligner {
 		return true;
 	}
 	
+	/**
+	 * Determine if a state is restored before another in best-first mode.
+	 * 
+	 * @param state State.
+	 * @param minDepth Minimum depth of the other state.
+	 * @param maxPotentialScore Upper bound of the alignment score of the other state.
+	 * 
+	 * @return <code>true</code> if <code>state</code> has a greater minimum depth or the same
+	 *   minimum depth and a greater upper bound.
+	 */
+	private static boolean isBetterState(StateStackNode state, int minDepth, float maxPotentialScore) {
+		return state.minDepth > minDepth || (state.minDepth == minDepth && state.maxPotentialScore > maxPotentialScore);
+	}
+	
+	/**
+	 * Insert a state into the state list in best-first order. A state is inserted before states
+	 * it ties with, so the last state saved is restored first among equal states.
+	 * 
+	 * @param newState State to insert.
+	 */
+	private void insertState(StateStackNode newState) {
+		
+		// Declarations
+		StateStackNode stateNode;  // State newState is inserted after or null to insert at the top
+		
+		// Find insert position
+		stateNode = null;
+		
+		if (stateStack != null && isBetterState(stateStack, newState.minDepth, newState.maxPotentialScore)) {
+			stateNode = stateStack;
+			
+			while (stateNode.nextNodeDown != null && isBetterState(stateNode.nextNodeDown, newState.minDepth, newState.maxPotentialScore))
+				stateNode = stateNode.nextNodeDown;
+		}
+		
+		// Link
+		if (stateNode == null) {
+			newState.nextNodeDown = stateStack;
+			stateStack = newState;
+			
+		} else {
+			newState.nextNodeDown = stateNode.nextNodeDown;
+			newState.nextNodeUp = stateNode;
+			stateNode.nextNodeDown = newState;
+		}
+		
+		if (newState.nextNodeDown != null)
+			newState.nextNodeDown.nextNodeUp = newState;
+		
+		return;
+	}
+	
+	/**
+	 * Remove the worst state from the state list in best-first mode if a new state would be
+	 * restored before it.
+	 * 
+	 * @param minDepth Minimum depth of the new state.
+	 * @param maxPotentialScore Upper bound of the alignment score of the new state.
+	 * 
+	 * @return <code>true</code> if a state was removed.
+	 */
+	private boolean removeWorstState(int minDepth, float maxPotentialScore) {
+		
+		// Declarations
+		StateStackNode worstState;  // Last state in the list
+		
+		// Check arguments
+		assert (nState == maxState) :
+			String.format("removeWorstState(): Called when nState (%d) != maxState (%d)", nState, maxState);
+		
+		// Find the worst state
+		worstState = stateStack;
+		
+		while (worstState.nextNodeDown != null)
+			worstState = worstState.nextNodeDown;
+		
+		if (isBetterState(worstState, minDepth, maxPotentialScore))
+			return false;
+		
+		logger.trace("Removing saved state: State list is at capacity: {} [minDepth={}]", kUtil.toBaseString(worstState.kmer), worstState.minDepth);
+		
+		// Unlink state
+		if (worstState.nextNodeUp == null)
+			stateStack = null;
+		else
+			worstState.nextNodeUp.nextNodeDown = null;
+		
+		--nState;
+		
+		return true;
+	}
+	
 	/**
 	 * Tracks alignment start positions for building a list of possible alignments from the
 	 * trace matrix.
@@ -1425,8 +1973,14 @@ public final class KmerAligner {
 		/** List of types. */
 		public TypeList typeList;
 		
-		/** Node at this start. */
-		public TraceNode traceNode;
+		/** Table of the cell at this start. */
+		public int table;
+		
+		/** Row of the cell at this start. */
+		public int row;
+		
+		/** Column of the cell at this start. */
+		public int col;
 		
 		/**
 		 * The start of the next alignment or <code>null</code> if this is the last
@@ -1437,16 +1991,17 @@ public final class KmerAligner {
 		/**
 		 * Create a new alignment start.
 		 * 
-		 * @param traceNode Trace node at this alignment start.
+		 * @param table Table of the cell at this alignment start.
+		 * @param row Row of the cell at this alignment start.
+		 * @param col Column of the cell at this alignment start.
 		 * @param typeList A list of type events in this alignment.
 		 * @param next Next alignment start.
 		 */
-		public AlignStart(TraceNode traceNode, TypeList typeList, AlignStart next) {
-			
-			assert (traceNode != null) :
-				"Trace node is null";
+		public AlignStart(int table, int row, int col, TypeList typeList, AlignStart next) {
 			
-			this.traceNode = traceNode;
+			this.table = table;
+			this.row = row;
+			this.col = col;
 			this.next = next;
 			
 			if (typeList == null)
@@ -16,16 +16,24 @@
 
 package edu.gatech.kestrel.align;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.gatech.kanalyze.util.Base;
 import edu.gatech.kestrel.activeregion.ActiveRegion;
 import edu.gatech.kestrel.activeregion.Haplotype;
+import edu.gatech.kestrel.align.state.KmerPathSet;
 import edu.gatech.kestrel.align.state.RestoredState;
+import edu.gatech.kestrel.align.state.StateStackNode;
 import edu.gatech.kestrel.counter.CountMap;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
-import edu.gatech.kanalyze.util.KmerHashSet;
 
 /**
  * Builds consensus sequences for active regions using k-mer evidence to choose bases and
@@ -51,15 +59,33 @@ public class KmerAlignmentBuilder {
 	/** K-mer counter. */
 	private final CountMap counter;
 	
+	/** Local k-mer graph of the active region haplotypes are built for. */
+	private final LocalKmerGraph kmerGraph;
+	
 	/** Maximum number of haplotypes that may be accepted. */
 	private int maxHaplotypes;
 	
+	/**
+	 * Pool branches of an active region are explored in, or <code>null</code> to explore all
+	 * branches in the calling thread.
+	 */
+	private ForkJoinPool branchPool;
+	
+	/** Aligners of finished branch tasks that may be used by new branch tasks. */
+	private final ConcurrentLinkedQueue<KmerAligner> branchAlignerQueue;
+	
 	/** Maximum repeat count. */
 	public final int maxRepeatCount;
 	
 	/** Default maximum number of haplotypes. */
 	public static final int DEFAULT_MAX_HAPLOTYPES = 15;
 	
+	/**
+	 * A branch task forks saved states as new tasks while fewer than this many tasks are queued
+	 * in its thread and not yet stolen by idle threads.
+	 */
+	private static final int MAX_SURPLUS_BRANCHES = 2;
+	
 	/**
 	 * Create a new aligner.
 	 * 
@@ -105,10 +131,15 @@ public class KmerAlignmentBuilder {
 		this.maxRepeatCount = maxRepeatCount;
 		
 		maxHaplotypes = DEFAULT_MAX_HAPLOTYPES;
+		branchPool = null;
+		
+		branchAlignerQueue = new ConcurrentLinkedQueue<KmerAligner>();
 		
 		// Create aligner
 		aligner = new KmerAligner(kUtil, alnWeight, trace);  // throws IllegalArgumentException
 		
+		kmerGraph = new LocalKmerGraph(kUtil, counter, countReverseKmers);
+		
 		return;
 	}
 	
@@ -125,6 +156,8 @@ public class KmerAlignmentBuilder {
 	public Haplotype[] getHaplotypes(ActiveRegion activeRegion)
 			throws NullPointerException {
 		
+		HaplotypeContainer haplotypeList;  // Haplotypes found in the active region
+		
 		// Check arguments
 		if (activeRegion == null)
 			throw new NullPointerException("Cannot find haplotypes in active region: null");
@@ -134,23 +167,108 @@ public class KmerAlignmentBuilder {
 		// Create alignment
 		aligner.init(activeRegion);
 		
-		// Get first kmer (alignment is already seeded with this k-mer)
-		if (aligner.isReverse())
-			return buildRev(activeRegion);
+		// Build the local k-mer graph from the anchor k-mer
+		kmerGraph.build(
+				aligner.isReverse() ? activeRegion.getRightEndKmer() : activeRegion.getLeftEndKmer(),
+				aligner.isReverse(),
+				activeRegion.endIndex - activeRegion.startIndex + 1 + alnWeight.getMaxExclusiveGapSize(kUtil.kSize)
+		);
+		
+		logger.trace("Built local k-mer graph: {} nodes", kmerGraph.getSize());
 		
-		return buildFwd(activeRegion);
+		// Explore branches from the first kmer (alignment is already seeded with this k-mer)
+		haplotypeList = new HaplotypeContainer(maxHaplotypes);
+		
+		try {
+			if (branchPool == null || aligner.trace || aligner.getBestFirst() || ! buildBranches(activeRegion, haplotypeList)) {
+				
+				if (aligner.isReverse())
+					buildRev(aligner, activeRegion, haplotypeList, null, null);
+				
+				else
+					buildFwd(aligner, activeRegion, haplotypeList, null, null);
+			}
+			
+		} finally {
+			kmerGraph.clear();
+		}
+		
+		logger.trace("Built {} haplotypes ({}): {}", haplotypeList.size(), aligner.isReverse() ? "rev" : "fwd", activeRegion.toString());
+		
+		// Return haplotypes
+		return haplotypeList.toArray();
 	}
 	
 	/**
-	 * Build haplotypes from left to right.
+	 * Explore the branches of an active region in the branch pool. Tasks share one budget of
+	 * <code>maxState</code> saved states, and the haplotypes of each branch are added to the
+	 * container in the order the branches are explored by one aligner. The result is the same
+	 * as exploring all branches in the calling thread. If the tasks would save more states
+	 * than the budget, one aligner would have trimmed its states, and the region is not built
+	 * here.
 	 * 
 	 * @param activeRegion Active region.
+	 * @param haplotypeList Container haplotypes are added to.
 	 * 
-	 * @return An array of haplotypes or an empty array if none are found.
+	 * @return <code>true</code> if haplotypes were added to <code>haplotypeList</code>, and
+	 *   <code>false</code> if the state budget was exceeded and the builder aligner must be
+	 *   initialized and the region built in the calling thread.
 	 */
-	private Haplotype[] buildFwd(ActiveRegion activeRegion) {
+	private boolean buildBranches(ActiveRegion activeRegion, HaplotypeContainer haplotypeList) {
+		
+		AtomicInteger stateCount;                             // States saved by all tasks
+		ConcurrentLinkedQueue<BranchHaplotypes> branchQueue;  // Haplotypes found by all tasks
+		BranchHaplotypes[] branchArray;                       // Haplotypes in branch order
+		
+		// Init
+		stateCount = new AtomicInteger(0);
+		branchQueue = new ConcurrentLinkedQueue<BranchHaplotypes>();
+		
+		// Explore branches
+		aligner.setSharedStateCount(stateCount);
+		
+		try {
+			branchPool.invoke(new BranchTask(aligner, activeRegion, branchQueue, stateCount, null));
+			
+		} finally {
+			aligner.setSharedStateCount(null);
+		}
+		
+		if (stateCount.get() > aligner.getMaxState()) {
+			logger.trace("Branch tasks exceeded the state budget ({}): Building haplotypes in one thread: {}", aligner.getMaxState(), activeRegion.toString());
+			
+			aligner.init(activeRegion);
+			
+			return false;
+		}
 		
-		KmerAligner aligner = this.aligner;
+		// Add haplotypes in branch order
+		branchArray = branchQueue.toArray(new BranchHaplotypes[branchQueue.size()]);
+		Arrays.sort(branchArray);
+		
+		for (BranchHaplotypes branchHaplotypes : branchArray) {
+			for (Haplotype haplotype : branchHaplotypes.haplotypes) {
+				logger.trace("Adding haplotype: {}", haplotype);
+				haplotypeList.add(haplotype);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Build haplotypes from left to right.
+	 * 
+	 * @param aligner Aligner initialized with <code>activeRegion</code>.
+	 * @param activeRegion Active region.
+	 * @param haplotypeList Container haplotypes are added to, or <code>null</code> if
+	 *   <code>branchTask</code> collects haplotypes.
+	 * @param startState Saved state to start from or <code>null</code> to start from the left end
+	 *   k-mer of the active region.
+	 * @param branchTask Task exploring this branch or <code>null</code> if all branches are
+	 *   explored by this call.
+	 */
+	private void buildFwd(KmerAligner aligner, ActiveRegion activeRegion, HaplotypeContainer haplotypeList, StateStackNode startState, BranchTask branchTask) {
 		
 		int[] kmer;       // Current k-mer
 		int[] revKmer;    // Reverse k-mer for counting both strands
@@ -173,22 +291,30 @@ public class KmerAlignmentBuilder {
 		int shiftG = Base.G.intVal << kUtil.mswMaskFirstShift;  // G shifted into the first position of the first word
 		int shiftT = Base.T.intVal << kUtil.mswMaskFirstShift;  // T shifted into the first position of the first word
 		
-		HaplotypeContainer haplotypeList;
-		
-		KmerHashSet kmerHash = new KmerHashSet(kUtil.kSize);  // Hash set for cycle detection
+		KmerPathSet kmerPath = new KmerPathSet(kUtil);  // K-mers on the assembly path for cycle detection
 		int repeatCount = 0;  // Number of repeated k-mers
 		
 		// Init
-		haplotypeList = new HaplotypeContainer(maxHaplotypes);
-		
-		kmer = activeRegion.getLeftEndKmer();
 		revKmer = new int[kUtil.wordSize];
 		
-		// Set initial minimum depth
-		minDepth = counter.get(kmer);
-		
-		if (countReverseKmers)
-			minDepth += counter.get(revKmer);
+		if (startState != null) {
+			restoredState = aligner.restoreState(startState);
+			
+			kmer = restoredState.kmer;
+			minDepth = restoredState.minDepth;
+			
+			kmerPath.restore(restoredState.kmerPathMark);
+			repeatCount = restoredState.repeatCount;
+			
+		} else {
+			kmer = activeRegion.getLeftEndKmer();
+			
+			// Set initial minimum depth
+			if (countReverseKmers)
+				minDepth = kmerGraph.get(kmer, kUtil.revComplement(kmer, revKmer));
+			else
+				minDepth = kmerGraph.get(kmer, null);
+		}
 				
 		// Iterate until all possible paths from the initial k-mer are explored
 		ITER_LOOP:
@@ -201,22 +327,26 @@ public class KmerAlignmentBuilder {
 				// A
 				kUtil.append(kmer, Base.A);
 				
-				maxCount = counter.get(kmer);
 				base = Base.A;
 				revBase = shiftT;
 				
 				if (countReverseKmers) {
 					kUtil.prepend(revKmer, Base.T);
-					maxCount += counter.get(revKmer);
+					maxCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					maxCount = kmerGraph.get(kmer, null);
 				}
 				
 				// C
 				kmer[lastKmerWord] = kmer[lastKmerWord] & lastWordMask | Base.C.intVal;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[0] = (revKmer[0] & mswMask) | shiftG;
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -227,7 +357,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=C, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.C, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.C, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 					
 					} else {
 						
@@ -238,7 +368,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=C, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -249,11 +379,13 @@ public class KmerAlignmentBuilder {
 				
 				// G
 				kmer[lastKmerWord] = kmer[lastKmerWord] & lastWordMask | Base.G.intVal;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[0] = (revKmer[0] & mswMask) | shiftC;
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -264,7 +396,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=G, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.G, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.G, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 						
 					} else {
 						
@@ -275,7 +407,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=G, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -286,11 +418,13 @@ public class KmerAlignmentBuilder {
 				
 				// T
 				kmer[lastKmerWord] = kmer[lastKmerWord] & lastWordMask | Base.T.intVal;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[0] = (revKmer[0] & mswMask);
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -301,7 +435,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=T, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.T, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.T, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 					
 					} else {
 						
@@ -312,7 +446,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=T, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -330,7 +464,7 @@ public class KmerAlignmentBuilder {
 				revKmer[0] = revKmer[0] & mswMask | revBase;
 				
 				// Cycle detection
-				if (! kmerHash.add(kmer)) {
+				if (! kmerPath.add(kmer)) {
 					++repeatCount;
 					
 					if (repeatCount > maxRepeatCount) {
@@ -347,11 +481,24 @@ public class KmerAlignmentBuilder {
 			} while (aligner.addBase(base));
 			
 			// Add haplotypes
-			if (minDepth > 0) {
-				for (Haplotype haplotype : aligner.getHaplotypes(counter, countReverseKmers)) {
-					logger.trace("Adding haplotype: {}", haplotype);
-					haplotypeList.add(haplotype);
+			if (branchTask != null) {
+				if (minDepth > 0)
+					branchTask.addHaplotypes(aligner.getHaplotypes(counter, countReverseKmers));
+				
+				// Hand saved states to idle threads
+				if (! branchTask.forkBranches())
+					break ITER_LOOP;
+				
+			} else {
+				if (minDepth > 0) {
+					for (Haplotype haplotype : aligner.getHaplotypes(counter, countReverseKmers)) {
+						logger.trace("Adding haplotype: {}", haplotype);
+						haplotypeList.add(haplotype);
+					}
 				}
+				
+				// Remove states that cannot produce a haplotype the container accepts (best-first only)
+				aligner.pruneStates(haplotypeList.getMinDepthLimit());
 			}
 			
 			// Restore last state if the trace split
@@ -363,14 +510,11 @@ public class KmerAlignmentBuilder {
 			kmer = restoredState.kmer;
 			minDepth = restoredState.minDepth;
 			
-			kmerHash = restoredState.kmerHash;
+			kmerPath.restore(restoredState.kmerPathMark);
 			repeatCount = restoredState.repeatCount;
 		}
 		
-		logger.trace("Built {} haplotypes (fwd): {}", haplotypeList.size(), activeRegion.toString());
-		
-		// Return haplotypes
-		return haplotypeList.toArray();
+		return;
 	}
 	
 	/**
@@ -405,6 +549,57 @@ public class KmerAlignmentBuilder {
 		return aligner.getMaxState();
 	}
 	
+	/**
+	 * Set banded alignment. When banded, the aligner only computes cells near the best
+	 * alignment of the consensus sequence so far instead of the full reference length.
+	 * 
+	 * @param bandedAlignment <code>true</code> to align in banded mode.
+	 * 
+	 * @see KmerAligner#setBanded(boolean)
+	 */
+	public void setBandedAlignment(boolean bandedAlignment) {
+		aligner.setBanded(bandedAlignment);
+		
+		return;
+	}
+	
+	/**
+	 * Get banded alignment.
+	 * 
+	 * @return <code>true</code> if the aligner is in banded mode.
+	 * 
+	 * @see #setBandedAlignment(boolean)
+	 */
+	public boolean getBandedAlignment() {
+		return aligner.getBanded();
+	}
+	
+	/**
+	 * Set best-first haplotype exploration. When set, the saved state with the greatest minimum
+	 * k-mer depth and alignment score bound is explored next instead of the last state saved,
+	 * and states that cannot produce a haplotype the haplotype container accepts are discarded.
+	 * 
+	 * @param bestFirst <code>true</code> to explore haplotypes best-first.
+	 * 
+	 * @see KmerAligner#setBestFirst(boolean)
+	 */
+	public void setBestFirst(boolean bestFirst) {
+		aligner.setBestFirst(bestFirst);
+		
+		return;
+	}
+	
+	/**
+	 * Get best-first haplotype exploration.
+	 * 
+	 * @return <code>true</code> if haplotypes are explored best-first.
+	 * 
+	 * @see #setBestFirst(boolean)
+	 */
+	public boolean getBestFirst() {
+		return aligner.getBestFirst();
+	}
+	
 	/**
 	 * Set the maximum number of haplotypes to be saved. The least-likely haplotypes are trimmed when
 	 * this threshold is reached.
@@ -438,15 +633,44 @@ public class KmerAlignmentBuilder {
 	}
 	
 	/**
-	 * Build haplotypes from left to right.
+	 * Set the pool the branches of an active region are explored in. Saved states are explored
+	 * by tasks in this pool, each with its own aligner, when threads in the pool are idle. All
+	 * tasks add haplotypes to one container, so the maximum number of haplotypes applies to the
+	 * region as it does when branches are explored in one thread. Branches are always explored in
+	 * the calling thread if the aligner records the trace matrix.
 	 * 
-	 * @param activeRegion Active region.
-	 * 
-	 * @return An array of haplotypes or an empty array if none are found.
+	 * @param branchPool Pool or <code>null</code> to explore all branches in the calling thread.
 	 */
-	private Haplotype[] buildRev(ActiveRegion activeRegion) {
+	public void setBranchPool(ForkJoinPool branchPool) {
+		this.branchPool = branchPool;
 		
-		KmerAligner aligner = this.aligner;
+		return;
+	}
+	
+	/**
+	 * Get the pool the branches of an active region are explored in.
+	 * 
+	 * @return Pool or <code>null</code> if all branches are explored in the calling thread.
+	 * 
+	 * @see #setBranchPool(ForkJoinPool)
+	 */
+	public ForkJoinPool getBranchPool() {
+		return branchPool;
+	}
+	
+	/**
+	 * Build haplotypes from right to left.
+	 * 
+	 * @param aligner Aligner initialized with <code>activeRegion</code>.
+	 * @param activeRegion Active region.
+	 * @param haplotypeList Container haplotypes are added to, or <code>null</code> if
+	 *   <code>branchTask</code> collects haplotypes.
+	 * @param startState Saved state to start from or <code>null</code> to start from the right end
+	 *   k-mer of the active region.
+	 * @param branchTask Task exploring this branch or <code>null</code> if all branches are
+	 *   explored by this call.
+	 */
+	private void buildRev(KmerAligner aligner, ActiveRegion activeRegion, HaplotypeContainer haplotypeList, StateStackNode startState, BranchTask branchTask) {
 		
 		int[] kmer;       // Current k-mer
 		int[] revKmer;    // Reverse k-mer for counting both strands
@@ -469,22 +693,30 @@ public class KmerAlignmentBuilder {
 		int shiftG = Base.G.intVal << kUtil.mswMaskFirstShift;  // G shifted into the first position of the first word
 		int shiftT = Base.T.intVal << kUtil.mswMaskFirstShift;  // T shifted into the first position of the first word
 		
-		HaplotypeContainer haplotypeList;
-		
-		KmerHashSet kmerHash = new KmerHashSet(kUtil.kSize);  // Hash set for cycle detection
+		KmerPathSet kmerPath = new KmerPathSet(kUtil);  // K-mers on the assembly path for cycle detection
 		int repeatCount = 0;  // Number of repeated k-mers
 		
 		// Init
-		haplotypeList = new HaplotypeContainer(maxHaplotypes);
-		
-		kmer = activeRegion.getRightEndKmer();
 		revKmer = new int[kUtil.wordSize];
 		
-		// Set initial minimum depth
-		minDepth = counter.get(kmer);
-		
-		if (countReverseKmers)
-			minDepth += counter.get(revKmer);
+		if (startState != null) {
+			restoredState = aligner.restoreState(startState);
+			
+			kmer = restoredState.kmer;
+			minDepth = restoredState.minDepth;
+			
+			kmerPath.restore(restoredState.kmerPathMark);
+			repeatCount = restoredState.repeatCount;
+			
+		} else {
+			kmer = activeRegion.getRightEndKmer();
+			
+			// Set initial minimum depth
+			if (countReverseKmers)
+				minDepth = kmerGraph.get(kmer, kUtil.revComplement(kmer, revKmer));
+			else
+				minDepth = kmerGraph.get(kmer, null);
+		}
 		
 		// Iterate until all possible paths from the initial k-mer are explored
 		ITER_LOOP:
@@ -497,22 +729,26 @@ public class KmerAlignmentBuilder {
 				// A
 				kUtil.prepend(kmer, Base.A);
 				
-				maxCount = counter.get(kmer);
 				base = Base.A;
 				revBase = Base.T.intVal;
 				
 				if (countReverseKmers) {
 					kUtil.append(revKmer, Base.T);
-					maxCount += counter.get(revKmer);
+					maxCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					maxCount = kmerGraph.get(kmer, null);
 				}
 				
 				// C
 				kmer[0] = kmer[0] & mswMask | shiftC;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[lastKmerWord] = (revKmer[lastKmerWord] & lastWordMask) | Base.G.intVal;
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -523,7 +759,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=C, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.C, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.C, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 					
 					} else {
 						
@@ -534,7 +770,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=C, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -545,11 +781,13 @@ public class KmerAlignmentBuilder {
 				
 				// G
 				kmer[0] = kmer[0] & mswMask | shiftG;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[lastKmerWord] = (revKmer[lastKmerWord] & lastWordMask) | Base.C.intVal;
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -560,7 +798,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=G, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.G, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.G, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 						
 					} else {
 						
@@ -571,7 +809,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=G, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -582,11 +820,13 @@ public class KmerAlignmentBuilder {
 				
 				// T
 				kmer[0] = kmer[0] & mswMask | shiftT;
-				baseCount = counter.get(kmer);
 				
 				if (countReverseKmers) {
 					revKmer[lastKmerWord] = (revKmer[lastKmerWord] & lastWordMask);
-					baseCount += counter.get(revKmer);
+					baseCount = kmerGraph.get(kmer, revKmer);
+					
+				} else {
+					baseCount = kmerGraph.get(kmer, null);
 				}
 				
 				if (baseCount > 0) {
@@ -597,7 +837,7 @@ public class KmerAlignmentBuilder {
 						if (logger.isTraceEnabled())
 							logger.trace("Align split: Saving state {} (count={}, added=T, saving=this)", kUtil.toBaseString(kmer), baseCount);
 						
-						aligner.saveState(kUtil.copy(kmer, null), Base.T, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerHash, repeatCount);
+						aligner.saveState(kUtil.copy(kmer, null), Base.T, (baseCount > minDepth && minDepth > 0) ? minDepth : baseCount, kmerPath.getMark(), repeatCount);
 					
 					} else {
 						
@@ -608,7 +848,7 @@ public class KmerAlignmentBuilder {
 							if (logger.isTraceEnabled())
 								logger.trace("Align split: Saving state {} (count={}, added=T, saving=cache)", kUtil.toBaseString(kmerCache), maxCount);
 							
-							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerHash, repeatCount);
+							aligner.saveState(kmerCache, base, (maxCount > minDepth && minDepth > 0) ? minDepth : maxCount, kmerPath.getMark(), repeatCount);
 						}
 						
 						maxCount = baseCount;
@@ -626,7 +866,7 @@ public class KmerAlignmentBuilder {
 				revKmer[lastKmerWord] = revKmer[lastKmerWord] & lastWordMask | revBase;
 				
 				// Cycle detection
-				if (! kmerHash.add(kmer)) {
+				if (! kmerPath.add(kmer)) {
 					++repeatCount;
 					
 					if (repeatCount > maxRepeatCount) {
@@ -638,9 +878,22 @@ public class KmerAlignmentBuilder {
 				
 			} while (aligner.addBase(base));
 			
-			for (Haplotype haplotype : aligner.getHaplotypes(counter, countReverseKmers)) {
-				logger.trace("Adding haplotype: {}", haplotype);
-				haplotypeList.add(haplotype);
+			// Add haplotypes
+			if (branchTask != null) {
+				branchTask.addHaplotypes(aligner.getHaplotypes(counter, countReverseKmers));
+				
+				// Hand saved states to idle threads
+				if (! branchTask.forkBranches())
+					break ITER_LOOP;
+				
+			} else {
+				for (Haplotype haplotype : aligner.getHaplotypes(counter, countReverseKmers)) {
+					logger.trace("Adding haplotype: {}", haplotype);
+					haplotypeList.add(haplotype);
+				}
+				
+				// Remove states that cannot produce a haplotype the container accepts (best-first only)
+				aligner.pruneStates(haplotypeList.getMinDepthLimit());
 			}
 			
 			// Restore last state if the trace split
@@ -653,9 +906,210 @@ public class KmerAlignmentBuilder {
 			minDepth = restoredState.minDepth;
 		}
 		
-		logger.trace("Built {} haplotypes (rev): {}", haplotypeList.size(), activeRegion.toString());
+		return;
+	}
+	
+	/**
+	 * Get an aligner for a branch task and initialize it with an active region. Aligners of
+	 * finished tasks are used again.
+	 * 
+	 * @param activeRegion Active region.
+	 * @param stateCount States saved by all tasks exploring the active region.
+	 * 
+	 * @return Aligner with the same settings as the aligner of this builder.
+	 */
+	private KmerAligner getBranchAligner(ActiveRegion activeRegion, AtomicInteger stateCount) {
 		
-		// Return haplotypes
-		return haplotypeList.toArray();
+		KmerAligner branchAligner = branchAlignerQueue.poll();  // Aligner of a finished task
+		
+		if (branchAligner == null)
+			branchAligner = new KmerAligner(kUtil, alnWeight, false);
+		
+		branchAligner.setMaxState(aligner.getMaxState());
+		branchAligner.setBanded(aligner.getBanded());
+		branchAligner.setBestFirst(aligner.getBestFirst());
+		branchAligner.setSharedStateCount(stateCount);
+		
+		branchAligner.init(activeRegion);
+		
+		return branchAligner;
+	}
+	
+	/**
+	 * Explores the branches of an active region from a saved state. At the end of each haplotype,
+	 * the task forks its saved states as new tasks while few tasks are waiting in its thread, so
+	 * states are only handed off when other threads are idle. A task waits for the tasks it forked
+	 * before it completes. Haplotypes are collected with the key of the branch they were found
+	 * on, and they are added to the container after all tasks complete.
+	 */
+	private final class BranchTask extends RecursiveAction {
+		
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+		
+		/** Aligner or <code>null</code> until the task gets an aligner when it is run. */
+		private KmerAligner aligner;
+		
+		/** Active region. */
+		private final ActiveRegion activeRegion;
+		
+		/** Haplotypes found by all tasks for the active region. */
+		private final ConcurrentLinkedQueue<BranchHaplotypes> branchQueue;
+		
+		/** States saved by all tasks for the active region. */
+		private final AtomicInteger stateCount;
+		
+		/** Saved state to start from or <code>null</code> to start from the end k-mer of the region. */
+		private final StateStackNode startState;
+		
+		/** Tasks forked by this task. */
+		private final ArrayList<BranchTask> forkedTasks;
+		
+		/**
+		 * Create a task.
+		 * 
+		 * @param aligner Aligner initialized with <code>activeRegion</code> or <code>null</code>
+		 *   to get an aligner when the task is run.
+		 * @param activeRegion Active region.
+		 * @param branchQueue Haplotypes found by all tasks for the active region.
+		 * @param stateCount States saved by all tasks for the active region.
+		 * @param startState Saved state to start from or <code>null</code> to start from the end
+		 *   k-mer of the active region.
+		 */
+		public BranchTask(KmerAligner aligner, ActiveRegion activeRegion, ConcurrentLinkedQueue<BranchHaplotypes> branchQueue, AtomicInteger stateCount, StateStackNode startState) {
+			
+			this.aligner = aligner;
+			this.activeRegion = activeRegion;
+			this.branchQueue = branchQueue;
+			this.stateCount = stateCount;
+			this.startState = startState;
+			
+			forkedTasks = new ArrayList<BranchTask>();
+			
+			return;
+		}
+		
+		/**
+		 * Explore branches from the start state and wait for forked tasks.
+		 */
+		@Override
+		protected void compute() {
+			
+			boolean releaseAligner = false;  // Return the aligner to the builder when finished
+			
+			if (aligner == null) {
+				aligner = getBranchAligner(activeRegion, stateCount);
+				releaseAligner = true;
+			}
+			
+			try {
+				if (aligner.isReverse())
+					buildRev(aligner, activeRegion, null, startState, this);
+				else
+					buildFwd(aligner, activeRegion, null, startState, this);
+				
+			} finally {
+				if (releaseAligner)
+					branchAlignerQueue.add(aligner);
+			}
+			
+			for (BranchTask forkedTask : forkedTasks)
+				forkedTask.join();
+			
+			return;
+		}
+		
+		/**
+		 * Collect haplotypes found at the end of the branch the aligner is on.
+		 * 
+		 * @param haplotypes Haplotypes.
+		 */
+		public void addHaplotypes(Haplotype[] haplotypes) {
+			
+			if (haplotypes.length > 0)
+				branchQueue.add(new BranchHaplotypes(aligner.getBranchKey(), haplotypes));
+			
+			return;
+		}
+		
+		/**
+		 * Fork saved states of the aligner as new tasks while few tasks are waiting in this thread.
+		 * The aligner keeps at least one saved state so this task continues on its own branches.
+		 * 
+		 * @return <code>true</code> if the task should continue, and <code>false</code> if tasks
+		 *   for the active region saved more states than the budget allows and their result will
+		 *   not be used.
+		 */
+		public boolean forkBranches() {
+			
+			BranchTask forkedTask;  // New task
+			
+			if (stateCount.get() > aligner.getMaxState())
+				return false;
+			
+			while (aligner.hasMultipleCachedStates() && getSurplusQueuedTaskCount() < MAX_SURPLUS_BRANCHES) {
+				
+				// K-mer graph is read by several threads after this point
+				kmerGraph.freeze();
+				
+				forkedTask = new BranchTask(null, activeRegion, branchQueue, stateCount, aligner.popState());
+				forkedTask.fork();
+				
+				forkedTasks.add(forkedTask);
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Haplotypes found at the end of one branch of an active region. Objects are ordered by the
+	 * key of their branch in the order one aligner explores the branches (see
+	 * <code>KmerAligner.getBranchKey()</code>).
+	 */
+	private static final class BranchHaplotypes implements Comparable<BranchHaplotypes> {
+		
+		/** Key of the branch. */
+		public final int[] branchKey;
+		
+		/** Haplotypes in the order the aligner returned them. */
+		public final Haplotype[] haplotypes;
+		
+		/**
+		 * Create haplotypes of a branch.
+		 * 
+		 * @param branchKey Key of the branch.
+		 * @param haplotypes Haplotypes in the order the aligner returned them.
+		 */
+		public BranchHaplotypes(int[] branchKey, Haplotype[] haplotypes) {
+			
+			this.branchKey = branchKey;
+			this.haplotypes = haplotypes;
+			
+			return;
+		}
+		
+		/**
+		 * Compare branches by the order one aligner explores them.
+		 * 
+		 * @param other Other branch.
+		 * 
+		 * @return A negative number if this branch is explored first, a positive number if
+		 *   <code>other</code> is explored first, or <code>0</code> if they are the same branch.
+		 */
+		@Override
+		public int compareTo(BranchHaplotypes other) {
+			
+			int size = Math.min(branchKey.length, other.branchKey.length);  // Size of the shared prefix
+			
+			// States saved later on a branch are restored first
+			for (int index = 0; index < size; ++index) {
+				if (branchKey[index] != other.branchKey[index])
+					return branchKey[index] > other.branchKey[index] ? -1 : 1;
+			}
+			
+			// A branch is explored before branches started from its states
+			return Integer.compare(branchKey.length, other.branchKey.length);
+		}
 	}
 }
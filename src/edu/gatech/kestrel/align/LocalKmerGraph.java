@@ -0,0 +1,248 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align;
+
+import java.util.ArrayList;
+
+import edu.gatech.kanalyze.util.Base;
+import edu.gatech.kanalyze.util.KmerCounter;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+import edu.gatech.kestrel.counter.CountMap;
+
+/**
+ * A local k-mer graph of one active region with the count of each k-mer stored on its node. Nodes
+ * are k-mers, and the edges of a node are the four k-mers that extend it by one base in the
+ * direction the region is assembled. Before haplotypes are assembled, the graph is built by a
+ * bounded breadth-first expansion from the anchor k-mer of the region. The assembler then reads
+ * counts from the graph, so each distinct k-mer is looked up in the count map once per region
+ * no matter how many assembly paths or restored states reach it.
+ * <p/>
+ * A k-mer that is not in the graph (past the depth or node limit of the expansion) is looked up
+ * when it is first queried and added to the graph, so counts are always the same as the count map.
+ * After the graph is frozen, k-mers are no longer added, and any number of threads may get counts
+ * from it until it is cleared.
+ */
+public final class LocalKmerGraph {
+	
+	/** K-mer utility. */
+	public final KmerUtil kUtil;
+	
+	/** K-mer counter. */
+	private final CountMap counter;
+	
+	/** If <code>true</code>, the count of a node is the sum of the k-mer and its reverse complement. */
+	public final boolean countReverseKmers;
+	
+	/** Count of each node plus <code>1</code>. K-mers that are not in the graph have a value of <code>0</code>. */
+	private final KmerCounter nodeTable;
+	
+	/** If <code>true</code>, k-mers that are not in the graph are not added when they are queried. */
+	private volatile boolean frozen;
+	
+	/** Reverse complement of the k-mer being looked up while the graph is built. */
+	private final int[] revKmer;
+	
+	/** Bases in the order nodes are expanded. */
+	private static final Base[] BASES = new Base[] {Base.A, Base.C, Base.G, Base.T};
+	
+	/** Maximum number of nodes added by an expansion for each level of the expansion depth. */
+	public static final int NODES_PER_LEVEL = 32;
+	
+	/**
+	 * Create an empty graph.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * @param counter K-mer counter.
+	 * @param countReverseKmers If <code>true</code>, the count of a node is the sum of the k-mer and
+	 *   its reverse complement.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> or <code>counter</code> is <code>null</code>.
+	 */
+	public LocalKmerGraph(KmerUtil kUtil, CountMap counter, boolean countReverseKmers)
+			throws NullPointerException {
+		
+		// Check arguments
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		if (counter == null)
+			throw new NullPointerException("K-mer counter is null");
+		
+		// Set fields
+		this.kUtil = kUtil;
+		this.counter = counter;
+		this.countReverseKmers = countReverseKmers;
+		
+		nodeTable = new KmerCounter(kUtil);
+		revKmer = new int[kUtil.wordSize];
+		
+		frozen = false;
+		
+		return;
+	}
+	
+	/**
+	 * Remove all nodes and build the graph from an anchor k-mer. Each level of the expansion adds
+	 * the four k-mers that extend each k-mer with a non-zero count on the last level. The expansion
+	 * stops after <code>maxDepth</code> levels or when <code>NODES_PER_LEVEL * maxDepth</code> nodes
+	 * were added.
+	 * 
+	 * @param anchorKmer K-mer the assembly starts from or <code>null</code> to leave the graph empty.
+	 *   This array is not modified or referenced by this graph.
+	 * @param reverse If <code>true</code>, k-mers are extended by prepending bases (assembled from
+	 *   right to left), and if <code>false</code>, k-mers are extended by appending bases.
+	 * @param maxDepth Maximum number of levels to expand from the anchor k-mer.
+	 * 
+	 * @see #NODES_PER_LEVEL
+	 */
+	public void build(int[] anchorKmer, boolean reverse, int maxDepth) {
+		
+		ArrayList<int[]> level;      // K-mers with a non-zero count on the last level
+		ArrayList<int[]> nextLevel;  // K-mers with a non-zero count on the level being expanded
+		
+		long maxNodes;  // Maximum number of nodes added by the expansion
+		int[] kmer;     // K-mer being added
+		
+		// Init
+		nodeTable.clear();
+		frozen = false;
+		
+		if (anchorKmer == null || maxDepth < 1)
+			return;
+		
+		maxNodes = (long) NODES_PER_LEVEL * maxDepth;
+		
+		level = new ArrayList<>();
+		level.add(kUtil.copy(anchorKmer, null));
+		
+		addNode(anchorKmer, countReverseKmers ? kUtil.revComplement(anchorKmer, revKmer) : null);
+		
+		// Expand
+		EXPAND_LOOP:
+		for (int depth = 0; depth < maxDepth && ! level.isEmpty(); ++depth) {
+			
+			nextLevel = new ArrayList<>();
+			
+			for (int[] lastKmer : level) {
+				for (Base base : BASES) {
+					
+					kmer = kUtil.copy(lastKmer, null);
+					
+					if (reverse)
+						kUtil.prepend(kmer, base);
+					else
+						kUtil.append(kmer, base);
+					
+					if (nodeTable.get(kmer) > 0)
+						continue;
+					
+					if (nodeTable.getSize() >= maxNodes)
+						break EXPAND_LOOP;
+					
+					if (addNode(kmer, countReverseKmers ? kUtil.revComplement(kmer, revKmer) : null) > 0)
+						nextLevel.add(kmer);
+				}
+			}
+			
+			level = nextLevel;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Stop adding k-mers to this graph when they are queried. The graph is not modified until it
+	 * is cleared or built again, so it may be read by several threads.
+	 */
+	public void freeze() {
+		frozen = true;
+		
+		return;
+	}
+	
+	/**
+	 * Remove all nodes from this graph.
+	 */
+	public void clear() {
+		nodeTable.clear();
+		frozen = false;
+		
+		return;
+	}
+	
+	/**
+	 * Get the count of a k-mer. If the k-mer is not in the graph, it is looked up and added unless
+	 * the graph is frozen.
+	 * 
+	 * @param kmer K-mer.
+	 * @param revKmer Reverse complement of <code>kmer</code>. This is only used if
+	 *   <code>countReverseKmers</code> is <code>true</code>, and it may be <code>null</code>
+	 *   otherwise.
+	 * 
+	 * @return The count of <code>kmer</code> (plus the count of <code>revKmer</code> if
+	 *   <code>countReverseKmers</code> is <code>true</code>).
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> is <code>null</code> or if
+	 *   <code>countReverseKmers</code> is <code>true</code> and <code>revKmer</code> is
+	 *   <code>null</code>.
+	 */
+	public int get(int[] kmer, int[] revKmer)
+			throws NullPointerException {
+		
+		int count = nodeTable.get(kmer);  // Count plus 1 or 0 if the k-mer is not in the graph
+		
+		if (count > 0)
+			return count - 1;
+		
+		if (frozen)
+			return countReverseKmers ? counter.getBothStrands(kmer, revKmer) : counter.get(kmer);
+		
+		return addNode(kmer, revKmer);
+	}
+	
+	/**
+	 * Get the number of nodes in this graph.
+	 * 
+	 * @return Number of nodes.
+	 */
+	public long getSize() {
+		return nodeTable.getSize();
+	}
+	
+	/**
+	 * Look up the count of a k-mer and add it to the graph.
+	 * 
+	 * @param kmer K-mer.
+	 * @param revKmer Reverse complement of <code>kmer</code> if <code>countReverseKmers</code> is
+	 *   <code>true</code>.
+	 * 
+	 * @return The count of the k-mer.
+	 */
+	private int addNode(int[] kmer, int[] revKmer) {
+		
+		int count;  // K-mer count
+		
+		if (countReverseKmers)
+			count = counter.getBothStrands(kmer, revKmer);
+		else
+			count = counter.get(kmer);
+		
+		nodeTable.set(kmer, count + 1);
+		
+		return count;
+	}
+}
@@ -22,8 +22,15 @@ package edu.gatech.kestrel.align;
  */
 public class MaxAlignmentScoreNode {
 	
-	/** Node where trace-back begins. */
-	public final TraceNode traceNode;
+	/**
+	 * Table where trace-back begins (<code>TraceTable.TABLE_ALIGN</code> or
+	 * <code>TraceTable.TABLE_GAP_CON</code>). Trace-back begins in the last row of this table
+	 * at column <code>nConsensusBases</code>.
+	 */
+	public final int table;
+	
+	/** Alignment score. */
+	public final float score;
 	
 	/** Number of consensus bases. */
 	public final int nConsensusBases;
@@ -34,32 +41,31 @@ public class MaxAlignmentScoreNode {
 	/**
 	 * Set to <code>true</code> when a haplotype is built from this node. This flag avoids
 	 * duplicate haplotypes arising from attempts to save state when a haplotype appears to split
-	 * and the state is restored.
+	 * and the state is restored. Nodes may be shared by aligners in different threads, so the
+	 * flag is only set by <code>claimHaplotype()</code>.
 	 */
-	public boolean haplotypeBuilt;
+	private boolean haplotypeBuilt;
 	
 	/**
 	 * Create a max alignment score node.
 	 * 
-	 * @param traceNode Node where trace-back begins.
+	 * @param table Table where trace-back begins.
+	 * @param score Alignment score.
 	 * @param nConsensusBases Number of consensus bases.
 	 * @param next If the maximum score occurred more than once, then this links to the next one.
 	 * 
-	 * @throws NullPointerException If <code>traceNode</code> is <code>null</code>.
 	 * @throws IllegalArgumentException if <code>nConsensusBases</code> is less than
 	 *   <code>1</code>.
 	 */
-	public MaxAlignmentScoreNode(TraceNode traceNode, int nConsensusBases, MaxAlignmentScoreNode next) {
+	public MaxAlignmentScoreNode(int table, float score, int nConsensusBases, MaxAlignmentScoreNode next) {
 		
 		// Check arguments
-		if (traceNode == null)
-			throw new NullPointerException("traceNode is null");
-		
 		if (nConsensusBases < 1)
 			throw new IllegalArgumentException("nConsensusBases is less than 1: " + nConsensusBases);
 		
 		// Assign fields
-		this.traceNode = traceNode;
+		this.table = table;
+		this.score = score;
 		this.nConsensusBases = nConsensusBases;
 		this.next = next;
 		
@@ -68,6 +74,22 @@ public class MaxAlignmentScoreNode {
 		return;
 	}
 	
+	/**
+	 * Claim the haplotype of this node for the caller if it was not already built.
+	 * 
+	 * @return <code>true</code> if the caller must build the haplotype, and <code>false</code> if
+	 *   it was already claimed.
+	 */
+	public synchronized boolean claimHaplotype() {
+		
+		if (haplotypeBuilt)
+			return false;
+		
+		haplotypeBuilt = true;
+		
+		return true;
+	}
+	
 	/**
 	 * Get a string representation of this max score.
 	 * 
@@ -75,6 +97,6 @@ public class MaxAlignmentScoreNode {
 	 */
 	@Override
 	public String toString() {
-		return String.format("MaxAlignment[len=%d, last=%s, trace=%s]", nConsensusBases, traceNode.type, traceNode.toString());
+		return String.format("MaxAlignment[len=%d, table=%d, score=%f]", nConsensusBases, table, score);
 	}
 }
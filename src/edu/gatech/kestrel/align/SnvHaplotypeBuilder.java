@@ -0,0 +1,475 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.KAnalyzeConstants;
+import edu.gatech.kanalyze.util.Base;
+import edu.gatech.kanalyze.util.KmerHashSet;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+import edu.gatech.kestrel.activeregion.ActiveRegion;
+import edu.gatech.kestrel.activeregion.Haplotype;
+import edu.gatech.kestrel.activeregion.RegionStats;
+import edu.gatech.kestrel.counter.CountMap;
+
+/**
+ * Finds haplotypes of short active regions that are explained by single-base substitutions
+ * without assembling and aligning them. An isolated SNV is covered by <code>kSize</code> k-mers,
+ * so its active region spans about <code>2 * kSize + 1</code> bases. Every substitution of each
+ * base that is at least <code>kSize</code> bases from both ends of the region is tested by
+ * looking up its k-mers, and a haplotype is created for each substitution (and the reference)
+ * with no missing k-mers.
+ * <p/>
+ * A region is only resolved if the assembler would find the same haplotypes. No k-mer may leave
+ * the paths of the haplotypes (except an error k-mer that cannot be extended), no haplotype may
+ * repeat a k-mer, and the number of haplotypes must be within the haplotype and state limits of
+ * the assembler. Otherwise, <code>getHaplotypes()</code> returns <code>null</code>, and the region
+ * should be assembled.
+ */
+public class SnvHaplotypeBuilder {
+	
+	/** K-mer utility. */
+	public final KmerUtil kUtil;
+	
+	/** K-mer counter. */
+	private final CountMap counter;
+	
+	/** Alignment weights. */
+	public final AlignmentWeight alnWeight;
+	
+	/** Count reverse complement k-mers in region statistics if <code>true</code>. */
+	public final boolean countReverseKmers;
+	
+	/**
+	 * Set to <code>true</code> if a mismatch is the only maximum-score alignment of a substitution
+	 * with these alignment weights. If <code>false</code>, no regions are resolved.
+	 */
+	private final boolean mismatchAlignment;
+	
+	/** K-mers of the haplotype being checked for repeats. */
+	private final KmerHashSet kmerSet;
+	
+	/** K-mer being looked up. */
+	private final int[] kmer;
+	
+	/** A k-mer that extends <code>kmer</code> by one base. */
+	private final int[] altKmer;
+	
+	/** Reverse complement of the k-mer being looked up. */
+	private final int[] revKmer;
+	
+	/** Logger. */
+	private final Logger logger;
+	
+	/** Translates bytes to bases. */
+	private static final Base[] BYTE_TO_BASE = KAnalyzeConstants.getByteToBaseArray();
+	
+	/** Bases a reference base may be substituted with. */
+	private static final Base[] BASES = new Base[] {Base.A, Base.C, Base.G, Base.T};
+	
+	/**
+	 * Maximum number of bases an active region may have over the length of an isolated SNV
+	 * region (<code>2 * kSize + 1</code>).
+	 */
+	public static final int MAX_EXTRA_BASES = 4;
+	
+	/**
+	 * Create a builder.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * @param counter K-mer counter.
+	 * @param alnWeight Alignment weights of the assembler.
+	 * @param countReverseKmers Count reverse complement k-mers in region statistics if
+	 *   <code>true</code>.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code>, <code>counter</code>, or
+	 *   <code>alnWeight</code> is <code>null</code>.
+	 */
+	public SnvHaplotypeBuilder(KmerUtil kUtil, CountMap counter, AlignmentWeight alnWeight, boolean countReverseKmers)
+			throws NullPointerException {
+		
+		// Check arguments
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		if (counter == null)
+			throw new NullPointerException("K-mer counter is null");
+		
+		if (alnWeight == null)
+			throw new NullPointerException("Alignment weight is null");
+		
+		// Assign fields
+		this.kUtil = kUtil;
+		this.counter = counter;
+		this.alnWeight = alnWeight;
+		this.countReverseKmers = countReverseKmers;
+		
+		logger = LoggerFactory.getLogger(SnvHaplotypeBuilder.class);
+		
+		// A mismatch must score higher than an insertion and a deletion, and it must not end the
+		// local alignment
+		mismatchAlignment =
+				alnWeight.mismatch > 2 * alnWeight.newGap &&
+				alnWeight.getInitialScore(kUtil.kSize) + alnWeight.mismatch > 0.0F;
+		
+		kmerSet = new KmerHashSet(kUtil.kSize);
+		
+		kmer = new int[kUtil.kmerArraySize];
+		altKmer = new int[kUtil.kmerArraySize];
+		revKmer = new int[kUtil.kmerArraySize];
+		
+		return;
+	}
+	
+	/**
+	 * Find haplotypes of an active region with single-base substitutions.
+	 * 
+	 * @param activeRegion Active region.
+	 * @param maxHaplotypes Maximum number of haplotypes the assembler accepts.
+	 * @param maxState Maximum number of states the assembler saves.
+	 * 
+	 * @return Haplotypes of the active region, or <code>null</code> if the region is not short,
+	 *   no substitution is supported, or the assembler might find other haplotypes.
+	 * 
+	 * @throws NullPointerException If <code>activeRegion</code> is <code>null</code>.
+	 */
+	public Haplotype[] getHaplotypes(ActiveRegion activeRegion, int maxHaplotypes, int maxState)
+			throws NullPointerException {
+		
+		int kSize;   // K-mer size
+		int length;  // Length of the active region
+		int nPos;    // Number of positions that may be substituted
+		
+		byte[] refHaplotype;  // Reference sequence of the region
+		byte[] sequence;      // A substituted sequence
+		
+		ArrayList<byte[]> sequenceList;  // Sequences with no missing k-mers
+		ArrayList<Integer> positionList; // Position of the substitution in each sequence or -1 for the reference
+		int nSnv;                        // Number of supported substitutions
+		
+		Haplotype[] haplotypes;  // Haplotypes
+		int position;            // Position of a substitution
+		
+		// Check arguments
+		if (activeRegion == null)
+			throw new NullPointerException("Cannot find haplotypes in active region: null");
+		
+		// Only regions anchored on both ends are assembled left to right from reference k-mers
+		if (! mismatchAlignment || activeRegion.leftEnd || activeRegion.rightEnd)
+			return null;
+		
+		// Check length
+		kSize = kUtil.kSize;
+		length = activeRegion.endIndex - activeRegion.startIndex + 1;
+		nPos = length - 2 * kSize;
+		
+		if (nPos < 1 || nPos > MAX_EXTRA_BASES + 1)
+			return null;
+		
+		// Get reference sequence
+		refHaplotype = activeRegion.refRegion.getSequence(activeRegion.startIndex, activeRegion.endIndex + 1);
+		
+		for (int index = 0; index < length; ++index) {
+			
+			if (BYTE_TO_BASE[refHaplotype[index]] == null)
+				return null;
+			
+			refHaplotype[index] = BYTE_TO_BASE[refHaplotype[index]].baseCharByte;  // Same case as assembled bases
+		}
+		
+		// Find supported sequences
+		sequenceList = new ArrayList<>();
+		positionList = new ArrayList<>();
+		
+		if (isSupported(refHaplotype, -1)) {
+			sequenceList.add(refHaplotype);
+			positionList.add(-1);
+		}
+		
+		for (position = kSize; position < length - kSize; ++position) {
+			for (Base base : BASES) {
+				
+				if (base.baseCharByte == refHaplotype[position])
+					continue;
+				
+				sequence = Arrays.copyOf(refHaplotype, length);
+				sequence[position] = base.baseCharByte;
+				
+				if (isSupported(sequence, position)) {
+					sequenceList.add(sequence);
+					positionList.add(position);
+				}
+			}
+		}
+		
+		nSnv = sequenceList.size() - ((positionList.isEmpty() || positionList.get(0) != -1) ? 0 : 1);
+		
+		if (nSnv == 0) {
+			logger.trace("SNV test ambiguous: No substitution is supported: {}", activeRegion);
+			return null;
+		}
+		
+		if (sequenceList.size() > maxHaplotypes || sequenceList.size() > maxState) {
+			logger.trace("SNV test ambiguous: Too many haplotypes ({}): {}", sequenceList.size(), activeRegion);
+			return null;
+		}
+		
+		// Check for k-mers that leave the haplotypes
+		for (byte[] haplotypeSequence : sequenceList) {
+			if (! isClosed(haplotypeSequence, sequenceList)) {
+				logger.trace("SNV test ambiguous: K-mers branch from haplotypes: {}", activeRegion);
+				return null;
+			}
+		}
+		
+		if (countExtensions(refHaplotype, length - kSize) > 1) {
+			logger.trace("SNV test ambiguous: Right-end k-mer branches: {}", activeRegion);
+			return null;
+		}
+		
+		// Create haplotypes
+		haplotypes = new Haplotype[sequenceList.size()];
+		
+		for (int index = 0; index < haplotypes.length; ++index) {
+			
+			sequence = sequenceList.get(index);
+			position = positionList.get(index);
+			
+			if (position < 0) {
+				haplotypes[index] = new Haplotype(
+						sequence, activeRegion,
+						new AlignNode[] {new AlignNode(AlignNode.MATCH, length, null)},
+						alnWeight.getInitialScore(kSize) + (length - kSize) * alnWeight.match,
+						null, RegionStats.getStats(sequence, 0, length, counter, countReverseKmers)
+				);
+				
+			} else {
+				haplotypes[index] = new Haplotype(
+						sequence, activeRegion,
+						new AlignNode[] {new AlignNode(AlignNode.MATCH, position, new AlignNode(AlignNode.MISMATCH, 1, new AlignNode(AlignNode.MATCH, length - position - 1, null)))},
+						alnWeight.getInitialScore(kSize) + (length - kSize - 1) * alnWeight.match + alnWeight.mismatch,
+						null, RegionStats.getStats(sequence, 0, length, counter, countReverseKmers)
+				);
+			}
+			
+			logger.trace("Adding haplotype (SNV test): {}", haplotypes[index]);
+		}
+		
+		logger.trace("Built {} haplotypes (SNV test): {}", haplotypes.length, activeRegion);
+		
+		return haplotypes;
+	}
+	
+	/**
+	 * Determine if all k-mers of a sequence have a non-zero count and no k-mer is repeated.
+	 * 
+	 * @param sequence Sequence.
+	 * @param position Position of the substituted base, or <code>-1</code> if the sequence is
+	 *   the reference. K-mers over this position are checked first.
+	 * 
+	 * @return <code>true</code> if the sequence is supported.
+	 */
+	private boolean isSupported(byte[] sequence, int position) {
+		
+		int kSize = kUtil.kSize;  // K-mer size
+		
+		// Check k-mers over the substitution first (most substitutions fail here)
+		if (position >= 0) {
+			
+			for (int index = position - kSize + 1; index < position; ++index)
+				kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+			
+			for (int index = position; index < position + kSize; ++index) {
+				kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+				
+				if (getCount(kmer) == 0)
+					return false;
+			}
+		}
+		
+		// Check all k-mers and repeats
+		kmerSet.clear();
+		
+		for (int index = 0; index < sequence.length; ++index) {
+			
+			kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+			
+			if (index < kSize - 1)
+				continue;
+			
+			if (! kmerSet.add(kmer))
+				return false;
+			
+			if ((position < 0 || index < position || index >= position + kSize) && getCount(kmer) == 0)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Determine if every k-mer that extends a haplotype with a non-zero count is on the path of
+	 * a haplotype. A k-mer that leaves the haplotypes is allowed if it cannot be extended and it
+	 * is not the right-end k-mer of the region (an assembly path through it would end without
+	 * a haplotype).
+	 * 
+	 * @param sequence Sequence of the haplotype to check.
+	 * @param sequenceList Sequences of all haplotypes.
+	 * 
+	 * @return <code>true</code> if no k-mer leaves the haplotypes.
+	 */
+	private boolean isClosed(byte[] sequence, ArrayList<byte[]> sequenceList) {
+		
+		int kSize = kUtil.kSize;        // K-mer size
+		int length = sequence.length;  // Sequence length
+		
+		int[] rightEndKmer;  // Last k-mer of the region
+		boolean found;       // Set when a haplotype continues with an extension
+		
+		rightEndKmer = null;
+		
+		for (int index = 0; index < kSize - 1; ++index)
+			kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+		
+		for (int index = kSize - 1; index < length - 1; ++index) {
+			
+			kUtil.append(kmer, BYTE_TO_BASE[sequence[index]]);
+			
+			// Check k-mers extending the sequence before index + 1
+			for (Base base : BASES) {
+				
+				if (base.baseCharByte == sequence[index + 1])
+					continue;
+				
+				kUtil.copy(kmer, altKmer);
+				kUtil.append(altKmer, base);
+				
+				if (getCount(altKmer) == 0)
+					continue;
+				
+				// Find a haplotype that continues with this base
+				found = false;
+				
+				for (byte[] otherSequence : sequenceList) {
+					if (otherSequence[index + 1] == base.baseCharByte && isPrefix(sequence, otherSequence, index + 1)) {
+						found = true;
+						break;
+					}
+				}
+				
+				if (found)
+					continue;
+				
+				// Allow a dead-end k-mer
+				if (rightEndKmer == null) {
+					rightEndKmer = new int[kUtil.kmerArraySize];
+					
+					for (int endIndex = length - kSize; endIndex < length; ++endIndex)
+						kUtil.append(rightEndKmer, BYTE_TO_BASE[sequence[endIndex]]);
+				}
+				
+				if (kUtil.eq(altKmer, rightEndKmer))
+					return false;
+				
+				if (countExtensions(altKmer) > 0)
+					return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Count the k-mers with a non-zero count that extend the k-mer of a sequence by one base.
+	 * 
+	 * @param sequence Sequence.
+	 * @param index Index of the first base of the k-mer in <code>sequence</code>.
+	 * 
+	 * @return Number of extensions with a non-zero count.
+	 */
+	private int countExtensions(byte[] sequence, int index) {
+		
+		int[] seqKmer = new int[kUtil.kmerArraySize];  // K-mer at index
+		
+		for (int endIndex = index + kUtil.kSize; index < endIndex; ++index)
+			kUtil.append(seqKmer, BYTE_TO_BASE[sequence[index]]);
+		
+		return countExtensions(seqKmer);
+	}
+	
+	/**
+	 * Count the k-mers with a non-zero count that extend a k-mer by one base.
+	 * 
+	 * @param lastKmer K-mer to extend. This array is not modified.
+	 * 
+	 * @return Number of extensions with a non-zero count.
+	 */
+	private int countExtensions(int[] lastKmer) {
+		
+		int[] extKmer = new int[kUtil.kmerArraySize];  // Extended k-mer
+		int nExt = 0;                                   // Number of extensions
+		
+		for (Base base : BASES) {
+			kUtil.copy(lastKmer, extKmer);
+			kUtil.append(extKmer, base);
+			
+			if (getCount(extKmer) > 0)
+				++nExt;
+		}
+		
+		return nExt;
+	}
+	
+	/**
+	 * Determine if two sequences have the same bases up to an index.
+	 * 
+	 * @param sequence A sequence.
+	 * @param otherSequence Another sequence.
+	 * @param end Compare bases before this index.
+	 * 
+	 * @return <code>true</code> if the bases before <code>end</code> are the same.
+	 */
+	private static boolean isPrefix(byte[] sequence, byte[] otherSequence, int end) {
+		
+		for (int index = 0; index < end; ++index)
+			if (sequence[index] != otherSequence[index])
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Get the count of a k-mer.
+	 * 
+	 * @param countKmer K-mer.
+	 * 
+	 * @return Count of the k-mer (plus its reverse complement if <code>countReverseKmers</code>
+	 *   is <code>true</code>).
+	 */
+	private int getCount(int[] countKmer) {
+		
+		if (countReverseKmers)
+			return counter.getBothStrands(countKmer, kUtil.revComplement(countKmer, revKmer));
+		
+		return counter.get(countKmer);
+	}
+}
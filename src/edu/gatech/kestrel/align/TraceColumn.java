@@ -0,0 +1,93 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align;
+
+/**
+ * One column of a trace table with the consensus base that created it. Columns are never
+ * modified after they are created, and each column links to the column before it on the same
+ * consensus path, so a saved state can hold the last column of its path and restore the
+ * path even after another path replaced columns in the table.
+ * <p/>
+ * Fields are only accessible to the aligner.
+ * 
+ * @see TraceTable
+ */
+public final class TraceColumn {
+	
+	/** Column index in the trace table (number of consensus bases). */
+	final int col;
+	
+	/** Consensus base added with this column or <code>0</code> for the seed column. */
+	final byte base;
+	
+	/** Column before this one on the same consensus path or <code>null</code> for the seed column. */
+	final TraceColumn prev;
+	
+	/** Codes from row <code>start</code>. */
+	private final short[] code;
+	
+	/** Row of the first element of <code>code</code>. */
+	private final int start;
+	
+	/**
+	 * Create a column. Only the range of rows with a non-zero code is stored.
+	 * 
+	 * @param col Column index.
+	 * @param base Consensus base added with this column.
+	 * @param prev Column before this one on the same consensus path.
+	 * @param code Codes for the column indexed by row.
+	 * @param start First row of <code>code</code> that may have a non-zero code.
+	 * @param end Row after the last row of <code>code</code> that may have a non-zero code.
+	 */
+	TraceColumn(int col, byte base, TraceColumn prev, short[] code, int start, int end) {
+		
+		// Find non-zero range
+		while (start < end && code[start] == 0)
+			++start;
+		
+		while (end > start && code[end - 1] == 0)
+			--end;
+		
+		// Assign fields
+		this.col = col;
+		this.base = base;
+		this.prev = prev;
+		this.start = start;
+		
+		this.code = new short[end - start];
+		System.arraycopy(code, start, this.code, 0, end - start);
+		
+		return;
+	}
+	
+	/**
+	 * Get the code of a cell in this column.
+	 * 
+	 * @param row Row index.
+	 * 
+	 * @return Code at the cell or <code>0</code> if the cell has no transitions.
+	 */
+	int get(int row) {
+		
+		row -= start;
+		
+		if (row < 0 || row >= code.length)
+			return 0;
+		
+		return code[row];
+	}
+}
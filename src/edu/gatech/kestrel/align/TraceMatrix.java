@@ -19,10 +19,10 @@ package edu.gatech.kestrel.align;
 import edu.gatech.kestrel.KestrelConstants;
 
 /**
- * A trace-back matrix used for debugging. Kestrel uses a linked-graph structure for traces,
- * and the full matrix is not easily retrieved from it. For example, no reference is stored
- * to nodes that are not traversible, and they may be garbage collected. This matrix will
- * use more memory and should only be used for debugging.
+ * A trace-back matrix used for debugging. Kestrel stores traces in a compact table that keeps
+ * only the last path through columns replaced after restoring saved states, and the full matrix
+ * is not easily retrieved from it. This matrix will use more memory and should only be used for
+ * debugging.
  */
 public class TraceMatrix {
 	
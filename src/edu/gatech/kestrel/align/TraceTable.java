@@ -0,0 +1,214 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align;
+
+import edu.gatech.kestrel.KestrelConstants;
+
+/**
+ * The trace-back matrix of a progressive alignment stored as one trace code for each cell. A code
+ * holds the transitions into a cell of each of the three score matrices (align, reference-gap, and
+ * consensus-gap) as three bits per matrix, so ties are kept as branches without creating an
+ * object for each cell.
+ * <p/>
+ * Each column corresponds to a number of consensus bases, and it only stores the range of rows
+ * that have a non-zero code. A column is replaced when the aligner adds a base at that position
+ * again after restoring a saved state. Replaced columns are kept by the columns after them and by
+ * saved states (see <code>TraceColumn</code>), and <code>restoreColumn()</code> puts them back
+ * when a state on another consensus path is restored.
+ */
+final class TraceTable {
+	
+	/** Columns on the current consensus path indexed by column. */
+	private TraceColumn[] columns;
+	
+	/** Number of elements in <code>columns</code>. */
+	private int colCapacity;
+	
+	/** Matrix index of the align table. */
+	public static final int TABLE_ALIGN = 0;
+	
+	/** Matrix index of the reference-gap table. */
+	public static final int TABLE_GAP_REF = 1;
+	
+	/** Matrix index of the consensus-gap table. */
+	public static final int TABLE_GAP_CON = 2;
+	
+	/** Transition flag for a cell that is reached from the align table. */
+	public static final int FROM_ALIGN = 0x1;
+	
+	/** Transition flag for a cell that is reached from the reference-gap table. */
+	public static final int FROM_GAP_REF = 0x2;
+	
+	/** Transition flag for a cell that is reached from the consensus-gap table. */
+	public static final int FROM_GAP_CON = 0x4;
+	
+	/** Shift of the transition flags for align table cells. */
+	public static final int SHIFT_ALIGN = 0;
+	
+	/** Shift of the transition flags for reference-gap table cells. */
+	public static final int SHIFT_GAP_REF = 3;
+	
+	/** Shift of the transition flags for consensus-gap table cells. */
+	public static final int SHIFT_GAP_CON = 6;
+	
+	/** Set on a code if the bases aligned in the align table cell do not match. */
+	public static final int ALIGN_MISMATCH = 0x200;
+	
+	/**
+	 * Set on a code if the align table cell is the end of the k-mer that seeded the alignment.
+	 * Trace-back from this cell adds one match for each base of the k-mer and stops.
+	 */
+	public static final int ALIGN_SEED = 0x400;
+	
+	/** Initial number of columns. */
+	private static final int DEFAULT_COLUMN_CAPACITY = 250;
+	
+	/**
+	 * Create an empty trace table.
+	 */
+	public TraceTable() {
+		
+		colCapacity = DEFAULT_COLUMN_CAPACITY;
+		
+		columns = new TraceColumn[colCapacity];
+		
+		return;
+	}
+	
+	/**
+	 * Clear all columns.
+	 */
+	public void clear() {
+		
+		for (int col = 0; col < colCapacity; ++col)
+			columns[col] = null;
+		
+		return;
+	}
+	
+	/**
+	 * Set a column on the current consensus path. The column before it is the current column at
+	 * <code>col - 1</code>. Only the range of rows with a non-zero code is stored.
+	 * 
+	 * @param col Column index.
+	 * @param base Consensus base added with this column.
+	 * @param code Codes for the column indexed by row.
+	 * @param start First row of <code>code</code> that may have a non-zero code.
+	 * @param end Row after the last row of <code>code</code> that may have a non-zero code.
+	 * 
+	 * @return The new column.
+	 * 
+	 * @throws IllegalStateException If <code>col</code> is not less than
+	 *   <code>KestrelConstants.MAX_ARRAY_SIZE</code>.
+	 */
+	public TraceColumn setColumn(int col, byte base, short[] code, int start, int end)
+			throws IllegalStateException {
+		
+		if (col >= colCapacity)
+			expand(col);  // throws IllegalStateException
+		
+		columns[col] = new TraceColumn(col, base, (col > 0) ? columns[col - 1] : null, code, start, end);
+		
+		return columns[col];
+	}
+	
+	/**
+	 * Get a column on the current consensus path.
+	 * 
+	 * @param col Column index.
+	 * 
+	 * @return Column or <code>null</code> if the column was not set.
+	 */
+	public TraceColumn getColumn(int col) {
+		
+		if (col >= colCapacity)
+			return null;
+		
+		return columns[col];
+	}
+	
+	/**
+	 * Restore a column that was replaced by another consensus path. The column must have been
+	 * created by this table since it was last cleared or by another table for the same active
+	 * region.
+	 * 
+	 * @param column Column to restore.
+	 * 
+	 * @throws IllegalStateException If <code>column.col</code> is not less than
+	 *   <code>KestrelConstants.MAX_ARRAY_SIZE</code>.
+	 */
+	public void restoreColumn(TraceColumn column)
+			throws IllegalStateException {
+		
+		assert (column != null) :
+			"restoreColumn(): Column is null";
+		
+		if (column.col >= colCapacity)
+			expand(column.col);  // throws IllegalStateException
+		
+		columns[column.col] = column;
+		
+		return;
+	}
+	
+	/**
+	 * Get the code of a cell.
+	 * 
+	 * @param col Column index.
+	 * @param row Row index.
+	 * 
+	 * @return Code at the cell or <code>0</code> if the cell has no transitions.
+	 */
+	public int get(int col, int row) {
+		return columns[col].get(row);
+	}
+	
+	/**
+	 * Expand the number of columns.
+	 * 
+	 * @param col Column that must fit in the table.
+	 * 
+	 * @throws IllegalStateException If <code>col</code> is not less than
+	 *   <code>KestrelConstants.MAX_ARRAY_SIZE</code>.
+	 */
+	private void expand(int col)
+			throws IllegalStateException {
+		
+		int newCapacity;           // New number of columns
+		TraceColumn[] newColumns;  // New column array
+		
+		if (col >= KestrelConstants.MAX_ARRAY_SIZE)
+			throw new IllegalStateException("Cannot expand trace table: Column capacity is at its maximum size: " + KestrelConstants.MAX_ARRAY_SIZE);
+		
+		newCapacity = (int) (colCapacity * KestrelConstants.ARRAY_EXPAND_FACTOR);
+		
+		if (newCapacity <= col)
+			newCapacity = col + 1;
+		
+		if (newCapacity < 0 || newCapacity > KestrelConstants.MAX_ARRAY_SIZE)
+			newCapacity = KestrelConstants.MAX_ARRAY_SIZE;
+		
+		newColumns = new TraceColumn[newCapacity];
+		
+		System.arraycopy(columns, 0, newColumns, 0, colCapacity);
+		
+		columns = newColumns;
+		colCapacity = newCapacity;
+		
+		return;
+	}
+}
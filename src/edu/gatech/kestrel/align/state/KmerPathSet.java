@@ -0,0 +1,181 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align.state;
+
+import edu.gatech.kanalyze.util.KmerHashSet;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+
+/**
+ * A set of k-mers on the path of a haplotype assembly used for cycle detection. Each k-mer added
+ * to the set is linked to the k-mer added before it, and a saved state only needs the last link
+ * (<code>getMark()</code>) to restore the set later. Links are never modified, so paths that
+ * branch from the same saved state share the k-mers before the branch.
+ * <p/>
+ * Restoring a mark removes the k-mers added after the last link the current path shares with
+ * the mark and adds the k-mers on the path of the mark after it. When states are restored in the
+ * reverse order they were saved (the order of the aligner state stack), this only removes the
+ * k-mers added since the state was saved.
+ * <p/>
+ * A mark from another set may also be restored, which replaces the contents of this set with the
+ * k-mers on the path of the mark. Marks are never modified, so they may be shared by sets in
+ * different threads.
+ */
+public final class KmerPathSet {
+	
+	/** K-mer utility. */
+	private final KmerUtil kUtil;
+	
+	/** K-mers on the path. */
+	private final KmerHashSet kmerSet;
+	
+	/** Mark of an empty set. */
+	private final Mark root;
+	
+	/** Link to the last k-mer added to <code>kmerSet</code>. */
+	private Mark tip;
+	
+	/**
+	 * Create an empty k-mer path set.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> is <code>null</code>.
+	 */
+	public KmerPathSet(KmerUtil kUtil)
+			throws NullPointerException {
+		
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		this.kUtil = kUtil;
+		
+		kmerSet = new KmerHashSet(kUtil.kSize);
+		
+		root = new Mark(null, null);
+		tip = root;
+		
+		return;
+	}
+	
+	/**
+	 * Add a k-mer to this set.
+	 * 
+	 * @param kmer K-mer to add. This array is not modified or referenced by this set.
+	 * 
+	 * @return <code>true</code> if the k-mer was added, and <code>false</code> if it was
+	 *   already in this set.
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> is <code>null</code>.
+	 */
+	public boolean add(int[] kmer)
+			throws NullPointerException {
+		
+		if (! kmerSet.add(kmer))  // throws NullPointerException
+			return false;
+		
+		tip = new Mark(kUtil.copy(kmer, null), tip);
+		
+		return true;
+	}
+	
+	/**
+	 * Get a mark that can be used to restore this set to its current contents.
+	 * 
+	 * @return Mark.
+	 * 
+	 * @see #restore(Mark)
+	 */
+	public Mark getMark() {
+		return tip;
+	}
+	
+	/**
+	 * Restore this set to its contents when <code>mark</code> was retrieved.
+	 * 
+	 * @param mark Mark returned by <code>getMark()</code> of this set or another set.
+	 * 
+	 * @throws NullPointerException If <code>mark</code> is <code>null</code>.
+	 */
+	public void restore(Mark mark)
+			throws NullPointerException {
+		
+		Mark fromMark;  // Link on the current path
+		Mark toMark;    // Link on the path of mark
+		
+		if (mark == null)
+			throw new NullPointerException("Cannot restore k-mer path set to mark: null");
+		
+		// Find the last link shared by both paths
+		fromMark = tip;
+		toMark = mark;
+		
+		while (fromMark.depth > toMark.depth)
+			fromMark = fromMark.prev;
+		
+		while (toMark.depth > fromMark.depth)
+			toMark = toMark.prev;
+		
+		while (fromMark != toMark && fromMark.depth > 0) {  // Marks from two sets share an empty path
+			fromMark = fromMark.prev;
+			toMark = toMark.prev;
+		}
+		
+		// Remove k-mers after the shared link (k-mers on one path are never before the shared link)
+		while (tip != fromMark) {
+			kmerSet.remove(tip.kmer);
+			tip = tip.prev;
+		}
+		
+		// Add k-mers on the path of mark
+		for (toMark = mark; toMark.depth > fromMark.depth; toMark = toMark.prev)
+			kmerSet.add(toMark.kmer);
+		
+		tip = mark;
+		
+		return;
+	}
+	
+	/**
+	 * A link to one k-mer on an assembly path and the k-mer added before it.
+	 */
+	public static final class Mark {
+		
+		/** K-mer added to the set or <code>null</code> for the mark of an empty set. */
+		private final int[] kmer;
+		
+		/** Mark of the k-mer added before this one or <code>null</code> for the mark of an empty set. */
+		private final Mark prev;
+		
+		/** Number of k-mers on the path up to and including this one. */
+		private final int depth;
+		
+		/**
+		 * Create a mark.
+		 * 
+		 * @param kmer K-mer added to the set.
+		 * @param prev Mark of the k-mer added before this one.
+		 */
+		private Mark(int[] kmer, Mark prev) {
+			
+			this.kmer = kmer;
+			this.prev = prev;
+			this.depth = (prev != null) ? prev.depth + 1 : 0;
+			
+			return;
+		}
+	}
+}
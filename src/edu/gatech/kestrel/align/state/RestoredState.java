@@ -16,8 +16,6 @@
 
 package edu.gatech.kestrel.align.state;
 
-import edu.gatech.kanalyze.util.KmerHashSet;
-
 /**
  * Contains references to select fields of the state stack. This can be sent outside of the
  * aligner after a state is restored without exposing references to other states.
@@ -36,8 +34,11 @@ public class RestoredState {
 	/** Minimum depth for all k-mers in the alignment up to this state. */
 	public final int minDepth;
 	
-	/** K-mer hash for cycle detection. */
-	public final KmerHashSet kmerHash;
+	/**
+	 * Mark of the k-mer path set for cycle detection. The path set must be restored to
+	 * this mark.
+	 */
+	public final KmerPathSet.Mark kmerPathMark;
 	
 	/** Maximum number of repeated k-mers. */
 	public final int repeatCount;
@@ -48,13 +49,15 @@ public class RestoredState {
 	 * @param kmer Kmer the aligner should start with for the next base.
 	 * @param consensusSize Size of the consensus sequence.
 	 * @param minDepth Minimum depth.
+	 * @param kmerPathMark Mark of the k-mer path set for cycle detection.
+	 * @param repeatCount Number of repeated k-mers.
 	 */
-	public RestoredState(int[] kmer, int consensusSize, int minDepth, KmerHashSet kmerHash, int repeatCount) {
+	public RestoredState(int[] kmer, int consensusSize, int minDepth, KmerPathSet.Mark kmerPathMark, int repeatCount) {
 		
 		this.kmer = kmer;
 		this.consensusSize = consensusSize;
 		this.minDepth = minDepth;
-		this.kmerHash = kmerHash;
+		this.kmerPathMark = kmerPathMark;
 		this.repeatCount = repeatCount;
 		
 		return;
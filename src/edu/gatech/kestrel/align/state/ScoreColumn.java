@@ -0,0 +1,103 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.align.state;
+
+/**
+ * A cached column of the alignment, reference-gap, and consensus-gap score matrices. Only the
+ * range of rows with a non-zero score in any of the three matrices is stored. Saved states
+ * taken before the aligner adds another base share one object.
+ */
+public final class ScoreColumn {
+	
+	/** First row with a non-zero score. */
+	public final int start;
+	
+	/** Row after the last row with a non-zero score. */
+	public final int end;
+	
+	/** Alignment scores from row <code>start</code> to <code>end</code>. */
+	private final float[] alignScore;
+	
+	/** Reference-gap scores from row <code>start</code> to <code>end</code>. */
+	private final float[] gapRefScore;
+	
+	/** Consensus-gap scores from row <code>start</code> to <code>end</code>. */
+	private final float[] gapConScore;
+	
+	/**
+	 * Copy a column of scores.
+	 * 
+	 * @param align Alignment scores.
+	 * @param gapRef Reference-gap scores.
+	 * @param gapCon Consensus-gap scores.
+	 * @param start First row that may have a non-zero score.
+	 * @param end Row after the last row that may have a non-zero score.
+	 */
+	public ScoreColumn(float[] align, float[] gapRef, float[] gapCon, int start, int end) {
+		
+		int size;  // Number of rows stored
+		
+		// Check arguments
+		assert (align != null && gapRef != null && gapCon != null) :
+			"ScoreColumn(): column is null";
+		
+		assert (start >= 0 && end <= align.length) :
+			String.format("ScoreColumn(): Range is out of bounds [0, %d]: [%d, %d]", align.length, start, end);
+		
+		// Find non-zero range
+		while (start < end && align[start] == 0.0F && gapRef[start] == 0.0F && gapCon[start] == 0.0F)
+			++start;
+		
+		while (end > start && align[end - 1] == 0.0F && gapRef[end - 1] == 0.0F && gapCon[end - 1] == 0.0F)
+			--end;
+		
+		// Assign fields
+		this.start = start;
+		this.end = end;
+		
+		size = end - start;
+		
+		alignScore = new float[size];
+		gapRefScore = new float[size];
+		gapConScore = new float[size];
+		
+		System.arraycopy(align, start, alignScore, 0, size);
+		System.arraycopy(gapRef, start, gapRefScore, 0, size);
+		System.arraycopy(gapCon, start, gapConScore, 0, size);
+		
+		return;
+	}
+	
+	/**
+	 * Restore scores to a column. Only rows from <code>start</code> to <code>end</code> are
+	 * set, and all other rows must already be <code>0</code>.
+	 * 
+	 * @param align Alignment scores.
+	 * @param gapRef Reference-gap scores.
+	 * @param gapCon Consensus-gap scores.
+	 */
+	public void restore(float[] align, float[] gapRef, float[] gapCon) {
+		
+		int size = end - start;  // Number of rows stored
+		
+		System.arraycopy(alignScore, 0, align, start, size);
+		System.arraycopy(gapRefScore, 0, gapRef, start, size);
+		System.arraycopy(gapConScore, 0, gapCon, start, size);
+		
+		return;
+	}
+}
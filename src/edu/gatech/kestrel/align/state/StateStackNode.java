@@ -17,8 +17,8 @@
 package edu.gatech.kestrel.align.state;
 
 import edu.gatech.kanalyze.util.Base;
-import edu.gatech.kanalyze.util.KmerHashSet;
 import edu.gatech.kestrel.align.MaxAlignmentScoreNode;
+import edu.gatech.kestrel.align.TraceColumn;
 
 /**
  * When an alignment splits, this node stores information needed to restore the
@@ -26,9 +26,11 @@ import edu.gatech.kestrel.align.MaxAlignmentScoreNode;
  * may be added to the alignment at once (for example, evidence was found for two
  * variants at the same position, or one variant and the wild-type are both present).
  * <p/>
- * This is stored as a stack because when multiple states are stored, back-tracking
- * most go back to the last node found. Doing this out of order will result in incorrect
- * data (for example, part the consensus sequence may have been overwritten).  
+ * This is stored as a stack, and back-tracking goes back to the last node found. In best-first
+ * mode, the aligner keeps the nodes ordered by <code>minDepth</code> and
+ * <code>maxPotentialScore</code> instead, and states are restored out of the order they were
+ * saved. The trace column and k-mer path mark of the node restore the consensus path of the
+ * state in either mode.
  */
 public final class StateStackNode {
 	
@@ -44,20 +46,17 @@ public final class StateStackNode {
 	/** Number of bases in the consensus at this point of the alignment. */
 	public final int consensusSize;
 	
-	/** K-mer hash for cycle detection. */
-	public final KmerHashSet kmerHash;
+	/** Mark of the k-mer path set for cycle detection. */
+	public final KmerPathSet.Mark kmerPathMark;
 	
 	/** Repeat count for cycle detection. */
 	public final int repeatCount;
 	
-	/** A list of nodes in the alignment column. */
-	public final TraceNodeContainer alignContainer;
+	/** Scores in the last column of each score matrix. */
+	public final ScoreColumn scoreColumn;
 	
-	/** A list of nodes in the reference-gap column. */
-	public final TraceNodeContainer gapRefContainer;
-	
-	/** A list of nodes in the consensus-gap column. */
-	public final TraceNodeContainer gapConContainer;
+	/** Last trace column of the consensus path at this state. */
+	public final TraceColumn traceColumn;
 	
 	/** The maximum score of this alignment. */
 	public final float maxAlignmentScore;
@@ -68,6 +67,16 @@ public final class StateStackNode {
 	/** Minimum depth for all k-mers in the alignment up to this state. */
 	public final int minDepth;
 	
+	/** Upper bound of the alignment score that can be reached by extending this state. */
+	public final float maxPotentialScore;
+	
+	/**
+	 * Position of this state in the order states are restored when they are restored last-first
+	 * by one aligner. This is the key of the branch the state was saved on followed by the number
+	 * of states saved on that branch before this one (see <code>KmerAligner.getBranchKey()</code>).
+	 */
+	public final int[] branchKey;
+	
 	/**
 	 * Links to the next node down the stack. This is the node that was saved before this one,
 	 * and it will be the next node to be restored after this one.
@@ -84,28 +93,33 @@ public final class StateStackNode {
 	 *   <code>edu.gatech.kanalyze.util.KmerUtil.copy()</code>).
 	 * @param nextBase Base that should be added when this state is restored.
 	 * @param consensusSize Number of bases in the consensus at this point of the alignment.
-	 * @param alignContainer A list of nodes in the alignment column.
-	 * @param gapRefContainer A list of nodes in the reference-gap column.
-	 * @param gapConContainer A list of nodes in the consensus-gap column.
+	 * @param scoreColumn Scores in the last column of each score matrix.
+	 * @param traceColumn Last trace column of the consensus path at this state.
 	 * @param maxAlignmentScore The maximum score of this alignment.
 	 * @param maxAlignmentScoreNode Links to the start of maximum-score alignments.
 	 * @param minDepth Minimum depth for all k-emrs in the alignment up to this state.
+	 * @param maxPotentialScore Upper bound of the alignment score that can be reached by extending
+	 *   this state.
 	 * @param nextNodeDown If more than one stack node is present, this links to the next one down
 	 *   the stack.
+	 * @param kmerPathMark Mark of the k-mer path set for cycle detection.
+	 * @param repeatCount Repeat count for cycle detection.
+	 * @param branchKey Position of this state in the order states are restored last-first.
 	 */
 	public StateStackNode(
 			int[] kmer,
 			Base nextBase,
 			int consensusSize,
-			TraceNodeContainer alignContainer,
-			TraceNodeContainer gapRefContainer,
-			TraceNodeContainer gapConContainer,
+			ScoreColumn scoreColumn,
+			TraceColumn traceColumn,
 			float maxAlignmentScore,
 			MaxAlignmentScoreNode maxAlignmentScoreNode,
 			int minDepth,
+			float maxPotentialScore,
 			StateStackNode nextNodeDown,
-			KmerHashSet kmerHash,
-			int repeatCount) {
+			KmerPathSet.Mark kmerPathMark,
+			int repeatCount,
+			int[] branchKey) {
 		
 		// Check arguments
 		assert (kmer != null) :
@@ -123,26 +137,36 @@ public final class StateStackNode {
 		assert (minDepth > 0) :
 			"StateStackNode(): minDepth is less than 1: " + minDepth;
 		
-		assert (kmerHash != null) :
-			"StateStackNode(): K-mer hash is null";
+		assert (scoreColumn != null) :
+			"StateStackNode(): Score column is null";
+		
+		assert (traceColumn != null) :
+			"StateStackNode(): Trace column is null";
+		
+		assert (kmerPathMark != null) :
+			"StateStackNode(): K-mer path mark is null";
 		
 		assert (repeatCount >= 0) :
 			"K-mer repeat count is negative: " + repeatCount;
 		
+		assert (branchKey != null) :
+			"StateStackNode(): Branch key is null";
+		
 		// Assign fields
 		this.kmer = kmer;
 		this.nextBase = nextBase;
 		this.consensusSize = consensusSize;
-		this.alignContainer = alignContainer;
-		this.gapRefContainer = gapRefContainer;
-		this.gapConContainer = gapConContainer;
+		this.scoreColumn = scoreColumn;
+		this.traceColumn = traceColumn;
 		this.maxAlignmentScore = maxAlignmentScore;
 		this.maxAlignmentScoreNode = maxAlignmentScoreNode;
 		this.minDepth = minDepth;
+		this.maxPotentialScore = maxPotentialScore;
 		this.nextNodeDown = nextNodeDown;
 		this.nextNodeUp = null;
-		this.kmerHash = kmerHash;
+		this.kmerPathMark = kmerPathMark;
 		this.repeatCount = repeatCount;
+		this.branchKey = branchKey;
 		
 		return;
 	}
@@ -155,6 +179,6 @@ public final class StateStackNode {
 	 * @return A restored state object.
 	 */
 	public RestoredState getRestoredState() {
-		return new RestoredState(kmer, consensusSize, minDepth, kmerHash, repeatCount);
+		return new RestoredState(kmer, consensusSize, minDepth, kmerPathMark, repeatCount);
 	}
 }
@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import edu.gatech.kanalyze.comp.rcompl.RevComplMode;
 import edu.gatech.kanalyze.comp.reader.SequenceSource;
 import edu.gatech.kanalyze.module.count.CountModule;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
@@ -31,6 +32,17 @@ import edu.gatech.kestrel.io.InputSample;
 
 /**
  * An interface for classes that manage k-mer counts for Kestrel.
+ * </p>
+ * <b>Concurrency:</b> After <code>set()</code> returns, the counts for the sample are read-only, and
+ * <code>get()</code> may be called by any number of threads at the same time. Implementations must
+ * serve these concurrent reads without a global lock, and they must make the counts visible to all
+ * threads when <code>set()</code> returns. <code>get()</code> must not be called while
+ * <code>set()</code> is running.
+ * </p>
+ * <b>Canonical counts:</b> If <code>setCanonical(true)</code> is called before <code>set()</code>,
+ * each k-mer is counted under the lesser of itself and its reverse complement, and the count
+ * stored for it is the sum of both strands. <code>getBothStrands()</code> then finds the count of
+ * a k-mer and its reverse complement with one lookup instead of two.
  */
 public abstract class CountMap {
 	
@@ -58,6 +70,12 @@ public abstract class CountMap {
 	/** Set to <code>true</code> if the map was aborted. */
 	private boolean isAborted;
 	
+	/**
+	 * If <code>true</code>, k-mers are counted in canonical form, and each count is the sum of
+	 * a k-mer and its reverse complement.
+	 */
+	private boolean canonical;
+	
 	/**
 	 * Create a new count map.
 	 * 
@@ -83,6 +101,7 @@ public abstract class CountMap {
 		mapLock = new ReentrantLock();
 		mapLockThread = null;
 		isAborted = false;
+		canonical = false;
 		
 		this.kUtil = kUtil;
 		this.countModule = countModule;
@@ -99,7 +118,8 @@ public abstract class CountMap {
 	
 	/**
 	 * Get a k-mer from this map. This method must be called after <code>set()</code>
-	 * or the results are undefined.
+	 * or the results are undefined. It is thread-safe, and it may be called by several
+	 * threads at the same time once <code>set()</code> completes.
 	 * 
 	 * @param kmer K-mer to get.
 	 * 
@@ -265,6 +285,82 @@ public abstract class CountMap {
 		return;
 	}
 	
+	/**
+	 * Get the count of a k-mer and its reverse complement. In canonical mode, this is one lookup
+	 * for the lesser of the two k-mers. A self-complementary k-mer is counted once for each
+	 * occurrence in canonical mode, so its count is doubled to match the sum of two lookups.
+	 * 
+	 * @param kmer K-mer to get.
+	 * @param revKmer Reverse complement of <code>kmer</code>.
+	 * 
+	 * @return The count of <code>kmer</code> plus the count of <code>revKmer</code>.
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> or <code>revKmer</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kmer</code> or <code>revKmer</code> length is less
+	 *   than <code>kUtil.wordSize</code>.
+	 * @throws IllegalStateException The implementation may throw this exception if
+	 *   <code>set()</code> was never called.
+	 * 
+	 * @see #get(int[])
+	 */
+	public int getBothStrands(int[] kmer, int[] revKmer)
+			throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		
+		int cmp;  // Comparison of kmer and revKmer
+		
+		if (! canonical)
+			return get(kmer) + get(revKmer);
+		
+		// Compare unsigned words from the first base
+		cmp = 0;
+		
+		for (int index = 0; index < kUtil.wordSize && cmp == 0; ++index)
+			cmp = Integer.compare(kmer[index] ^ Integer.MIN_VALUE, revKmer[index] ^ Integer.MIN_VALUE);
+		
+		if (cmp < 0)
+			return get(kmer);
+		
+		if (cmp > 0)
+			return get(revKmer);
+		
+		return get(kmer) * 2;
+	}
+	
+	/**
+	 * Set canonical count mode. In this mode, the count module counts each k-mer under the
+	 * lesser of itself and its reverse complement. Since the minimum k-mer count filter is
+	 * applied by the count module, it is applied to the sum of both strands. IKC files given as
+	 * input are read as they are and must have been counted in canonical mode. This method
+	 * must be called before <code>set()</code>.
+	 * 
+	 * @param canonical <code>true</code> to count k-mers in canonical form.
+	 * 
+	 * @throws IllegalStateException If <code>set()</code> is running.
+	 */
+	public void setCanonical(boolean canonical)
+			throws IllegalStateException {
+		
+		if (mapLock.isLocked())
+			throw new IllegalStateException("Cannot set canonical count mode while a sample is being set");
+		
+		this.canonical = canonical;
+		
+		countModule.setReverseComplement(canonical ? RevComplMode.CANONICAL : null);
+		
+		return;
+	}
+	
+	/**
+	 * Determine if k-mers are counted in canonical form.
+	 * 
+	 * @return <code>true</code> if k-mers are counted in canonical form.
+	 * 
+	 * @see #setCanonical(boolean)
+	 */
+	public boolean isCanonical() {
+		return canonical;
+	}
+	
 	/**
 	 * Abort the count pipeline if it is running.
 	 */
@@ -0,0 +1,476 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.counter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.KAnalyzeConstants;
+import edu.gatech.kanalyze.comp.reader.FileSequenceSource;
+import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kestrel.io.InputSample;
+
+/**
+ * A directory of indexed k-mer count (IKC) files that persists across runs. Each file is named
+ * by a digest of the sample's input files (path, size, and modification time) and the settings
+ * that change k-mer counts, so a sample that is run again with the same input and count settings
+ * is not counted again.
+ * </p>
+ * Files are added by writing to a partial file in the cache directory and moving it to its entry
+ * name when counting succeeds, so a failed or concurrent run never leaves a truncated entry. The
+ * modification time of an entry is updated each time it is used, and entries are evicted by the
+ * time since they were last used and by the total size of the cache (least recently used first).
+ * Partial files count toward the size of the cache, and partial files left by a run that did not
+ * finish are removed when they have not been written for the maximum age or, if entries are not
+ * evicted by age, for <code>PART_MAX_AGE</code>.
+ * </p>
+ * One cache may be shared by several count maps. An entry returned by <code>get()</code> or
+ * <code>put()</code> is pinned until it is released with <code>release()</code>, and pinned
+ * entries are never evicted, so a count map cannot remove a file another count map is reading.
+ */
+public class IkcCountCache {
+	
+	/** Logger object. */
+	private final Logger logger;
+	
+	/** Cache directory. */
+	public final File cacheDir;
+	
+	/** Maximum total size of entries in bytes, or <code>0</code> for no limit. */
+	public final long maxSize;
+	
+	/** Maximum time in milliseconds since an entry was last used, or <code>0</code> for no limit. */
+	public final long maxAge;
+	
+	/** Number of times each pinned entry was pinned and not yet released. */
+	private final Map<File, Integer> pinMap;
+	
+	/** Suffix of cache entries. */
+	public static final String ENTRY_SUFFIX = ".ikc";
+	
+	/** Suffix of partial files that are being written to the cache. */
+	public static final String PART_SUFFIX = ".part";
+	
+	/** Pattern matching the name of a cache entry. */
+	private static final String ENTRY_PATTERN = "[0-9a-f]+\\" + ENTRY_SUFFIX;
+	
+	/** Pattern matching the name of a partial file. */
+	private static final String PART_PATTERN = "\\.[0-9a-f]+_[0-9]+\\" + PART_SUFFIX;
+	
+	/**
+	 * Time in milliseconds since a partial file was last written before it is removed when entries
+	 * are not evicted by age. A run that is still counting writes to its partial file well within
+	 * this time.
+	 */
+	public static final long PART_MAX_AGE = 2L * 86400000L;
+	
+	/** Digest algorithm for entry keys. */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	
+	/**
+	 * Create a count cache. The directory is created if it does not exist.
+	 * 
+	 * @param cacheDir Cache directory.
+	 * @param maxSize Maximum total size of entries in bytes, or <code>0</code> for no limit.
+	 * @param maxAge Maximum time in milliseconds since an entry was last used, or <code>0</code>
+	 *   for no limit.
+	 * 
+	 * @throws NullPointerException If <code>cacheDir</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>maxSize</code> or <code>maxAge</code> is negative.
+	 * @throws IOException If the cache directory does not exist and cannot be created, or if it
+	 *   is not a directory.
+	 */
+	public IkcCountCache(File cacheDir, long maxSize, long maxAge)
+			throws NullPointerException, IllegalArgumentException, IOException {
+		
+		// Check arguments
+		if (cacheDir == null)
+			throw new NullPointerException("Cache directory is null");
+		
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Maximum cache size is negative: " + maxSize);
+		
+		if (maxAge < 0)
+			throw new IllegalArgumentException("Maximum cache age is negative: " + maxAge);
+		
+		if (! cacheDir.isDirectory() && ! cacheDir.mkdirs() && ! cacheDir.isDirectory())
+			throw new IOException("Cannot create count cache directory: " + cacheDir);
+		
+		// Set fields
+		logger = LoggerFactory.getLogger(IkcCountCache.class);
+		
+		this.cacheDir = cacheDir;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+		
+		pinMap = new HashMap<>();
+		
+		return;
+	}
+	
+	/**
+	 * Get the key for a sample. The key is a digest of the count settings and the path, size, and
+	 * modification time of each input file in the sample.
+	 * 
+	 * @param sample Sample.
+	 * @param countSettings A string describing all settings that change k-mer counts.
+	 * 
+	 * @return Key for the sample, or <code>null</code> if the sample has a source that is not a
+	 *   regular file and cannot be cached.
+	 * 
+	 * @throws NullPointerException If <code>sample</code> or <code>countSettings</code> is
+	 *   <code>null</code>.
+	 * @throws IOException If the canonical path of an input file cannot be found.
+	 */
+	public String getKey(InputSample sample, String countSettings)
+			throws NullPointerException, IOException {
+		
+		StringBuilder keyBuilder;  // Description of the sample and settings
+		MessageDigest digest;      // Digest of the description
+		File sourceFile;           // File of a sequence source
+		
+		// Check arguments
+		if (sample == null)
+			throw new NullPointerException("Cannot get cache key for sample: null");
+		
+		if (countSettings == null)
+			throw new NullPointerException("Cannot get cache key for sample " + sample.name + ": Count settings is null");
+		
+		// Describe sample and settings
+		keyBuilder = new StringBuilder();
+		
+		keyBuilder.append("kanalyze=").append(KAnalyzeConstants.VERSION).append('\n');
+		keyBuilder.append(countSettings).append('\n');
+		
+		for (SequenceSource source : sample.sources) {
+			
+			if (! (source instanceof FileSequenceSource))
+				return null;
+			
+			sourceFile = ((FileSequenceSource) source).file;
+			
+			if (! sourceFile.isFile())
+				return null;
+			
+			keyBuilder.append(sourceFile.getCanonicalPath()).append('\t')  // throws IOException
+				.append(sourceFile.length()).append('\t')
+				.append(sourceFile.lastModified()).append('\t')
+				.append(source.sourceType).append('\t')
+				.append(source.formatType).append('\t')
+				.append(source.charset).append('\t')
+				.append(source.filterSpec).append('\n');
+		}
+		
+		// Digest
+		try {
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("Digest algorithm is not available: " + DIGEST_ALGORITHM, ex);
+		}
+		
+		return toHex(digest.digest(keyBuilder.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	/**
+	 * Get a cache entry, mark it as used, and pin it. The entry is not evicted until it is
+	 * released with <code>release()</code>.
+	 * 
+	 * @param key Key of the entry.
+	 * 
+	 * @return The IKC file for <code>key</code>, or <code>null</code> if it is not in the cache.
+	 * 
+	 * @throws NullPointerException If <code>key</code> is <code>null</code>.
+	 */
+	public synchronized File get(String key)
+			throws NullPointerException {
+		
+		File entryFile = getEntryFile(key);
+		
+		if (! entryFile.isFile())
+			return null;
+		
+		if (! entryFile.setLastModified(System.currentTimeMillis()))
+			logger.warn("Cannot update the last use time of count cache entry: {}", entryFile);
+		
+		pin(entryFile);
+		
+		return entryFile;
+	}
+	
+	/**
+	 * Create a partial file in the cache directory that k-mer counts can be written to. When
+	 * counting succeeds, the file is added with <code>put()</code>.
+	 * 
+	 * @param key Key of the entry that will be written.
+	 * 
+	 * @return A new empty partial file.
+	 * 
+	 * @throws NullPointerException If <code>key</code> is <code>null</code>.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public File createPartFile(String key)
+			throws NullPointerException, IOException {
+		
+		if (key == null)
+			throw new NullPointerException("Cannot create partial cache file: Key is null");
+		
+		return File.createTempFile("." + key + "_", PART_SUFFIX, cacheDir);  // throws IOException
+	}
+	
+	/**
+	 * Move a partial file to the cache and pin the new entry. If another process added the same
+	 * entry first, it is replaced. The entry is not evicted until it is released with
+	 * <code>release()</code>.
+	 * 
+	 * @param key Key of the entry.
+	 * @param partFile Partial file created by <code>createPartFile()</code>.
+	 * 
+	 * @return The entry file.
+	 * 
+	 * @throws NullPointerException If <code>key</code> or <code>partFile</code> is <code>null</code>.
+	 * @throws IOException If the file cannot be moved.
+	 */
+	public synchronized File put(String key, File partFile)
+			throws NullPointerException, IOException {
+		
+		File entryFile;  // Entry file
+		
+		if (partFile == null)
+			throw new NullPointerException("Cannot add partial file to count cache: null");
+		
+		entryFile = getEntryFile(key);  // throws NullPointerException
+		
+		try {
+			Files.move(partFile.toPath(), entryFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(partFile.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		pin(entryFile);
+		
+		return entryFile;
+	}
+	
+	/**
+	 * Release an entry returned by <code>get()</code> or <code>put()</code>. When every pin on
+	 * an entry is released, it may be evicted.
+	 * 
+	 * @param entryFile Entry file.
+	 * 
+	 * @throws NullPointerException If <code>entryFile</code> is <code>null</code>.
+	 * @throws IllegalStateException If <code>entryFile</code> is not pinned.
+	 */
+	public synchronized void release(File entryFile)
+			throws NullPointerException, IllegalStateException {
+		
+		Integer pinCount;  // Number of pins on entryFile
+		
+		// Check arguments
+		if (entryFile == null)
+			throw new NullPointerException("Cannot release count cache entry: null");
+		
+		pinCount = pinMap.get(entryFile);
+		
+		if (pinCount == null)
+			throw new IllegalStateException("Cannot release count cache entry: Entry is not pinned: " + entryFile);
+		
+		if (pinCount > 1)
+			pinMap.put(entryFile, pinCount - 1);
+		else
+			pinMap.remove(entryFile);
+		
+		return;
+	}
+	
+	/**
+	 * Remove entries that have not been used within the maximum age, and then remove the least
+	 * recently used entries until the cache is no larger than the maximum size. Pinned entries are
+	 * never removed, but their size counts toward the maximum size. Stale partial files are
+	 * removed, and the size of other partial files counts toward the maximum size.
+	 */
+	public synchronized void evict() {
+		
+		File[] files;              // Files in the cache directory
+		CacheEntry[] entries;      // Entries in the cache
+		int entryCount;            // Number of elements in entries
+		long cacheSize;            // Total size of entries and partial files that are kept
+		long minTime;              // Entries last used before this time are removed
+		long minPartTime;          // Partial files last written before this time are removed
+		
+		files = cacheDir.listFiles();
+		
+		if (files == null) {
+			logger.warn("Cannot list count cache directory: {}", cacheDir);
+			return;
+		}
+		
+		// Get entries and remove stale partial files (file times are read once so they cannot change while sorting)
+		entries = new CacheEntry[files.length];
+		entryCount = 0;
+		
+		minPartTime = System.currentTimeMillis() - ((maxAge > 0) ? maxAge : PART_MAX_AGE);
+		cacheSize = 0;
+		
+		for (File file : files) {
+			
+			if (! file.isFile())
+				continue;
+			
+			if (file.getName().matches(ENTRY_PATTERN)) {
+				entries[entryCount++] = new CacheEntry(file);
+				
+			} else if (file.getName().matches(PART_PATTERN)) {
+				CacheEntry part = new CacheEntry(file);
+				
+				if (part.lastUsed < minPartTime) {
+					logger.info("Removing stale partial count cache file: {}", part.file);
+					
+					if (! part.file.delete())
+						logger.warn("Cannot remove stale partial count cache file: {}", part.file);
+					
+				} else {
+					cacheSize += part.size;
+				}
+			}
+		}
+		
+		// Sort most recently used first
+		Arrays.sort(entries, 0, entryCount, new Comparator<CacheEntry>() {
+			@Override
+			public int compare(CacheEntry entry1, CacheEntry entry2) {
+				return Long.compare(entry2.lastUsed, entry1.lastUsed);
+			}
+		});
+		
+		// Remove entries
+		minTime = (maxAge > 0) ? System.currentTimeMillis() - maxAge : Long.MIN_VALUE;
+		
+		for (int index = 0; index < entryCount; ++index) {
+			CacheEntry entry = entries[index];
+			
+			if (! pinMap.containsKey(entry.file) && (
+					entry.lastUsed < minTime ||
+					maxSize > 0 && cacheSize + entry.size > maxSize)) {
+				
+				logger.info("Removing count cache entry: {}", entry.file);
+				
+				if (! entry.file.delete())
+					logger.warn("Cannot remove count cache entry: {}", entry.file);
+				
+				continue;
+			}
+			
+			cacheSize += entry.size;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Pin an entry so it is not evicted. The caller must hold the lock on this cache.
+	 * 
+	 * @param entryFile Entry file.
+	 */
+	private void pin(File entryFile) {
+		
+		Integer pinCount = pinMap.get(entryFile);  // Number of pins on entryFile
+		
+		pinMap.put(entryFile, (pinCount != null) ? pinCount + 1 : 1);
+		
+		return;
+	}
+	
+	/**
+	 * Get the file of an entry.
+	 * 
+	 * @param key Key of the entry.
+	 * 
+	 * @return Entry file.
+	 * 
+	 * @throws NullPointerException If <code>key</code> is <code>null</code>.
+	 */
+	private File getEntryFile(String key)
+			throws NullPointerException {
+		
+		if (key == null)
+			throw new NullPointerException("Count cache key is null");
+		
+		return new File(cacheDir, key + ENTRY_SUFFIX);
+	}
+	
+	/**
+	 * Get a lower-case hexadecimal string of bytes.
+	 * 
+	 * @param bytes Bytes.
+	 * 
+	 * @return Hexadecimal string.
+	 */
+	private static String toHex(byte[] bytes) {
+		
+		StringBuilder hexBuilder = new StringBuilder(bytes.length * 2);
+		
+		for (byte b : bytes)
+			hexBuilder.append(String.format("%02x", b & 0xFF));
+		
+		return hexBuilder.toString();
+	}
+	
+	/**
+	 * A file in the cache with its size and last use time.
+	 */
+	private static class CacheEntry {
+		
+		/** Entry file. */
+		public final File file;
+		
+		/** Size of the file in bytes. */
+		public final long size;
+		
+		/** Time the entry was last used. */
+		public final long lastUsed;
+		
+		/**
+		 * Create a cache entry.
+		 * 
+		 * @param file Entry file.
+		 */
+		public CacheEntry(File file) {
+			
+			this.file = file;
+			
+			size = file.length();
+			lastUsed = file.lastModified();
+			
+			return;
+		}
+	}
+}
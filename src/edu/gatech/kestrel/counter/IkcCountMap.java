@@ -19,6 +19,10 @@ package edu.gatech.kestrel.counter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import edu.gatech.kanalyze.comp.reader.FileSequenceSource;
 import edu.gatech.kanalyze.io.ikc.IkcReader;
@@ -27,11 +31,50 @@ import edu.gatech.kanalyze.util.kmer.KmerUtil;
 
 /**
  * A k-mer counter that reads from indexed k-mer counts stored in a file.
+ * </p>
+ * An <code>IkcReader</code> keeps its position in the file and cannot be shared by threads. This
+ * map opens one reader for each thread that calls <code>get()</code>, so any number of threads
+ * may read counts at the same time without locking once <code>set()</code> completes. All readers
+ * are closed when the next sample is set.
+ * </p>
+ * If the map is created with <code>mapIkc</code> set, the IKC file is instead mapped into memory
+ * once (see {@link MappedIkcFile}) and the mapping is shared by all threads. This avoids
+ * one reader and index per thread.
+ * </p>
+ * If a count cache is set (see {@link IkcCountCache}), the IKC file for each sample is kept in the
+ * cache, and a sample with the same input files and count settings is read from the cache instead
+ * of being counted again.
  */
 public class IkcCountMap extends CountMap {
 	
-	/** K-mer count reader. */
-	private IkcReader reader;
+	/** Logger object. */
+	private final Logger logger;
+	
+	/** The reader handle of each thread reading from this map. */
+	private final ThreadLocal<ReaderHandle> localReader;
+	
+	/** All readers opened for the current IKC file. */
+	private final ConcurrentLinkedQueue<IkcReader> openReaderQueue;
+	
+	/** IKC file readers are opened on. */
+	private File readerFile;
+	
+	/**
+	 * Identifies the IKC file readers are opened on. A reader handle with a different generation
+	 * was opened on a file for another sample. This field is <code>0</code> if there is no
+	 * IKC file to read. It is written after <code>readerFile</code>, and since it is volatile, a
+	 * thread that reads the generation also sees the file.
+	 */
+	private volatile int readerGeneration;
+	
+	/** The last generation assigned to <code>readerGeneration</code>. */
+	private int lastReaderGeneration;
+	
+	/** Memory-map the IKC file and share it among threads if <code>true</code>. */
+	private final boolean mapIkc;
+	
+	/** Mapped IKC file shared by all threads, or <code>null</code> if no file is mapped. */
+	private volatile MappedIkcFile mappedFile;
 	
 	/** Temporary file directory. */
 	private File tempDir;
@@ -45,6 +88,24 @@ public class IkcCountMap extends CountMap {
 	/** Remove the temporary file after each sample if <code>true</code>. */
 	private final boolean rmTemp;
 	
+	/** Cache of IKC files that persists across runs, or <code>null</code> if files are not cached. */
+	private IkcCountCache countCache;
+	
+	/** Settings that change k-mer counts and are not part of <code>kUtil</code> or <code>countModule</code>. */
+	private String countSettings;
+	
+	/**
+	 * Key of the cache entry <code>tempFile</code> is added to when counting succeeds, or
+	 * <code>null</code> if the file is not added to the cache.
+	 */
+	private String cacheKey;
+	
+	/**
+	 * Cache entry pinned while this map reads it, or <code>null</code> if no entry is pinned. The
+	 * entry is released when the next sample is set.
+	 */
+	private File pinnedFile;
+	
 	/** Suffix for indexed count temporary files. */
 	public static final String IKC_TEMP_FILE_SUFFIX = ".ikc";
 	
@@ -60,13 +121,15 @@ public class IkcCountMap extends CountMap {
 	 *   working directory. The k-mer count file will be created in this location.
 	 * @param rmTemp If the indexed k-mer count file (ikc) should be removed after each
 	 *   sample is processed.
+	 * @param mapIkc Memory-map the IKC file for each sample and share it among threads
+	 *   instead of opening one reader per thread.
 	 * 
 	 * @throws NullPointerException If <code>kUtil</code> or <code>countModule</code>
 	 *   is <code>null</code>.
 	 * @throws IllegalArgumentException If <code>kUtil</code> is not configured with a minimizer size.
 	 * @throws IOException If an IO error occurs creating the temporary file.
 	 */
-	public IkcCountMap(KmerUtil kUtil, CountModule countModule, File tempDir, boolean rmTemp)
+	public IkcCountMap(KmerUtil kUtil, CountModule countModule, File tempDir, boolean rmTemp, boolean mapIkc)
 			throws NullPointerException, IllegalArgumentException, IOException {
 		
 		super(kUtil, countModule);  // throws NullPointerException
@@ -78,12 +141,28 @@ public class IkcCountMap extends CountMap {
 			tempDir = new File(".");
 		
 		// Set fields
+		logger = LoggerFactory.getLogger(IkcCountMap.class);
+		
 		this.rmTemp = rmTemp;
 		this.tempDir = tempDir;
+		this.mapIkc = mapIkc;
 		
-		reader = null;
 		tempFile = null;
 		
+		localReader = new ThreadLocal<ReaderHandle>();
+		openReaderQueue = new ConcurrentLinkedQueue<IkcReader>();
+		
+		readerFile = null;
+		readerGeneration = 0;
+		lastReaderGeneration = 0;
+		
+		mappedFile = null;
+		
+		countCache = null;
+		countSettings = null;
+		cacheKey = null;
+		pinnedFile = null;
+		
 		// Configure module
 		countModule.setOutputFormat("ikc");
 		
@@ -105,12 +184,31 @@ public class IkcCountMap extends CountMap {
 	public boolean preModuleRun()
 			throws IOException {
 		
+		// Close readers from the last sample
+		readerGeneration = 0;
+		readerFile = null;
+		
+		closeReaders();
+		
+		if (mappedFile != null) {
+			mappedFile.close();
+			mappedFile = null;
+		}
+		
 		// Remove temporary file
 		if (tempFile != null && rmLastTemp) {
 			tempFile.delete();
 			tempFile = null;
 		}
 		
+		// Release the cache entry from the last sample
+		if (pinnedFile != null) {
+			countCache.release(pinnedFile);
+			pinnedFile = null;
+		}
+		
+		cacheKey = null;
+		
 		// Check for a sample with one file
 		if (sample.sources.length == 1 &&
 			sample.sources[0] instanceof FileSequenceSource) {
@@ -129,6 +227,38 @@ public class IkcCountMap extends CountMap {
 			}
 		}
 		
+		// Read from the count cache or count into it
+		if (countCache != null) {
+			String key = countCache.getKey(sample, getCountSettings());  // throws IOException
+			
+			if (key != null) {
+				File entryFile = countCache.get(key);
+				
+				if (entryFile != null) {
+					logger.info("Reading k-mer counts for sample {} from count cache: {}", sample.name, entryFile);
+					
+					tempFile = entryFile;
+					rmLastTemp = false;
+					
+					pinnedFile = entryFile;
+					
+					return false;
+				}
+				
+				tempFile = countCache.createPartFile(key);  // throws IOException
+				tempFile.deleteOnExit();
+				rmLastTemp = false;
+				
+				cacheKey = key;
+				
+				countModule.setOutput(tempFile);
+				
+				return true;
+			}
+			
+			logger.info("Not caching k-mer counts for sample {}: Sample contains a source that is not a file", sample.name);
+		}
+		
 		// Create temporary file
 		tempFile = File.createTempFile("IKC_" + sample.name + "_", IKC_TEMP_FILE_SUFFIX, tempDir);  // throws IOException
 		
@@ -159,26 +289,185 @@ public class IkcCountMap extends CountMap {
 	protected void postModuleRun(boolean onError, boolean aborted)
 			throws FileNotFoundException, SecurityException, IOException {
 		
+		IkcReader reader;  // Reader for this thread
+		
 		// Stop if error or aborted
-		if (onError || aborted)
+		if (onError || aborted) {
+			
+			// Remove partial cache file
+			if (cacheKey != null) {
+				tempFile.delete();
+				tempFile = null;
+				cacheKey = null;
+			}
+			
+			return;
+		}
+		
+		// Add counts to the cache
+		if (cacheKey != null) {
+			tempFile = countCache.put(cacheKey, tempFile);  // throws IOException
+			cacheKey = null;
+			
+			pinnedFile = tempFile;
+			
+			logger.info("Added k-mer counts for sample {} to count cache: {}", sample.name, tempFile);
+			
+			countCache.evict();
+		}
+		
+		// Map the file
+		if (mapIkc) {
+			mappedFile = new MappedIkcFile(kUtil, tempFile);  // throws FileNotFoundException, IOException
+			
+			logger.trace("Mapped IKC file {} ({} minimizer groups, {} segments)", tempFile, mappedFile.getGroupCount(), mappedFile.getSegmentCount());
+			
 			return;
+		}
 		
+		// Open a reader to check the file and save it for this thread
 		reader = new IkcReader(kUtil, tempFile);
+		openReaderQueue.add(reader);
+		
+		readerFile = tempFile;
+		readerGeneration = ++lastReaderGeneration;
+		
+		localReader.set(new ReaderHandle(reader, readerGeneration));
+		
+		return;
+	}
+	
+	/**
+	 * Set a cache of IKC files that persists across runs. When a sample is set, its counts are read
+	 * from the cache if the same input files were counted with the same settings. Otherwise, the
+	 * sample is counted into the cache. Samples that are read from an IKC file or from a source
+	 * that is not a file are not cached. The cache may be shared with other count maps, and the
+	 * entry for the current sample is pinned so they cannot evict it.
+	 * 
+	 * @param countCache Count cache or <code>null</code> to disable caching.
+	 * @param countSettings A string describing settings that change k-mer counts and are not
+	 *   part of the k-mer utility or count module of this map, such as count filters. Counts
+	 *   are only read from the cache if this string matches. If <code>null</code>, an empty
+	 *   string is used.
+	 */
+	public void setCountCache(IkcCountCache countCache, String countSettings) {
+		
+		this.countCache = countCache;
+		this.countSettings = (countSettings != null) ? countSettings : "";
 		
 		return;
 	}
 	
 	/**
-	 * Get a k-mer from this map.
+	 * Get a string describing all settings that change k-mer counts in the IKC file.
+	 * 
+	 * @return Count settings.
+	 */
+	private String getCountSettings() {
+		return String.format("k=%d;kmin=%d;kminmask=%08x;rc=%s;%s", kUtil.kSize, kUtil.kMinSize, kUtil.kMinMask, countModule.getReverseComplement(), countSettings);
+	}
+	
+	/**
+	 * Get a k-mer from this map. If the IKC file is mapped, the count is read from the shared
+	 * mapping. Otherwise, each thread reads from its own <code>IkcReader</code>, which is
+	 * opened the first time the thread gets a k-mer for this sample.
 	 * 
 	 * @see edu.gatech.kestrel.counter.CountMap#get(int[])
 	 */
 	@Override
-	public int get(int[] kmer) throws NullPointerException, IllegalArgumentException {
+	public int get(int[] kmer) throws NullPointerException, IllegalArgumentException, IllegalStateException {
 		
-		if (reader == null)
+		MappedIkcFile mappedFile = this.mappedFile;
+		
+		if (mappedFile != null)
+			return mappedFile.get(kmer);
+		
+		if (mapIkc)
 			throw new IllegalStateException("Attempted to get a k-mer count before a sample was set for this map");
 		
-		return reader.get(kmer);
+		ReaderHandle handle = localReader.get();
+		int generation = readerGeneration;
+		
+		if (handle == null || handle.generation != generation) {
+			
+			if (generation == 0)
+				throw new IllegalStateException("Attempted to get a k-mer count before a sample was set for this map");
+			
+			handle = openReader(generation);
+		}
+		
+		return handle.reader.get(kmer);
+	}
+	
+	/**
+	 * Open a reader for the current thread.
+	 * 
+	 * @param generation Generation of the IKC file to open.
+	 * 
+	 * @return A handle to the new reader.
+	 * 
+	 * @throws IllegalStateException If the IKC file cannot be opened.
+	 */
+	private ReaderHandle openReader(int generation)
+			throws IllegalStateException {
+		
+		ReaderHandle handle;  // New reader handle
+		
+		try {
+			handle = new ReaderHandle(new IkcReader(kUtil, readerFile), generation);
+			
+		} catch (IOException ex) {
+			throw new IllegalStateException(String.format("Error opening IKC file %s for thread %s: %s", readerFile, Thread.currentThread().getName(), ex.getMessage()), ex);
+		}
+		
+		openReaderQueue.add(handle.reader);
+		localReader.set(handle);
+		
+		return handle;
+	}
+	
+	/**
+	 * Close all readers opened on the last IKC file.
+	 */
+	private void closeReaders() {
+		
+		IkcReader reader;
+		
+		while ((reader = openReaderQueue.poll()) != null) {
+			try {
+				reader.close();
+				
+			} catch (IOException ex) {
+				logger.warn("Error closing IKC reader: {} ({})", ex.getMessage(), ex.getClass().getSimpleName());
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * A reader owned by one thread and the generation of the IKC file it was opened on.
+	 */
+	private static class ReaderHandle {
+		
+		/** Reader. */
+		public final IkcReader reader;
+		
+		/** Generation of the IKC file <code>reader</code> was opened on. */
+		public final int generation;
+		
+		/**
+		 * Create a reader handle.
+		 * 
+		 * @param reader Reader.
+		 * @param generation Generation of the IKC file <code>reader</code> was opened on.
+		 */
+		public ReaderHandle(IkcReader reader, int generation) {
+			
+			this.reader = reader;
+			this.generation = generation;
+			
+			return;
+		}
 	}
 }
@@ -0,0 +1,396 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.counter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import edu.gatech.kanalyze.io.ikc.IkcHeader;
+import edu.gatech.kanalyze.io.ikc.IkcHeaderV1;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+
+/**
+ * A read-only view of an indexed k-mer count (IKC) file mapped into memory.
+ * </p>
+ * The data section of the file is mapped in segments of <code>SEGMENT_SIZE</code> bytes, so files
+ * larger than 2 GB can be mapped. Each segment extends one record past its boundary, and
+ * so every record can be read from the segment it starts in. The minimizer index is loaded into
+ * sorted arrays when the file is opened. A count is found by locating the minimizer group with
+ * a binary search over the index and then searching the sorted records in the group.
+ * </p>
+ * All reads from the mapped segments are absolute, and no state is changed after the file is
+ * opened. One object may be shared by any number of threads without locking.
+ */
+public final class MappedIkcFile implements Closeable {
+	
+	/** K-mer utility. */
+	public final KmerUtil kUtil;
+	
+	/** IKC file. */
+	public final File file;
+	
+	/** Mapped data segments or <code>null</code> if this file was closed. */
+	private volatile MappedByteBuffer[] segment;
+	
+	/** Minimizer of each group sorted in ascending order. */
+	private final int[] groupMinimizer;
+	
+	/** Absolute file offset of the first record in each group. */
+	private final long[] groupOffset;
+	
+	/** Number of records in each group. */
+	private final int[] groupRecordCount;
+	
+	/** Number of bytes in each record. */
+	private final int recordSize;
+	
+	/** Number of bytes in the k-mer of each record. */
+	private final int kmerByteSize;
+	
+	/** Number of bytes the most-significant k-mer word is stored in. */
+	private final int mswByteSize;
+	
+	/** Number of words in a k-mer. */
+	private final int wordSize;
+	
+	/** Offset of the data section in the file. */
+	private final long dataOffset;
+	
+	/** Number of bits to shift a data section position to get its segment index. */
+	private static final int SEGMENT_SHIFT = 30;
+	
+	/** Maximum number of bytes in a segment, not including the record extending past its boundary. */
+	public static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	
+	/** Mask for getting the position of a byte within its segment. */
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+	
+	/** Size of one record in the index section. */
+	private static final int INDEX_RECORD_SIZE = 12;
+	
+	/**
+	 * Open and map an IKC file.
+	 * 
+	 * @param kUtil K-mer utility. The k-mer size, minimizer size, and minimizer mask must
+	 *   match the IKC file.
+	 * @param file IKC file.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> or <code>file</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kUtil</code> does not match the IKC file.
+	 * @throws FileNotFoundException If <code>file</code> does not exist.
+	 * @throws IOException If an IO error occurs reading or mapping <code>file</code>, or if
+	 *   it is not a properly formatted IKC file.
+	 */
+	public MappedIkcFile(KmerUtil kUtil, File file)
+			throws NullPointerException, IllegalArgumentException, FileNotFoundException, IOException {
+		
+		// Declarations
+		IkcHeader rawHeader;  // Header read from the file
+		IkcHeaderV1 header;   // Header with section offsets
+		
+		long indexOffset;     // Offset of the index section
+		long dataSize;        // Number of bytes in the data section
+		int nGroup;           // Number of minimizer groups
+		
+		ByteBuffer indexBuffer;  // Index section
+		
+		long[] sortKey;       // Minimizer and file-order index of each group for sorting
+		int[] fileMinimizer;  // Minimizer of each group in file order
+		long[] fileOffset;    // Offset of each group in file order
+		long groupSize;       // Size of a group in bytes
+		boolean isSorted;     // Set to false if index records are not ordered by minimizer
+		
+		// Check arguments
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		if (file == null)
+			throw new NullPointerException("IKC file is null");
+		
+		if (kUtil.kMinSize == 0)
+			throw new IllegalArgumentException("K-mer utility was not configured with a minimizer size");
+		
+		// Init
+		this.kUtil = kUtil;
+		this.file = file;
+		
+		recordSize = kUtil.wordSizeBytes + 4;
+		kmerByteSize = kUtil.wordSizeBytes;
+		mswByteSize = kUtil.mswByteSize;
+		wordSize = kUtil.wordSize;
+		
+		// Read header, index, and map data
+		try (RandomAccessFile inFile = new RandomAccessFile(file, "r")) {  // throws FileNotFoundException
+			FileChannel channel = inFile.getChannel();
+			
+			try {
+				rawHeader = IkcHeader.getHeader(channel);  // throws IOException
+				
+			} catch (IllegalArgumentException ex) {
+				throw new IOException("Error reading IKC file header: " + ex.getMessage(), ex);
+			}
+			
+			if (! (rawHeader instanceof IkcHeaderV1))
+				throw new IOException(String.format("Memory-mapped IKC files must be version 1: Found version %d: %s", rawHeader.fileVersion, file));
+			
+			header = (IkcHeaderV1) rawHeader;
+			
+			if (header.kSize != kUtil.kSize || header.kMinSize != kUtil.kMinSize || header.mask != kUtil.kMinMask)
+				throw new IllegalArgumentException(String.format(
+						"K-mer utility (k=%d, minimizer=%d, mask=%08x) does not match IKC file (k=%d, minimizer=%d, mask=%08x): %s",
+						kUtil.kSize, kUtil.kMinSize, kUtil.kMinMask,
+						header.kSize, header.kMinSize, header.mask,
+						file
+				));
+			
+			dataOffset = header.headerSize;
+			indexOffset = header.indexSectionOffset;
+			
+			if (indexOffset < dataOffset || header.metadataSectionOffset < indexOffset || header.metadataSectionOffset > channel.size())
+				throw new IOException(String.format("IKC file has section offsets out of range (data=%d, index=%d, metadata=%d, size=%d): %s", dataOffset, indexOffset, header.metadataSectionOffset, channel.size(), file));
+			
+			if ((header.metadataSectionOffset - indexOffset) % INDEX_RECORD_SIZE != 0)
+				throw new IOException(String.format("IKC file index section size (%d) is not a multiple of the index record size (%d): %s", header.metadataSectionOffset - indexOffset, INDEX_RECORD_SIZE, file));
+			
+			if ((header.metadataSectionOffset - indexOffset) / INDEX_RECORD_SIZE > Integer.MAX_VALUE)
+				throw new IOException("IKC file index section contains too many records: " + file);
+			
+			// Read index
+			nGroup = (int) ((header.metadataSectionOffset - indexOffset) / INDEX_RECORD_SIZE);
+			
+			fileMinimizer = new int[nGroup];
+			fileOffset = new long[nGroup];
+			
+			if (nGroup > 0) {
+				indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) nGroup * INDEX_RECORD_SIZE);  // throws IOException
+				
+				for (int index = 0; index < nGroup; ++index) {
+					fileMinimizer[index] = indexBuffer.getInt();
+					fileOffset[index] = indexBuffer.getLong();
+				}
+			}
+			
+			// Map data segments
+			dataSize = indexOffset - dataOffset;
+			
+			segment = new MappedByteBuffer[(int) ((dataSize + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+			
+			for (int index = 0; index < segment.length; ++index) {
+				long segmentStart = (long) index << SEGMENT_SHIFT;
+				
+				segment[index] = channel.map(
+						FileChannel.MapMode.READ_ONLY,
+						dataOffset + segmentStart,
+						Math.min(dataSize - segmentStart, SEGMENT_SIZE + recordSize)
+				);  // throws IOException
+			}
+		}
+		
+		// Get group sizes in file order
+		groupMinimizer = new int[nGroup];
+		groupOffset = new long[nGroup];
+		groupRecordCount = new int[nGroup];
+		
+		sortKey = new long[nGroup];
+		isSorted = true;
+		
+		for (int index = 0; index < nGroup; ++index) {
+			
+			groupSize = ((index + 1 < nGroup) ? fileOffset[index + 1] : indexOffset) - fileOffset[index];
+			
+			if (fileOffset[index] < dataOffset || groupSize <= 0 || groupSize % recordSize != 0 || groupSize / recordSize > Integer.MAX_VALUE)
+				throw new IOException(String.format("IKC file index record %d (minimizer=%08x) has an invalid group offset (%d) or size (%d): %s", index, fileMinimizer[index], fileOffset[index], groupSize, file));
+			
+			groupMinimizer[index] = fileMinimizer[index];
+			groupOffset[index] = fileOffset[index];
+			groupRecordCount[index] = (int) (groupSize / recordSize);
+			
+			sortKey[index] = ((long) fileMinimizer[index] << 32) | index;
+			
+			if (index > 0 && fileMinimizer[index] <= fileMinimizer[index - 1])
+				isSorted = false;
+		}
+		
+		// Sort groups by minimizer
+		if (! isSorted) {
+			Arrays.sort(sortKey);
+			
+			for (int index = 0; index < nGroup; ++index) {
+				int fileIndex = (int) (sortKey[index] & 0xffffffffL);
+				
+				groupMinimizer[index] = fileMinimizer[fileIndex];
+				groupOffset[index] = fileOffset[fileIndex];
+				groupRecordCount[index] = (int) ((((fileIndex + 1 < nGroup) ? fileOffset[fileIndex + 1] : indexOffset) - fileOffset[fileIndex]) / recordSize);
+				
+				if (index > 0 && groupMinimizer[index] == groupMinimizer[index - 1])
+					throw new IOException(String.format("IKC file index contains minimizer %08x more than once: %s", groupMinimizer[index], file));
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the count of a k-mer.
+	 * 
+	 * @param kmer K-mer.
+	 * 
+	 * @return Count of <code>kmer</code> or <code>0</code> if it is not in the file.
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> is <code>null</code>.
+	 * @throws IllegalStateException If this file was closed.
+	 */
+	public int get(int[] kmer)
+			throws NullPointerException, IllegalStateException {
+		
+		// Declarations
+		int groupIndex;  // Index of the minimizer group
+		
+		long lo;         // Lower bound of the records to search
+		long hi;         // Upper bound of the records to search
+		long mid;        // Record being compared
+		
+		long position;   // Position of a record in the data section
+		ByteBuffer buffer;  // Segment containing the record
+		int offset;      // Offset of the record in buffer
+		int cmp;         // Comparison result
+		
+		MappedByteBuffer[] segment = this.segment;
+		
+		if (kmer == null)
+			throw new NullPointerException("Cannot get count for k-mer: null");
+		
+		if (segment == null)
+			throw new IllegalStateException("Cannot get count from a closed IKC file: " + file);
+		
+		// Find group
+		groupIndex = Arrays.binarySearch(groupMinimizer, kUtil.minimizer(kmer));
+		
+		if (groupIndex < 0)
+			return 0;
+		
+		// Search records in the group
+		lo = 0;
+		hi = groupRecordCount[groupIndex] - 1;
+		
+		while (lo <= hi) {
+			
+			mid = (lo + hi) >>> 1;
+			
+			position = groupOffset[groupIndex] - dataOffset + mid * recordSize;
+			buffer = segment[(int) (position >>> SEGMENT_SHIFT)];
+			offset = (int) (position & SEGMENT_MASK);
+			
+			cmp = compare(kmer, buffer, offset);
+			
+			if (cmp < 0) {
+				hi = mid - 1;
+				
+			} else if (cmp > 0) {
+				lo = mid + 1;
+				
+			} else {
+				return buffer.getInt(offset + kmerByteSize);
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Compare a k-mer to the k-mer of a record. Words are compared as unsigned values
+	 * starting with the most-significant word.
+	 * 
+	 * @param kmer K-mer.
+	 * @param buffer Segment containing the record.
+	 * @param offset Offset of the record in <code>buffer</code>.
+	 * 
+	 * @return A negative number, zero, or a positive number if <code>kmer</code> is less than,
+	 *   equal to, or greater than the k-mer in the record.
+	 */
+	private int compare(int[] kmer, ByteBuffer buffer, int offset) {
+		
+		int word = 0;  // Word read from the record
+		int cmp;       // Comparison of one word
+		
+		// Most-significant word is stored in only the bytes it needs
+		for (int index = 0; index < mswByteSize; ++index)
+			word = (word << 8) | (buffer.get(offset + index) & 0xff);
+		
+		cmp = Integer.compare(kmer[0] ^ Integer.MIN_VALUE, word ^ Integer.MIN_VALUE);
+		
+		if (cmp != 0)
+			return cmp;
+		
+		offset += mswByteSize;
+		
+		// Remaining words
+		for (int index = 1; index < wordSize; ++index) {
+			
+			word = buffer.getInt(offset);
+			cmp = Integer.compare(kmer[index] ^ Integer.MIN_VALUE, word ^ Integer.MIN_VALUE);
+			
+			if (cmp != 0)
+				return cmp;
+			
+			offset += 4;
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * Release the mapped segments. Mapped memory is unmapped when the segments are garbage
+	 * collected, so threads still reading from this file are not affected, but no more counts
+	 * can be read after this method returns.
+	 */
+	@Override
+	public void close() {
+		
+		segment = null;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of minimizer groups in this file.
+	 * 
+	 * @return Number of minimizer groups.
+	 */
+	public int getGroupCount() {
+		return groupMinimizer.length;
+	}
+	
+	/**
+	 * Get the number of segments the data section is mapped in.
+	 * 
+	 * @return Number of mapped segments.
+	 */
+	public int getSegmentCount() {
+		
+		MappedByteBuffer[] segment = this.segment;
+		
+		return (segment != null) ? segment.length : 0;
+	}
+}
@@ -16,17 +16,41 @@
 
 package edu.gatech.kestrel.counter;
 
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.batch.KmerCountBatch;
 import edu.gatech.kanalyze.module.count.CountModule;
-import edu.gatech.kanalyze.util.KmerCounter;
+import edu.gatech.kanalyze.util.BoundedQueue;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
 
 /**
  * An in-memory k-mer counter.
+ * </p>
+ * Counts are stored in an <code>OffHeapKmerCountTable</code>, which keeps k-mers and counts in
+ * primitive slots outside the Java heap. The count module output is set to a queue that adds
+ * each batch of counted k-mers to the table as it is written, so counts are never held in
+ * k-mer objects on the heap.
+ * </p>
+ * The table is not modified by lookups. Once <code>set()</code> completes, any number of threads
+ * may call <code>get()</code> at the same time without locking.
  */
 public class MemoryCountMap extends CountMap {
 	
-	/** In-memory K-mer count hash set. */
-	private final KmerCounter counter;
+	/** Logger object. */
+	private final Logger logger;
+	
+	/** In-memory k-mer count table. */
+	private final OffHeapKmerCountTable countTable;
+	
+	/**
+	 * Set to <code>true</code> when <code>countTable</code> is filled for a sample. This field is
+	 * volatile so that counts written by the count module are visible to all threads reading
+	 * from this map.
+	 */
+	private volatile boolean countReady;
 	
 	/**
 	 * Create an in-memory count mapper.
@@ -42,8 +66,11 @@ public class MemoryCountMap extends CountMap {
 		
 		super(kUtil, countModule);  // throws NullPointerException
 		
-		counter = new KmerCounter(kUtil);
-		countModule.setOutput(counter);
+		logger = LoggerFactory.getLogger(MemoryCountMap.class);
+		
+		countTable = new OffHeapKmerCountTable(kUtil);
+		
+		countReady = false;
 		
 		return;
 	}
@@ -56,19 +83,106 @@ public class MemoryCountMap extends CountMap {
 	@Override
 	protected boolean preModuleRun() {
 		
-		counter.clear();
+		countReady = false;
+		
+		countTable.clear();
+		countModule.setOutput(new CountTableQueue());
 		
 		return true;
 	}
 	
+	/**
+	 * Called after the count module is run.
+	 * 
+	 * @see edu.gatech.kestrel.counter.CountMap#postModuleRun(boolean, boolean)
+	 */
+	@Override
+	protected void postModuleRun(boolean onError, boolean aborted) {
+		
+		if (onError || aborted) {
+			countReady = false;
+			
+			return;
+		}
+		
+		logger.trace("Loaded {} k-mers ({} bytes allocated)", countTable.getSize(), countTable.getAllocatedBytes());
+		
+		// Publish counts to reader threads
+		countReady = true;
+		
+		return;
+	}
+	
 	/**
 	 * Get a k-mer from this map.
 	 * 
 	 * @see edu.gatech.kestrel.counter.CountMap#get(int[])
 	 */
 	@Override
-	public int get(int[] kmer) throws NullPointerException, IllegalArgumentException {
+	public int get(int[] kmer) throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		
+		if (! countReady)
+			throw new IllegalStateException("Attempted to get a k-mer count before a sample was set for this map");
+		
+		return countTable.get(kmer);  // throws NullPointerException, IllegalArgumentException
+	}
+	
+	/**
+	 * Output queue for the count module that adds each batch to the count table as it is
+	 * put on the queue. The count module returns a batch to its cache as soon as it is put on
+	 * the output queue, so batches cannot be held and read later. K-mers may appear in more than
+	 * one batch, and their counts are summed. Batches are put by the count module writer
+	 * thread, so the table is only modified by one thread.
+	 */
+	private class CountTableQueue extends BoundedQueue<KmerCountBatch> {
+		
+		/**
+		 * Create a queue.
+		 */
+		public CountTableQueue() {
+			super(1);
+			
+			return;
+		}
+		
+		/**
+		 * Add a batch to the count table.
+		 * 
+		 * @param batch Batch of counted k-mers.
+		 * 
+		 * @return <code>true</code>.
+		 * 
+		 * @throws NullPointerException If <code>batch</code> is <code>null</code>.
+		 */
+		@Override
+		public boolean put(KmerCountBatch batch)
+				throws NullPointerException {
+			
+			if (batch == null)
+				throw new NullPointerException("Cannot add batch: null");
+			
+			for (int index = 0; index < batch.size; ++index)
+				countTable.add(batch.kmer[index], batch.count[index]);
+			
+			return true;
+		}
 		
-		return counter.get(kmer);  // throws NullPointerException, IllegalArgumentException
+		/**
+		 * Add a batch to the count table.
+		 * 
+		 * @param batch Batch of counted k-mers.
+		 * @param timeout Ignored.
+		 * @param unit Ignored.
+		 * 
+		 * @return <code>true</code>.
+		 * 
+		 * @throws NullPointerException If <code>batch</code> is <code>null</code>.
+		 */
+		@Override
+		public boolean put(KmerCountBatch batch, long timeout, TimeUnit unit)
+				throws NullPointerException {
+			
+			return put(batch);
+		}
 	}
 }
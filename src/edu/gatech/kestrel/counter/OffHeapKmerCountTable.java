@@ -0,0 +1,493 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.counter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+
+/**
+ * An open-addressing hash table of k-mer counts stored outside the Java heap. Each slot holds
+ * a packed k-mer key followed by its count, and a slot with a count of <code>0</code> is
+ * empty. K-mer words are packed in pairs into <code>long</code> keys, so a k-mer of 32 bases
+ * or fewer is keyed by a single <code>long</code>.
+ * </p>
+ * Slots are stored in direct byte buffers (pages) of up to <code>MAX_PAGE_BYTES</code>, which
+ * allows tables larger than one buffer. Collisions are resolved by linear probing, and the
+ * table doubles when it reaches <code>MAX_LOAD_FACTOR</code>.
+ * </p>
+ * Counts are added by one thread, and <code>get()</code> does not allocate or modify the
+ * table. After counts are added, any number of threads may call <code>get()</code> at the
+ * same time if they are not also adding counts.
+ */
+public final class OffHeapKmerCountTable {
+	
+	/** K-mer utility. */
+	public final KmerUtil kUtil;
+	
+	/** Number of integer words in each k-mer. */
+	private final int wordSize;
+	
+	/** Number of <code>long</code> values in each key. */
+	private final int keySize;
+	
+	/** Number of bytes in each slot (key and count). */
+	private final int slotSize;
+	
+	/** Offset of the count from the start of a slot. */
+	private final int countOffset;
+	
+	/** Table pages. */
+	private ByteBuffer[] pageArray;
+	
+	/** Slot index is shifted right by this many bits to get the page index. */
+	private int pageShift;
+	
+	/** Mask for the index of a slot within its page. */
+	private long pageMask;
+	
+	/** Number of slots in the table. Always a power of <code>2</code>. */
+	private long capacity;
+	
+	/** <code>capacity - 1</code>. */
+	private long capacityMask;
+	
+	/** Number of k-mers in the table. */
+	private long size;
+	
+	/** Expand the table when the size reaches this value. */
+	private long expandSize;
+	
+	/** Default initial number of slots. */
+	public static final long DEFAULT_INITIAL_CAPACITY = 1L << 20;
+	
+	/** Maximum number of slots. */
+	public static final long MAX_CAPACITY = 1L << 40;
+	
+	/** Maximum proportion of slots filled before the table is expanded. */
+	public static final float MAX_LOAD_FACTOR = 0.7F;
+	
+	/** Maximum size of a page in bytes. */
+	public static final int MAX_PAGE_BYTES = 1 << 30;
+	
+	/** Used to clear pages. */
+	private static final byte[] ZERO_BLOCK = new byte[64 * 1024];
+	
+	/**
+	 * Create a table.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * @param initCapacity Initial number of slots. This is rounded up to a power of <code>2</code>.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>initCapacity</code> is less than <code>1</code>
+	 *   or greater than <code>MAX_CAPACITY</code>.
+	 */
+	public OffHeapKmerCountTable(KmerUtil kUtil, long initCapacity)
+			throws NullPointerException, IllegalArgumentException {
+		
+		long initSlots;  // Initial number of slots
+		
+		// Check arguments
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		if (initCapacity < 1 || initCapacity > MAX_CAPACITY)
+			throw new IllegalArgumentException(String.format("Initial capacity must be between 1 and %d: %d", MAX_CAPACITY, initCapacity));
+		
+		// Set fields
+		this.kUtil = kUtil;
+		
+		wordSize = kUtil.wordSize;
+		keySize = (wordSize + 1) / 2;
+		countOffset = keySize * 8;
+		slotSize = countOffset + 4;
+		
+		// Allocate
+		initSlots = Long.highestOneBit(initCapacity);
+		
+		if (initSlots < initCapacity)
+			initSlots <<= 1;
+		
+		allocate(initSlots);
+		
+		return;
+	}
+	
+	/**
+	 * Create a table with the default initial capacity.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> is <code>null</code>.
+	 * 
+	 * @see #DEFAULT_INITIAL_CAPACITY
+	 */
+	public OffHeapKmerCountTable(KmerUtil kUtil)
+			throws NullPointerException {
+		
+		this(kUtil, DEFAULT_INITIAL_CAPACITY);
+		
+		return;
+	}
+	
+	/**
+	 * Get the count of a k-mer. This method does not allocate memory.
+	 * 
+	 * @param kmer K-mer.
+	 * 
+	 * @return The count of <code>kmer</code> or <code>0</code> if it is not in this table.
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kmer</code> has fewer than <code>kUtil.wordSize</code>
+	 *   elements.
+	 */
+	public int get(int[] kmer)
+			throws NullPointerException, IllegalArgumentException {
+		
+		long slot;         // Slot index
+		ByteBuffer page;   // Page containing slot
+		int offset;        // Offset of the slot in page
+		int count;         // Count in the slot
+		
+		// Check arguments
+		if (kmer.length < wordSize)
+			throw new IllegalArgumentException(String.format("K-mer array length (%d) is less than the word size (%d)", kmer.length, wordSize));
+		
+		// Probe
+		slot = hash(kmer) & capacityMask;
+		
+		while (true) {
+			page = pageArray[(int) (slot >>> pageShift)];
+			offset = (int) (slot & pageMask) * slotSize;
+			
+			count = page.getInt(offset + countOffset);
+			
+			if (count == 0)
+				return 0;
+			
+			if (keyEquals(page, offset, kmer))
+				return count;
+			
+			slot = (slot + 1) & capacityMask;
+		}
+	}
+	
+	/**
+	 * Add to the count of a k-mer. If the k-mer is not in this table, it is added. Counts are
+	 * limited to <code>Integer.MAX_VALUE</code>.
+	 * 
+	 * @param kmer K-mer.
+	 * @param count Count to add.
+	 * 
+	 * @throws NullPointerException If <code>kmer</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>kmer</code> has fewer than <code>kUtil.wordSize</code>
+	 *   elements or <code>count</code> is negative.
+	 * @throws IllegalStateException If the table cannot be expanded beyond <code>MAX_CAPACITY</code>.
+	 */
+	public void add(int[] kmer, int count)
+			throws NullPointerException, IllegalArgumentException, IllegalStateException {
+		
+		long slot;         // Slot index
+		ByteBuffer page;   // Page containing slot
+		int offset;        // Offset of the slot in page
+		int lastCount;     // Count in the slot
+		
+		// Check arguments
+		if (kmer.length < wordSize)
+			throw new IllegalArgumentException(String.format("K-mer array length (%d) is less than the word size (%d)", kmer.length, wordSize));
+		
+		if (count < 0)
+			throw new IllegalArgumentException("Cannot add a negative count: " + count);
+		
+		if (count == 0)
+			return;
+		
+		// Probe
+		slot = hash(kmer) & capacityMask;
+		
+		while (true) {
+			page = pageArray[(int) (slot >>> pageShift)];
+			offset = (int) (slot & pageMask) * slotSize;
+			
+			lastCount = page.getInt(offset + countOffset);
+			
+			if (lastCount == 0)
+				break;
+			
+			if (keyEquals(page, offset, kmer)) {
+				
+				if (lastCount > Integer.MAX_VALUE - count)
+					page.putInt(offset + countOffset, Integer.MAX_VALUE);
+				else
+					page.putInt(offset + countOffset, lastCount + count);
+				
+				return;
+			}
+			
+			slot = (slot + 1) & capacityMask;
+		}
+		
+		// Add to an empty slot
+		for (int keyIndex = 0; keyIndex < keySize; ++keyIndex)
+			page.putLong(offset + keyIndex * 8, keyWord(kmer, keyIndex));
+		
+		page.putInt(offset + countOffset, count);
+		
+		if (++size >= expandSize)
+			expand();  // throws IllegalStateException
+		
+		return;
+	}
+	
+	/**
+	 * Remove all counts from this table. The capacity of the table is not changed.
+	 */
+	public void clear() {
+		
+		for (ByteBuffer page : pageArray) {
+			page.clear();
+			
+			while (page.hasRemaining())
+				page.put(ZERO_BLOCK, 0, Math.min(ZERO_BLOCK.length, page.remaining()));
+			
+			page.clear();
+		}
+		
+		size = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of k-mers in this table.
+	 * 
+	 * @return The number of k-mers in this table.
+	 */
+	public long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Get the number of slots in this table.
+	 * 
+	 * @return The number of slots in this table.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Get the number of bytes allocated outside the heap for this table.
+	 * 
+	 * @return Number of bytes allocated.
+	 */
+	public long getAllocatedBytes() {
+		return capacity * slotSize;
+	}
+	
+	/**
+	 * Allocate empty pages for a new capacity.
+	 * 
+	 * @param newCapacity Number of slots. Must be a power of <code>2</code>.
+	 */
+	private void allocate(long newCapacity) {
+		
+		long pageSlots;  // Number of slots in each page
+		int nPage;       // Number of pages
+		
+		assert (Long.bitCount(newCapacity) == 1) :
+			"Capacity is not a power of 2: " + newCapacity;
+		
+		// Get page size
+		pageShift = 63 - Long.numberOfLeadingZeros(MAX_PAGE_BYTES / slotSize);
+		pageSlots = 1L << pageShift;
+		
+		if (pageSlots > newCapacity) {
+			pageSlots = newCapacity;
+			pageShift = Long.numberOfTrailingZeros(newCapacity);
+		}
+		
+		pageMask = pageSlots - 1;
+		
+		// Allocate pages (direct buffers are initialized to 0)
+		nPage = (int) (newCapacity / pageSlots);
+		pageArray = new ByteBuffer[nPage];
+		
+		for (int index = 0; index < nPage; ++index)
+			pageArray[index] = ByteBuffer.allocateDirect((int) (pageSlots * slotSize)).order(ByteOrder.nativeOrder());
+		
+		// Set capacity
+		capacity = newCapacity;
+		capacityMask = newCapacity - 1;
+		
+		expandSize = (long) (newCapacity * MAX_LOAD_FACTOR);
+		
+		if (expandSize >= newCapacity)
+			expandSize = newCapacity - 1;
+		
+		return;
+	}
+	
+	/**
+	 * Double the capacity of this table and move all counts to the new slots.
+	 * 
+	 * @throws IllegalStateException If the table is already at <code>MAX_CAPACITY</code>.
+	 */
+	private void expand()
+			throws IllegalStateException {
+		
+		ByteBuffer[] oldPageArray;  // Pages before expanding
+		long oldPageSlots;          // Number of slots in each old page
+		
+		ByteBuffer page;  // New page
+		int offset;       // Offset in the new page
+		long slot;        // Slot in the new table
+		int count;        // Count of an old slot
+		
+		// Check capacity
+		if (capacity >= MAX_CAPACITY)
+			throw new IllegalStateException("Cannot expand k-mer count table beyond maximum capacity: " + MAX_CAPACITY);
+		
+		// Allocate
+		oldPageArray = pageArray;
+		oldPageSlots = pageMask + 1;
+		
+		allocate(capacity * 2);
+		
+		// Move counts
+		for (ByteBuffer oldPage : oldPageArray) {
+			for (int oldOffset = 0; oldOffset < oldPageSlots * slotSize; oldOffset += slotSize) {
+				
+				count = oldPage.getInt(oldOffset + countOffset);
+				
+				if (count == 0)
+					continue;
+				
+				slot = hash(oldPage, oldOffset) & capacityMask;
+				
+				while (true) {
+					page = pageArray[(int) (slot >>> pageShift)];
+					offset = (int) (slot & pageMask) * slotSize;
+					
+					if (page.getInt(offset + countOffset) == 0)
+						break;
+					
+					slot = (slot + 1) & capacityMask;
+				}
+				
+				for (int keyIndex = 0; keyIndex < keySize; ++keyIndex)
+					page.putLong(offset + keyIndex * 8, oldPage.getLong(oldOffset + keyIndex * 8));
+				
+				page.putInt(offset + countOffset, count);
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get one <code>long</code> word of the key for a k-mer.
+	 * 
+	 * @param kmer K-mer.
+	 * @param keyIndex Index of the key word.
+	 * 
+	 * @return Key word.
+	 */
+	private long keyWord(int[] kmer, int keyIndex) {
+		
+		int wordIndex = keyIndex * 2;
+		
+		if (wordIndex + 1 < wordSize)
+			return ((long) kmer[wordIndex] << 32) | (kmer[wordIndex + 1] & 0xFFFFFFFFL);
+		
+		return kmer[wordIndex] & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Determine if the key in a slot matches a k-mer.
+	 * 
+	 * @param page Page.
+	 * @param offset Offset of the slot in <code>page</code>.
+	 * @param kmer K-mer.
+	 * 
+	 * @return <code>true</code> if the slot key matches <code>kmer</code>.
+	 */
+	private boolean keyEquals(ByteBuffer page, int offset, int[] kmer) {
+		
+		for (int keyIndex = 0; keyIndex < keySize; ++keyIndex)
+			if (page.getLong(offset + keyIndex * 8) != keyWord(kmer, keyIndex))
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Get the hash of a k-mer.
+	 * 
+	 * @param kmer K-mer.
+	 * 
+	 * @return Hash value.
+	 */
+	private long hash(int[] kmer) {
+		
+		long hash = 0;
+		
+		for (int keyIndex = 0; keyIndex < keySize; ++keyIndex)
+			hash = mix(hash ^ keyWord(kmer, keyIndex));
+		
+		return hash;
+	}
+	
+	/**
+	 * Get the hash of the key in a slot. This is the same value <code>hash(int[])</code> returns
+	 * for the k-mer the key was created from.
+	 * 
+	 * @param page Page.
+	 * @param offset Offset of the slot in <code>page</code>.
+	 * 
+	 * @return Hash value.
+	 */
+	private long hash(ByteBuffer page, int offset) {
+		
+		long hash = 0;
+		
+		for (int keyIndex = 0; keyIndex < keySize; ++keyIndex)
+			hash = mix(hash ^ page.getLong(offset + keyIndex * 8));
+		
+		return hash;
+	}
+	
+	/**
+	 * Mix the bits of a value (64-bit finalizer from MurmurHash3).
+	 * 
+	 * @param value Value.
+	 * 
+	 * @return Mixed value.
+	 */
+	private static long mix(long value) {
+		
+		value ^= value >>> 33;
+		value *= 0xFF51AFD7ED558CCDL;
+		value ^= value >>> 33;
+		value *= 0xC4CEB93FE53A5E1BL;
+		value ^= value >>> 33;
+		
+		return value;
+	}
+}
@@ -0,0 +1,247 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.counter;
+
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.comp.reader.SequenceReader;
+import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kanalyze.util.Base;
+import edu.gatech.kanalyze.util.KmerHashSet;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+import edu.gatech.kestrel.io.InputSample;
+import edu.gatech.kestrel.refreader.ReferenceRegion;
+
+/**
+ * Selects reads that may contribute to variant calls in a set of reference regions. When only
+ * small regions of a genome are searched, reads that do not overlap these regions cannot affect
+ * the result, and they can be discarded before k-mers are counted.
+ * </p>
+ * A read is kept if it shares at least one seed with a reference region (including flanks) in
+ * either orientation, and all k-mers of a kept read are counted. A seed is an exact match the size
+ * of the k-mer utility this filter was created with, which may be shorter than the counted k-mers.
+ * Variant k-mers are never tested, so indels and clustered SNVs are counted as long as some part of
+ * the read matches the reference.
+ */
+public class TargetReadFilter {
+	
+	/** Logger object. */
+	private static final Logger logger = LoggerFactory.getLogger(TargetReadFilter.class);
+	
+	/** K-mer utility for seeds. */
+	public final KmerUtil kUtil;
+	
+	/** Reference k-mers and their reverse complements. */
+	private final KmerHashSet kmerSet;
+	
+	/** Class loader for finding sequence reader file name patterns. */
+	private final ClassLoader loader;
+	
+	/** FASTA format. */
+	private static final String FASTA_FORMAT = "fasta";
+	
+	/** Gzipped FASTA format. */
+	private static final String FASTA_GZ_FORMAT = "fastagz";
+	
+	/** FASTQ format. */
+	private static final String FASTQ_FORMAT = "fastq";
+	
+	/** Gzipped FASTQ format. */
+	private static final String FASTQ_GZ_FORMAT = "fastqgz";
+	
+	/** Format resolved from the source name. */
+	private static final String AUTO_FORMAT = "auto";
+	
+	/** Formats that can be filtered in the order their file name patterns are tested. */
+	private static final String[] FORMATS = new String[] {FASTQ_GZ_FORMAT, FASTA_GZ_FORMAT, FASTQ_FORMAT, FASTA_FORMAT};
+	
+	/**
+	 * Create an empty filter.
+	 * 
+	 * @param kUtil K-mer utility for seeds.
+	 * @param loader Class loader for finding sequence reader file name patterns. If
+	 *   <code>null</code>, the loader of this class is used.
+	 * 
+	 * @throws NullPointerException If <code>kUtil</code> is <code>null</code>.
+	 */
+	public TargetReadFilter(KmerUtil kUtil, ClassLoader loader)
+			throws NullPointerException {
+		
+		// Check arguments
+		if (kUtil == null)
+			throw new NullPointerException("K-mer utility is null");
+		
+		if (loader == null)
+			loader = TargetReadFilter.class.getClassLoader();
+		
+		// Set fields
+		this.kUtil = kUtil;
+		this.loader = loader;
+		
+		kmerSet = new KmerHashSet(kUtil.kSize);
+		
+		return;
+	}
+	
+	/**
+	 * Add all k-mers of a reference region and their reverse complements to this filter.
+	 * 
+	 * @param refRegion Reference region.
+	 * 
+	 * @throws NullPointerException If <code>refRegion</code> is <code>null</code>.
+	 */
+	public void add(ReferenceRegion refRegion)
+			throws NullPointerException {
+		
+		int[] kmer;      // Current k-mer
+		int kmerLength;  // Number of bases loaded into kmer since the last ambiguous base
+		Base base;       // Current base
+		
+		if (refRegion == null)
+			throw new NullPointerException("Cannot add k-mers from reference region: null");
+		
+		kmer = new int[kUtil.kmerArraySize];
+		kmerLength = 0;
+		
+		for (int index = 0; index < refRegion.size; ++index) {
+			base = refRegion.getKmerBase(index);
+			
+			if (base == null) {  // Ambiguous base
+				kmerLength = 0;
+				continue;
+			}
+			
+			kUtil.append(kmer, base);
+			
+			if (++kmerLength >= kUtil.kSize) {
+				kmerSet.add(kUtil.copy(kmer, null));
+				kmerSet.add(kUtil.revComplement(kmer, null));
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of reference k-mers in this filter including reverse complements.
+	 * 
+	 * @return Number of reference k-mers in this filter.
+	 */
+	public long getSize() {
+		return kmerSet.getSize();
+	}
+	
+	/**
+	 * Determine if a k-mer is a reference k-mer in this filter.
+	 * 
+	 * @param kmer K-mer.
+	 * 
+	 * @return <code>true</code> if <code>kmer</code> was added to this filter.
+	 */
+	boolean contains(int[] kmer) {
+		return kmerSet.contains(kmer);
+	}
+	
+	/**
+	 * Get a sample with the same name whose sources only emit reads that share a k-mer with the
+	 * reference regions in this filter. Sources that cannot be filtered are kept as they are.
+	 * 
+	 * @param sample Sample.
+	 * 
+	 * @return Filtered sample.
+	 * 
+	 * @throws NullPointerException If <code>sample</code> is <code>null</code>.
+	 */
+	public InputSample filter(InputSample sample)
+			throws NullPointerException {
+		
+		SequenceSource[] sources;  // Filtered sources
+		
+		if (sample == null)
+			throw new NullPointerException("Cannot filter sample: null");
+		
+		sources = new SequenceSource[sample.sources.length];
+		
+		for (int index = 0; index < sources.length; ++index)
+			sources[index] = filter(sample.sources[index]);
+		
+		return new InputSample(sample.name, sources);
+	}
+	
+	/**
+	 * Get a source that only emits reads that share a k-mer with the reference regions in this
+	 * filter. FASTA and FASTQ sources, compressed or not, can be filtered.
+	 * 
+	 * @param source Source.
+	 * 
+	 * @return A filtered source, or <code>source</code> if its format cannot be filtered.
+	 * 
+	 * @throws NullPointerException If <code>source</code> is <code>null</code>.
+	 */
+	public SequenceSource filter(SequenceSource source)
+			throws NullPointerException {
+		
+		String formatType;  // Format of source
+		
+		if (source == null)
+			throw new NullPointerException("Cannot filter sequence source: null");
+		
+		// Resolve format
+		formatType = source.formatType;
+		
+		if (formatType.equals(AUTO_FORMAT)) {
+			formatType = null;
+			
+			for (String format : FORMATS) {
+				Pattern pattern = SequenceReader.getFormatPattern(format, loader);
+				
+				if (pattern != null && pattern.matcher(source.name).find()) {
+					formatType = format;
+					break;
+				}
+			}
+		}
+		
+		if (formatType == null || ! TargetReadSource.isCharsetSupported(source.charset)) {
+			logger.warn("Counting all reads in source {}: Reads can only be filtered for targeted counting in FASTA or FASTQ files with an ASCII-compatible character set", source.name);
+			
+			return source;
+		}
+		
+		switch (formatType) {
+		case FASTA_FORMAT:
+			return new TargetReadSource(source, this, false, false);
+		
+		case FASTA_GZ_FORMAT:
+			return new TargetReadSource(source, this, false, true);
+		
+		case FASTQ_FORMAT:
+			return new TargetReadSource(source, this, true, false);
+		
+		case FASTQ_GZ_FORMAT:
+			return new TargetReadSource(source, this, true, true);
+		
+		default:
+			logger.warn("Counting all reads in source {}: Reads in format {} cannot be filtered for targeted counting", source.name, formatType);
+			
+			return source;
+		}
+	}
+}
@@ -0,0 +1,425 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.counter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import edu.gatech.kanalyze.KAnalyzeConstants;
+import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kanalyze.util.Base;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+
+/**
+ * A FASTA or FASTQ sequence source that only emits reads sharing a k-mer with the reference
+ * regions of a <code>TargetReadFilter</code>. Kept records are emitted byte-for-byte, and
+ * compressed sources are emitted uncompressed.
+ * 
+ * @see TargetReadFilter#filter(SequenceSource)
+ */
+public class TargetReadSource extends SequenceSource {
+	
+	/** Unfiltered source. */
+	public final SequenceSource source;
+	
+	/** Filter reads are tested against. */
+	private final TargetReadFilter readFilter;
+	
+	/** <code>true</code> if the source is FASTQ, and <code>false</code> if it is FASTA. */
+	private final boolean fastq;
+	
+	/** <code>true</code> if the source is gzipped. */
+	private final boolean gzip;
+	
+	/** Characters that must be encoded as single ASCII bytes for reads to be parsed. */
+	private static final String ASCII_TEST_STRING = "ACGTNacgtn>@+\r\n";
+	
+	/** Size of the input buffer. */
+	private static final int BUFFER_SIZE = 65536;
+	
+	/**
+	 * Create a filtered source.
+	 * 
+	 * @param source Unfiltered source.
+	 * @param readFilter Filter reads are tested against.
+	 * @param fastq <code>true</code> if the source is FASTQ, and <code>false</code> if it is FASTA.
+	 * @param gzip <code>true</code> if the source is gzipped.
+	 * 
+	 * @throws NullPointerException If <code>source</code> or <code>readFilter</code> is
+	 *   <code>null</code>.
+	 */
+	protected TargetReadSource(SequenceSource source, TargetReadFilter readFilter, boolean fastq, boolean gzip)
+			throws NullPointerException {
+		
+		super(source.sourceType, (fastq ? "fastq" : "fasta"), source.charset, source.name, source.sourceId, source.filterSpec);
+		
+		if (readFilter == null)
+			throw new NullPointerException("Target read filter is null");
+		
+		this.source = source;
+		this.readFilter = readFilter;
+		this.fastq = fastq;
+		this.gzip = gzip;
+		
+		return;
+	}
+	
+	/**
+	 * Get a stream of records from the source that share a k-mer with the target reference
+	 * regions.
+	 * 
+	 * @return Filtered input stream.
+	 * 
+	 * @throws IOException If the source cannot be opened.
+	 */
+	@Override
+	public InputStream getInputStream()
+			throws IOException {
+		
+		InputStream inStream = source.getInputStream();  // throws IOException
+		
+		if (gzip) {
+			try {
+				inStream = new GZIPInputStream(inStream);  // throws IOException
+				
+			} catch (IOException ex) {
+				inStream.close();
+				
+				throw ex;
+			}
+		}
+		
+		return new TargetReadInputStream(inStream);
+	}
+	
+	/**
+	 * Determine if reads in a character set can be parsed as bytes.
+	 * 
+	 * @param charset Character set.
+	 * 
+	 * @return <code>true</code> if bases and record delimiters are encoded as single ASCII bytes.
+	 */
+	public static boolean isCharsetSupported(Charset charset) {
+		
+		if (charset == null)
+			return false;
+		
+		try {
+			return Arrays.equals(ASCII_TEST_STRING.getBytes(charset), ASCII_TEST_STRING.getBytes(StandardCharsets.US_ASCII));
+			
+		} catch (UnsupportedOperationException ex) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Input stream that drops records without a target k-mer.
+	 */
+	private class TargetReadInputStream extends InputStream {
+		
+		/** Unfiltered stream. */
+		private final InputStream inStream;
+		
+		/** Bytes read from <code>inStream</code>. */
+		private final byte[] inBuffer;
+		
+		/** Index of the next byte in <code>inBuffer</code>. */
+		private int inIndex;
+		
+		/** Number of bytes in <code>inBuffer</code>. */
+		private int inSize;
+		
+		/** Bytes of the current record. */
+		private byte[] record;
+		
+		/** Number of bytes in <code>record</code>. */
+		private int recordSize;
+		
+		/** Index of the next byte in <code>record</code> to emit. */
+		private int recordIndex;
+		
+		/** K-mer utility. */
+		private final KmerUtil kUtil;
+		
+		/** Current k-mer of the record sequence. */
+		private final int[] kmer;
+		
+		/** Number of bases loaded into <code>kmer</code> since the last ambiguous base. */
+		private int kmerLength;
+		
+		/** Set when the current record contains a target k-mer. */
+		private boolean found;
+		
+		/** Translates bytes to bases. */
+		private final Base[] byteToBase;
+		
+		/**
+		 * Create a filtered stream.
+		 * 
+		 * @param inStream Unfiltered stream.
+		 */
+		public TargetReadInputStream(InputStream inStream) {
+			
+			this.inStream = inStream;
+			
+			inBuffer = new byte[BUFFER_SIZE];
+			inIndex = 0;
+			inSize = 0;
+			
+			record = new byte[1024];
+			recordSize = 0;
+			recordIndex = 0;
+			
+			kUtil = readFilter.kUtil;
+			kmer = new int[kUtil.kmerArraySize];
+			
+			byteToBase = KAnalyzeConstants.getByteToBaseArray();
+			
+			return;
+		}
+		
+		/**
+		 * Read one byte.
+		 * 
+		 * @return The next byte or <code>-1</code> at the end of the stream.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		@Override
+		public int read()
+				throws IOException {
+			
+			if (recordIndex == recordSize && ! nextRecord())
+				return -1;
+			
+			return record[recordIndex++] & 0xFF;
+		}
+		
+		/**
+		 * Read bytes into an array.
+		 * 
+		 * @param b Array to fill.
+		 * @param off Index of the first byte to fill.
+		 * @param len Maximum number of bytes to read.
+		 * 
+		 * @return Number of bytes read or <code>-1</code> at the end of the stream.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		@Override
+		public int read(byte[] b, int off, int len)
+				throws IOException {
+			
+			int copyLen;  // Number of bytes to copy
+			
+			if (len == 0)
+				return 0;
+			
+			if (recordIndex == recordSize && ! nextRecord())
+				return -1;
+			
+			copyLen = Math.min(len, recordSize - recordIndex);
+			
+			System.arraycopy(record, recordIndex, b, off, copyLen);
+			recordIndex += copyLen;
+			
+			return copyLen;
+		}
+		
+		/**
+		 * Close the unfiltered stream.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		@Override
+		public void close()
+				throws IOException {
+			
+			inStream.close();
+			
+			return;
+		}
+		
+		/**
+		 * Read records until one is kept. Malformed records and lines outside of records are
+		 * kept so the sequence reader reports them.
+		 * 
+		 * @return <code>true</code> if a record was read into <code>record</code>, and
+		 *   <code>false</code> at the end of the stream.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		private boolean nextRecord()
+				throws IOException {
+			
+			int next;       // Next byte
+			long seqSize;   // Number of sequence characters in a FASTQ record
+			long qualSize;  // Number of quality characters in a FASTQ record
+			
+			while (true) {
+				recordSize = 0;
+				recordIndex = 0;
+				
+				kmerLength = 0;
+				found = false;
+				
+				next = peek();
+				
+				if (next < 0)
+					return false;
+				
+				// Keep lines outside of records
+				if (next != (fastq ? '@' : '>')) {
+					readLine();
+					
+					return true;
+				}
+				
+				// Header
+				readLine();
+				
+				if (fastq) {
+					
+					// Sequence
+					seqSize = 0;
+					
+					while ((next = peek()) >= 0 && next != '+')
+						seqSize += readSequenceLine();
+					
+					if (next < 0)
+						return true;
+					
+					// Separator
+					readLine();
+					
+					// Quality
+					qualSize = 0;
+					
+					while (qualSize < seqSize && peek() >= 0)
+						qualSize += readLine();
+					
+				} else {
+					
+					// Sequence
+					while ((next = peek()) >= 0 && next != '>')
+						readSequenceLine();
+				}
+				
+				if (found)
+					return true;
+			}
+		}
+		
+		/**
+		 * Read one line into <code>record</code> and test its k-mers against the filter.
+		 * 
+		 * @return Number of characters on the line excluding line terminators.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		private int readSequenceLine()
+				throws IOException {
+			
+			int lineStart = recordSize;  // Index of the first byte of the line
+			int lineSize = readLine();   // Number of characters on the line
+			Base base;                   // Current base
+			
+			if (found)
+				return lineSize;
+			
+			for (int index = lineStart; index < lineStart + lineSize; ++index) {
+				base = byteToBase[record[index] & 0xFF];
+				
+				if (base == null) {  // Ambiguous base
+					kmerLength = 0;
+					continue;
+				}
+				
+				kUtil.append(kmer, base);
+				
+				if (++kmerLength >= kUtil.kSize && readFilter.contains(kmer)) {
+					found = true;
+					break;
+				}
+			}
+			
+			return lineSize;
+		}
+		
+		/**
+		 * Append one line including its terminator to <code>record</code>.
+		 * 
+		 * @return Number of characters on the line excluding line terminators.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		private int readLine()
+				throws IOException {
+			
+			int lineStart = recordSize;  // Index of the first byte of the line
+			int lineEnd;                 // Index after the last byte of the line excluding terminators
+			int next;                    // Next byte
+			
+			while ((next = peek()) >= 0) {
+				++inIndex;
+				
+				if (recordSize == record.length)
+					record = Arrays.copyOf(record, record.length * 2);
+				
+				record[recordSize++] = (byte) next;
+				
+				if (next == '\n')
+					break;
+			}
+			
+			lineEnd = recordSize;
+			
+			while (lineEnd > lineStart && (record[lineEnd - 1] == '\n' || record[lineEnd - 1] == '\r'))
+				--lineEnd;
+			
+			return lineEnd - lineStart;
+		}
+		
+		/**
+		 * Get the next byte without consuming it.
+		 * 
+		 * @return The next byte or <code>-1</code> at the end of the stream.
+		 * 
+		 * @throws IOException If an IO error occurs.
+		 */
+		private int peek()
+				throws IOException {
+			
+			while (inIndex == inSize) {
+				inSize = inStream.read(inBuffer, 0, inBuffer.length);  // throws IOException
+				inIndex = 0;
+				
+				if (inSize < 0) {
+					inSize = 0;
+					
+					return -1;
+				}
+			}
+			
+			return inBuffer[inIndex] & 0xFF;
+		}
+	}
+}
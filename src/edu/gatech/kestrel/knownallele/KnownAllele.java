@@ -0,0 +1,265 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.knownallele;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A known alternate allele at a site of a reference sequence. Sites with more than one alternate
+ * allele are represented by one object for each allele.
+ */
+public class KnownAllele implements Comparable<KnownAllele> {
+	
+	/**
+	 * Name of the reference sequence this allele is on. This name will never be <code>null</code>
+	 * or empty.
+	 */
+	public final String sequenceName;
+	
+	/**
+	 * Position of the first reference base of this allele where the first base of the sequence
+	 * is <code>1</code>.
+	 */
+	public final int pos;
+	
+	/** Reference bases replaced by this allele in upper case. Never empty. */
+	public final String ref;
+	
+	/** Alternate bases in upper case. Never empty, and never equal to <code>ref</code>. */
+	public final String alt;
+	
+	/** Pattern of allele sequences. */
+	private static final Pattern ALLELE_PATTERN = Pattern.compile("[ACGT]+");
+	
+	/**
+	 * Create a known allele.
+	 * 
+	 * @param sequenceName Name of the reference sequence.
+	 * @param pos Position of the first reference base where the first base of the sequence is
+	 *   <code>1</code>.
+	 * @param ref Reference bases. Case is ignored.
+	 * @param alt Alternate bases. Case is ignored.
+	 * 
+	 * @throws NullPointerException If <code>sequenceName</code>, <code>ref</code>, or
+	 *   <code>alt</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>sequenceName</code> is empty, <code>pos</code> is
+	 *   less than <code>1</code>, <code>ref</code> or <code>alt</code> is empty or contains
+	 *   characters other than <code>A</code>, <code>C</code>, <code>G</code>, and <code>T</code>,
+	 *   or if <code>ref</code> and <code>alt</code> are the same sequence.
+	 */
+	public KnownAllele(String sequenceName, int pos, String ref, String alt)
+			throws NullPointerException, IllegalArgumentException {
+		
+		// Check arguments
+		if (sequenceName == null)
+			throw new NullPointerException("Sequence name is null");
+		
+		if (ref == null)
+			throw new NullPointerException("Reference allele is null");
+		
+		if (alt == null)
+			throw new NullPointerException("Alternate allele is null");
+		
+		sequenceName = sequenceName.trim();
+		ref = ref.trim().toUpperCase();
+		alt = alt.trim().toUpperCase();
+		
+		if (sequenceName.isEmpty())
+			throw new IllegalArgumentException("Sequence name is empty");
+		
+		if (pos < 1)
+			throw new IllegalArgumentException("Position is less than 1: " + pos);
+		
+		if (! ALLELE_PATTERN.matcher(ref).matches())
+			throw new IllegalArgumentException("Reference allele is empty or contains bases other than A, C, G, and T: " + ref);
+		
+		if (! ALLELE_PATTERN.matcher(alt).matches())
+			throw new IllegalArgumentException("Alternate allele is empty or contains bases other than A, C, G, and T: " + alt);
+		
+		if (ref.equals(alt))
+			throw new IllegalArgumentException("Alternate allele is the same as the reference allele: " + alt);
+		
+		// Set fields
+		this.sequenceName = sequenceName;
+		this.pos = pos;
+		this.ref = ref;
+		this.alt = alt;
+		
+		return;
+	}
+	
+	/**
+	 * Get the position of the last reference base of this allele.
+	 * 
+	 * @return Position of the last reference base where the first base of the sequence is
+	 *   <code>1</code>.
+	 */
+	public int getEnd() {
+		return pos + ref.length() - 1;
+	}
+	
+	/**
+	 * Determine if this allele replaces the same reference bases as another allele.
+	 * 
+	 * @param allele Other allele.
+	 * 
+	 * @return <code>true</code> if both alleles are on the same sequence, start at the same
+	 *   position, and have the same reference bases.
+	 */
+	public boolean isSameSite(KnownAllele allele) {
+		
+		if (allele == null)
+			return false;
+		
+		return pos == allele.pos && sequenceName.equals(allele.sequenceName) && ref.equals(allele.ref);
+	}
+	
+	/**
+	 * Get a string representing this allele.
+	 * 
+	 * @return A string representing this allele.
+	 */
+	@Override
+	public String toString() {
+		return String.format("KnownAllele[seq=%s, pos=%d, ref=%s, alt=%s]", sequenceName, pos, ref, alt);
+	}
+	
+	/**
+	 * Compares the sequence name, position, reference bases, and alternate bases (in that order).
+	 * 
+	 * @return A negative value, <code>0</code>, or a positive value if this allele is
+	 *   less than, equal to, or greater than <code>allele</code> (respectively).
+	 * 
+	 * @throws NullPointerException If <code>allele</code> is <code>null</code>.
+	 */
+	@Override
+	public int compareTo(KnownAllele allele)
+			throws NullPointerException {
+		
+		// Declarations
+		int cmpVal;  // Value from comparing two fields
+		
+		// Check arguments
+		if (allele == null)
+			throw new NullPointerException("Cannot compare to allele: null");
+		
+		// Compare name
+		cmpVal = sequenceName.compareTo(allele.sequenceName);
+		
+		if (cmpVal != 0)
+			return cmpVal;
+		
+		// Compare position
+		cmpVal = pos - allele.pos;
+		
+		if (cmpVal != 0)
+			return cmpVal;
+		
+		// Compare alleles
+		cmpVal = ref.compareTo(allele.ref);
+		
+		if (cmpVal != 0)
+			return cmpVal;
+		
+		return alt.compareTo(allele.alt);
+	}
+	
+	/**
+	 * Determine if this allele is equal to another object.
+	 * 
+	 * @param obj Object.
+	 * 
+	 * @return <code>true</code> if <code>obj</code> is a known allele at the same site with the
+	 *   same alternate bases.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		
+		if (! (obj instanceof KnownAllele))
+			return false;
+		
+		return compareTo((KnownAllele) obj) == 0;
+	}
+	
+	/**
+	 * Get a hash code for this allele.
+	 * 
+	 * @return Hash code.
+	 */
+	@Override
+	public int hashCode() {
+		return ((sequenceName.hashCode() * 31 + pos) * 31 + ref.hashCode()) * 31 + alt.hashCode();
+	}
+	
+	/**
+	 * Group alleles by reference sequence name. Alleles for each sequence are sorted by position,
+	 * and duplicate alleles are removed.
+	 * 
+	 * @param alleles Alleles.
+	 * 
+	 * @return A map from each sequence name to a sorted array of alleles on that sequence.
+	 * 
+	 * @throws NullPointerException If <code>alleles</code> is <code>null</code> or contains
+	 *   <code>null</code>.
+	 */
+	public static Map<String, KnownAllele[]> getSequenceMap(Collection<KnownAllele> alleles)
+			throws NullPointerException {
+		
+		KnownAllele[] sortedAlleles;  // All alleles in sorted order
+		Map<String, KnownAllele[]> sequenceMap;  // Map to return
+		List<KnownAllele> sequenceList;  // Alleles on one sequence
+		KnownAllele lastAllele;          // Last allele added to sequenceList
+		
+		// Check arguments
+		if (alleles == null)
+			throw new NullPointerException("Cannot group alleles from collection: null");
+		
+		// Sort
+		sortedAlleles = alleles.toArray(new KnownAllele[alleles.size()]);
+		Arrays.sort(sortedAlleles);  // throws NullPointerException
+		
+		// Group by sequence
+		sequenceMap = new HashMap<>();
+		sequenceList = new ArrayList<>();
+		lastAllele = null;
+		
+		for (KnownAllele allele : sortedAlleles) {
+			
+			if (lastAllele != null && ! allele.sequenceName.equals(lastAllele.sequenceName)) {
+				sequenceMap.put(lastAllele.sequenceName, sequenceList.toArray(new KnownAllele[sequenceList.size()]));
+				sequenceList.clear();
+				
+			} else if (allele.equals(lastAllele)) {
+				continue;
+			}
+			
+			sequenceList.add(allele);
+			lastAllele = allele;
+		}
+		
+		if (lastAllele != null)
+			sequenceMap.put(lastAllele.sequenceName, sequenceList.toArray(new KnownAllele[sequenceList.size()]));
+		
+		return sequenceMap;
+	}
+}
@@ -0,0 +1,442 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.knownallele;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.util.Base;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+import edu.gatech.kestrel.activeregion.ActiveRegion;
+import edu.gatech.kestrel.activeregion.Haplotype;
+import edu.gatech.kestrel.activeregion.RegionHaplotype;
+import edu.gatech.kestrel.activeregion.RegionStats;
+import edu.gatech.kestrel.align.AlignNode;
+import edu.gatech.kestrel.align.AlignmentWeight;
+import edu.gatech.kestrel.counter.CountMap;
+import edu.gatech.kestrel.refreader.ReferenceRegion;
+
+/**
+ * Genotypes known alleles from k-mer counts without scanning for active regions or assembling
+ * haplotypes. For each site, the reference bases and <code>kSize</code> bases on each side of them
+ * are taken from the reference region. This span is an active region anchored on both ends, the
+ * reference sequence over it is the reference haplotype, and replacing the reference bases with
+ * each alternate allele at the site gives an alternate haplotype. The depth of each haplotype
+ * is the minimum count of its k-mers.
+ * <p/>
+ * The haplotypes are aligned to the reference by construction, so a variant caller finds the
+ * known allele in each alternate haplotype and estimates its depth (GDP) and the depth of the
+ * locus (DP) exactly as it does for assembled haplotypes. An allele with no depth is still
+ * reported so each sample has a depth for every site.
+ * <p/>
+ * Each site is genotyped on its own. If a sample has another variant less than <code>kSize</code>
+ * bases from a site, the k-mers of the sample span both variants, and the haplotypes of the site
+ * are not supported by them.
+ */
+public class KnownAlleleGenotyper {
+	
+	/** K-mer utility. */
+	public final KmerUtil kUtil;
+	
+	/** K-mer counter. */
+	private final CountMap counter;
+	
+	/** Alignment weights used to score haplotypes. */
+	public final AlignmentWeight alnWeight;
+	
+	/** Count reverse complement k-mers if <code>true</code>. */
+	public final boolean countReverseKmers;
+	
+	/** Sorted arrays of alleles keyed by reference sequence name. */
+	private final Map<String, KnownAllele[]> alleleMap;
+	
+	/** K-mer being looked up. */
+	private final int[] kmer;
+	
+	/** Reverse complement of the k-mer being looked up. */
+	private final int[] revKmer;
+	
+	/** Logger. */
+	private final Logger logger;
+	
+	/**
+	 * Create a genotyper.
+	 * 
+	 * @param counter K-mer counter.
+	 * @param alnWeight Alignment weights used to score haplotypes.
+	 * @param countReverseKmers Count reverse complement k-mers if <code>true</code>.
+	 * @param alleleMap Sorted arrays of alleles keyed by reference sequence name (see
+	 *   <code>KnownAllele.getSequenceMap()</code>). This map is not modified and may be shared.
+	 * 
+	 * @throws NullPointerException If <code>counter</code>, <code>alnWeight</code>, or
+	 *   <code>alleleMap</code> is <code>null</code>.
+	 * 
+	 * @see KnownAllele#getSequenceMap(java.util.Collection)
+	 */
+	public KnownAlleleGenotyper(CountMap counter, AlignmentWeight alnWeight, boolean countReverseKmers, Map<String, KnownAllele[]> alleleMap)
+			throws NullPointerException {
+		
+		// Check arguments
+		if (counter == null)
+			throw new NullPointerException("K-mer counter is null");
+		
+		if (alnWeight == null)
+			throw new NullPointerException("Alignment weight is null");
+		
+		if (alleleMap == null)
+			throw new NullPointerException("Known allele map is null");
+		
+		// Assign fields
+		this.kUtil = counter.kUtil;
+		this.counter = counter;
+		this.alnWeight = alnWeight;
+		this.countReverseKmers = countReverseKmers;
+		this.alleleMap = alleleMap;
+		
+		logger = LoggerFactory.getLogger(KnownAlleleGenotyper.class);
+		
+		kmer = new int[kUtil.kmerArraySize];
+		revKmer = new int[kUtil.kmerArraySize];
+		
+		return;
+	}
+	
+	/**
+	 * Get haplotypes for each site of a known allele in a reference region. Alleles that start at
+	 * the same position and replace the same reference bases share one active region. Sites that
+	 * reach into a flank of the region, that do not have <code>kSize</code> reference bases on
+	 * each side, or that do not match the reference are skipped.
+	 * 
+	 * @param refRegion Reference region.
+	 * 
+	 * @return An array of active regions and their haplotypes. The first haplotype of each
+	 *   region is the reference haplotype.
+	 * 
+	 * @throws NullPointerException If <code>refRegion</code> is <code>null</code>.
+	 */
+	public RegionHaplotype[] getHaplotypes(ReferenceRegion refRegion)
+			throws NullPointerException {
+		
+		// Declarations
+		KnownAllele[] alleles;  // Alleles on the reference sequence
+		int alleleIndex;        // Index of the next allele in alleles
+		int lastIndex;          // Index after the last allele at the current site
+		
+		List<RegionHaplotype> haplotypeList;  // Haplotypes to return
+		
+		int kSize;         // K-mer size
+		int[] count;       // Reference k-mer counts (only active region k-mers are set)
+		int startIndex;    // Index of the first reference base of a site
+		int endIndex;      // Index after the last reference base of a site
+		
+		ActiveRegion activeRegion;  // Active region over a site
+		Haplotype[] haplotypes;     // Reference and alternate haplotypes over a site
+		
+		// Check arguments
+		if (refRegion == null)
+			throw new NullPointerException("Cannot genotype known alleles in reference region: null");
+		
+		// Init
+		haplotypeList = new ArrayList<>();
+		
+		alleles = alleleMap.get(refRegion.referenceSequence.name);
+		
+		if (alleles == null)
+			return new RegionHaplotype[0];
+		
+		if (! refRegion.interval.isFwd) {
+			logger.trace("Skipping known alleles in a reverse-strand region: {}", refRegion);
+			return new RegionHaplotype[0];
+		}
+		
+		kSize = kUtil.kSize;
+		count = null;
+		
+		// Find the first allele in the region
+		alleleIndex = findFirst(alleles, refRegion.interval.start);
+		
+		// Genotype sites
+		while (alleleIndex < alleles.length && alleles[alleleIndex].pos <= refRegion.interval.end) {
+			
+			// Find alleles at the same site
+			lastIndex = alleleIndex + 1;
+			
+			while (lastIndex < alleles.length && alleles[lastIndex].isSameSite(alleles[alleleIndex]))
+				++lastIndex;
+			
+			// Check bounds
+			startIndex = alleles[alleleIndex].pos + refRegion.sequenceOffset;
+			endIndex = startIndex + alleles[alleleIndex].ref.length();
+			
+			if (refRegion.isFlankByIndex(startIndex, endIndex - 1)) {
+				logger.trace("Skipping known allele over a region flank: {}", alleles[alleleIndex]);
+				
+			} else if (startIndex < kSize || endIndex + kSize > refRegion.size) {
+				logger.trace("Skipping known allele without k-mer anchors in the reference region: {}", alleles[alleleIndex]);
+				
+			} else if (refRegion.containsAmbiguousByIndex(startIndex - kSize, endIndex + kSize - 1)) {
+				logger.trace("Skipping known allele over an ambiguous region: {}", alleles[alleleIndex]);
+				
+			} else if (! matchesReference(refRegion, startIndex, alleles[alleleIndex].ref)) {
+				logger.warn("Skipping known allele: Reference allele does not match the reference sequence: {}", alleles[alleleIndex]);
+				
+			} else {
+				
+				// Get reference counts over the active region
+				if (count == null)
+					count = new int[refRegion.size - kSize + 1];
+				
+				setCounts(refRegion, startIndex - kSize, endIndex, count);
+				
+				activeRegion = new ActiveRegion(refRegion, startIndex - kSize, endIndex, count, kUtil);
+				
+				// Get haplotypes
+				haplotypes = new Haplotype[lastIndex - alleleIndex + 1];
+				
+				haplotypes[0] = getHaplotype(activeRegion, null);
+				
+				for (int index = alleleIndex; index < lastIndex; ++index)
+					haplotypes[index - alleleIndex + 1] = getHaplotype(activeRegion, alleles[index]);
+				
+				haplotypeList.add(new RegionHaplotype(activeRegion, haplotypes));
+			}
+			
+			alleleIndex = lastIndex;
+		}
+		
+		logger.trace("Genotyped {} known allele sites: {}", haplotypeList.size(), refRegion);
+		
+		return haplotypeList.toArray(new RegionHaplotype[haplotypeList.size()]);
+	}
+	
+	/**
+	 * Build a haplotype over the active region of a known allele site.
+	 * 
+	 * @param activeRegion Active region over the site.
+	 * @param allele Allele or <code>null</code> to build the reference haplotype.
+	 * 
+	 * @return Haplotype.
+	 */
+	private Haplotype getHaplotype(ActiveRegion activeRegion, KnownAllele allele) {
+		
+		// Declarations
+		int kSize;         // K-mer size
+		byte[] refBases;   // Reference bases over the active region
+		int refEnd;        // Index of refBases after the reference allele
+		
+		byte[] sequence;   // Haplotype sequence
+		int prefix;        // Number of leading bases the alleles share
+		int suffix;        // Number of trailing bases the alleles share (not overlapping prefix)
+		int nAligned;      // Number of bases aligned between the shared prefix and suffix
+		int gapLength;     // Length of the gap after the aligned bases
+		
+		byte[] event;      // Alignment event of each base
+		int eventIndex;    // Next index in event
+		AlignNode alignment;  // Alignment built from event
+		int runLength;     // Number of consecutive events of the same type
+		float score;       // Alignment score
+		
+		// Init
+		kSize = kUtil.kSize;
+		
+		refBases = new byte[activeRegion.endIndex - activeRegion.startIndex + 1];
+		
+		for (int index = 0; index < refBases.length; ++index)
+			refBases[index] = activeRegion.refRegion.getKmerBase(activeRegion.startIndex + index).baseCharByte;  // Same case as assembled bases
+		
+		// Reference haplotype
+		if (allele == null) {
+			return new Haplotype(
+					refBases, activeRegion,
+					new AlignNode[] {new AlignNode(AlignNode.MATCH, refBases.length, null)},
+					alnWeight.getInitialScore(kSize) + (refBases.length - kSize) * alnWeight.match,
+					null, RegionStats.getStats(refBases, 0, refBases.length, counter, countReverseKmers)
+			);
+		}
+		
+		// Build sequence
+		refEnd = kSize + allele.ref.length();
+		
+		sequence = new byte[refBases.length - allele.ref.length() + allele.alt.length()];
+		
+		System.arraycopy(refBases, 0, sequence, 0, kSize);
+		
+		for (int index = 0; index < allele.alt.length(); ++index)
+			sequence[kSize + index] = (byte) allele.alt.charAt(index);
+		
+		System.arraycopy(refBases, refEnd, sequence, kSize + allele.alt.length(), refBases.length - refEnd);
+		
+		// Trim bases the alleles share (VCF records pad indels with a reference base)
+		prefix = 0;
+		
+		while (prefix < allele.ref.length() && prefix < allele.alt.length() && allele.ref.charAt(prefix) == allele.alt.charAt(prefix))
+			++prefix;
+		
+		suffix = 0;
+		
+		while (suffix < allele.ref.length() - prefix && suffix < allele.alt.length() - prefix &&
+				allele.ref.charAt(allele.ref.length() - suffix - 1) == allele.alt.charAt(allele.alt.length() - suffix - 1))
+			++suffix;
+		
+		nAligned = Math.min(allele.ref.length(), allele.alt.length()) - prefix - suffix;
+		gapLength = Math.abs(allele.ref.length() - allele.alt.length());
+		
+		// Set alignment events and score
+		event = new byte[2 * kSize + prefix + nAligned + gapLength + suffix];
+		eventIndex = 0;
+		
+		score = alnWeight.getInitialScore(kSize);
+		
+		while (eventIndex < kSize + prefix)
+			event[eventIndex++] = AlignNode.MATCH;
+		
+		for (int index = prefix; index < prefix + nAligned; ++index) {
+			
+			if (allele.ref.charAt(index) == allele.alt.charAt(index)) {
+				event[eventIndex++] = AlignNode.MATCH;
+				score += alnWeight.match;
+				
+			} else {
+				event[eventIndex++] = AlignNode.MISMATCH;
+				score += alnWeight.mismatch;
+			}
+		}
+		
+		if (gapLength > 0) {
+			
+			for (int index = 0; index < gapLength; ++index)
+				event[eventIndex++] = (allele.ref.length() > allele.alt.length()) ? AlignNode.DEL : AlignNode.INS;
+			
+			score += alnWeight.newGap + (gapLength - 1) * alnWeight.gapExtend;
+		}
+		
+		while (eventIndex < event.length)
+			event[eventIndex++] = AlignNode.MATCH;
+		
+		score += (prefix + suffix + kSize) * alnWeight.match;
+		
+		// Build alignment from the last event
+		alignment = null;
+		runLength = 0;
+		
+		for (eventIndex = event.length - 1; eventIndex >= 0; --eventIndex) {
+			
+			++runLength;
+			
+			if (eventIndex == 0 || event[eventIndex - 1] != event[eventIndex]) {
+				alignment = new AlignNode(event[eventIndex], runLength, alignment);
+				runLength = 0;
+			}
+		}
+		
+		return new Haplotype(
+				sequence, activeRegion,
+				new AlignNode[] {alignment},
+				score,
+				null, RegionStats.getStats(sequence, 0, sequence.length, counter, countReverseKmers)
+		);
+	}
+	
+	/**
+	 * Determine if the reference bases of an allele match the reference region.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param startIndex Index of the first reference base of the allele in the region.
+	 * @param ref Reference bases of the allele in upper case.
+	 * 
+	 * @return <code>true</code> if the region has the same bases (ignoring case).
+	 */
+	private static boolean matchesReference(ReferenceRegion refRegion, int startIndex, String ref) {
+		
+		Base base;  // Reference base
+		
+		for (int index = 0; index < ref.length(); ++index) {
+			
+			base = refRegion.getKmerBase(startIndex + index);
+			
+			if (base == null || base.baseCharByte != (byte) ref.charAt(index))
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Set reference k-mer counts over an active region. The region must not contain ambiguous
+	 * bases.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param startKmerIndex Index of the left-end k-mer.
+	 * @param endKmerIndex Index of the right-end k-mer.
+	 * @param count Count array over all k-mers of the reference region. Only elements from
+	 *   <code>startKmerIndex</code> to <code>endKmerIndex</code> (inclusive) are set.
+	 */
+	private void setCounts(ReferenceRegion refRegion, int startKmerIndex, int endKmerIndex, int[] count) {
+		
+		int kSize = kUtil.kSize;  // K-mer size
+		
+		for (int index = startKmerIndex; index < startKmerIndex + kSize - 1; ++index)
+			kUtil.append(kmer, refRegion.getKmerBase(index));
+		
+		for (int kmerIndex = startKmerIndex; kmerIndex <= endKmerIndex; ++kmerIndex) {
+			
+			kUtil.append(kmer, refRegion.getKmerBase(kmerIndex + kSize - 1));
+			
+			if (countReverseKmers) {
+				kUtil.revComplement(kmer, revKmer);
+				count[kmerIndex] = counter.getBothStrands(kmer, revKmer);
+				
+			} else {
+				count[kmerIndex] = counter.get(kmer);
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Find the first allele at or after a position.
+	 * 
+	 * @param alleles Alleles sorted by position.
+	 * @param pos Position.
+	 * 
+	 * @return Index of the first allele with a position that is not less than <code>pos</code>,
+	 *   or <code>alleles.length</code> if there is no such allele.
+	 */
+	private static int findFirst(KnownAllele[] alleles, int pos) {
+		
+		int low = 0;                 // Lowest index that may be the first allele
+		int high = alleles.length;   // Highest index that may be the first allele
+		int mid;                     // Index between low and high
+		
+		while (low < high) {
+			
+			mid = (low + high) >>> 1;
+			
+			if (alleles[mid].pos < pos)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+}
@@ -0,0 +1,167 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.knownallele;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads known alleles from the CHROM, POS, REF, and ALT fields of a VCF file. Files with a name
+ * ending in &quot;.gz&quot; are decompressed. Symbolic alleles, breakends, and alleles with bases
+ * other than <code>A</code>, <code>C</code>, <code>G</code>, and <code>T</code> cannot be
+ * genotyped from k-mers, and they are skipped.
+ */
+public class KnownAlleleReader {
+	
+	/** Logger. */
+	private static final Logger logger = LoggerFactory.getLogger(KnownAlleleReader.class);
+	
+	/** Matches file names of compressed files. */
+	private static final Pattern GZIP_PATTERN = Pattern.compile(".*\\.gz$", Pattern.CASE_INSENSITIVE);
+	
+	/** Matches alleles that can be genotyped. */
+	private static final Pattern ALLELE_PATTERN = Pattern.compile("[ACGTacgt]+");
+	
+	/**
+	 * Hidden constructor.
+	 */
+	private KnownAlleleReader() {
+		return;
+	}
+	
+	/**
+	 * Read known alleles from a VCF file.
+	 * 
+	 * @param vcfFile File to read.
+	 * 
+	 * @return An array of alleles found in the file in the order they were read.
+	 * 
+	 * @throws NullPointerException If <code>vcfFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>vcfFile</code> is not found.
+	 * @throws IOException If there is any error reading the file or with the format
+	 *   of the file contents.
+	 */
+	public static KnownAllele[] read(File vcfFile)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		// Declarations
+		ArrayList<KnownAllele> alleles;  // Alleles to be returned
+		
+		String line;   // Line buffer
+		String[] tok;  // Tokenized line (split on tabs)
+		
+		int lineNum;   // Line number
+		int nSkipped;  // Number of alleles that cannot be genotyped
+		
+		String chrom;  // VCF field: Chromosome name
+		int pos;       // VCF field: Position (first base is 1)
+		String ref;    // VCF field: Reference bases
+		
+		InputStream inStream;  // Input stream
+		
+		// Check arguments
+		if (vcfFile == null)
+			throw new NullPointerException("Cannot open VCF file for reading known alleles: null");
+		
+		// Init
+		alleles = new ArrayList<>();
+		lineNum = 0;
+		nSkipped = 0;
+		
+		inStream = new FileInputStream(vcfFile);  // throws FileNotFoundException
+		
+		try {
+			if (GZIP_PATTERN.matcher(vcfFile.getName()).matches())
+				inStream = new GZIPInputStream(inStream);  // throws IOException
+			
+		} catch (IOException ex) {
+			inStream.close();
+			throw ex;
+		}
+		
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(inStream))) {
+			
+			// Read VCF file
+			READ_VCF:
+			while ((line = reader.readLine()) != null) {
+				++lineNum;
+				
+				// Skip headers and blank lines
+				if (line.isEmpty() || line.startsWith("#"))
+					continue READ_VCF;
+				
+				// Split fields
+				tok = line.split("\t");
+				
+				if (tok.length < 5)
+					throw new IOException(String.format("Bad VCF record on line %d in file %s: Must contain at least 5 fields, but only found %d", lineNum, vcfFile.getPath(), tok.length));
+				
+				// Get chromosome
+				chrom = tok[0].trim();
+				
+				if (chrom.isEmpty())
+					throw new IOException(String.format("Bad VCF record on line %d in file %s: Chromosome name (first field) is empty", lineNum, vcfFile.getPath()));
+				
+				// Get position
+				try {
+					pos = Integer.parseInt(tok[1].trim());
+					
+					if (pos < 1)
+						throw new IOException(String.format("Bad VCF record on line %d in file %s: Position (second field) is less than 1: %d", lineNum, vcfFile.getPath(), pos));
+					
+				} catch (NumberFormatException ex) {
+					throw new IOException(String.format("Bad VCF record on line %d in file %s: Position (second field) is not an integer: %s", lineNum, vcfFile.getPath(), tok[1]));
+				}
+				
+				// Get reference
+				ref = tok[3].trim();
+				
+				if (ref.isEmpty())
+					throw new IOException(String.format("Bad VCF record on line %d in file %s: Reference allele (fourth field) is empty", lineNum, vcfFile.getPath()));
+				
+				// Get alternate alleles
+				for (String alt : tok[4].trim().split(",")) {
+					
+					if (! ALLELE_PATTERN.matcher(ref).matches() || ! ALLELE_PATTERN.matcher(alt).matches() || ref.equalsIgnoreCase(alt)) {
+						logger.trace("Skipping known allele on line {} in file {}: Cannot genotype {} > {}", lineNum, vcfFile.getPath(), ref, alt);
+						
+						++nSkipped;
+						continue;
+					}
+					
+					alleles.add(new KnownAllele(chrom, pos, ref, alt));
+				}
+			}
+		}
+		
+		if (nSkipped > 0)
+			logger.warn("Skipped {} known alleles that cannot be genotyped (symbolic, missing, or ambiguous alleles): {}", nSkipped, vcfFile.getPath());
+		
+		return alleles.toArray(new KnownAllele[alleles.size()]);
+	}
+}
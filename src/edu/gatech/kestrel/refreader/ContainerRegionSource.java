@@ -0,0 +1,99 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.util.Iterator;
+
+/**
+ * A source of reference regions that were all read into a container. Each batch is every region
+ * of one reference sequence, and sequences are returned in the order of the container.
+ */
+public class ContainerRegionSource extends ReferenceRegionSource {
+	
+	/** Container of reference regions. */
+	public final ReferenceRegionContainer refRegionContainer;
+	
+	/** Iterator over reference sequences in this pass. */
+	private Iterator<ReferenceSequence> refSequenceIterator;
+	
+	/**
+	 * Create a source of regions in a container.
+	 * 
+	 * @param refRegionContainer Container of reference regions. If the container is sorted, the
+	 *   regions are returned in that order.
+	 * 
+	 * @throws NullPointerException If <code>refRegionContainer</code> is <code>null</code>.
+	 */
+	public ContainerRegionSource(ReferenceRegionContainer refRegionContainer)
+			throws NullPointerException {
+		
+		if (refRegionContainer == null)
+			throw new NullPointerException("Reference region container is null");
+		
+		this.refRegionContainer = refRegionContainer;
+		
+		refSequenceIterator = refRegionContainer.refSequenceIterator();
+		
+		return;
+	}
+	
+	/**
+	 * Get the reference sequences this source has regions for.
+	 * 
+	 * @return An array of reference sequences in the order of the container.
+	 */
+	@Override
+	public ReferenceSequence[] getReferenceSequenceArray() {
+		return refRegionContainer.getReferenceSequenceArray();
+	}
+	
+	/**
+	 * Determine if this source is empty.
+	 * 
+	 * @return <code>true</code> if the container has no reference regions.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return refRegionContainer.isEmpty();
+	}
+	
+	/**
+	 * Start a new pass over the regions in the container.
+	 */
+	@Override
+	public void reset() {
+		
+		refSequenceIterator = refRegionContainer.refSequenceIterator();
+		
+		return;
+	}
+	
+	/**
+	 * Get the regions of the next reference sequence.
+	 * 
+	 * @return An array of reference regions, or <code>null</code> if there are no more reference
+	 *   sequences in this pass.
+	 */
+	@Override
+	public ReferenceRegion[] next() {
+		
+		if (! refSequenceIterator.hasNext())
+			return null;
+		
+		return refRegionContainer.get(refSequenceIterator.next());
+	}
+}
@@ -0,0 +1,565 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An index of the sequences in a FASTA file in the format written by <code>samtools faidx</code>.
+ * Each sequence has one record with its name, length, the file offset of its first base, the number
+ * of bases on each line, and the number of bytes on each line including the line terminator.
+ * Every line of a sequence except the last must be the same length, and with this constraint, the
+ * file offset of any base can be computed without reading the sequence.
+ */
+public class FastaIndex {
+	
+	/** Logger. */
+	private static final Logger logger = LoggerFactory.getLogger(FastaIndex.class);
+	
+	/** Index entries in the order they appear in the FASTA file. */
+	private final Entry[] entries;
+	
+	/** Map from sequence names to entries. */
+	private final Map<String, Entry> entryMap;
+	
+	/** Suffix added to the name of a FASTA file to get the name of its index file. */
+	public static final String INDEX_SUFFIX = ".fai";
+	
+	/** Size of the buffer for reading the FASTA file when building an index. */
+	private static final int READ_BUFFER_SIZE = 65536;
+	
+	/**
+	 * Create an index.
+	 * 
+	 * @param entryList List of entries in the order they appear in the FASTA file.
+	 * 
+	 * @throws IllegalArgumentException If two entries have the same sequence name.
+	 */
+	private FastaIndex(List<Entry> entryList)
+			throws IllegalArgumentException {
+		
+		assert (entryList != null) :
+			"Entry list is null";
+		
+		entries = entryList.toArray(new Entry[entryList.size()]);
+		entryMap = new HashMap<>();
+		
+		for (Entry entry : entries) {
+			if (entryMap.put(entry.name, entry) != null)
+				throw new IllegalArgumentException("Duplicate sequence name in FASTA index: " + entry.name);
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the index entry for a sequence.
+	 * 
+	 * @param name Sequence name.
+	 * 
+	 * @return The entry for the sequence named <code>name</code> or <code>null</code> if this index
+	 *   has no sequence with that name.
+	 */
+	public Entry getEntry(String name) {
+		return entryMap.get(name);
+	}
+	
+	/**
+	 * Get all entries in this index.
+	 * 
+	 * @return An array of entries in the order the sequences appear in the FASTA file.
+	 */
+	public Entry[] getEntries() {
+		return entries.clone();
+	}
+	
+	/**
+	 * Get the number of sequences in this index.
+	 * 
+	 * @return Number of sequences.
+	 */
+	public int size() {
+		return entries.length;
+	}
+	
+	/**
+	 * Write this index.
+	 * 
+	 * @param indexFile Index file to write.
+	 * 
+	 * @throws NullPointerException If <code>indexFile</code> is <code>null</code>.
+	 * @throws IOException If an error occurs while writing the file.
+	 */
+	public void write(File indexFile)
+			throws NullPointerException, IOException {
+		
+		if (indexFile == null)
+			throw new NullPointerException("Cannot write FASTA index to file: null");
+		
+		try (PrintWriter writer = new PrintWriter(indexFile)) {
+			
+			for (Entry entry : entries)
+				writer.printf("%s\t%d\t%d\t%d\t%d\n", entry.name, entry.length, entry.offset, entry.lineBases, entry.lineWidth);
+			
+			if (writer.checkError())
+				throw new IOException("Error writing FASTA index: " + indexFile.getPath());
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get the index of a FASTA file. If the index file exists and is not older than the FASTA
+	 * file, it is read. Otherwise, the index is built from the FASTA file and written to the index
+	 * file. If the index file cannot be written, the index is still returned.
+	 * 
+	 * @param fastaFile FASTA file.
+	 * 
+	 * @return An index of <code>fastaFile</code>.
+	 * 
+	 * @throws NullPointerException If <code>fastaFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>fastaFile</code> does not exist.
+	 * @throws IOException If an error occurs while reading the files or if the lines of a sequence
+	 *   in the FASTA file are not the same length.
+	 * 
+	 * @see #INDEX_SUFFIX
+	 */
+	public static FastaIndex get(File fastaFile)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		File indexFile;    // Index of fastaFile
+		FastaIndex index;  // Index to return
+		
+		// Check arguments
+		if (fastaFile == null)
+			throw new NullPointerException("Cannot get index for FASTA file: null");
+		
+		if (! fastaFile.isFile())
+			throw new FileNotFoundException("Cannot get index for FASTA file: File not found: " + fastaFile.getPath());
+		
+		indexFile = new File(fastaFile.getPath() + INDEX_SUFFIX);
+		
+		// Read an existing index
+		if (indexFile.isFile() && indexFile.lastModified() >= fastaFile.lastModified()) {
+			logger.trace("Reading FASTA index: {}", indexFile.getPath());
+			
+			return read(indexFile);
+		}
+		
+		// Build index
+		logger.info("Indexing FASTA file: {}", fastaFile.getPath());
+		
+		index = build(fastaFile);
+		
+		try {
+			index.write(indexFile);
+			
+		} catch (IOException ex) {
+			logger.warn("Cannot write FASTA index (the index will be built again on the next run): {}: {}", indexFile.getPath(), ex.getMessage());
+			
+			indexFile.delete();
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Read an index file.
+	 * 
+	 * @param indexFile Index file.
+	 * 
+	 * @return Index read from <code>indexFile</code>.
+	 * 
+	 * @throws NullPointerException If <code>indexFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>indexFile</code> does not exist.
+	 * @throws IOException If an error occurs while reading the file or if the file is not
+	 *   formatted correctly.
+	 */
+	public static FastaIndex read(File indexFile)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		// Declarations
+		List<Entry> entryList;  // Entries read
+		
+		String line;   // Line buffer
+		String[] tok;  // Tokenized line (split on tabs)
+		int lineNum;   // Line number
+		
+		// Check arguments
+		if (indexFile == null)
+			throw new NullPointerException("Cannot read FASTA index file: null");
+		
+		// Init
+		entryList = new ArrayList<>();
+		lineNum = 0;
+		
+		// Read
+		try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {  // throws FileNotFoundException
+			
+			while ((line = reader.readLine()) != null) {
+				++lineNum;
+				
+				if (line.isEmpty())
+					continue;
+				
+				tok = line.split("\t");
+				
+				if (tok.length < 5)
+					throw new IOException(String.format("Bad FASTA index record on line %d in file %s: Must contain at least 5 fields, but only found %d", lineNum, indexFile.getPath(), tok.length));
+				
+				try {
+					entryList.add(new Entry(tok[0], Long.parseLong(tok[1]), Long.parseLong(tok[2]), Integer.parseInt(tok[3]), Integer.parseInt(tok[4])));
+					
+				} catch (NumberFormatException ex) {
+					throw new IOException(String.format("Bad FASTA index record on line %d in file %s: Length, offset, and line size fields must be integers: %s", lineNum, indexFile.getPath(), line));
+					
+				} catch (IllegalArgumentException ex) {
+					throw new IOException(String.format("Bad FASTA index record on line %d in file %s: %s", lineNum, indexFile.getPath(), ex.getMessage()));
+				}
+			}
+		}
+		
+		try {
+			return new FastaIndex(entryList);
+			
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(String.format("Bad FASTA index file %s: %s", indexFile.getPath(), ex.getMessage()));
+		}
+	}
+	
+	/**
+	 * Build an index by reading a FASTA file.
+	 * 
+	 * @param fastaFile FASTA file.
+	 * 
+	 * @return Index of <code>fastaFile</code>.
+	 * 
+	 * @throws NullPointerException If <code>fastaFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>fastaFile</code> does not exist.
+	 * @throws IOException If an error occurs while reading the file or if the file cannot be
+	 *   indexed. Files cannot be indexed if the lines of a sequence (except the last line) are not
+	 *   the same length or if two sequences have the same name.
+	 */
+	public static FastaIndex build(File fastaFile)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		// Declarations
+		List<Entry> entryList;  // Entries read
+		
+		byte[] buffer;     // Read buffer
+		int bufferSize;    // Number of bytes in buffer
+		int bufferIndex;   // Index of the next byte in buffer
+		long fileOffset;   // Offset of buffer[0] in the file
+		byte nextByte;     // Byte at bufferIndex
+		
+		StringBuilder nameBuilder;  // Builds the sequence name from a FASTA header
+		boolean inHeader;           // True while reading a header line
+		boolean inName;             // True while reading the name in a header line
+		
+		String name;         // Name of the current sequence or null before the first header
+		long length;         // Number of bases in the current sequence
+		long offset;         // File offset of the first base of the current sequence
+		int lineBases;       // Number of bases on the first line of the current sequence
+		int lineWidth;       // Number of bytes on the first line of the current sequence
+		int lineNum;         // Line number of the current line
+		int nLineBases;      // Number of bases on the current line
+		int nLineBytes;      // Number of bytes on the current line
+		boolean shortLine;   // True if a line of the current sequence was shorter than lineBases
+		
+		// Check arguments
+		if (fastaFile == null)
+			throw new NullPointerException("Cannot index FASTA file: null");
+		
+		// Init
+		entryList = new ArrayList<>();
+		
+		buffer = new byte[READ_BUFFER_SIZE];
+		fileOffset = 0;
+		
+		nameBuilder = new StringBuilder();
+		inHeader = false;
+		inName = false;
+		
+		name = null;
+		length = 0;
+		offset = 0;
+		lineBases = 0;
+		lineWidth = 0;
+		lineNum = 1;
+		nLineBases = 0;
+		nLineBytes = 0;
+		shortLine = false;
+		
+		// Read
+		try (InputStream inStream = new BufferedInputStream(new FileInputStream(fastaFile))) {  // throws FileNotFoundException
+			
+			while ((bufferSize = inStream.read(buffer)) > 0) {
+				
+				for (bufferIndex = 0; bufferIndex < bufferSize; ++bufferIndex) {
+					nextByte = buffer[bufferIndex];
+					
+					// Header
+					if (inHeader) {
+						
+						if (nextByte == '\n') {
+							inHeader = false;
+							inName = false;
+							
+							name = nameBuilder.toString();
+							
+							if (name.isEmpty())
+								throw new IOException(String.format("Cannot index FASTA file %s: Sequence name is empty on line %d", fastaFile.getPath(), lineNum));
+							
+							offset = fileOffset + bufferIndex + 1;
+							++lineNum;
+							
+						} else if (inName) {
+							
+							if (Character.isWhitespace(nextByte))
+								inName = false;
+							else
+								nameBuilder.append((char) (nextByte & 0xFF));
+						}
+						
+						continue;
+					}
+					
+					// End of line
+					if (nextByte == '\n') {
+						++nLineBytes;
+						
+						if (nLineBases == 0) {
+							shortLine = true;  // Blank line: No bases may follow in this sequence
+							
+						} else if (lineBases == 0) {
+							lineBases = nLineBases;
+							lineWidth = nLineBytes;
+							
+						} else if (nLineBases > lineBases || nLineBases == lineBases && nLineBytes != lineWidth) {
+							throw new IOException(String.format("Cannot index FASTA file %s: Lines of sequence %s are not the same length (line %d)", fastaFile.getPath(), name, lineNum));
+							
+						} else if (nLineBases < lineBases) {
+							shortLine = true;
+						}
+						
+						nLineBases = 0;
+						nLineBytes = 0;
+						++lineNum;
+						
+						continue;
+					}
+					
+					// Start of header
+					if (nextByte == '>' && nLineBytes == 0) {
+						
+						if (name != null)
+							entryList.add(newEntry(fastaFile, name, length, offset, lineBases, lineWidth));
+						
+						inHeader = true;
+						inName = true;
+						nameBuilder.setLength(0);
+						
+						length = 0;
+						lineBases = 0;
+						lineWidth = 0;
+						shortLine = false;
+						
+						continue;
+					}
+					
+					// Sequence
+					++nLineBytes;
+					
+					if (nextByte == '\r')
+						continue;
+					
+					if (name == null)
+						throw new IOException(String.format("Cannot index FASTA file %s: Sequence data found before the first header on line %d", fastaFile.getPath(), lineNum));
+					
+					if (Character.isWhitespace(nextByte))
+						throw new IOException(String.format("Cannot index FASTA file %s: Sequence %s contains whitespace (line %d)", fastaFile.getPath(), name, lineNum));
+					
+					if (shortLine)
+						throw new IOException(String.format("Cannot index FASTA file %s: Lines of sequence %s are not the same length (line %d)", fastaFile.getPath(), name, lineNum));
+					
+					++nLineBases;
+					++length;
+				}
+				
+				fileOffset += bufferSize;
+			}
+		}
+		
+		// Add the last sequence
+		if (inHeader)
+			throw new IOException(String.format("Cannot index FASTA file %s: File ends in a header line", fastaFile.getPath()));
+		
+		if (lineBases > 0 && nLineBases > lineBases)
+			throw new IOException(String.format("Cannot index FASTA file %s: Lines of sequence %s are not the same length (line %d)", fastaFile.getPath(), name, lineNum));
+		
+		if (name != null) {
+			
+			if (lineBases == 0) {  // One line without a line terminator
+				lineBases = nLineBases;
+				lineWidth = nLineBytes;
+			}
+			
+			entryList.add(newEntry(fastaFile, name, length, offset, lineBases, lineWidth));
+		}
+		
+		try {
+			return new FastaIndex(entryList);
+			
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(String.format("Cannot index FASTA file %s: %s", fastaFile.getPath(), ex.getMessage()));
+		}
+	}
+	
+	/**
+	 * Create an entry while building an index.
+	 * 
+	 * @param fastaFile FASTA file the entry is for.
+	 * @param name Sequence name.
+	 * @param length Number of bases.
+	 * @param offset File offset of the first base.
+	 * @param lineBases Number of bases on each line.
+	 * @param lineWidth Number of bytes on each line.
+	 * 
+	 * @return A new entry.
+	 * 
+	 * @throws IOException If the entry is not valid.
+	 */
+	private static Entry newEntry(File fastaFile, String name, long length, long offset, int lineBases, int lineWidth)
+			throws IOException {
+		
+		try {
+			return new Entry(name, length, offset, lineBases, lineWidth);
+			
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(String.format("Cannot index FASTA file %s: %s", fastaFile.getPath(), ex.getMessage()));
+		}
+	}
+	
+	/**
+	 * One sequence in a FASTA index.
+	 */
+	public static class Entry {
+		
+		/** Sequence name. This is everything in the header line up to the first whitespace character. */
+		public final String name;
+		
+		/** Number of bases in the sequence. */
+		public final long length;
+		
+		/** File offset of the first base. */
+		public final long offset;
+		
+		/** Number of bases on each line. */
+		public final int lineBases;
+		
+		/** Number of bytes on each line including the line terminator. */
+		public final int lineWidth;
+		
+		/**
+		 * Create an entry.
+		 * 
+		 * @param name Sequence name.
+		 * @param length Number of bases.
+		 * @param offset File offset of the first base.
+		 * @param lineBases Number of bases on each line.
+		 * @param lineWidth Number of bytes on each line including the line terminator.
+		 * 
+		 * @throws NullPointerException If <code>name</code> is <code>null</code>.
+		 * @throws IllegalArgumentException If <code>name</code> is empty, <code>length</code> or
+		 *   <code>offset</code> is negative, or if the line sizes are not valid for a sequence
+		 *   with <code>length</code> bases.
+		 */
+		public Entry(String name, long length, long offset, int lineBases, int lineWidth)
+				throws NullPointerException, IllegalArgumentException {
+			
+			// Check arguments
+			if (name == null)
+				throw new NullPointerException("Sequence name is null");
+			
+			name = name.trim();
+			
+			if (name.isEmpty())
+				throw new IllegalArgumentException("Sequence name is empty");
+			
+			if (length < 0)
+				throw new IllegalArgumentException(String.format("Sequence length is negative for sequence %s: %d", name, length));
+			
+			if (offset < 0)
+				throw new IllegalArgumentException(String.format("File offset is negative for sequence %s: %d", name, offset));
+			
+			if (length > 0 && (lineBases < 1 || lineWidth < lineBases))
+				throw new IllegalArgumentException(String.format("Bad line size for sequence %s: bases = %d, bytes = %d", name, lineBases, lineWidth));
+			
+			// Set fields
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+			
+			return;
+		}
+		
+		/**
+		 * Get the file offset of a base.
+		 * 
+		 * @param index Index of the base where the first base of the sequence is <code>0</code>.
+		 * 
+		 * @return File offset of the base.
+		 */
+		public long getOffset(long index) {
+			
+			assert (index >= 0 && index <= length) :
+				String.format("Base index is not in range [0, %d]: %d", length, index);
+			
+			if (lineBases == 0)
+				return offset;
+			
+			return offset + (index / lineBases) * lineWidth + (index % lineBases);
+		}
+		
+		/**
+		 * Get a string representing this entry.
+		 * 
+		 * @return A string representing this entry.
+		 */
+		@Override
+		public String toString() {
+			return String.format("FastaIndex.Entry[name=%s, length=%d, offset=%d, lineBases=%d, lineWidth=%d]", name, length, offset, lineBases, lineWidth);
+		}
+	}
+}
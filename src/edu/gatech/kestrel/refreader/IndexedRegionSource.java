@@ -0,0 +1,613 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kanalyze.comp.reader.FileSequenceSource;
+import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kestrel.interval.RegionInterval;
+import edu.gatech.kestrel.util.digest.Digest;
+import edu.gatech.kestrel.util.digest.NullMessageDigest;
+
+/**
+ * A source of reference regions read from indexed FASTA files when they are requested. The
+ * reference sequences and their digests are found when the source is created, but the bases of a
+ * region are only read when the batch containing it is returned by <code>next()</code>. A batch
+ * is released when the caller no longer references it, so memory is bounded by the largest batch
+ * instead of the whole reference.
+ * <p/>
+ * If read-ahead is enabled, the next batch is read by a background thread while the caller
+ * processes the current one.
+ * 
+ * @see ReferenceReader#openStream(SequenceSource[], Map)
+ */
+public class IndexedRegionSource extends ReferenceRegionSource {
+	
+	/** Logger object. */
+	private final Logger logger = LoggerFactory.getLogger(IndexedRegionSource.class);
+	
+	/** Reader for each FASTA file. */
+	private final MappedFastaReader[] fastaReaders;
+	
+	/** Reference sequences with regions sorted by reference sequence. */
+	private final SequenceRegions[] sequenceRegions;
+	
+	/** Number of bases added to each side of an interval. */
+	private final int flankLength;
+	
+	/** Reverse complement regions on the negative strand if <code>true</code>. */
+	private final boolean reverseComplementNegativeStrand;
+	
+	/** Index of <code>sequenceRegions</code> where the next batch is read from. */
+	private int nextSequenceIndex;
+	
+	/** Index of the next interval of the sequence at <code>nextSequenceIndex</code>. */
+	private int nextIntervalIndex;
+	
+	/** Buffer bases are read into. Grows to the size of the largest region. */
+	private byte[] buffer;
+	
+	/** Reads the next batch in the background, or <code>null</code> if read-ahead is disabled. */
+	private final ExecutorService readAheadExecutor;
+	
+	/** Batch being read in the background, or <code>null</code> if no batch is being read. */
+	private Future<ReferenceRegion[]> readAheadFuture;
+	
+	/**
+	 * A batch stops growing when the regions in it have at least this many bases. A region larger
+	 * than this is returned in its own batch.
+	 */
+	public static final int MAX_BATCH_SIZE = 16 * 1024 * 1024;
+	
+	/** Initial size of <code>buffer</code>. */
+	private static final int INIT_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Create a source of regions from indexed FASTA files. The digest of each reference sequence
+	 * with at least one region is read from the metadata cache or computed, but no region is read.
+	 * 
+	 * @param sources Sequence sources. Each must be a <code>FileSequenceSource</code> of an
+	 *   uncompressed FASTA file.
+	 * @param fastaIndex Index of each source.
+	 * @param intervalMap A map of intervals where regions should be extracted for variant calling,
+	 *   or <code>null</code> to extract the whole of each reference sequence.
+	 * @param flankLength Number of bases added to each side of an interval.
+	 * @param reverseComplementNegativeStrand Reverse complement regions on the negative strand if
+	 *   <code>true</code>.
+	 * @param cacheMetadata Read digests from and add digests to the metadata cache of each source
+	 *   if <code>true</code>.
+	 * @param readAhead Read the next batch in a background thread if <code>true</code>.
+	 * 
+	 * @throws NullPointerException If <code>sources</code> or <code>fastaIndex</code> is
+	 *   <code>null</code>.
+	 * @throws IllegalArgumentException If <code>sources</code> and <code>fastaIndex</code> are
+	 *   not the same length or if <code>flankLength</code> is negative.
+	 * @throws IOException If there is any error reading the files, if an interval is not within
+	 *   its reference sequence, or if a sequence name is found in more than one source.
+	 */
+	public IndexedRegionSource(SequenceSource[] sources, FastaIndex[] fastaIndex, Map<String, RegionInterval[]> intervalMap, int flankLength, boolean reverseComplementNegativeStrand, boolean cacheMetadata, boolean readAhead)
+			throws NullPointerException, IllegalArgumentException, IOException {
+		
+		// Declarations
+		List<SequenceRegions> sequenceRegionList;  // Sequences with regions
+		Set<String> sequenceNameSet;               // Names of sequences found in sources
+		
+		MessageDigest digestEngine;  // Computes the digest of each sequence
+		String digestAlgorithm;      // Algorithm used by digestEngine
+		
+		ReferenceMetadataCache metadataCache;  // Cached digests of the current source or null
+		Digest digest;                         // Digest of the current sequence
+		
+		RegionInterval[] refInterval;         // Intervals on the current sequence
+		ReferenceSequence referenceSequence;  // Current sequence
+		int refSequenceSize;                  // Size of the current sequence
+		
+		boolean complete;  // Set when all files are open and sequences are found
+		
+		// Check arguments
+		if (sources == null)
+			throw new NullPointerException("Cannot read regions from sources: null");
+		
+		if (fastaIndex == null)
+			throw new NullPointerException("Cannot read regions without FASTA indexes: null");
+		
+		if (sources.length != fastaIndex.length)
+			throw new IllegalArgumentException(String.format("Number of sources (%d) does not match the number of FASTA indexes (%d)", sources.length, fastaIndex.length));
+		
+		if (flankLength < 0)
+			throw new IllegalArgumentException("Flank length is negative: " + flankLength);
+		
+		// Init
+		this.flankLength = flankLength;
+		this.reverseComplementNegativeStrand = reverseComplementNegativeStrand;
+		
+		fastaReaders = new MappedFastaReader[sources.length];
+		sequenceRegionList = new ArrayList<>();
+		sequenceNameSet = new HashSet<>();
+		
+		try {
+			digestEngine = MessageDigest.getInstance(ReadCollectorRunner.DIGEST_ALGORITHM);
+			digestAlgorithm = ReadCollectorRunner.DIGEST_ALGORITHM;
+			
+		} catch (NoSuchAlgorithmException ex) {
+			logger.warn("Digest implementation could not be found for message digest algorithm: {}", ReadCollectorRunner.DIGEST_ALGORITHM);
+			
+			digestEngine = new NullMessageDigest();
+			digestAlgorithm = NullMessageDigest.ALGORITHM;
+		}
+		
+		// Find sequences with regions
+		complete = false;
+		
+		try {
+			for (int sourceIndex = 0; sourceIndex < sources.length; ++sourceIndex) {
+				
+				File fastaFile = ((FileSequenceSource) sources[sourceIndex]).file;
+				
+				fastaReaders[sourceIndex] = new MappedFastaReader(fastaFile, fastaIndex[sourceIndex]);  // throws FileNotFoundException
+				
+				metadataCache = cacheMetadata ? getMetadataCache(fastaFile, digestAlgorithm) : null;
+				
+				for (FastaIndex.Entry entry : fastaIndex[sourceIndex].getEntries()) {
+					
+					if (intervalMap != null) {
+						refInterval = intervalMap.get(entry.name);
+						
+						if (refInterval == null || refInterval.length == 0)
+							continue;
+						
+					} else {
+						refInterval = null;
+					}
+					
+					logger.trace("Processing reference: sequence = {}, source = {}", entry.name, sources[sourceIndex].name);
+					
+					if (! sequenceNameSet.add(entry.name))
+						throw new IOException(String.format("Error parsing reference sequence: Sequence %s was found more than once (last found in %s)", entry.name, sources[sourceIndex].name));
+					
+					if (entry.length > Integer.MAX_VALUE)
+						throw new IOException(String.format("Error parsing reference sequence: Sequence %s is longer than the maximum size (%d): %d", entry.name, Integer.MAX_VALUE, entry.length));
+					
+					refSequenceSize = (int) entry.length;
+					
+					// Check intervals (the whole sequence is one interval if no intervals were given)
+					if (refInterval != null) {
+						for (RegionInterval interval : refInterval) {
+							
+							if (interval.end > refSequenceSize)
+								throw new IOException(String.format("Error parsing reference sequence: Reference sequence ends with length %d before reference region was read: %s", refSequenceSize, interval));
+						}
+						
+					} else {
+						try {
+							refInterval = new RegionInterval[] {new RegionInterval(entry.name, entry.name, 1, refSequenceSize, true)};
+							
+						} catch (IllegalArgumentException ex) {
+							throw new IOException("Error parsing reference sequence: " + ex.getMessage(), ex);
+						}
+					}
+					
+					// Get digest
+					digest = (metadataCache != null) ? metadataCache.getDigest(entry.name, entry.length) : null;
+					
+					if (digest == null) {
+						digest = new Digest(fastaReaders[sourceIndex].digest(entry, digestEngine), digestAlgorithm);
+						
+						if (metadataCache != null)
+							metadataCache.put(entry.name, entry.length, digest);
+					}
+					
+					// Create sequence
+					referenceSequence = new ReferenceSequence(entry.name, refSequenceSize, digest, sources[sourceIndex].name);
+					
+					logger.info("Reference sequence {} (length={}, {}={})", referenceSequence.name, referenceSequence.size, referenceSequence.digest.algorithm, referenceSequence.digest.toString());
+					
+					sequenceRegionList.add(new SequenceRegions(referenceSequence, fastaReaders[sourceIndex], entry, refInterval));
+				}
+				
+				// Save digests
+				if (metadataCache != null)
+					writeMetadataCache(metadataCache);
+			}
+			
+			complete = true;
+			
+		} finally {
+			if (! complete)
+				closeReaders();
+		}
+		
+		// Sort sequences
+		sequenceRegions = sequenceRegionList.toArray(new SequenceRegions[sequenceRegionList.size()]);
+		Arrays.sort(sequenceRegions);
+		
+		// Init pass
+		nextSequenceIndex = 0;
+		nextIntervalIndex = 0;
+		
+		buffer = new byte[INIT_BUFFER_SIZE];
+		
+		readAheadExecutor = readAhead ? Executors.newSingleThreadExecutor() : null;
+		readAheadFuture = null;
+		
+		return;
+	}
+	
+	/**
+	 * Get the reference sequences this source has regions for.
+	 * 
+	 * @return An array of reference sequences sorted by name.
+	 */
+	@Override
+	public ReferenceSequence[] getReferenceSequenceArray() {
+		
+		ReferenceSequence[] refSequenceArray;  // Array to return
+		
+		refSequenceArray = new ReferenceSequence[sequenceRegions.length];
+		
+		for (int index = 0; index < sequenceRegions.length; ++index)
+			refSequenceArray[index] = sequenceRegions[index].referenceSequence;
+		
+		return refSequenceArray;
+	}
+	
+	/**
+	 * Determine if this source is empty.
+	 * 
+	 * @return <code>true</code> if no reference sequence has regions.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return sequenceRegions.length == 0;
+	}
+	
+	/**
+	 * Start a new pass over the regions. If a batch is being read ahead, this method waits for it
+	 * and discards it.
+	 * 
+	 * @throws IOException If the thread is interrupted while waiting for a batch being read ahead.
+	 */
+	@Override
+	public void reset()
+			throws IOException {
+		
+		if (readAheadFuture != null) {
+			try {
+				readAheadFuture.get();
+				
+			} catch (ExecutionException ex) {
+				// Discarded batch
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				
+				throw new InterruptedIOException("Interrupted while waiting for reference regions to be read");
+			}
+			
+			readAheadFuture = null;
+		}
+		
+		nextSequenceIndex = 0;
+		nextIntervalIndex = 0;
+		
+		return;
+	}
+	
+	/**
+	 * Get the next batch of reference regions. If read-ahead is enabled, reading the batch after
+	 * it starts in the background.
+	 * 
+	 * @return An array of reference regions, or <code>null</code> if there are no more regions
+	 *   in this pass.
+	 * 
+	 * @throws IOException If an error occurs while reading the regions or if a region contains
+	 *   characters that are not IUPAC bases.
+	 */
+	@Override
+	public ReferenceRegion[] next()
+			throws IOException {
+		
+		ReferenceRegion[] refRegionArray;  // Batch to return
+		
+		// Get batch
+		if (readAheadFuture != null) {
+			try {
+				refRegionArray = readAheadFuture.get();
+				
+			} catch (ExecutionException ex) {
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				
+				throw new IOException("Error reading reference regions: " + ex.getCause().getMessage(), ex.getCause());
+				
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				
+				throw new InterruptedIOException("Interrupted while waiting for reference regions to be read");
+				
+			} finally {
+				readAheadFuture = null;
+			}
+			
+		} else {
+			refRegionArray = readBatch();
+		}
+		
+		// Read the next batch while this batch is processed
+		if (readAheadExecutor != null && nextSequenceIndex < sequenceRegions.length) {
+			readAheadFuture = readAheadExecutor.submit(new Callable<ReferenceRegion[]>() {
+				@Override
+				public ReferenceRegion[] call() throws IOException {
+					return readBatch();
+				}
+			});
+		}
+		
+		return refRegionArray;
+	}
+	
+	/**
+	 * Stop reading ahead and close the FASTA files.
+	 * 
+	 * @throws IOException If an error occurs while closing a file.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		// Wait for the batch being read (closing its file while it is mapped fails the read)
+		try {
+			reset();
+			
+		} finally {
+			if (readAheadExecutor != null)
+				readAheadExecutor.shutdown();
+			
+			closeReaders();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read the batch at the current position and move to the next batch. Regions are added to the
+	 * batch until it reaches <code>MAX_BATCH_SIZE</code> bases or the reference sequence ends.
+	 * 
+	 * @return An array of reference regions, or <code>null</code> if there are no more regions.
+	 * 
+	 * @throws IOException If an error occurs while reading the regions or if a region contains
+	 *   characters that are not IUPAC bases.
+	 */
+	private ReferenceRegion[] readBatch()
+			throws IOException {
+		
+		SequenceRegions refSequence;     // Sequence regions are read from
+		List<ReferenceRegion> regionList;  // Regions in the batch
+		ReferenceRegion referenceRegion;   // Region of the current interval
+		long batchSize;                    // Number of bases in regionList
+		
+		if (nextSequenceIndex >= sequenceRegions.length)
+			return null;
+		
+		// Read regions
+		refSequence = sequenceRegions[nextSequenceIndex];
+		regionList = new ArrayList<>();
+		batchSize = 0;
+		
+		while (nextIntervalIndex < refSequence.refInterval.length && batchSize < MAX_BATCH_SIZE) {
+			referenceRegion = readRegion(refSequence, refSequence.refInterval[nextIntervalIndex++]);
+			
+			regionList.add(referenceRegion);
+			batchSize += referenceRegion.size;
+		}
+		
+		// Move to the next sequence
+		if (nextIntervalIndex == refSequence.refInterval.length) {
+			++nextSequenceIndex;
+			nextIntervalIndex = 0;
+		}
+		
+		logger.trace("Read {} reference regions from {} ({} bases)", regionList.size(), refSequence.referenceSequence.name, batchSize);
+		
+		return regionList.toArray(new ReferenceRegion[regionList.size()]);
+	}
+	
+	/**
+	 * Read one reference region.
+	 * 
+	 * @param refSequence Sequence the region is on.
+	 * @param interval Interval of the region.
+	 * 
+	 * @return The reference region.
+	 * 
+	 * @throws IOException If an error occurs while reading the file or if the region contains
+	 *   characters that are not IUPAC bases.
+	 */
+	private ReferenceRegion readRegion(SequenceRegions refSequence, RegionInterval interval)
+			throws IOException {
+		
+		ReferenceRegion referenceRegion;  // Region to return
+		int leftFlankLength;   // Length of the flank before the interval
+		int rightFlankLength;  // Length of the flank after the interval
+		int size;              // Size of the region with flanks
+		
+		// Get size
+		leftFlankLength = Math.min(flankLength, interval.start - 1);
+		rightFlankLength = Math.min(flankLength, refSequence.referenceSequence.size - interval.end);
+		
+		size = leftFlankLength + interval.end - interval.start + 1 + rightFlankLength;
+		
+		if (size > buffer.length)
+			buffer = new byte[size];
+		
+		// Read
+		refSequence.fastaReader.read(refSequence.entry, interval.start - 1 - leftFlankLength, buffer, 0, size);
+		
+		try {
+			referenceRegion = new ReferenceRegion(refSequence.referenceSequence, interval, buffer, 0, leftFlankLength, rightFlankLength);
+			
+		} catch (IllegalArgumentException ex) {
+			throw new IOException("Error parsing reference sequence: " + ex.getMessage(), ex);
+		}
+		
+		if (reverseComplementNegativeStrand && ! interval.isFwd)
+			referenceRegion.reverseComplement();
+		
+		return referenceRegion;
+	}
+	
+	/**
+	 * Open the metadata cache of a FASTA file. If the cache cannot be opened, a warning is logged.
+	 * 
+	 * @param fastaFile FASTA file.
+	 * @param digestAlgorithm Digest algorithm.
+	 * 
+	 * @return The metadata cache or <code>null</code> if it cannot be opened.
+	 */
+	private ReferenceMetadataCache getMetadataCache(File fastaFile, String digestAlgorithm) {
+		
+		try {
+			return ReferenceMetadataCache.get(fastaFile, digestAlgorithm);
+			
+		} catch (IOException ex) {
+			logger.warn("Cannot open reference metadata cache (digests will be computed): {}", ex.getMessage());
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Write a metadata cache. If it cannot be written, a warning is logged.
+	 * 
+	 * @param metadataCache Metadata cache.
+	 */
+	private void writeMetadataCache(ReferenceMetadataCache metadataCache) {
+		
+		try {
+			metadataCache.write();
+			
+		} catch (IOException ex) {
+			logger.warn("Cannot write reference metadata cache (digests will be computed on the next run): {}: {}", metadataCache.cacheFile.getPath(), ex.getMessage());
+			
+			metadataCache.cacheFile.delete();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Close all open FASTA readers.
+	 * 
+	 * @throws IOException If an error occurs while closing a file. All readers are closed
+	 *   before the first error is thrown.
+	 */
+	private void closeReaders()
+			throws IOException {
+		
+		IOException closeException;  // First error closing a reader
+		
+		closeException = null;
+		
+		for (int index = 0; index < fastaReaders.length; ++index) {
+			
+			if (fastaReaders[index] == null)
+				continue;
+			
+			try {
+				fastaReaders[index].close();
+				
+			} catch (IOException ex) {
+				if (closeException == null)
+					closeException = ex;
+			}
+			
+			fastaReaders[index] = null;
+		}
+		
+		if (closeException != null)
+			throw closeException;
+		
+		return;
+	}
+	
+	/**
+	 * A reference sequence and the intervals regions are read from.
+	 */
+	private static class SequenceRegions implements Comparable<SequenceRegions> {
+		
+		/** Reference sequence. */
+		public final ReferenceSequence referenceSequence;
+		
+		/** Reader of the file the sequence is in. */
+		public final MappedFastaReader fastaReader;
+		
+		/** Index entry of the sequence. */
+		public final FastaIndex.Entry entry;
+		
+		/** Sorted intervals on the sequence. */
+		public final RegionInterval[] refInterval;
+		
+		/**
+		 * Create a sequence with intervals.
+		 * 
+		 * @param referenceSequence Reference sequence.
+		 * @param fastaReader Reader of the file the sequence is in.
+		 * @param entry Index entry of the sequence.
+		 * @param refInterval Sorted intervals on the sequence.
+		 */
+		public SequenceRegions(ReferenceSequence referenceSequence, MappedFastaReader fastaReader, FastaIndex.Entry entry, RegionInterval[] refInterval) {
+			
+			this.referenceSequence = referenceSequence;
+			this.fastaReader = fastaReader;
+			this.entry = entry;
+			this.refInterval = refInterval;
+			
+			return;
+		}
+		
+		/**
+		 * Compare on the reference sequence.
+		 * 
+		 * @param o Other object.
+		 * 
+		 * @return A negative number, zero, or a positive number if this sequence sorts before, with,
+		 *   or after <code>o</code>.
+		 */
+		@Override
+		public int compareTo(SequenceRegions o) {
+			return referenceSequence.compareTo(o.referenceSequence);
+		}
+	}
+}
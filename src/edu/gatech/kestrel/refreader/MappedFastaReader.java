@@ -0,0 +1,221 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Reads bases from an indexed FASTA file by memory-mapping only the bytes that contain them. The
+ * FASTA index gives the file offset of any base, so a region of a sequence is read without
+ * reading the sequences or bases before it.
+ * 
+ * @see FastaIndex
+ */
+public class MappedFastaReader implements Closeable {
+	
+	/** FASTA file. */
+	public final File fastaFile;
+	
+	/** Index of <code>fastaFile</code>. */
+	public final FastaIndex index;
+	
+	/** Open file. */
+	private final RandomAccessFile file;
+	
+	/** Channel of <code>file</code>. */
+	private final FileChannel channel;
+	
+	/** Maximum number of bases read from one mapped segment of the file. */
+	private static final int MAX_MAP_BASES = 1 << 26;
+	
+	/** Number of bases added to the digest engine at a time. */
+	private static final int DIGEST_BUFFER_SIZE = 1 << 20;
+	
+	/**
+	 * Open an indexed FASTA file.
+	 * 
+	 * @param fastaFile FASTA file.
+	 * @param index Index of <code>fastaFile</code>.
+	 * 
+	 * @throws NullPointerException If <code>fastaFile</code> or <code>index</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>fastaFile</code> cannot be opened.
+	 */
+	public MappedFastaReader(File fastaFile, FastaIndex index)
+			throws NullPointerException, FileNotFoundException {
+		
+		// Check arguments
+		if (fastaFile == null)
+			throw new NullPointerException("FASTA file is null");
+		
+		if (index == null)
+			throw new NullPointerException("FASTA index is null");
+		
+		// Set fields
+		this.fastaFile = fastaFile;
+		this.index = index;
+		
+		file = new RandomAccessFile(fastaFile, "r");  // throws FileNotFoundException
+		channel = file.getChannel();
+		
+		return;
+	}
+	
+	/**
+	 * Read bases from a sequence.
+	 * 
+	 * @param entry Index entry of the sequence.
+	 * @param start Index of the first base to read where the first base of the sequence is <code>0</code>.
+	 * @param buffer Buffer bases are copied to.
+	 * @param bufferOffset Index of <code>buffer</code> where the first base is copied.
+	 * @param length Number of bases to read.
+	 * 
+	 * @throws NullPointerException If <code>entry</code> or <code>buffer</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If the bases are not in the sequence or the buffer is too
+	 *   small to hold them.
+	 * @throws IOException If an error occurs while reading the file or if the file is shorter than
+	 *   the index says it is.
+	 */
+	public void read(FastaIndex.Entry entry, long start, byte[] buffer, int bufferOffset, int length)
+			throws NullPointerException, IllegalArgumentException, IOException {
+		
+		// Declarations
+		MappedByteBuffer mappedBuffer;  // Mapped segment of the file
+		long fileStart;   // File offset of the first base in the mapped segment
+		long fileEnd;     // File offset after the last base in the mapped segment
+		
+		int nSegment;     // Number of bases read from the mapped segment
+		int nLine;        // Number of bases to read from the current line
+		int lineSkip;     // Number of line terminator bytes at the end of each line
+		int linePos;      // Index of the next base on the current line
+		int mappedIndex;  // Index of the next base in the mapped segment
+		
+		// Check arguments
+		if (entry == null)
+			throw new NullPointerException("Cannot read bases from sequence: null");
+		
+		if (buffer == null)
+			throw new NullPointerException("Cannot read bases into buffer: null");
+		
+		if (start < 0 || length < 0 || start + length > entry.length)
+			throw new IllegalArgumentException(String.format("Cannot read %d bases from sequence %s at index %d: Sequence length is %d", length, entry.name, start, entry.length));
+		
+		if (bufferOffset < 0 || bufferOffset + length > buffer.length)
+			throw new IllegalArgumentException(String.format("Cannot read %d bases into buffer at index %d: Buffer length is %d", length, bufferOffset, buffer.length));
+		
+		// Init
+		lineSkip = entry.lineWidth - entry.lineBases;
+		
+		// Read one segment at a time
+		while (length > 0) {
+			nSegment = Math.min(length, MAX_MAP_BASES);
+			
+			fileStart = entry.getOffset(start);
+			fileEnd = entry.getOffset(start + nSegment - 1) + 1;
+			
+			if (fileEnd > channel.size())
+				throw new IOException(String.format("FASTA file %s is shorter than its index: Reading %d bases from sequence %s at index %d ends at file offset %d (file size = %d)", fastaFile.getPath(), nSegment, entry.name, start, fileEnd, channel.size()));
+			
+			mappedBuffer = channel.map(FileChannel.MapMode.READ_ONLY, fileStart, fileEnd - fileStart);
+			
+			// Copy bases line by line
+			linePos = (int) (start % entry.lineBases);
+			mappedIndex = 0;
+			
+			start += nSegment;
+			length -= nSegment;
+			
+			while (nSegment > 0) {
+				nLine = Math.min(entry.lineBases - linePos, nSegment);
+				
+				mappedBuffer.position(mappedIndex);
+				mappedBuffer.get(buffer, bufferOffset, nLine);
+				
+				bufferOffset += nLine;
+				nSegment -= nLine;
+				
+				mappedIndex += nLine + lineSkip;
+				linePos = 0;
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Compute the digest of a sequence.
+	 * 
+	 * @param entry Index entry of the sequence.
+	 * @param digestEngine Engine for computing the digest. The engine is reset after the digest is
+	 *   computed.
+	 * 
+	 * @return Digest bytes.
+	 * 
+	 * @throws NullPointerException If <code>entry</code> or <code>digestEngine</code> is <code>null</code>.
+	 * @throws IOException If an error occurs while reading the file or if the file is shorter than
+	 *   the index says it is.
+	 */
+	public byte[] digest(FastaIndex.Entry entry, MessageDigest digestEngine)
+			throws NullPointerException, IOException {
+		
+		byte[] buffer;  // Bases added to the digest engine
+		long start;     // Index of the next base to read
+		int length;     // Number of bases to read
+		
+		// Check arguments
+		if (entry == null)
+			throw new NullPointerException("Cannot compute digest of sequence: null");
+		
+		if (digestEngine == null)
+			throw new NullPointerException("Digest engine is null");
+		
+		// Digest
+		buffer = new byte[(int) Math.min(DIGEST_BUFFER_SIZE, Math.max(entry.length, 1))];
+		start = 0;
+		
+		while (start < entry.length) {
+			length = (int) Math.min(buffer.length, entry.length - start);
+			
+			read(entry, start, buffer, 0, length);
+			digestEngine.update(buffer, 0, length);
+			
+			start += length;
+		}
+		
+		return digestEngine.digest();
+	}
+	
+	/**
+	 * Close the file.
+	 * 
+	 * @throws IOException If an error occurs while closing the file.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		file.close();
+		
+		return;
+	}
+}
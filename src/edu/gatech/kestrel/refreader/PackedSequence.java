@@ -0,0 +1,335 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.util.Arrays;
+
+import edu.gatech.kanalyze.KAnalyzeConstants;
+import edu.gatech.kanalyze.util.Base;
+
+/**
+ * A sequence of bases stored in 2 bits per base. <code>A</code>, <code>C</code>, <code>G</code>, and
+ * <code>T</code> are packed into an array of words, and any other base, such as <code>N</code> or
+ * another IUPAC code, is stored in a sorted table of runs of the same base. Reference sequences
+ * rarely contain bases other than <code>A</code>, <code>C</code>, <code>G</code>, and
+ * <code>T</code> outside of long <code>N</code> runs, so the table is small, and a sequence takes
+ * about one quarter of the memory of an array with one byte per base.
+ */
+public class PackedSequence {
+	
+	/** Number of bases in this sequence. */
+	public final int size;
+	
+	/**
+	 * Packed bases. Base <code>i</code> is stored in bits <code>2 * (i % 32)</code> and
+	 * <code>2 * (i % 32) + 1</code> of word <code>i / 32</code> as the <code>intVal</code>
+	 * of the base. Bases in runs have <code>0</code> in this array.
+	 */
+	private final long[] words;
+	
+	/** Index of the first base of each run of bases that are not packed. */
+	private final int[] runStart;
+	
+	/** Index after the last base of each run (exclusive). */
+	private final int[] runEnd;
+	
+	/** Base in each run. */
+	private final byte[] runBase;
+	
+	/** Translates bytes to base objects or <code>null</code> for ambiguous bases. */
+	private static final Base[] BYTE_TO_BASE = KAnalyzeConstants.getByteToBaseArray();
+	
+	/** Translates packed values to bases. */
+	private static final byte[] PACKED_TO_BYTE = new byte[] {'A', 'C', 'G', 'T'};
+	
+	/** Translates packed values to base objects. */
+	private static final Base[] PACKED_TO_BASE = new Base[] {Base.A, Base.C, Base.G, Base.T};
+	
+	/** Translates bytes to packed values or <code>-1</code> if the byte is stored in a run. */
+	private static final byte[] BYTE_TO_PACKED = new byte[256];
+	
+	static {
+		Arrays.fill(BYTE_TO_PACKED, (byte) -1);
+		
+		BYTE_TO_PACKED['A'] = (byte) Base.A.intVal;
+		BYTE_TO_PACKED['C'] = (byte) Base.C.intVal;
+		BYTE_TO_PACKED['G'] = (byte) Base.G.intVal;
+		BYTE_TO_PACKED['T'] = (byte) Base.T.intVal;
+	}
+	
+	/**
+	 * Pack bases.
+	 * 
+	 * @param buffer Buffer of bases. Bases other than upper-case <code>A</code>, <code>C</code>,
+	 *   <code>G</code>, and <code>T</code> are stored in runs and returned as they appear in
+	 *   this buffer.
+	 * @param offset Index of the first base in <code>buffer</code>.
+	 * @param size Number of bases.
+	 * 
+	 * @throws NullPointerException If <code>buffer</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>offset</code> or <code>size</code> is negative, or
+	 *   if <code>buffer</code> does not contain <code>size</code> bases starting at <code>offset</code>.
+	 */
+	public PackedSequence(byte[] buffer, int offset, int size)
+			throws NullPointerException, IllegalArgumentException {
+		
+		// Declarations
+		int nRun;         // Number of runs
+		int index;        // Index of the current base
+		int runEndIndex;  // Index after the last base of the current run
+		byte packed;      // Packed value of the current base
+		
+		// Check arguments
+		if (buffer == null)
+			throw new NullPointerException("Cannot pack sequence from buffer: null");
+		
+		if (offset < 0 || size < 0 || (long) offset + size > buffer.length)
+			throw new IllegalArgumentException(String.format("Cannot pack %d bases at offset %d from a buffer of size %d", size, offset, buffer.length));
+		
+		// Count runs
+		nRun = 0;
+		
+		for (index = 0; index < size; ++index) {
+			if (BYTE_TO_PACKED[buffer[offset + index] & 0xFF] < 0 && (index == 0 || buffer[offset + index] != buffer[offset + index - 1]))
+				++nRun;
+		}
+		
+		// Init
+		this.size = size;
+		
+		words = new long[(size + 31) >>> 5];
+		runStart = new int[nRun];
+		runEnd = new int[nRun];
+		runBase = new byte[nRun];
+		
+		// Pack
+		nRun = 0;
+		index = 0;
+		
+		while (index < size) {
+			packed = BYTE_TO_PACKED[buffer[offset + index] & 0xFF];
+			
+			if (packed >= 0) {
+				words[index >>> 5] |= (long) packed << ((index & 31) << 1);
+				++index;
+				
+				continue;
+			}
+			
+			// Add run
+			runEndIndex = index + 1;
+			
+			while (runEndIndex < size && buffer[offset + runEndIndex] == buffer[offset + index])
+				++runEndIndex;
+			
+			runStart[nRun] = index;
+			runEnd[nRun] = runEndIndex;
+			runBase[nRun] = buffer[offset + index];
+			++nRun;
+			
+			index = runEndIndex;
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Get a base.
+	 * 
+	 * @param index Index of the base where the first base is <code>0</code>.
+	 * 
+	 * @return The base at <code>index</code>.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If <code>index</code> is negative or is not less than
+	 *   <code>size</code>.
+	 */
+	public byte get(int index)
+			throws ArrayIndexOutOfBoundsException {
+		
+		int run;  // Index of the run containing index
+		
+		if (index < 0 || index >= size)
+			throw new ArrayIndexOutOfBoundsException(String.format("Base index is not in range [0, %d): %d", size, index));
+		
+		if (runStart.length > 0 && (run = findRun(index)) >= 0)
+			return runBase[run];
+		
+		return PACKED_TO_BYTE[(int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3];
+	}
+	
+	/**
+	 * Get a base as a k-mer base.
+	 * 
+	 * @param index Index of the base where the first base is <code>0</code>.
+	 * 
+	 * @return The base at <code>index</code> or <code>null</code> if the base is ambiguous.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If <code>index</code> is negative or is not less than
+	 *   <code>size</code>.
+	 */
+	public Base getBase(int index)
+			throws ArrayIndexOutOfBoundsException {
+		
+		int run;  // Index of the run containing index
+		
+		if (index < 0 || index >= size)
+			throw new ArrayIndexOutOfBoundsException(String.format("Base index is not in range [0, %d): %d", size, index));
+		
+		if (runStart.length > 0 && (run = findRun(index)) >= 0)
+			return BYTE_TO_BASE[runBase[run]];
+		
+		return PACKED_TO_BASE[(int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3];
+	}
+	
+	/**
+	 * Copy bases to a buffer.
+	 * 
+	 * @param start Index of the first base to copy.
+	 * @param buffer Buffer to copy bases to.
+	 * @param bufferOffset Index of <code>buffer</code> where the first base is copied.
+	 * @param length Number of bases to copy.
+	 * 
+	 * @throws NullPointerException If <code>buffer</code> is <code>null</code>.
+	 * @throws ArrayIndexOutOfBoundsException If the bases are not in this sequence or if
+	 *   <code>buffer</code> is too small to hold them.
+	 */
+	public void get(int start, byte[] buffer, int bufferOffset, int length)
+			throws NullPointerException, ArrayIndexOutOfBoundsException {
+		
+		int run;       // Index of the next run
+		int end;       // Index after the last base to copy
+		int index;     // Index of the next base to copy
+		int stop;      // Index where packed bases stop and the next run starts
+		long word;     // Word containing the base at index
+		
+		// Check arguments
+		if (buffer == null)
+			throw new NullPointerException("Cannot copy bases to buffer: null");
+		
+		if (start < 0 || length < 0 || start + length > size || bufferOffset < 0 || bufferOffset + length > buffer.length)
+			throw new ArrayIndexOutOfBoundsException(String.format("Cannot copy %d bases from index %d (size = %d) to buffer at index %d (buffer size = %d)", length, start, size, bufferOffset, buffer.length));
+		
+		// Init
+		end = start + length;
+		index = start;
+		
+		run = (runStart.length > 0) ? findRun(start) : -1;
+		
+		if (run < 0)
+			run = -(run + 1);
+		
+		// Copy
+		while (index < end) {
+			
+			// Copy run
+			if (run < runStart.length && index >= runStart[run]) {
+				stop = Math.min(runEnd[run], end);
+				
+				Arrays.fill(buffer, bufferOffset, bufferOffset + stop - index, runBase[run]);
+				
+				bufferOffset += stop - index;
+				index = stop;
+				++run;
+				
+				continue;
+			}
+			
+			// Copy packed bases up to the next run
+			stop = (run < runStart.length) ? Math.min(runStart[run], end) : end;
+			word = words[index >>> 5] >>> ((index & 31) << 1);
+			
+			while (index < stop) {
+				buffer[bufferOffset++] = PACKED_TO_BYTE[(int) word & 3];
+				
+				if ((++index & 31) == 0 && index < stop)
+					word = words[index >>> 5];
+				else
+					word >>>= 2;
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Copy bases to a new array.
+	 * 
+	 * @param start Index of the first base to copy (inclusive).
+	 * @param end Index after the last base to copy (exclusive).
+	 * 
+	 * @return An array of bases.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If the bases are not in this sequence.
+	 */
+	public byte[] get(int start, int end)
+			throws ArrayIndexOutOfBoundsException {
+		
+		byte[] buffer;  // Array to return
+		
+		if (end < start)
+			throw new ArrayIndexOutOfBoundsException(String.format("End index (%d) is less than start index (%d)", end, start));
+		
+		buffer = new byte[end - start];
+		
+		get(start, buffer, 0, end - start);
+		
+		return buffer;
+	}
+	
+	/**
+	 * Get the number of runs of bases that are not packed.
+	 * 
+	 * @return Number of runs.
+	 */
+	public int getRunCount() {
+		return runStart.length;
+	}
+	
+	/**
+	 * Get the approximate number of bytes this sequence uses.
+	 * 
+	 * @return Approximate number of bytes.
+	 */
+	public long getByteCount() {
+		return words.length * 8L + runStart.length * 9L;
+	}
+	
+	/**
+	 * Find the run containing a base.
+	 * 
+	 * @param index Index of the base.
+	 * 
+	 * @return Index of the run containing the base at <code>index</code>, or if no run contains it,
+	 *   <code>-(r + 1)</code> where <code>r</code> is the index of the next run after it.
+	 */
+	private int findRun(int index) {
+		
+		int run;  // Index of the run starting at or before index
+		
+		run = Arrays.binarySearch(runStart, index);
+		
+		if (run >= 0)
+			return run;
+		
+		run = -(run + 1) - 1;  // Insertion point - 1
+		
+		if (run >= 0 && index < runEnd[run])
+			return run;
+		
+		return -(run + 2);
+	}
+}
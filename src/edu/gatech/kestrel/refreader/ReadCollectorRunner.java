@@ -21,8 +21,10 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -78,6 +80,27 @@ public class ReadCollectorRunner implements Runnable {
 	/** Algorithm used in <code>digestEngine</code>. */
 	private final String digestAlgorithm;
 	
+	/** Metadata caches by sequence source name. */
+	private Map<String, ReferenceMetadataCache> metadataCacheMap;
+	
+	/** Metadata cache of the current sequence source or <code>null</code> if it has no cache. */
+	private ReferenceMetadataCache metadataCache;
+	
+	/** Names of sequences read from the current sequence source. */
+	private Set<String> sourceSequenceNameSet;
+	
+	/**
+	 * Cached digest of the current reference sequence or <code>null</code> if the digest is
+	 * computed from its bases.
+	 */
+	private Digest cachedDigest;
+	
+	/**
+	 * <code>true</code> if the digest of the current reference sequence is added to
+	 * <code>metadataCache</code> when it is computed.
+	 */
+	private boolean cacheSequenceDigest;
+	
 	
 	
 	// For processing intervals
@@ -227,6 +250,12 @@ public class ReadCollectorRunner implements Runnable {
 		this.digestEngine = digestEngine;
 		this.digestAlgorithm = digestAlgorithm;
 		
+		metadataCacheMap = new HashMap<>();
+		metadataCache = null;
+		sourceSequenceNameSet = new HashSet<>();
+		cachedDigest = null;
+		cacheSequenceDigest = false;
+		
 		return;
 	}
 	
@@ -283,6 +312,24 @@ public class ReadCollectorRunner implements Runnable {
 		return reverseComplementNegativeStrand;
 	}
 	
+	/**
+	 * Set metadata caches for sequence sources. When a source has a cache, the digest of each
+	 * sequence in the cache is not computed, and digests that are computed are added to the cache.
+	 * The caller is responsible for writing the caches after this runner completes.
+	 * 
+	 * @param metadataCacheMap Map of metadata caches by sequence source name. If <code>null</code>,
+	 *   no caches are used.
+	 */
+	public void setMetadataCache(Map<String, ReferenceMetadataCache> metadataCacheMap) {
+		
+		if (metadataCacheMap == null)
+			metadataCacheMap = new HashMap<>();
+		
+		this.metadataCacheMap = metadataCacheMap;
+		
+		return;
+	}
+	
 	/**
 	 * Run.
 	 * 
@@ -370,6 +417,14 @@ public class ReadCollectorRunner implements Runnable {
 				refSequenceName = nameTable.getSequenceNameWithDefault(sourceId, sequenceId);
 				sequenceSourceName = nameTable.getSourceNameWithDefault(sourceId);
 				
+				// Set metadata cache
+				metadataCache = metadataCacheMap.get(sequenceSourceName);
+				
+				if (metadataCache != null && ! metadataCache.digestAlgorithm.equals(digestAlgorithm))
+					metadataCache = null;
+				
+				sourceSequenceNameSet.clear();
+				
 				// Get the set of intervals for this reference
 				setIntervalsForReference();
 				
@@ -460,7 +515,9 @@ public class ReadCollectorRunner implements Runnable {
 					lastBatchIndex = batchIndex + intervalEndSeqLength - refSequenceSize;
 				
 				refSequenceSize += lastBatchIndex - batchIndex;
-				digestEngine.update(batch.sequence, batchIndex, lastBatchIndex - batchIndex);
+				
+				if (cachedDigest == null)
+					digestEngine.update(batch.sequence, batchIndex, lastBatchIndex - batchIndex);
 				
 				// Copy if an interval is active
 				if (currentInterval != null || ! doInterval) {
@@ -656,16 +713,17 @@ public class ReadCollectorRunner implements Runnable {
 	 * Flush the list of incomplete reference regions to the set of fully initialized reference
 	 * regions. This method must be called after the entire reference sequence is read. This
 	 * flush also computes the sequence digest and resets the digest engine for the next
-	 * reference sequence.
+	 * reference sequence, or if the digest was cached, it checks the cached size.
 	 * 
 	 * @throws IllegalStateException If the reference sequence is too short and at least one reference
-	 *   region is incomplete.
+	 *   region is incomplete, or if the size of a sequence does not match its cached size.
 	 */
 	private void flushIncompleteReferenceRegions()
 			throws IllegalStateException {
 		
 		ReferenceSequence referenceSequence;
 		ReferenceRegion referenceRegion;
+		Digest digest;
 		
 		// Check for missing and incomplete intervals
 		if (currentInterval != null)
@@ -674,9 +732,24 @@ public class ReadCollectorRunner implements Runnable {
 		if (refIntervalIndex < refInterval.length)
 			throw new IllegalStateException(String.format("Missing intervals for reference sequence %s: Reference was too short to reach the start of interval: %s (reference size = %d)", refSequenceName, refInterval[refIntervalIndex], refSequenceSize));
 		
+		// Get digest (computed for every sequence so the digest engine is reset for the next sequence)
+		if (cachedDigest != null) {
+			
+			if (metadataCache.getDigest(refSequenceName, refSequenceSize) == null)
+				throw new IllegalStateException(String.format("Reference sequence %s does not match its cached size (delete the reference metadata cache and run again): %s", refSequenceName, metadataCache.cacheFile.getPath()));
+			
+			digest = cachedDigest;
+			
+		} else {
+			digest = new Digest(digestEngine.digest(), digestAlgorithm);
+			
+			if (cacheSequenceDigest)
+				metadataCache.put(refSequenceName, refSequenceSize, digest);
+		}
+		
 		// Complete reference regions
 		if (! incompleteRegionList.isEmpty()) {
-			referenceSequence = new ReferenceSequence(refSequenceName, refSequenceSize, new Digest(digestEngine.digest(), digestAlgorithm), sequenceSourceName);
+			referenceSequence = new ReferenceSequence(refSequenceName, refSequenceSize, digest, sequenceSourceName);
 			
 			logger.info("Reference sequence {} (length={}, {}={})", referenceSequence.name, referenceSequence.size, referenceSequence.digest.algorithm, referenceSequence.digest.toString());
 			
@@ -697,7 +770,7 @@ public class ReadCollectorRunner implements Runnable {
 	}
 	
 	/**
-	 * Set intervals for a new reference sequence.
+	 * Set intervals and the cached digest for a new reference sequence.
 	 */
 	private void setIntervalsForReference() {
 		
@@ -717,6 +790,25 @@ public class ReadCollectorRunner implements Runnable {
 		
 		refIntervalIndex = 0;
 		
+		// Get cached digest. Names found more than once in a source are not cached.
+		cachedDigest = null;
+		cacheSequenceDigest = false;
+		
+		if (metadataCache != null) {
+			
+			if (sourceSequenceNameSet.add(refSequenceName)) {
+				ReferenceMetadataCache.Entry cacheEntry = metadataCache.get(refSequenceName);
+				
+				if (cacheEntry != null)
+					cachedDigest = cacheEntry.digest;
+				else
+					cacheSequenceDigest = true;
+				
+			} else {
+				metadataCache.remove(refSequenceName);
+			}
+		}
+		
 		// Set interval state
 		setNextInterval();
 	}
@@ -0,0 +1,567 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.kestrel.util.digest.Digest;
+import edu.gatech.kestrel.util.digest.NullMessageDigest;
+
+/**
+ * A cache of reference sequence sizes and digests stored in a file next to a reference file. Computing
+ * the digest of each sequence requires reading every base of the reference, and with this cache, later
+ * runs on the same reference skip this pass.
+ * <p/>
+ * The cache is only used if the reference file has the same size, modification time, and sampled
+ * checksum as when the cache was written. The sampled checksum is computed over blocks of the file
+ * at evenly spaced offsets, so a change to the file is found without reading all of it even if the
+ * size and modification time did not change.
+ * 
+ * @see #CACHE_SUFFIX
+ */
+public class ReferenceMetadataCache {
+	
+	/** Logger. */
+	private static final Logger logger = LoggerFactory.getLogger(ReferenceMetadataCache.class);
+	
+	/** Reference file. */
+	public final File referenceFile;
+	
+	/** Cache file. */
+	public final File cacheFile;
+	
+	/** Digest algorithm of the digests in this cache. */
+	public final String digestAlgorithm;
+	
+	/** Key of the reference file when this cache was opened. */
+	private final FileKey fileKey;
+	
+	/** Cached sequences by name. */
+	private final Map<String, Entry> entryMap;
+	
+	/** <code>true</code> if entries were added or removed since this cache was read. */
+	private boolean modified;
+	
+	/** Suffix added to the name of a reference file to get the name of its cache file. */
+	public static final String CACHE_SUFFIX = ".kmeta";
+	
+	/** Suffix of temporary files a cache is written to before it is moved to its cache file. */
+	public static final String TEMP_SUFFIX = ".part";
+	
+	/** First line of a cache file. */
+	private static final String CACHE_HEADER = "#kestrel-reference-metadata\t1";
+	
+	/** Number of blocks in the sampled checksum. */
+	private static final int SAMPLE_COUNT = 16;
+	
+	/** Size of each block in the sampled checksum. */
+	private static final int SAMPLE_SIZE = 4096;
+	
+	/**
+	 * Create a cache.
+	 * 
+	 * @param referenceFile Reference file.
+	 * @param digestAlgorithm Digest algorithm.
+	 * @param fileKey Key of the reference file.
+	 */
+	private ReferenceMetadataCache(File referenceFile, String digestAlgorithm, FileKey fileKey) {
+		
+		assert (referenceFile != null) :
+			"Reference file is null";
+		
+		assert (digestAlgorithm != null) :
+			"Digest algorithm is null";
+		
+		assert (fileKey != null) :
+			"File key is null";
+		
+		this.referenceFile = referenceFile;
+		this.digestAlgorithm = digestAlgorithm;
+		this.fileKey = fileKey;
+		
+		cacheFile = new File(referenceFile.getPath() + CACHE_SUFFIX);
+		entryMap = new LinkedHashMap<>();
+		modified = false;
+		
+		return;
+	}
+	
+	/**
+	 * Get the cached digest of a sequence.
+	 * 
+	 * @param name Sequence name.
+	 * @param size Sequence size.
+	 * 
+	 * @return The digest of sequence <code>name</code>, or <code>null</code> if the sequence is not
+	 *   cached or its cached size is not <code>size</code>.
+	 */
+	public Digest getDigest(String name, long size) {
+		
+		Entry entry = entryMap.get(name);
+		
+		if (entry == null || entry.size != size)
+			return null;
+		
+		return entry.digest;
+	}
+	
+	/**
+	 * Get a cached sequence.
+	 * 
+	 * @param name Sequence name.
+	 * 
+	 * @return The cached sequence named <code>name</code> or <code>null</code> if it is not cached.
+	 */
+	public Entry get(String name) {
+		return entryMap.get(name);
+	}
+	
+	/**
+	 * Add a sequence to this cache.
+	 * 
+	 * @param name Sequence name.
+	 * @param size Sequence size.
+	 * @param digest Sequence digest.
+	 * 
+	 * @throws NullPointerException If <code>name</code> or <code>digest</code> is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>size</code> is negative or <code>digest</code> was
+	 *   not computed with the algorithm of this cache.
+	 */
+	public void put(String name, long size, Digest digest)
+			throws NullPointerException, IllegalArgumentException {
+		
+		Entry entry;  // New entry
+		
+		entry = new Entry(name, size, digest);
+		
+		if (! digest.algorithm.equals(digestAlgorithm))
+			throw new IllegalArgumentException(String.format("Cannot cache digest for sequence %s: Algorithm %s does not match the cache algorithm %s", name, digest.algorithm, digestAlgorithm));
+		
+		if (! entry.equals(entryMap.put(name, entry)))
+			modified = true;
+		
+		return;
+	}
+	
+	/**
+	 * Remove a sequence from this cache.
+	 * 
+	 * @param name Sequence name.
+	 */
+	public void remove(String name) {
+		
+		if (entryMap.remove(name) != null)
+			modified = true;
+		
+		return;
+	}
+	
+	/**
+	 * Write this cache if sequences were added or removed since it was read. The cache is not
+	 * written if the reference file changed since this cache was opened. The cache is written to a
+	 * temporary file in the same directory and moved to the cache file, so a failed or concurrent
+	 * run never leaves a truncated cache.
+	 * 
+	 * @throws IOException If an error occurs while reading the reference file or writing the
+	 *   cache file.
+	 */
+	public void write()
+			throws IOException {
+		
+		File tempFile;  // File the cache is written to before it is moved to cacheFile
+		
+		// Check for changes
+		if (! modified)
+			return;
+		
+		if (! fileKey.equals(getFileKey(referenceFile))) {
+			logger.warn("Not writing reference metadata cache: Reference file changed while it was read: {}", referenceFile.getPath());
+			
+			return;
+		}
+		
+		// Write
+		logger.trace("Writing reference metadata cache: {}", cacheFile.getPath());
+		
+		tempFile = File.createTempFile("." + cacheFile.getName() + "_", TEMP_SUFFIX, cacheFile.getAbsoluteFile().getParentFile());  // throws IOException
+		
+		try {
+			try (PrintWriter writer = new PrintWriter(tempFile)) {
+				
+				writer.printf("%s\n", CACHE_HEADER);
+				writer.printf("#file\t%d\t%d\t%08x\n", fileKey.size, fileKey.lastModified, fileKey.checksum);
+				writer.printf("#digest\t%s\n", digestAlgorithm);
+				
+				for (Entry entry : entryMap.values())
+					writer.printf("%d\t%s\t%s\n", entry.size, entry.digest.toString(), entry.name);
+				
+				if (writer.checkError())
+					throw new IOException("Error writing reference metadata cache: " + tempFile.getPath());
+			}
+			
+			try {
+				Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			
+		} finally {
+			if (tempFile.exists() && ! tempFile.delete())
+				logger.warn("Cannot remove temporary reference metadata cache file: {}", tempFile.getPath());
+		}
+		
+		modified = false;
+		
+		return;
+	}
+	
+	/**
+	 * Open the cache of a reference file. If a cache file exists and the reference file and digest
+	 * algorithm have not changed since it was written, the cached sequences are read. Otherwise, an
+	 * empty cache is returned, and it replaces the cache file when it is written.
+	 * 
+	 * @param referenceFile Reference file.
+	 * @param digestAlgorithm Digest algorithm.
+	 * 
+	 * @return A cache for <code>referenceFile</code> or <code>null</code> if digests computed with
+	 *   <code>digestAlgorithm</code> cannot be cached.
+	 * 
+	 * @throws NullPointerException If <code>referenceFile</code> or <code>digestAlgorithm</code> is
+	 *   <code>null</code>.
+	 * @throws FileNotFoundException If <code>referenceFile</code> does not exist.
+	 * @throws IOException If an error occurs while reading <code>referenceFile</code>.
+	 */
+	public static ReferenceMetadataCache get(File referenceFile, String digestAlgorithm)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		ReferenceMetadataCache cache;  // Cache to return
+		
+		// Check arguments
+		if (referenceFile == null)
+			throw new NullPointerException("Cannot get metadata cache for reference file: null");
+		
+		if (digestAlgorithm == null)
+			throw new NullPointerException("Cannot get metadata cache for digest algorithm: null");
+		
+		if (digestAlgorithm.equals(NullMessageDigest.ALGORITHM))
+			return null;
+		
+		if (! referenceFile.isFile())
+			throw new FileNotFoundException("Cannot get metadata cache for reference file: File not found: " + referenceFile.getPath());
+		
+		// Create cache
+		cache = new ReferenceMetadataCache(referenceFile, digestAlgorithm, getFileKey(referenceFile));  // throws IOException
+		
+		// Read an existing cache
+		if (cache.cacheFile.isFile()) {
+			try {
+				cache.read();
+				
+			} catch (IOException ex) {
+				logger.warn("Ignoring reference metadata cache: {}", ex.getMessage());
+				
+				cache.entryMap.clear();
+				cache.modified = true;
+			}
+		}
+		
+		return cache;
+	}
+	
+	/**
+	 * Read cached sequences from the cache file. If the file was written for a different version
+	 * of the reference file or a different digest algorithm, no sequences are read.
+	 * 
+	 * @throws IOException If an error occurs while reading the cache file or if it is not
+	 *   formatted correctly.
+	 */
+	private void read()
+			throws IOException {
+		
+		String line;   // Line buffer
+		String[] tok;  // Tokenized line (split on tabs)
+		int lineNum;   // Line number
+		
+		lineNum = 0;
+		
+		try (BufferedReader reader = new BufferedReader(new FileReader(cacheFile))) {  // throws FileNotFoundException
+			
+			// Check header
+			line = reader.readLine();
+			
+			if (! CACHE_HEADER.equals(line)) {
+				logger.trace("Ignoring reference metadata cache with an unknown format: {}", cacheFile.getPath());
+				
+				modified = true;
+				return;
+			}
+			
+			line = reader.readLine();
+			
+			if (line == null || ! line.equals(String.format("#file\t%d\t%d\t%08x", fileKey.size, fileKey.lastModified, fileKey.checksum))) {
+				logger.info("Reference changed since its metadata was cached: {}", referenceFile.getPath());
+				
+				modified = true;
+				return;
+			}
+			
+			line = reader.readLine();
+			
+			if (line == null || ! line.equals("#digest\t" + digestAlgorithm)) {
+				logger.trace("Ignoring reference metadata cache with a different digest algorithm: {}", cacheFile.getPath());
+				
+				modified = true;
+				return;
+			}
+			
+			lineNum = 3;
+			
+			// Read entries
+			while ((line = reader.readLine()) != null) {
+				++lineNum;
+				
+				if (line.isEmpty())
+					continue;
+				
+				tok = line.split("\t", 3);
+				
+				if (tok.length < 3)
+					throw new IOException(String.format("Bad reference metadata cache record on line %d in file %s: Must contain 3 fields, but only found %d", lineNum, cacheFile.getPath(), tok.length));
+				
+				try {
+					entryMap.put(tok[2], new Entry(tok[2], Long.parseLong(tok[0]), Digest.parse(tok[1], digestAlgorithm)));
+					
+				} catch (IllegalArgumentException ex) {
+					throw new IOException(String.format("Bad reference metadata cache record on line %d in file %s: %s", lineNum, cacheFile.getPath(), ex.getMessage()));
+				}
+			}
+		}
+		
+		logger.trace("Read {} sequences from reference metadata cache: {}", entryMap.size(), cacheFile.getPath());
+		
+		return;
+	}
+	
+	/**
+	 * Get the key of a file from its size, modification time, and a checksum of sampled blocks.
+	 * 
+	 * @param file File.
+	 * 
+	 * @return Key of <code>file</code>.
+	 * 
+	 * @throws IOException If an error occurs while reading the file.
+	 */
+	private static FileKey getFileKey(File file)
+			throws IOException {
+		
+		long size;         // File size
+		long lastModified; // File modification time
+		CRC32 checksum;    // Checksum of sampled blocks
+		byte[] buffer;     // Read buffer
+		int nSample;       // Number of blocks sampled
+		long offset;       // Offset of the current block
+		int length;        // Length of the current block
+		
+		// Init
+		lastModified = file.lastModified();
+		checksum = new CRC32();
+		
+		// Sample blocks
+		try (RandomAccessFile inFile = new RandomAccessFile(file, "r")) {  // throws FileNotFoundException
+			
+			size = inFile.length();
+			buffer = new byte[SAMPLE_SIZE];
+			
+			nSample = (size > (long) SAMPLE_COUNT * SAMPLE_SIZE) ? SAMPLE_COUNT : (int) ((size + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+			
+			for (int sample = 0; sample < nSample; ++sample) {
+				
+				// Blocks are evenly spaced and include the first and last block of the file
+				if (nSample < SAMPLE_COUNT)
+					offset = (long) sample * SAMPLE_SIZE;
+				else
+					offset = (size - SAMPLE_SIZE) * sample / (SAMPLE_COUNT - 1);
+				
+				length = (int) Math.min(SAMPLE_SIZE, size - offset);
+				
+				inFile.seek(offset);
+				inFile.readFully(buffer, 0, length);
+				
+				checksum.update(buffer, 0, length);
+			}
+		}
+		
+		return new FileKey(size, lastModified, checksum.getValue());
+	}
+	
+	/**
+	 * A cached reference sequence.
+	 */
+	public static class Entry {
+		
+		/** Sequence name. */
+		public final String name;
+		
+		/** Sequence size. */
+		public final long size;
+		
+		/** Sequence digest. */
+		public final Digest digest;
+		
+		/**
+		 * Create an entry.
+		 * 
+		 * @param name Sequence name.
+		 * @param size Sequence size.
+		 * @param digest Sequence digest.
+		 * 
+		 * @throws NullPointerException If <code>name</code> or <code>digest</code> is <code>null</code>.
+		 * @throws IllegalArgumentException If <code>name</code> is empty or <code>size</code> is
+		 *   negative.
+		 */
+		public Entry(String name, long size, Digest digest)
+				throws NullPointerException, IllegalArgumentException {
+			
+			// Check arguments
+			if (name == null)
+				throw new NullPointerException("Sequence name is null");
+			
+			if (name.isEmpty())
+				throw new IllegalArgumentException("Sequence name is empty");
+			
+			if (size < 0)
+				throw new IllegalArgumentException(String.format("Sequence size is negative for sequence %s: %d", name, size));
+			
+			if (digest == null)
+				throw new NullPointerException("Digest is null for sequence " + name);
+			
+			// Set fields
+			this.name = name;
+			this.size = size;
+			this.digest = digest;
+			
+			return;
+		}
+		
+		/**
+		 * Determine if an object is equal to this entry.
+		 * 
+		 * @param o Other object.
+		 * 
+		 * @return <code>true</code> if <code>o</code> is an entry with the same name, size, and digest.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			
+			Entry oEntry;
+			
+			if (! (o instanceof Entry))
+				return false;
+			
+			oEntry = (Entry) o;
+			
+			return name.equals(oEntry.name) && size == oEntry.size && digest.equals(oEntry.digest);
+		}
+		
+		/**
+		 * Get a hash code for this entry.
+		 * 
+		 * @return Hash code for this entry.
+		 */
+		@Override
+		public int hashCode() {
+			return name.hashCode() ^ digest.hashCode();
+		}
+	}
+	
+	/**
+	 * Identifies one version of a file.
+	 */
+	private static class FileKey {
+		
+		/** File size. */
+		public final long size;
+		
+		/** Modification time. */
+		public final long lastModified;
+		
+		/** Checksum of sampled blocks. */
+		public final long checksum;
+		
+		/**
+		 * Create a key.
+		 * 
+		 * @param size File size.
+		 * @param lastModified Modification time.
+		 * @param checksum Checksum of sampled blocks.
+		 */
+		public FileKey(long size, long lastModified, long checksum) {
+			
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+			
+			return;
+		}
+		
+		/**
+		 * Determine if an object is equal to this key.
+		 * 
+		 * @param o Other object.
+		 * 
+		 * @return <code>true</code> if <code>o</code> is a key with the same fields.
+		 */
+		@Override
+		public boolean equals(Object o) {
+			
+			FileKey oKey;
+			
+			if (! (o instanceof FileKey))
+				return false;
+			
+			oKey = (FileKey) o;
+			
+			return size == oKey.size && lastModified == oKey.lastModified && checksum == oKey.checksum;
+		}
+		
+		/**
+		 * Get a hash code for this key.
+		 * 
+		 * @return Hash code for this key.
+		 */
+		@Override
+		public int hashCode() {
+			return (int) (size ^ lastModified ^ checksum);
+		}
+	}
+}
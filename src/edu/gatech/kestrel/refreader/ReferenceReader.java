@@ -18,7 +18,9 @@ package edu.gatech.kestrel.refreader;
 
 import java.io.IOException;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.regex.Pattern;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -29,6 +31,8 @@ import edu.gatech.kanalyze.KAnalyzeConstants;
 import edu.gatech.kanalyze.batch.BatchCache;
 import edu.gatech.kanalyze.batch.SequenceBatch;
 import edu.gatech.kanalyze.batch.SequenceBatchCache;
+import edu.gatech.kanalyze.comp.reader.FileSequenceSource;
+import edu.gatech.kanalyze.comp.reader.SequenceReader;
 import edu.gatech.kanalyze.comp.reader.SequenceSource;
 import edu.gatech.kanalyze.util.BoundedQueue;
 import edu.gatech.kanalyze.util.SequenceNameTable;
@@ -68,12 +72,30 @@ public class ReferenceReader {
 	/** <code>true</code> if regions on the negative strand should be reverse complemented before variant calling. */
 	private boolean reverseComplementNegativeStrand;
 	
+	/** <code>true</code> if intervals are read from indexed FASTA files without reading whole sequences. */
+	private boolean indexFasta;
+	
+	/** <code>true</code> if sequence sizes and digests are cached in a file next to each reference file. */
+	private boolean cacheMetadata;
+	
 	/** Default remove sequence description property. */
 	public static final boolean DEFAULT_REMOVE_SEQUENCE_DESCRIPTION = ReadCollectorRunner.DEFAULT_REMOVE_SEQUENCE_DESCRIPTION;
 	
 	/** Default reverse-complement negative strand regions. */
 	public static final boolean DEFAULT_REVERSE_COMPLEMENT_NEGATIVE_STRAND = false;
 	
+	/** Default property for reading intervals from indexed FASTA files. */
+	public static final boolean DEFAULT_INDEX_FASTA = true;
+	
+	/** Default property for caching sequence sizes and digests next to reference files. */
+	public static final boolean DEFAULT_CACHE_METADATA = true;
+	
+	/** Name of the KAnalyze sequence reader format for FASTA files. */
+	private static final String FASTA_FORMAT = "fasta";
+	
+	/** Name of the KAnalyze sequence reader format that resolves the format by file name. */
+	private static final String AUTO_FORMAT = "auto";
+	
 	
 	/**
 	 * Create a new reference reader.
@@ -107,6 +129,8 @@ public class ReferenceReader {
 		
 		removeSequenceDescription = DEFAULT_REMOVE_SEQUENCE_DESCRIPTION;
 		reverseComplementNegativeStrand = DEFAULT_REVERSE_COMPLEMENT_NEGATIVE_STRAND;
+		indexFasta = DEFAULT_INDEX_FASTA;
+		cacheMetadata = DEFAULT_CACHE_METADATA;
 		
 		runLock = new ReentrantLock();
 		
@@ -227,6 +251,65 @@ public class ReferenceReader {
 		return reverseComplementNegativeStrand;
 	}
 	
+	/**
+	 * Set the property to read intervals from indexed FASTA files. When set and variants are called
+	 * on intervals, each FASTA file is indexed in the format written by <code>samtools faidx</code>,
+	 * and only the bases of each interval and its flanks are read. The index is read from a file
+	 * with the name of the FASTA file and &quot;.fai&quot; appended, and if that file is missing or
+	 * older than the FASTA file, it is built and written. If any reference is not an uncompressed
+	 * FASTA file, it cannot be indexed, or if sequence descriptions are not removed from sequence
+	 * names, every reference sequence is read.
+	 * 
+	 * @param indexFasta Read intervals from indexed FASTA files if <code>true</code>.
+	 * 
+	 * @see #DEFAULT_INDEX_FASTA
+	 * @see FastaIndex
+	 */
+	public void setIndexFasta(boolean indexFasta) {
+		this.indexFasta = indexFasta;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to read intervals from indexed FASTA files.
+	 * 
+	 * @return The &quot;index FASTA&quot; property.
+	 * 
+	 * @see #setIndexFasta(boolean)
+	 */
+	public boolean getIndexFasta() {
+		return indexFasta;
+	}
+	
+	/**
+	 * Set the property to cache sequence sizes and digests in a file next to each reference file.
+	 * When set, the digest of a sequence is read from the cache if the reference file has not
+	 * changed since the cache was written, and the pass over every base to compute the digest is
+	 * skipped. Digests that were computed are added to the cache.
+	 * 
+	 * @param cacheMetadata Cache sequence sizes and digests if <code>true</code>.
+	 * 
+	 * @see #DEFAULT_CACHE_METADATA
+	 * @see ReferenceMetadataCache
+	 */
+	public void setCacheMetadata(boolean cacheMetadata) {
+		this.cacheMetadata = cacheMetadata;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to cache sequence sizes and digests next to reference files.
+	 * 
+	 * @return The &quot;cache metadata&quot; property.
+	 * 
+	 * @see #setCacheMetadata(boolean)
+	 */
+	public boolean getCacheMetadata() {
+		return cacheMetadata;
+	}
+	
 	/**
 	 * Read a sequence source and return a list of reference sequences.
 	 * 
@@ -254,6 +337,8 @@ public class ReferenceReader {
 			
 			// Region container
 			ReferenceRegionContainer refRegionContainer;  // Reference regions read
+			FastaIndex[] fastaIndex;  // Index of each source or null if sources are not indexed
+			Map<String, ReferenceMetadataCache> metadataCacheMap;  // Metadata cache by source name
 			
 			// Reader pipeline
 			ReaderRunner readerRunner;
@@ -272,6 +357,14 @@ public class ReferenceReader {
 				return new ReferenceRegionContainer();
 			}
 			
+			// Read intervals from indexed FASTA files
+			if (indexFasta && intervalMap != null && removeSequenceDescription) {
+				fastaIndex = getFastaIndex(sources);
+				
+				if (fastaIndex != null)
+					return readIndexed(sources, fastaIndex, intervalMap);
+			}
+			
 			// Init data structures
 			refRegionContainer = new ReferenceRegionContainer();
 			nameTable = new SequenceNameTable();
@@ -286,6 +379,9 @@ public class ReferenceReader {
 			collectorRunner.setRemoveDescription(removeSequenceDescription);
 			collectorRunner.setRevComplementNegStrand(reverseComplementNegativeStrand);
 			
+			metadataCacheMap = getMetadataCache(sources);
+			collectorRunner.setMetadataCache(metadataCacheMap);
+			
 			readerRunner.setSource(sources);
 			sequenceQueue.noShutdownIgnoreInterrupt();
 			
@@ -315,6 +411,10 @@ public class ReferenceReader {
 			
 			logger.trace("Done reading sequence sources");
 			
+			// Save digests
+			for (ReferenceMetadataCache metadataCache : metadataCacheMap.values())
+				writeMetadataCache(metadataCache);
+			
 			// Return reference sequences
 			return refRegionContainer;
 			
@@ -323,6 +423,199 @@ public class ReferenceReader {
 		}
 	}
 	
+	/**
+	 * Get an index for each sequence source.
+	 * 
+	 * @param sources Sequence sources.
+	 * 
+	 * @return An array of indexes with one element for each source, or <code>null</code> if any source
+	 *   is not an uncompressed FASTA file or if it cannot be indexed.
+	 */
+	private FastaIndex[] getFastaIndex(SequenceSource[] sources) {
+		
+		FastaIndex[] fastaIndex;  // Array of indexes to return
+		Pattern fastaPattern;     // Pattern of FASTA file names
+		
+		assert (sources != null) :
+			"Sources is null";
+		
+		// Init
+		fastaIndex = new FastaIndex[sources.length];
+		
+		try {
+			fastaPattern = SequenceReader.getFormatPattern(FASTA_FORMAT, loader);
+			
+		} catch (IllegalArgumentException ex) {
+			logger.warn("Reading reference sequences without an index: Cannot get file name pattern for FASTA files: {}", ex.getMessage());
+			
+			return null;
+		}
+		
+		// Index sources
+		for (int index = 0; index < sources.length; ++index) {
+			
+			// Check for an uncompressed FASTA file
+			if (! (sources[index] instanceof FileSequenceSource) ||
+					! (sources[index].formatType.equals(FASTA_FORMAT) ||
+						sources[index].formatType.equals(AUTO_FORMAT) && fastaPattern != null && fastaPattern.matcher(sources[index].name).find())) {
+				
+				logger.trace("Reading reference sequences without an index: Source is not an uncompressed FASTA file: {}", sources[index].name);
+				
+				return null;
+			}
+			
+			// Get index
+			try {
+				fastaIndex[index] = FastaIndex.get(((FileSequenceSource) sources[index]).file);
+				
+			} catch (IOException ex) {
+				logger.warn("Reading reference sequences without an index: {}", ex.getMessage());
+				
+				return null;
+			}
+		}
+		
+		return fastaIndex;
+	}
+	
+	/**
+	 * Open the metadata cache of each sequence source that is a file. If a cache cannot be
+	 * opened, a warning is logged, and digests of the sequences in that source are computed
+	 * without a cache.
+	 * 
+	 * @param sources Sequence sources.
+	 * 
+	 * @return A map of metadata caches by source name. If caching is disabled, the map is empty.
+	 */
+	private Map<String, ReferenceMetadataCache> getMetadataCache(SequenceSource[] sources) {
+		
+		Map<String, ReferenceMetadataCache> metadataCacheMap;  // Map to return
+		ReferenceMetadataCache metadataCache;                  // Cache of one source
+		
+		metadataCacheMap = new HashMap<>();
+		
+		if (! cacheMetadata)
+			return metadataCacheMap;
+		
+		for (SequenceSource source : sources) {
+			
+			if (! (source instanceof FileSequenceSource))
+				continue;
+			
+			try {
+				metadataCache = ReferenceMetadataCache.get(((FileSequenceSource) source).file, ReadCollectorRunner.DIGEST_ALGORITHM);
+				
+				if (metadataCache != null)
+					metadataCacheMap.put(source.name, metadataCache);
+				
+			} catch (IOException ex) {
+				logger.warn("Cannot open reference metadata cache (digests will be computed): {}", ex.getMessage());
+			}
+		}
+		
+		return metadataCacheMap;
+	}
+	
+	/**
+	 * Write a metadata cache. If it cannot be written, a warning is logged.
+	 * 
+	 * @param metadataCache Metadata cache.
+	 */
+	private void writeMetadataCache(ReferenceMetadataCache metadataCache) {
+		
+		try {
+			metadataCache.write();
+			
+		} catch (IOException ex) {
+			logger.warn("Cannot write reference metadata cache (digests will be computed on the next run): {}: {}", metadataCache.cacheFile.getPath(), ex.getMessage());
+			
+			metadataCache.cacheFile.delete();
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Read intervals from indexed FASTA files. Only the bases of each interval and its flanks are
+	 * read, and the digest of each sequence with at least one interval is computed.
+	 * 
+	 * @param sources Sequence sources.
+	 * @param fastaIndex Index of each source.
+	 * @param intervalMap A map of intervals where regions should be extracted for variant calling.
+	 * 
+	 * @return A container with reference regions where variants should be called.
+	 * 
+	 * @throws IOException If there is any error reading the file, if an interval is not within its
+	 *   reference sequence, or if a region contains characters that are not IUPAC bases.
+	 */
+	private ReferenceRegionContainer readIndexed(SequenceSource[] sources, FastaIndex[] fastaIndex, Map<String, RegionInterval[]> intervalMap)
+			throws IOException {
+		
+		// Declarations
+		ReferenceRegionContainer refRegionContainer;  // Reference regions read
+		ReferenceRegion[] refRegionArray;             // Batch of regions read from the source
+		
+		// Init
+		refRegionContainer = new ReferenceRegionContainer();
+		
+		logger.trace("Reading {} indexed sequence sources with {} intervals (flank length = {})", sources.length, intervalMap.size(), flankLength);
+		
+		// Read sources
+		try (IndexedRegionSource regionSource = new IndexedRegionSource(sources, fastaIndex, intervalMap, flankLength, reverseComplementNegativeStrand, cacheMetadata, false)) {
+			
+			while ((refRegionArray = regionSource.next()) != null)
+				refRegionContainer.addAll(refRegionArray, refRegionArray.length);
+		}
+		
+		logger.trace("Done reading sequence sources");
+		
+		return refRegionContainer;
+	}
+	
+	/**
+	 * Open a source that reads reference regions from indexed FASTA files as they are requested
+	 * instead of reading all regions into memory. Sequence digests are computed when the
+	 * source is opened. If the sources cannot be streamed, <code>null</code> is returned, and
+	 * the caller should read them with <code>read()</code>.
+	 * 
+	 * @param sources Sequence sources.
+	 * @param intervalMap A map of intervals where regions should be extracted for variant
+	 *   calling, or <code>null</code> to extract the whole of each reference sequence.
+	 * 
+	 * @return A source of reference regions, or <code>null</code> if <code>sources</code> is
+	 *   empty, if indexing FASTA files or removing sequence descriptions is disabled, or if any
+	 *   source is not an uncompressed FASTA file that can be indexed.
+	 * 
+	 * @throws IOException If there is any error reading the files or if an interval is not
+	 *   within its reference sequence.
+	 * 
+	 * @see #read(SequenceSource[], Map)
+	 */
+	public ReferenceRegionSource openStream(SequenceSource[] sources, Map<String, RegionInterval[]> intervalMap)
+			throws IOException {
+		
+		FastaIndex[] fastaIndex;  // Index of each source
+		
+		// Check state
+		if (sources == null || sources.length == 0)
+			return null;
+		
+		if (! indexFasta || ! removeSequenceDescription) {
+			logger.trace("Cannot stream reference regions: Indexing FASTA files or removing sequence descriptions is disabled");
+			return null;
+		}
+		
+		// Get indexes
+		fastaIndex = getFastaIndex(sources);
+		
+		if (fastaIndex == null)
+			return null;
+		
+		logger.trace("Streaming {} indexed sequence sources with {} intervals (flank length = {})", sources.length, (intervalMap != null) ? intervalMap.size() : 0, flankLength);
+		
+		return new IndexedRegionSource(sources, fastaIndex, intervalMap, flankLength, reverseComplementNegativeStrand, cacheMetadata, true);
+	}
+	
 	/**
 	 * Signal this reader to stop.
 	 */
@@ -16,7 +16,7 @@
 
 package edu.gatech.kestrel.refreader;
 
-import edu.gatech.kanalyze.util.RBTree;
+import edu.gatech.kanalyze.util.Base;
 import edu.gatech.kanalyze.util.StringUtil;
 import edu.gatech.kestrel.interval.RegionInterval;
 
@@ -35,10 +35,13 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 	/** Reference sequence interval this region spans. */
 	public final RegionInterval interval;
 	
-	/** The reference sequence bytes. */
-	public final byte[] sequence;
+	/**
+	 * The reference sequence bases packed 2 bits per base. Use <code>getBaseByIndex()</code>,
+	 * <code>getKmerBase()</code>, or <code>getSequence()</code> to read bases.
+	 */
+	private PackedSequence sequence;
 	
-	/** Size of this sequence (same as <code>sequence.length</code>). */
+	/** Size of this sequence (same as <code>sequence.size</code>). */
 	public final int size;
 	
 	/**
@@ -66,8 +69,18 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 	 */
 	public final int sequenceOffset;
 	
-	/** Contains a record of regions with ambiguous bases in the reference region. */
-	private RBTree<AmbiguousRegion, Boolean> ambiRegions;  // Tree of regions with ambiguous bases
+	/**
+	 * Bit <code>i % 64</code> of word <code>i / 64</code> is set if the base at index <code>i</code>
+	 * is ambiguous, or <code>null</code> if this region has no ambiguous bases.
+	 */
+	private long[] ambiBits;
+	
+	/**
+	 * Number of ambiguous bases before each word of <code>ambiBits</code>. This array has one more
+	 * element than <code>ambiBits</code>, and the last element is the number of ambiguous bases in
+	 * this region. This is <code>null</code> if <code>ambiBits</code> is <code>null</code>.
+	 */
+	private int[] ambiRank;
 	
 	/** Normalizes a base to a capital IUPAC code (omitting gaps, which are not allowed). */
 	private static final byte[] NORM_BASE = new byte[256];
@@ -85,7 +98,7 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		NORM_BASE['C'] = 'C'; NORM_BASE['c'] = 'C';
 		NORM_BASE['G'] = 'G'; NORM_BASE['g'] = 'G';
 		NORM_BASE['T'] = 'T'; NORM_BASE['t'] = 'T';
-		NORM_BASE['U'] = 'U'; NORM_BASE['u'] = 'u';
+		NORM_BASE['U'] = 'U'; NORM_BASE['u'] = 'U';
 		
 		// NORM_BASE: Two bases
 		NORM_BASE['R'] = 'R'; NORM_BASE['r'] = 'R';
@@ -221,10 +234,7 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		this.rightFlankIndex = (int) size - rightFlankLength;
 		
 		// Copy buffer
-		this.sequence = copySequenceFromBuffer(interval, buffer, bufferOffset, (int) size);  // throws IllegalArgumentException
-		
-		// Set ambiguous regions (must be called after sequence and size fields are set)
-		setAmbiguousRegions();
+		setSequence(copySequenceFromBuffer(interval, buffer, bufferOffset, (int) size));  // throws IllegalArgumentException
 		
 		// Set offset
 		sequenceOffset = getSequenceOffset();
@@ -275,10 +285,7 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		this.rightFlankIndex = (int) size;
 		
 		// Copy buffer
-		this.sequence = copySequenceFromBuffer(interval, buffer, bufferOffset, (int) size);  // throws IllegalArgumentException
-		
-		// Set ambiguous regions (must be called after sequence and size fields are set)
-		setAmbiguousRegions();
+		setSequence(copySequenceFromBuffer(interval, buffer, bufferOffset, (int) size));  // throws IllegalArgumentException
 		
 		// Set offset
 		sequenceOffset = getSequenceOffset();
@@ -309,13 +316,12 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		this.name = incompleteRegion.interval.name;
 		this.referenceSequence = referenceSequence;
 		this.interval = incompleteRegion.interval;
-		this.sequence = sequence;
 		this.leftFlankLength = incompleteRegion.leftFlankLength;
 		this.rightFlankIndex = incompleteRegion.rightFlankIndex;
 		this.size = incompleteRegion.size;
 		
-		// Set ambiguous regions (must be called after sequence and size fields are set)
-		setAmbiguousRegions();
+		// Set sequence (must be called after the size field is set)
+		setSequence(sequence);
 		
 		// Set offset
 		sequenceOffset = getSequenceOffset();
@@ -333,6 +339,8 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		int lastIndex = size / 2;
 		byte temp;
 		
+		byte[] sequence = this.sequence.get(0, size);  // Unpacked sequence
+		
 		// Reverse complement
 		while (index < lastIndex) {
 			temp = COMPL_BASE[sequence[index]];
@@ -346,6 +354,9 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		if (size % 2 != 0)
 			sequence[lastIndex] = COMPL_BASE[sequence[lastIndex]];
 		
+		// Repack and index ambiguous bases
+		setSequence(sequence);
+		
 		return;
 	}
 	
@@ -377,7 +388,13 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		if (startIndex < 0 || endIndex < startIndex)
 			throw new IllegalArgumentException(String.format("startTndex must be greater than 0, and endIndex must not be lest than startIndex: startIndex=%d, endIndex=%d", startIndex, endIndex));
 		
-		return ambiRegions.containsKey(new AmbiguousRegion(startIndex, endIndex));
+		if (ambiBits == null || startIndex >= size)
+			return false;
+		
+		if (endIndex >= size)
+			endIndex = size - 1;
+		
+		return getAmbiguousRank(endIndex + 1) != getAmbiguousRank(startIndex);
 	}
 	
 	/**
@@ -398,7 +415,99 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		if (startCoordinate < 0 || endCoordinate < startCoordinate)
 			throw new IllegalArgumentException(String.format("startCoordinate must be greater than 0, and endCoordinate must not be lest than startCoordinate: startCoordinate=%d, endCoordinate=%d", startCoordinate, endCoordinate));
 		
-		return ambiRegions.containsKey(new AmbiguousRegion(startCoordinate - 1, endCoordinate - 1));
+		return containsAmbiguousByIndex(Math.max(0, startCoordinate - 1), endCoordinate - 1);
+	}
+	
+	/**
+	 * Find the next ambiguous base in this region.
+	 * 
+	 * @param index Index where the search starts (inclusive).
+	 * 
+	 * @return Index of the first ambiguous base at or after <code>index</code>, or <code>size</code>
+	 *   if there are no ambiguous bases after <code>index</code>.
+	 * 
+	 * @throws IllegalArgumentException If <code>index</code> is negative.
+	 */
+	public int getNextAmbiguousIndex(int index)
+			throws IllegalArgumentException {
+		
+		int rank;    // Number of ambiguous bases before index
+		int word;    // Index of the word containing the next ambiguous base
+		long bits;   // Bits of word
+		int low;     // Lower bound of the binary search for word
+		int high;    // Upper bound of the binary search for word
+		int mid;     // Middle of low and high
+		
+		if (index < 0)
+			throw new IllegalArgumentException("Index is negative: " + index);
+		
+		if (ambiBits == null || index >= size)
+			return size;
+		
+		// Check the word containing index
+		word = index >>> 6;
+		bits = ambiBits[word] & (-1L << (index & 63));
+		
+		if (bits != 0)
+			return (word << 6) + Long.numberOfTrailingZeros(bits);
+		
+		// Find the first word after it with an ambiguous base
+		rank = ambiRank[word + 1];
+		
+		if (rank == ambiRank[ambiBits.length])
+			return size;
+		
+		low = word + 1;
+		high = ambiBits.length - 1;
+		
+		while (low < high) {
+			mid = (low + high) >>> 1;
+			
+			if (ambiRank[mid + 1] > rank)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		
+		return (low << 6) + Long.numberOfTrailingZeros(ambiBits[low]);
+	}
+	
+	/**
+	 * Find the next unambiguous base in this region. This can be used to skip over a run of
+	 * ambiguous bases, such as <code>N</code>s.
+	 * 
+	 * @param index Index where the search starts (inclusive).
+	 * 
+	 * @return Index of the first unambiguous base at or after <code>index</code>, or
+	 *   <code>size</code> if all bases after <code>index</code> are ambiguous.
+	 * 
+	 * @throws IllegalArgumentException If <code>index</code> is negative.
+	 */
+	public int getNextUnambiguousIndex(int index)
+			throws IllegalArgumentException {
+		
+		int word;   // Index of the current word
+		long bits;  // Unambiguous bases in word at or after index
+		
+		if (index < 0)
+			throw new IllegalArgumentException("Index is negative: " + index);
+		
+		if (ambiBits == null || index >= size)
+			return Math.min(index, size);
+		
+		// Skip words where all bases are ambiguous
+		word = index >>> 6;
+		bits = ~ambiBits[word] & (-1L << (index & 63));
+		
+		while (bits == 0) {
+			
+			if (++word == ambiBits.length)
+				return size;
+			
+			bits = ~ambiBits[word];
+		}
+		
+		return Math.min((word << 6) + Long.numberOfTrailingZeros(bits), size);
 	}
 	
 	/**
@@ -479,7 +588,77 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 			));
 		}
 		
-		return sequence[seqIndex];
+		return sequence.get(seqIndex);
+	}
+	
+	/**
+	 * Get a base from this reference region by its index.
+	 * 
+	 * @param index Index of the base where the first base of this region (including the left flank)
+	 *   is <code>0</code>.
+	 * 
+	 * @return Base at <code>index</code>.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If <code>index</code> is negative or is not less than
+	 *   <code>size</code>.
+	 */
+	public byte getBaseByIndex(int index)
+			throws ArrayIndexOutOfBoundsException {
+		
+		return sequence.get(index);
+	}
+	
+	/**
+	 * Get a base from this reference region as a k-mer base.
+	 * 
+	 * @param index Index of the base where the first base of this region (including the left flank)
+	 *   is <code>0</code>.
+	 * 
+	 * @return Base at <code>index</code> or <code>null</code> if the base is ambiguous.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If <code>index</code> is negative or is not less than
+	 *   <code>size</code>.
+	 */
+	public Base getKmerBase(int index)
+			throws ArrayIndexOutOfBoundsException {
+		
+		return sequence.getBase(index);
+	}
+	
+	/**
+	 * Copy bases from this reference region to a new array.
+	 * 
+	 * @param startIndex Index of the first base to copy (inclusive).
+	 * @param endIndex Index after the last base to copy (exclusive).
+	 * 
+	 * @return An array of bases.
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException If the bases are not in this region.
+	 */
+	public byte[] getSequence(int startIndex, int endIndex)
+			throws ArrayIndexOutOfBoundsException {
+		
+		return sequence.get(startIndex, endIndex);
+	}
+	
+	/**
+	 * Copy bases from this reference region to a buffer.
+	 * 
+	 * @param startIndex Index of the first base to copy.
+	 * @param buffer Buffer to copy bases to.
+	 * @param bufferOffset Index of <code>buffer</code> where the first base is copied.
+	 * @param length Number of bases to copy.
+	 * 
+	 * @throws NullPointerException If <code>buffer</code> is <code>null</code>.
+	 * @throws ArrayIndexOutOfBoundsException If the bases are not in this region or if
+	 *   <code>buffer</code> is too small to hold them.
+	 */
+	public void getSequence(int startIndex, byte[] buffer, int bufferOffset, int length)
+			throws NullPointerException, ArrayIndexOutOfBoundsException {
+		
+		sequence.get(startIndex, buffer, bufferOffset, length);
+		
+		return;
 	}
 	
 	/**
@@ -494,52 +673,79 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 	}
 	
 	/**
-	 * Find and mark ambiguous regions in the reference sequence. This must be called
-	 * after the <code>sequence</code> and <code>size</code> fields are set.
+	 * Index ambiguous bases in the reference sequence and pack it. This must be called
+	 * after the <code>size</code> field is set.
+	 * 
+	 * @param sequence Normalized sequence bytes.
 	 */
-	private void setAmbiguousRegions() {
+	private void setSequence(byte[] sequence) {
 		
 		// Declarations
-		int seqIndex;
-		int ambiEndIndex;
-		int seqSize;
-		byte[] sequence;
+		long[] ambiBits;  // Ambiguous base bits
+		int[] ambiRank;   // Number of ambiguous bases before each word
+		int nAmbiguous;   // Number of ambiguous bases
+		int seqSize;      // Size of this region
+		
+		// Check arguments
+		assert (sequence != null) :
+			"Reference sequence is null";
 		
-		// Check state
-		assert (this.sequence != null) :
-			"Reference sequence was not set before setAmbiguousRegions() was callled";
+		assert (sequence.length >= size) :
+			String.format("Reference sequence is shorter than the region size: length=%d, size=%d", sequence.length, size);
 		
-		// Create ambiguous region structure
-		ambiRegions = new RBTree<>();
-		sequence = this.sequence;
+		// Init
 		seqSize = this.size;
 		
-		// Scan
-		seqIndex = 0;
+		ambiBits = new long[(seqSize + 63) >>> 6];
+		ambiRank = new int[ambiBits.length + 1];
+		nAmbiguous = 0;
 		
-		while (seqIndex < seqSize) {
+		// Set bits and count ambiguous bases before each word
+		for (int seqIndex = 0; seqIndex < seqSize; ++seqIndex) {
+			
+			if ((seqIndex & 63) == 0)
+				ambiRank[seqIndex >>> 6] = nAmbiguous;
 			
 			if (IS_AMBIGUOUS[sequence[seqIndex]]) {
-				
-				ambiEndIndex = seqIndex;
-				
-				while (ambiEndIndex < seqSize && IS_AMBIGUOUS[sequence[ambiEndIndex]])
-					++ambiEndIndex;
-				
-				if (ambiEndIndex == seqSize)
-					ambiEndIndex -= 1;
-				
-				ambiRegions.put(new AmbiguousRegion(seqIndex, ambiEndIndex), Boolean.TRUE);
-				
-				seqIndex = ambiEndIndex;
+				ambiBits[seqIndex >>> 6] |= 1L << (seqIndex & 63);
+				++nAmbiguous;
 			}
+		}
+		
+		ambiRank[ambiBits.length] = nAmbiguous;
+		
+		// Keep the index only if there are ambiguous bases
+		if (nAmbiguous > 0) {
+			this.ambiBits = ambiBits;
+			this.ambiRank = ambiRank;
 			
-			++seqIndex;
+		} else {
+			this.ambiBits = null;
+			this.ambiRank = null;
 		}
 		
+		// Pack
+		this.sequence = new PackedSequence(sequence, 0, seqSize);
+		
 		return;
 	}
 	
+	/**
+	 * Get the number of ambiguous bases before an index. <code>ambiBits</code> must not be
+	 * <code>null</code>.
+	 * 
+	 * @param index Index from <code>0</code> to <code>size</code> (inclusive).
+	 * 
+	 * @return Number of ambiguous bases with an index less than <code>index</code>.
+	 */
+	private int getAmbiguousRank(int index) {
+		
+		if ((index & 63) == 0)
+			return ambiRank[index >>> 6];
+		
+		return ambiRank[index >>> 6] + Long.bitCount(ambiBits[index >>> 6] & (-1L >>> (64 - (index & 63))));
+	}
+	
 	/**
 	 * Copy a sequence from a buffer.
 	 * 
@@ -594,63 +800,6 @@ public class ReferenceRegion implements Comparable<ReferenceRegion> {
 		return sequence;
 	}
 	
-	/**
-	 * Represents an ambiguous region designed to be stored in a tree structure. When building
-	 * the tree, it is assumed the reference regions will not overlap. For querying reference
-	 * regions, this object will claim it is equal to any other where the regions overlap.
-	 */
-	private static class AmbiguousRegion implements Comparable<AmbiguousRegion> {
-		
-		/** Start position of this region (inclusive) where the first base is <code>0</code>. */
-		public final int start;
-		
-		/** End position of this region (inclusive) where the first base is <code>0</code>. */
-		public final int end;
-		
-		/**
-		 * Create a reference region.
-		 * 
-		 * @param start Start position of this region (inclusive) where the first base
-		 *   is <code>0</code>.
-		 * @param end End position of this region (inclusive) where the first base is
-		 *   <code>0</code>.
-		 */
-		public AmbiguousRegion(int start, int end) {
-			
-			assert (start >= 0 && end >= start) :
-				String.format("Bad start and end positions in ReferenceRegion(): start=%d, end=%d", start, end);
-			
-			this.start = start;
-			this.end = end;
-			
-			return;
-		}
-		
-		/**
-		 * Compare this region to another. If the regions overlap, this method claims they are the same
-		 * even if the start and end positions are different.
-		 * 
-		 * @param o Other region.
-		 * 
-		 * @return <code>-1</code> if this region comes before <code>o</code>, <code>1</code> if it
-		 *   comes after, and <code>0</code> if the regions overlap.
-		 */
-		@Override
-		public int compareTo(AmbiguousRegion o) {
-			
-			assert (o != null) :
-				"Cannot compare to object: null";
-			
-			if (o.end < start)
-				return 1;
-			
-			if (o.start > end)
-				return -1;
-			
-			return 0;
-		}
-	}
-	
 	/**
 	 * Stores data for a reference region and saves it until the reference region can be created
 	 * from it. Only one reference region may be created from one of these objects since the
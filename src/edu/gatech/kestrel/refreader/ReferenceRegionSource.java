@@ -0,0 +1,79 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.refreader;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies reference regions in batches. Every pass over a source returns the regions of each
+ * reference sequence in the order of <code>getReferenceSequenceArray()</code>, and regions of
+ * one sequence are sorted. A source may hold every region in memory, or it may read each batch
+ * when it is requested so that a batch can be released once it is processed.
+ * 
+ * @see ContainerRegionSource
+ * @see IndexedRegionSource
+ */
+public abstract class ReferenceRegionSource implements Closeable {
+	
+	/**
+	 * Get the reference sequences this source has regions for.
+	 * 
+	 * @return A sorted array of reference sequences.
+	 */
+	public abstract ReferenceSequence[] getReferenceSequenceArray();
+	
+	/**
+	 * Determine if this source is empty.
+	 * 
+	 * @return <code>true</code> if this source has no reference regions.
+	 */
+	public abstract boolean isEmpty();
+	
+	/**
+	 * Start a new pass over the regions of this source. The next call to <code>next()</code>
+	 * returns the first batch.
+	 * 
+	 * @throws IOException If an error occurs while stopping a batch that is being read.
+	 */
+	public abstract void reset()
+			throws IOException;
+	
+	/**
+	 * Get the next batch of reference regions. All regions in a batch belong to the same
+	 * reference sequence.
+	 * 
+	 * @return An array of reference regions, or <code>null</code> if there are no more regions
+	 *   in this pass.
+	 * 
+	 * @throws IOException If an error occurs while reading the regions.
+	 */
+	public abstract ReferenceRegion[] next()
+			throws IOException;
+	
+	/**
+	 * Release resources held by this source.
+	 * 
+	 * @throws IOException If an error occurs while closing reference files.
+	 */
+	@Override
+	public void close()
+			throws IOException {
+		
+		return;
+	}
+}
@@ -47,9 +47,11 @@ import edu.gatech.kestrel.activeregion.ActiveRegionDetector;
 import edu.gatech.kestrel.align.AlignmentWeight;
 import edu.gatech.kestrel.align.KmerAligner;
 import edu.gatech.kestrel.align.KmerAlignmentBuilder;
+import edu.gatech.kestrel.counter.IkcCountCache;
 import edu.gatech.kestrel.interval.IntervalReaderInitException;
 import edu.gatech.kestrel.io.InputSample;
 import edu.gatech.kestrel.io.StreamableOutput;
+import edu.gatech.kestrel.refreader.ReferenceMetadataCache;
 import edu.gatech.kestrel.refreader.ReferenceReader;
 import edu.gatech.kestrel.variant.VariantCaller;
 
@@ -136,11 +138,20 @@ public class KestrelArgumentParser extends ArgumentParser {
 		addSpecification(new OptAutoFlankLength());
 		addSpecification(new OptAlignmentWeightVector());
 		addSpecification(new OptAnchorBothEnds());
+		addSpecification(new OptBandedAlignment());
+		addSpecification(new OptBestFirstAssembly());
+		addSpecification(new OptBranchThreads());
+		addSpecification(new OptCacheReference());
 		addSpecification(new OptCallAmbiguousRegions());
 		addSpecification(new OptCallAmbiguousVariant());
 		addSpecification(new OptVarCallRelativeReference());
 		addSpecification(new OptVarCallRelativeRegion());
 		addSpecification(new OptCharset());
+		addSpecification(new OptChunkSize());
+		addSpecification(new OptCanonicalCounts());
+		addSpecification(new OptCountCache());
+		addSpecification(new OptCountCacheAge());
+		addSpecification(new OptCountCacheSize());
 		addSpecification(new OptCountReverseKmers());
 		addSpecification(new OptDecayAlpha());
 		addSpecification(new OptDecayMinimum());
@@ -148,17 +159,20 @@ public class KestrelArgumentParser extends ArgumentParser {
 		addSpecification(new OptFilesPerSample());
 		addSpecification(new OptFormat());
 		addSpecification(new OptFreeResources());
+		addSpecification(new OptIndexReference());
 		addSpecification(new OptHaplotypeOutputFileName());
 		addSpecification(new OptHaplotypeOutputFormat());
 		addSpecification(new OptKmerCountDiffQuantile());
 		addSpecification(new OptKmerCountInMemory());
 		addSpecification(new OptKmerSize());
+		addSpecification(new OptKnownAlleleFile());
 		addSpecification(new OptLoadLibraryFile());
 		addSpecification(new OptLoadLibraryUrl());
 		addSpecification(new OptLogFileName());
 		addSpecification(new OptLogLevel());
 		addSpecification(new OptLogStderr());
 		addSpecification(new OptLogStdout());
+		addSpecification(new OptMapIkc());
 		addSpecification(new OptMaxAlignStates());
 		addSpecification(new OptMaxHaplotypeStates());
 		addSpecification(new OptMaxRepeatCount());
@@ -167,18 +181,29 @@ public class KestrelArgumentParser extends ArgumentParser {
 		addSpecification(new OptMinKmerCount());
 		addSpecification(new OptMinKmerCountDiff());
 		addSpecification(new OptNoAnchorBothEnds());
+		addSpecification(new OptNoBandedAlignment());
+		addSpecification(new OptNoBestFirstAssembly());
+		addSpecification(new OptNoCacheReference());
+		addSpecification(new OptNoCanonicalCounts());
 		addSpecification(new OptNoCallAmbiguousRegions());
 		addSpecification(new OptNoCallAmbiguousVariant());
+		addSpecification(new OptNoCountCache());
 		addSpecification(new OptNoCountReverseKmers());
 		addSpecification(new OptNoFreeResources());
+		addSpecification(new OptNoIndexReference());
 		addSpecification(new OptNoKmerCountInMemory());
+		addSpecification(new OptNoMapIkc());
 		addSpecification(new OptNoRemoveRefDescription());
 		addSpecification(new OptNoRevComplNegRegStrand());
 		addSpecification(new OptNoRmIkc());
 		addSpecification(new OptNoSequenceFilter());
+		addSpecification(new OptNoSnvFastPath());
+		addSpecification(new OptNoStreamReference());
+		addSpecification(new OptNoTargetedCount());
 		addSpecification(new OptOutFileName());
 		addSpecification(new OptOutFormat());
 		addSpecification(new OptPeakScanLength());
+		addSpecification(new OptPipelineSamples());
 		addSpecification(new OptQuality());
 		addSpecification(new OptReadIntervalFile());
 		addSpecification(new OptReference());
@@ -188,7 +213,13 @@ public class KestrelArgumentParser extends ArgumentParser {
 		addSpecification(new OptSampleSet());
 		addSpecification(new OptSequenceFilter());
 		addSpecification(new OptSetFlankLength());
+		addSpecification(new OptSnvFastPath());
+		addSpecification(new OptStreamReference());
+		addSpecification(new OptStreamWindowSize());
+		addSpecification(new OptTargetedCount());
+		addSpecification(new OptTargetSeedSize());
 		addSpecification(new OptTempFileLocation());
+		addSpecification(new OptThreads());
 		addSpecification(new OptWriteStdout());
 		
 		setNonOptionElement(new InputSourceFile());
@@ -1245,21 +1276,755 @@ public class KestrelArgumentParser extends ArgumentParser {
 		}
 	}
 	
+	/**
+	 * Option: Number of threads for finding active regions and calling variants.
+	 */
+	protected class OptThreads extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptThreads() {
+			super('\0', "threads",
+					OptionArgumentType.REQUIRED,
+					"THREADS", "" + KestrelRunnerBase.DEFAULT_THREADS,
+					"Set the number of threads used to find active regions and call variants. Reference " +
+					"regions are processed in parallel after k-mers are counted for each sample, and " +
+					"variants and haplotypes are written in the same order regardless of the number of " +
+					"threads."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			int threads;
+			
+			try {
+				threads = Integer.parseInt(argument);
+				
+				if (threads < 1) {
+					error("Error setting the number of threads (" + option + "): Number of threads must be at least 1: " + threads, KAnalyzeConstants.ERR_USAGE);
+					return false;
+				}
+				
+				runnerBase.setThreads(threads);
+				
+			} catch (NumberFormatException ex) {
+				error("Error setting the number of threads (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Error setting the number of threads (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setThreads(KestrelRunnerBase.DEFAULT_THREADS);
+		}
+	}
+	
+	/**
+	 * Option: Count only reads near reference regions.
+	 */
+	protected class OptTargetedCount extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptTargetedCount() {
+			super('\0', "targeted",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_TARGETED_COUNT ? "" : null),
+					"When intervals are set (see -i), count k-mers only from reads that share at least one " +
+					"seed with the flanked reference regions (see --targetseed). All k-mers of these reads " +
+					"are counted, and other reads are discarded before they are counted, which reduces " +
+					"counting time and memory when the intervals cover a small part of the genome. Targeted " +
+					"counts are kept in memory instead of an IKC file. Only FASTA and FASTQ reads are filtered."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setTargetedCount(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setTargetedCount(KestrelRunnerBase.DEFAULT_TARGETED_COUNT);
+		}
+	}
+	
+	/**
+	 * Option: Count all k-mers.
+	 */
+	protected class OptNoTargetedCount extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoTargetedCount() {
+			super('\0', "notargeted",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_TARGETED_COUNT ? null : ""),
+					"Count all k-mers in each sample even when intervals are set."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setTargetedCount(false);
+			
+			return true;
+		}
+		
+		// Init by OptTargetedCount
+	}
+	
+	/**
+	 * Option: Seed size for targeted counting.
+	 */
+	protected class OptTargetSeedSize extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptTargetSeedSize() {
+			super('\0', "targetseed",
+					OptionArgumentType.REQUIRED,
+					"SIZE", "" + KestrelRunnerBase.DEFAULT_TARGET_SEED_SIZE,
+					"Set the size of exact matches between reads and the flanked reference regions that " +
+					"select reads counted with --targeted. Seeds shorter than the k-mer size keep reads " +
+					"inside clusters of variants, and seeds longer than the k-mer size are shortened to it."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			try {
+				runnerBase.setTargetSeedSize(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Error setting the target seed size (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Error setting the target seed size (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setTargetSeedSize(KestrelRunnerBase.DEFAULT_TARGET_SEED_SIZE);
+		}
+	}
+	
+	/**
+	 * Option: Count cache directory.
+	 */
+	protected class OptCountCache extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptCountCache() {
+			super('\0', "countcache",
+					OptionArgumentType.REQUIRED,
+					"DIR", null,
+					"Keep indexed k-mer count (IKC) files in this directory across runs. When a sample is " +
+					"run again with the same input files (path, size, and modification time) and the same " +
+					"count settings (k-mer size, minimizer, minimum count, and reverse complement mode), " +
+					"k-mers are not counted again. The directory is created if it does not exist. Cached " +
+					"files are not removed by --rmikc, but they are removed by --countcachesize and " +
+					"--countcacheage. This option has no effect when k-mer counts are kept in memory."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			if (argument.trim().isEmpty()) {
+				error("Cannot set count cache directory (" + option + "): Directory name is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			runnerBase.setCountCacheDirName(argument);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setCountCacheDirName(null);
+		}
+	}
+	
+	/**
+	 * Option: Do not cache IKC files.
+	 */
+	protected class OptNoCountCache extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoCountCache() {
+			super('\0', "nocountcache",
+					OptionArgumentType.NONE,
+					null, "",
+					"Do not keep indexed k-mer count (IKC) files across runs."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setCountCacheDirName(null);
+			
+			return true;
+		}
+		
+		// Init by OptCountCache
+	}
+	
+	/**
+	 * Option: Maximum count cache size.
+	 */
+	protected class OptCountCacheSize extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptCountCacheSize() {
+			super('\0', "countcachesize",
+					OptionArgumentType.REQUIRED,
+					"MB", "" + KestrelRunnerBase.DEFAULT_COUNT_CACHE_MAX_SIZE,
+					"Set the maximum total size of the count cache (--countcache) in megabytes. When counts " +
+					"are added to the cache, the least recently used files are removed until the cache is " +
+					"no larger than this size. If 0, the size of the cache is not limited."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			try {
+				runnerBase.setCountCacheMaxSize(Long.parseLong(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Error setting the maximum count cache size (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Error setting the maximum count cache size (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setCountCacheMaxSize(KestrelRunnerBase.DEFAULT_COUNT_CACHE_MAX_SIZE);
+		}
+	}
+	
+	/**
+	 * Option: Maximum count cache age.
+	 */
+	protected class OptCountCacheAge extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptCountCacheAge() {
+			super('\0', "countcacheage",
+					OptionArgumentType.REQUIRED,
+					"DAYS", "" + KestrelRunnerBase.DEFAULT_COUNT_CACHE_MAX_AGE,
+					"Set the maximum number of days since a file in the count cache (--countcache) was last " +
+					"used. When counts are added to the cache, older files are removed, including partial " +
+					"files left by runs that did not finish. If 0, files are not removed by age, and partial " +
+					"files are removed after " + (IkcCountCache.PART_MAX_AGE / 86400000L) + " days."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			try {
+				runnerBase.setCountCacheMaxAge(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Error setting the maximum count cache age (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Error setting the maximum count cache age (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setCountCacheMaxAge(KestrelRunnerBase.DEFAULT_COUNT_CACHE_MAX_AGE);
+		}
+	}
+	
+	/**
+	 * Option: Number of samples in flight.
+	 */
+	protected class OptPipelineSamples extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptPipelineSamples() {
+			super('\0', "pipelinesamples",
+					OptionArgumentType.REQUIRED,
+					"SAMPLES", "" + KestrelRunnerBase.DEFAULT_PIPELINE_SAMPLES,
+					"Set the number of samples that may be counted or processed at the same time. If " +
+					"greater than 1, the next samples are counted in the background while variants are " +
+					"called in a sample, and each sample in flight has its own k-mer counts. A sample is not " +
+					"counted ahead when free memory is low. When k-mer counts are kept in memory " +
+					"(--memcount), each sample in flight holds its counts in memory."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			try {
+				runnerBase.setPipelineSamples(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Error setting the number of samples in flight (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Error setting the number of samples in flight (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setPipelineSamples(KestrelRunnerBase.DEFAULT_PIPELINE_SAMPLES);
+		}
+	}
+	
 	/**
 	 * Option: Minimum k-mer count.
 	 */
-	protected class OptMinKmerCount extends OptionSpecElement {
+	protected class OptMinKmerCount extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptMinKmerCount() {
+			super('\0', "mincount",
+					OptionArgumentType.REQUIRED,
+					"MIN_COUNT", Integer.toString(KestrelRunnerBase.DEFAULT_MIN_KMER_COUNT),
+					"Set the minimum k-mer count for processing samples. K-mers with a count less than " +
+					"this value will be discarded. Sequence read errors produce many erroneous k-mers, " +
+					"and this slows the process of variant calling significantly."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			// Check argument
+			if (argument.isEmpty()) {
+				error("Cannot set minimum k-mer count (" + option + "): Count is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			try {
+				runnerBase.setMinKmerCount(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Cannot set minimum k-mer count (" + option + "): Count is not an integer: " + argument, KestrelConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot set minimum k-mer count (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setMinKmerCount(KestrelRunnerBase.DEFAULT_MIN_KMER_COUNT);
+		}
+	}
+	
+	/**
+	 * Option: Minimum k-mer count difference for detecting active regions.
+	 */
+	protected class OptMinKmerCountDiff extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptMinKmerCountDiff() {
+			super('\0', "mindiff",
+					OptionArgumentType.REQUIRED,
+					"COUNT_DIFF", Integer.toString(ActiveRegionDetector.DEFAULT_MINIMUM_DIFFERENCE),
+					"Set the minimum k-mer count difference for identifying active regions. When the " +
+					"count between neighboring k-mer counts is this or greater, Kestrel will treat it as " +
+					"a region where a variant may occur."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			// Check argument
+			if (argument.isEmpty()) {
+				error("Cannot set minimum k-mer count difference (" + option + "): Count is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			try {
+				runnerBase.setMinimumDifference(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Cannot set minimum k-mer count difference (" + option + "): Count is not an integer: " + argument, KestrelConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot set minimum k-mer count difference (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setMinimumDifference(ActiveRegionDetector.DEFAULT_MINIMUM_DIFFERENCE);
+		}
+	}
+	
+	/**
+	 * Option: K-mer count difference quantile.
+	 */
+	protected class OptKmerCountDiffQuantile extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptKmerCountDiffQuantile() {
+			super('\0', "diffq",
+					OptionArgumentType.REQUIRED,
+					"QUANTILE", String.format("%.04f", ActiveRegionDetector.DEFAULT_DIFFERENCE_QUANTILE),
+					"If set to a value greater than 0.0, then the k-mer count difference between two k-mers " +
+					"that triggers a correction attempt is found dynamically. The difference in k-mer counts " +
+					"between each pair of neighboring k-mers over an uncorrected reference region is found, and " +
+					"this quantile of is computed over those differences. For example, a value of 0.85 means " +
+					"that at most 15% (100% - 85%) of the k-mer count differences will be high enough. If this " +
+					"computed value is less than the minimum k-mer count difference (--mindiff), then that " +
+					"minimum is the difference threshold. This value may not be 1.0 or greater, and it may not be " +
+					"negative. If 0.0, the minimum count difference is always the minimum threshold (--mindiff)."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			// Check argument
+			if (argument.isEmpty()) {
+				error("Cannot set k-mer count quantile (" + option + "): Quantile is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			try {
+				runnerBase.setDifferenceQuantile(Double.parseDouble(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Cannot set k-mer count quantile (" + option + "): Quantile is not a number: " + argument, KestrelConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot set k-mer count quantile (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setDifferenceQuantile(ActiveRegionDetector.DEFAULT_DIFFERENCE_QUANTILE);
+		}
+	}
+	
+	/**
+	 * Option: Peak scan length
+	 */
+	protected class OptPeakScanLength extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptPeakScanLength() {
+			super('\0', "peakscan",
+					OptionArgumentType.REQUIRED,
+					"LENGTH", "" + ActiveRegionDetector.DEFAULT_PEAK_SCAN_LENGTH,
+					"Reference regions with sequence homology in other regions of the genome may " +
+					"contain k-mers with artificially high frequencies from adding counts for k-mers that " +
+					"appear in both regions. This causes a peak in the k-mer frequencies over the reference, " +
+					"and it can trigger an erroneous active-region scan for variants. When encountering " +
+					"a difference, Kestrel will scan forward this number of k-mers looking for a peak in " +
+					"the k-mer frequencies. If the frequencies drop back down to the original range, the " +
+					"active-region scan is not performed. This keeps Kestrel from erroneously searching large " +
+					"regions of the reference. Setting this value to 0 disables peak detection."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			// Check argument
+			if (argument.isEmpty()) {
+				error("Cannot set peak scan length (" + option + "): Length is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			try {
+				runnerBase.setPeakScanLength(Integer.parseInt(argument));
+				
+			} catch (NumberFormatException ex) {
+				error("Cannot set peak scan length (" + option + "): Length is not an integer: " + argument, KestrelConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IllegalArgumentException ex) {
+				error("Cannot set peak scan length (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setPeakScanLength(ActiveRegionDetector.DEFAULT_PEAK_SCAN_LENGTH);
+		}
+	}
+	
+	/**
+	 * Option: Scan limit factor
+	 */
+	protected class OptScanLimitFactor extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptScanLimitFactor() {
+			super('\0', "scanlimitfactor",
+					OptionArgumentType.REQUIRED,
+					"FACTOR", "" + String.format("%.01f", ActiveRegionDetector.DEFAULT_SCAN_LIMIT_FACTOR),
+					"Set a limit on how long an active region may be. This is computed " +
+					"by multiplying the k-mer size by this factor and adding the maximum length of a gap. The " +
+					"computed limit will be adjusted so that active regions are at least large enough to capture " +
+					"a SNP in cases where the maximum gap length is 0. Setting this to a low value or \"min\" will " +
+					"set the limit so that it is just large enough to catch SNPs and deletions, but it will miss large " +
+					"deletions if another variant is within the k-mer size window. Setting this to a high value or " +
+					"\"max\" lifts the restrictions on active region lengths, and this may cause the program to take an " +
+					"excessive amount of time and memory trying to solve arbitrarily long active regions."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			// Check argument
+			if (argument.isEmpty()) {
+				error("Cannot set end scan limit factor (" + option + "): Limit is empty", KestrelConstants.ERR_USAGE);
+				return false;
+			}
+			
+			if (argument.equalsIgnoreCase("min")) {
+				runnerBase.setScanLimitFactor(0.0);
+				
+			} if (argument.equalsIgnoreCase("max")) {
+				runnerBase.setScanLimitFactor(Integer.MAX_VALUE);
+				
+			} else {
+				
+				try {
+					runnerBase.setScanLimitFactor(Double.parseDouble(argument));
+					
+				} catch (NumberFormatException ex) {
+					error("Cannot set end scan limit factor (" + option + "): Limit is not a number, \"min\", or \"max\": " + argument, KestrelConstants.ERR_USAGE);
+					return false;
+					
+				} catch (IllegalArgumentException ex) {
+					error("Cannot set end scan limit factor (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+					return false;
+				}
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setScanLimitFactor(ActiveRegionDetector.DEFAULT_SCAN_LIMIT_FACTOR);
+		}
+	}
+	
+	/**
+	 * Option: Set stream window size
+	 */
+	protected class OptStreamWindowSize extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptMinKmerCount() {
-			super('\0', "mincount",
+		public OptStreamWindowSize() {
+			super('\0', "streamwindow",
 					OptionArgumentType.REQUIRED,
-					"MIN_COUNT", Integer.toString(KestrelRunnerBase.DEFAULT_MIN_KMER_COUNT),
-					"Set the minimum k-mer count for processing samples. K-mers with a count less than " +
-					"this value will be discarded. Sequence read errors produce many erroneous k-mers, " +
-					"and this slows the process of variant calling significantly."
+					"SIZE", "" + ActiveRegionDetector.DEFAULT_STREAM_WINDOW_SIZE,
+					"Look up the k-mer counts of long reference regions in overlapping windows of SIZE k-mers " +
+					"instead of keeping counts for the whole region in memory. The difference threshold is " +
+					"computed in a first pass over the region, so counts are looked up twice, but the active " +
+					"regions found are the same. Windows are enlarged to at least twice the scan limit. Setting " +
+					"this value to 0 keeps counts for whole reference regions in memory."
 					);
 		}
 		
@@ -1274,19 +2039,19 @@ public class KestrelArgumentParser extends ArgumentParser {
 			
 			// Check argument
 			if (argument.isEmpty()) {
-				error("Cannot set minimum k-mer count (" + option + "): Count is empty", KestrelConstants.ERR_USAGE);
+				error("Cannot set stream window size (" + option + "): Size is empty", KestrelConstants.ERR_USAGE);
 				return false;
 			}
 			
 			try {
-				runnerBase.setMinKmerCount(Integer.parseInt(argument));
+				runnerBase.setStreamWindowSize(Integer.parseInt(argument));
 				
 			} catch (NumberFormatException ex) {
-				error("Cannot set minimum k-mer count (" + option + "): Count is not an integer: " + argument, KestrelConstants.ERR_USAGE);
+				error("Cannot set stream window size (" + option + "): Size is not an integer: " + argument, KestrelConstants.ERR_USAGE);
 				return false;
 				
 			} catch (IllegalArgumentException ex) {
-				error("Cannot set minimum k-mer count (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				error("Cannot set stream window size (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
 				return false;
 			}
 			
@@ -1298,25 +2063,27 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setMinKmerCount(KestrelRunnerBase.DEFAULT_MIN_KMER_COUNT);
+			runnerBase.setStreamWindowSize(ActiveRegionDetector.DEFAULT_STREAM_WINDOW_SIZE);
 		}
 	}
 	
 	/**
-	 * Option: Minimum k-mer count difference for detecting active regions.
+	 * Option: Set decay min
 	 */
-	protected class OptMinKmerCountDiff extends OptionSpecElement {
+	protected class OptDecayMinimum extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptMinKmerCountDiff() {
-			super('\0', "mindiff",
+		public OptDecayMinimum() {
+			super('\0', "decaymin",
 					OptionArgumentType.REQUIRED,
-					"COUNT_DIFF", Integer.toString(ActiveRegionDetector.DEFAULT_MINIMUM_DIFFERENCE),
-					"Set the minimum k-mer count difference for identifying active regions. When the " +
-					"count between neighboring k-mer counts is this or greater, Kestrel will treat it as " +
-					"a region where a variant may occur."
+					"MIN_PROPORTION", "" + String.format("%.02f", ActiveRegionDetector.DEFAULT_EXP_MIN),
+					"Set the minimum value (asymptotic lower bound) of the exponential decay function " +
+					"used in active region detection as a proportion of the anchor k-mer count. If this " +
+					"value is 0.0, k-mer count recovery threshold may decline to 1. If this value is " +
+					"1.0, the decay function is not used and the detector falls back to finding a k-mer " +
+					"with a count within the difference threshold of the anchor k-mer count."
 					);
 		}
 		
@@ -1331,19 +2098,19 @@ public class KestrelArgumentParser extends ArgumentParser {
 			
 			// Check argument
 			if (argument.isEmpty()) {
-				error("Cannot set minimum k-mer count difference (" + option + "): Count is empty", KestrelConstants.ERR_USAGE);
+				error("Cannot set exponential decay minimum (" + option + "): Minimum is empty", KestrelConstants.ERR_USAGE);
 				return false;
 			}
 			
 			try {
-				runnerBase.setMinimumDifference(Integer.parseInt(argument));
+				runnerBase.setDecayMinimum(Double.parseDouble(argument));
 				
 			} catch (NumberFormatException ex) {
-				error("Cannot set minimum k-mer count difference (" + option + "): Count is not an integer: " + argument, KestrelConstants.ERR_USAGE);
+				error("Cannot set exponential decay minimum (" + option + "): Minimum is not a number: " + argument, KestrelConstants.ERR_USAGE);
 				return false;
 				
 			} catch (IllegalArgumentException ex) {
-				error("Cannot set minimum k-mer count difference (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				error("Cannot set exponential decay minimum (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
 				return false;
 			}
 			
@@ -1355,30 +2122,27 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setMinimumDifference(ActiveRegionDetector.DEFAULT_MINIMUM_DIFFERENCE);
+			runnerBase.setDecayMinimum(ActiveRegionDetector.DEFAULT_EXP_MIN);
 		}
 	}
 	
 	/**
-	 * Option: K-mer count difference quantile.
+	 * Option: Set decay alpha
 	 */
-	protected class OptKmerCountDiffQuantile extends OptionSpecElement {
+	protected class OptDecayAlpha extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptKmerCountDiffQuantile() {
-			super('\0', "diffq",
+		public OptDecayAlpha() {
+			super('\0', "alpha",
 					OptionArgumentType.REQUIRED,
-					"QUANTILE", String.format("%.04f", ActiveRegionDetector.DEFAULT_DIFFERENCE_QUANTILE),
-					"If set to a value greater than 0.0, then the k-mer count difference between two k-mers " +
-					"that triggers a correction attempt is found dynamically. The difference in k-mer counts " +
-					"between each pair of neighboring k-mers over an uncorrected reference region is found, and " +
-					"this quantile of is computed over those differences. For example, a value of 0.85 means " +
-					"that at most 15% (100% - 85%) of the k-mer count differences will be high enough. If this " +
-					"computed value is less than the minimum k-mer count difference (--mindiff), then that " +
-					"minimum is the difference threshold. This value may not be 1.0 or greater, and it may not be " +
-					"negative. If 0.0, the minimum count difference is always the minimum threshold (--mindiff)."
+					"ALPHA", "" + String.format("%.02f", ActiveRegionDetector.DEFAULT_EXP_ALPHA),
+					"Set the exponential decay alpha, which controls how quickly the recovery threshold " +
+					"declines to its minimum value (see --decaymin) in an active region search. Alpha is " +
+					"defined as the rate of decay for every k bases. At k bases from the left anchor, the " +
+					"threshold will have declined to alpha * range. At every k bases, the threshold will " +
+					"continue to decline at this rate."
 					);
 		}
 		
@@ -1393,19 +2157,19 @@ public class KestrelArgumentParser extends ArgumentParser {
 			
 			// Check argument
 			if (argument.isEmpty()) {
-				error("Cannot set k-mer count quantile (" + option + "): Quantile is empty", KestrelConstants.ERR_USAGE);
+				error("Cannot set exponential decay alpha (" + option + "): Alpha is empty", KestrelConstants.ERR_USAGE);
 				return false;
 			}
 			
 			try {
-				runnerBase.setDifferenceQuantile(Double.parseDouble(argument));
+				runnerBase.setDecayAlpha(Double.parseDouble(argument));
 				
 			} catch (NumberFormatException ex) {
-				error("Cannot set k-mer count quantile (" + option + "): Quantile is not a number: " + argument, KestrelConstants.ERR_USAGE);
+				error("Cannot set exponential decay alpha (" + option + "): Alpha is not a number: " + argument, KestrelConstants.ERR_USAGE);
 				return false;
 				
 			} catch (IllegalArgumentException ex) {
-				error("Cannot set k-mer count quantile (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				error("Cannot set exponential decay alpha (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
 				return false;
 			}
 			
@@ -1417,30 +2181,175 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setDifferenceQuantile(ActiveRegionDetector.DEFAULT_DIFFERENCE_QUANTILE);
+			runnerBase.setDecayAlpha(ActiveRegionDetector.DEFAULT_EXP_ALPHA);
 		}
 	}
 	
 	/**
-	 * Option: Peak scan length
+	 * Option: Haplotypes must be anchored to unaltered k-mers on both ends.
 	 */
-	protected class OptPeakScanLength extends OptionSpecElement {
+	protected class OptAnchorBothEnds extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptPeakScanLength() {
-			super('\0', "peakscan",
-					OptionArgumentType.REQUIRED,
-					"LENGTH", "" + ActiveRegionDetector.DEFAULT_PEAK_SCAN_LENGTH,
-					"Reference regions with sequence homology in other regions of the genome may " +
-					"contain k-mers with artificially high frequencies from adding counts for k-mers that " +
-					"appear in both regions. This causes a peak in the k-mer frequencies over the reference, " +
-					"and it can trigger an erroneous active-region scan for variants. When encountering " +
-					"a difference, Kestrel will scan forward this number of k-mers looking for a peak in " +
-					"the k-mer frequencies. If the frequencies drop back down to the original range, the " +
-					"active-region scan is not performed. This keeps Kestrel from erroneously searching large " +
-					"regions of the reference. Setting this value to 0 disables peak detection."
+		public OptAnchorBothEnds() {
+			super('\0', "anchorboth",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS ? "" : null),
+					"Both ends of an active region (region with variants) must be bordered by unaltered " +
+					"k-mers or variants will not be called in it. This option may miss variants near the ends " +
+					"of a reference sequence, but it forces stronger evidence for the variants that are called."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setAnchorBothEnds(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setAnchorBothEnds(ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS);
+		}
+	}
+	
+	/**
+	 * Option: Haplotypes must be anchored to on at least one end, and possibly both.
+	 */
+	protected class OptNoAnchorBothEnds extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoAnchorBothEnds() {
+			super('\0', "noanchorboth",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS ? null : ""),
+					"An active region (region with variants) must be bordered on at least one side by an unaltered " +
+					"k-mers, but it may extend to the end of the sequence. This will allow Kestrel to find variants " +
+					"less than a k-mer from the ends, but the evidence supporting these variants is weaker."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setAnchorBothEnds(false);
+			
+			return true;
+		}
+		
+		// Init by OptAnchorBothEnds
+	}
+	
+	/**
+	 * Option: Align haplotypes in banded mode.
+	 */
+	protected class OptBandedAlignment extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptBandedAlignment() {
+			super('\0', "alignband",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_BANDED_ALIGNMENT ? "" : null),
+					"Align haplotypes by computing only alignment cells in a band around the best alignment " +
+					"so far instead of over the full active region. The band starts at the largest gap the " +
+					"alignment weights allow on each side and doubles when the alignment reaches its edge. " +
+					"Large active regions, such as those allowed by a high --scanlimitfactor, align much " +
+					"faster, but variants with gaps that open and close outside the band may be missed."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setBandedAlignment(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setBandedAlignment(ActiveRegionDetector.DEFAULT_BANDED_ALIGNMENT);
+		}
+	}
+	
+	/**
+	 * Option: Align haplotypes over the full active region.
+	 */
+	protected class OptNoBandedAlignment extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoBandedAlignment() {
+			super('\0', "noalignband",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_BANDED_ALIGNMENT ? null : ""),
+					"Align haplotypes by computing alignment cells over the full active region."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setBandedAlignment(false);
+			
+			return true;
+		}
+		
+		// Init by OptBandedAlignment
+	}
+	
+	/**
+	 * Option: Assemble haplotypes best-first.
+	 */
+	protected class OptBestFirstAssembly extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptBestFirstAssembly() {
+			super('\0', "bestfirst",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_BEST_FIRST_ASSEMBLY ? "" : null),
+					"When a haplotype assembly branches, follow the saved branch with the greatest minimum " +
+					"k-mer depth next instead of the last branch found. When --maxalignstates is reached, the " +
+					"branch with the lowest depth is discarded, and when --maxhapstates is reached, branches " +
+					"that cannot produce a haplotype with a greater depth than the haplotypes already found " +
+					"are discarded."
 					);
 		}
 		
@@ -1452,24 +2361,7 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			
-			// Check argument
-			if (argument.isEmpty()) {
-				error("Cannot set peak scan length (" + option + "): Length is empty", KestrelConstants.ERR_USAGE);
-				return false;
-			}
-			
-			try {
-				runnerBase.setPeakScanLength(Integer.parseInt(argument));
-				
-			} catch (NumberFormatException ex) {
-				error("Cannot set peak scan length (" + option + "): Length is not an integer: " + argument, KestrelConstants.ERR_USAGE);
-				return false;
-				
-			} catch (IllegalArgumentException ex) {
-				error("Cannot set peak scan length (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
-				return false;
-			}
+			runnerBase.setBestFirstAssembly(true);
 			
 			return true;
 		}
@@ -1479,30 +2371,24 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setPeakScanLength(ActiveRegionDetector.DEFAULT_PEAK_SCAN_LENGTH);
+			runnerBase.setBestFirstAssembly(ActiveRegionDetector.DEFAULT_BEST_FIRST_ASSEMBLY);
 		}
 	}
 	
 	/**
-	 * Option: Scan limit factor
+	 * Option: Assemble haplotypes depth-first.
 	 */
-	protected class OptScanLimitFactor extends OptionSpecElement {
+	protected class OptNoBestFirstAssembly extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptScanLimitFactor() {
-			super('\0', "scanlimitfactor",
-					OptionArgumentType.REQUIRED,
-					"FACTOR", "" + String.format("%.01f", ActiveRegionDetector.DEFAULT_SCAN_LIMIT_FACTOR),
-					"Set a limit on how long an active region may be. This is computed " +
-					"by multiplying the k-mer size by this factor and adding the maximum length of a gap. The " +
-					"computed limit will be adjusted so that active regions are at least large enough to capture " +
-					"a SNP in cases where the maximum gap length is 0. Setting this to a low value or \"min\" will " +
-					"set the limit so that it is just large enough to catch SNPs and deletions, but it will miss large " +
-					"deletions if another variant is within the k-mer size window. Setting this to a high value or " +
-					"\"max\" lifts the restrictions on active region lengths, and this may cause the program to take an " +
-					"excessive amount of time and memory trying to solve arbitrarily long active regions."
+		public OptNoBestFirstAssembly() {
+			super('\0', "nobestfirst",
+					OptionArgumentType.NONE,
+					null, (ActiveRegionDetector.DEFAULT_BEST_FIRST_ASSEMBLY ? null : ""),
+					"When a haplotype assembly branches, follow the last branch found to its end before " +
+					"the others."
 					);
 		}
 		
@@ -1514,63 +2400,33 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			
-			// Check argument
-			if (argument.isEmpty()) {
-				error("Cannot set end scan limit factor (" + option + "): Limit is empty", KestrelConstants.ERR_USAGE);
-				return false;
-			}
-			
-			if (argument.equalsIgnoreCase("min")) {
-				runnerBase.setScanLimitFactor(0.0);
-				
-			} if (argument.equalsIgnoreCase("max")) {
-				runnerBase.setScanLimitFactor(Integer.MAX_VALUE);
-				
-			} else {
-				
-				try {
-					runnerBase.setScanLimitFactor(Double.parseDouble(argument));
-					
-				} catch (NumberFormatException ex) {
-					error("Cannot set end scan limit factor (" + option + "): Limit is not a number, \"min\", or \"max\": " + argument, KestrelConstants.ERR_USAGE);
-					return false;
-					
-				} catch (IllegalArgumentException ex) {
-					error("Cannot set end scan limit factor (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
-					return false;
-				}
-			}
+			runnerBase.setBestFirstAssembly(false);
 			
 			return true;
 		}
 		
-		/**
-		 * Initialize this option.
-		 */
-		@Override
-		public void init() {
-			runnerBase.setScanLimitFactor(ActiveRegionDetector.DEFAULT_SCAN_LIMIT_FACTOR);
-		}
+		// Init by OptBestFirstAssembly
 	}
 	
 	/**
-	 * Option: Set decay min
+	 * Option: Number of threads for exploring haplotype branches within active regions.
 	 */
-	protected class OptDecayMinimum extends OptionSpecElement {
+	protected class OptBranchThreads extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptDecayMinimum() {
-			super('\0', "decaymin",
+		public OptBranchThreads() {
+			super('\0', "branchthreads",
 					OptionArgumentType.REQUIRED,
-					"MIN_PROPORTION", "" + String.format("%.02f", ActiveRegionDetector.DEFAULT_EXP_MIN),
-					"Set the minimum value (asymptotic lower bound) of the exponential decay function " +
-					"used in active region detection as a proportion of the anchor k-mer count. If this " +
-					"value is 0.0, k-mer count recovery threshold may decline to 1. If this value is " +
-					"1.0, the decay function is not used and the detector falls back to finding a k-mer " +
-					"with a count within the difference threshold of the anchor k-mer count."
+					"THREADS", "" + KestrelRunnerBase.DEFAULT_BRANCH_THREADS,
+					"Set the number of threads used to explore haplotype branches within active regions. " +
+					"When an assembly branches, saved branches are explored in parallel while these " +
+					"threads are idle. The maximum number of haplotypes and saved states apply to all " +
+					"branches of a region together, and results are the same as with one thread. If " +
+					"the branches of a region save more states than the maximum, the region is explored " +
+					"again in one thread. Branches are not explored in parallel with best-first " +
+					"assembly. This is most useful for large or complex regions with many branches."
 					);
 		}
 		
@@ -1583,21 +2439,24 @@ public class KestrelArgumentParser extends ArgumentParser {
 		@Override
 		public boolean invoke(String option, String argument) {
 			
-			// Check argument
-			if (argument.isEmpty()) {
-				error("Cannot set exponential decay minimum (" + option + "): Minimum is empty", KestrelConstants.ERR_USAGE);
-				return false;
-			}
+			int branchThreads;
 			
 			try {
-				runnerBase.setDecayMinimum(Double.parseDouble(argument));
+				branchThreads = Integer.parseInt(argument);
+				
+				if (branchThreads < 1) {
+					error("Error setting the number of branch threads (" + option + "): Number of threads must be at least 1: " + branchThreads, KAnalyzeConstants.ERR_USAGE);
+					return false;
+				}
+				
+				runnerBase.setBranchThreads(branchThreads);
 				
 			} catch (NumberFormatException ex) {
-				error("Cannot set exponential decay minimum (" + option + "): Minimum is not a number: " + argument, KestrelConstants.ERR_USAGE);
+				error("Error setting the number of branch threads (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
 				return false;
 				
 			} catch (IllegalArgumentException ex) {
-				error("Cannot set exponential decay minimum (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				error("Error setting the number of branch threads (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
 				return false;
 			}
 			
@@ -1609,27 +2468,27 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setDecayMinimum(ActiveRegionDetector.DEFAULT_EXP_MIN);
+			runnerBase.setBranchThreads(KestrelRunnerBase.DEFAULT_BRANCH_THREADS);
 		}
 	}
 	
 	/**
-	 * Option: Set decay alpha
+	 * Option: Number of k-mers in each chunk of a large reference region.
 	 */
-	protected class OptDecayAlpha extends OptionSpecElement {
+	protected class OptChunkSize extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptDecayAlpha() {
-			super('\0', "alpha",
+		public OptChunkSize() {
+			super('\0', "chunksize",
 					OptionArgumentType.REQUIRED,
-					"ALPHA", "" + String.format("%.02f", ActiveRegionDetector.DEFAULT_EXP_ALPHA),
-					"Set the exponential decay alpha, which controls how quickly the recovery threshold " +
-					"declines to its minimum value (see --decaymin) in an active region search. Alpha is " +
-					"defined as the rate of decay for every k bases. At k bases from the left anchor, the " +
-					"threshold will have declined to alpha * range. At every k bases, the threshold will " +
-					"continue to decline at this rate."
+					"SIZE", "" + KestrelRunnerBase.DEFAULT_REGION_CHUNK_SIZE,
+					"When reference regions are processed by more than one thread, split regions with at " +
+					"least twice SIZE k-mers into chunks of about SIZE k-mers and find active regions in the " +
+					"chunks in parallel. Chunks overlap, and active regions in the overlaps are merged so that " +
+					"the output is the same as it would be if the region was not split. Chunks are never smaller " +
+					"than four times the scan limit. Setting this value to 0 never splits reference regions."
 					);
 		}
 		
@@ -1642,21 +2501,15 @@ public class KestrelArgumentParser extends ArgumentParser {
 		@Override
 		public boolean invoke(String option, String argument) {
 			
-			// Check argument
-			if (argument.isEmpty()) {
-				error("Cannot set exponential decay alpha (" + option + "): Alpha is empty", KestrelConstants.ERR_USAGE);
-				return false;
-			}
-			
 			try {
-				runnerBase.setDecayAlpha(Double.parseDouble(argument));
+				runnerBase.setRegionChunkSize(Integer.parseInt(argument));
 				
 			} catch (NumberFormatException ex) {
-				error("Cannot set exponential decay alpha (" + option + "): Alpha is not a number: " + argument, KestrelConstants.ERR_USAGE);
+				error("Error setting the region chunk size (" + option + "): Argument is not a number: " + argument, KAnalyzeConstants.ERR_USAGE);
 				return false;
 				
 			} catch (IllegalArgumentException ex) {
-				error("Cannot set exponential decay alpha (" + option + "): " + ex.getMessage(), KestrelConstants.ERR_USAGE, ex);
+				error("Error setting the region chunk size (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
 				return false;
 			}
 			
@@ -1668,25 +2521,26 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setDecayAlpha(ActiveRegionDetector.DEFAULT_EXP_ALPHA);
+			runnerBase.setRegionChunkSize(KestrelRunnerBase.DEFAULT_REGION_CHUNK_SIZE);
 		}
 	}
 	
 	/**
-	 * Option: Haplotypes must be anchored to unaltered k-mers on both ends.
+	 * Option: Test short active regions for single-base substitutions before assembly.
 	 */
-	protected class OptAnchorBothEnds extends OptionSpecElement {
+	protected class OptSnvFastPath extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptAnchorBothEnds() {
-			super('\0', "anchorboth",
+		public OptSnvFastPath() {
+			super('\0', "snvfastpath",
 					OptionArgumentType.NONE,
-					null, (ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS ? "" : null),
-					"Both ends of an active region (region with variants) must be bordered by unaltered " +
-					"k-mers or variants will not be called in it. This option may miss variants near the ends " +
-					"of a reference sequence, but it forces stronger evidence for the variants that are called."
+					null, (ActiveRegionDetector.DEFAULT_SNV_FAST_PATH ? "" : null),
+					"Test active regions that are about the length of an isolated SNV region (2k + 1 " +
+					"bases) for single-base substitutions by looking up their k-mers. If the test finds " +
+					"the haplotypes assembly would find, the region is not assembled or aligned. Otherwise, " +
+					"the region is assembled."
 					);
 		}
 		
@@ -1698,7 +2552,7 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setAnchorBothEnds(true);
+			runnerBase.setSnvFastPath(true);
 			
 			return true;
 		}
@@ -1708,25 +2562,24 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setAnchorBothEnds(ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS);
+			runnerBase.setSnvFastPath(ActiveRegionDetector.DEFAULT_SNV_FAST_PATH);
 		}
 	}
 	
 	/**
-	 * Option: Haplotypes must be anchored to on at least one end, and possibly both.
+	 * Option: Assemble all active regions.
 	 */
-	protected class OptNoAnchorBothEnds extends OptionSpecElement {
+	protected class OptNoSnvFastPath extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptNoAnchorBothEnds() {
-			super('\0', "noanchorboth",
+		public OptNoSnvFastPath() {
+			super('\0', "nosnvfastpath",
 					OptionArgumentType.NONE,
-					null, (ActiveRegionDetector.DEFAULT_ANCHOR_BOTH_ENDS ? null : ""),
-					"An active region (region with variants) must be bordered on at least one side by an unaltered " +
-					"k-mers, but it may extend to the end of the sequence. This will allow Kestrel to find variants " +
-					"less than a k-mer from the ends, but the evidence supporting these variants is weaker."
+					null, (ActiveRegionDetector.DEFAULT_SNV_FAST_PATH ? null : ""),
+					"Assemble and align all active regions without testing short regions for single-base " +
+					"substitutions first."
 					);
 		}
 		
@@ -1738,12 +2591,12 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setAnchorBothEnds(false);
+			runnerBase.setSnvFastPath(false);
 			
 			return true;
 		}
 		
-		// Init by OptAnchorBothEnds
+		// Init by OptSnvFastPath
 	}
 	
 	/**
@@ -2089,6 +2942,79 @@ public class KestrelArgumentParser extends ArgumentParser {
 		// Init by OptAnchorBothEnds
 	}
 	
+	/**
+	 * Option: Memory-map indexed k-mer count files.
+	 */
+	protected class OptMapIkc extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptMapIkc() {
+			super('\0', "mapikc",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_MAP_IKC ? "" : null),
+					"Memory-map the indexed k-mer count file for each sample and share it among all " +
+					"threads. Files larger than 2 GB are mapped in segments. This option has no effect " +
+					"when k-mer counts are stored in memory."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setMapIkc(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setMapIkc(KestrelRunnerBase.DEFAULT_MAP_IKC);
+		}
+	}
+	
+	/**
+	 * Option: Read indexed k-mer count files with one reader per thread.
+	 */
+	protected class OptNoMapIkc extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoMapIkc() {
+			super('\0', "nomapikc",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_MAP_IKC ? null : ""),
+					"Read indexed k-mer count files with a separate IKC reader for each thread instead " +
+					"of mapping the file once."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setMapIkc(false);
+			
+			return true;
+		}
+		
+		// Init by OptMapIkc
+	}
+	
 	/**
 	 * Option: Free resources as soon as possible.
 	 */
@@ -2162,18 +3088,89 @@ public class KestrelArgumentParser extends ArgumentParser {
 	}
 	
 	/**
-	 * Option: Remove generated indexed k-mer count (IKC) files.
+	 * Option: Remove generated indexed k-mer count (IKC) files.
+	 */
+	protected class OptRmIkc extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptRmIkc() {
+			super('\0', "rmikc",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_REMOVE_IKC ? "" : null),
+					"Remove the indexed k-mer count (IKC) for each sample after kestrel runs."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setRemoveIkc(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setRemoveIkc(KestrelRunnerBase.DEFAULT_REMOVE_IKC);
+		}
+	}
+	
+	/**
+	 * Option: Do not delete generated indexed k-mer count (IKC) files.
+	 */
+	protected class OptNoRmIkc extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoRmIkc() {
+			super('\0', "normikc",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_REMOVE_IKC ? null : ""),
+					"Do not remove the indexed k-mer count (IKC) file for each sample."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setRemoveIkc(false);
+			
+			return true;
+		}
+		
+		// Init by OptRmIkc
+	}
+	
+	/**
+	 * Option: Count reverse complement k-mers in region statistics.
 	 */
-	protected class OptRmIkc extends OptionSpecElement {
+	protected class OptCountReverseKmers extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptRmIkc() {
-			super('\0', "rmikc",
+		public OptCountReverseKmers() {
+			super('\0', "countrev",
 					OptionArgumentType.NONE,
-					null, (KestrelRunnerBase.DEFAULT_REMOVE_IKC ? "" : null),
-					"Remove the indexed k-mer count (IKC) for each sample after kestrel runs."
+					null, (KestrelRunnerBase.DEFAULT_COUNT_REV_KMER ? "" : null),
+					"Count reverse complement k-mers in region statistics. This should be set " +
+					"for most sequencing protocols."
 					);
 		}
 		
@@ -2185,7 +3182,7 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setRemoveIkc(true);
+			runnerBase.setCountReverseKmers(true);
 			
 			return true;
 		}
@@ -2195,23 +3192,25 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setRemoveIkc(KestrelRunnerBase.DEFAULT_REMOVE_IKC);
+			runnerBase.setCountReverseKmers(KestrelRunnerBase.DEFAULT_COUNT_REV_KMER);
 		}
 	}
 	
 	/**
 	 * Option: Do not delete generated indexed k-mer count (IKC) files.
 	 */
-	protected class OptNoRmIkc extends OptionSpecElement {
+	protected class OptNoCountReverseKmers extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptNoRmIkc() {
-			super('\0', "normikc",
+		public OptNoCountReverseKmers() {
+			super('\0', "nocountrev",
 					OptionArgumentType.NONE,
-					null, (KestrelRunnerBase.DEFAULT_REMOVE_IKC ? null : ""),
-					"Do not remove the indexed k-mer count (IKC) file for each sample."
+					null, (KestrelRunnerBase.DEFAULT_COUNT_REV_KMER ? null : ""),
+					"Do not include the reverse complement of k-mers in read depth estimates. " +
+					"If all sequence reads are in the same orientation as the reference, then " +
+					"this option should be used."
 					);
 		}
 		
@@ -2223,28 +3222,31 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setRemoveIkc(false);
+			runnerBase.setCountReverseKmers(false);
 			
 			return true;
 		}
 		
-		// Init by OptRmIkc
+		// Init by OptCountReverseKmers
 	}
 	
 	/**
-	 * Option: Count reverse complement k-mers in region statistics.
+	 * Option: Count k-mers in canonical form.
 	 */
-	protected class OptCountReverseKmers extends OptionSpecElement {
+	protected class OptCanonicalCounts extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptCountReverseKmers() {
-			super('\0', "countrev",
+		public OptCanonicalCounts() {
+			super('\0', "canonical",
 					OptionArgumentType.NONE,
-					null, (KestrelRunnerBase.DEFAULT_COUNT_REV_KMER ? "" : null),
-					"Count reverse complement k-mers in region statistics. This should be set " +
-					"for most sequencing protocols."
+					null, (KestrelRunnerBase.DEFAULT_CANONICAL_COUNTS ? "" : null),
+					"Count each k-mer and its reverse complement together under the lesser of the two. " +
+					"Read depth estimates then need one k-mer count lookup instead of two. The minimum " +
+					"k-mer count is applied to the count of both strands, and IKC files given as input " +
+					"must have been counted in canonical mode. This option has no effect with " +
+					"--nocountrev."
 					);
 		}
 		
@@ -2256,7 +3258,7 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setCountReverseKmers(true);
+			runnerBase.setCanonicalCounts(true);
 			
 			return true;
 		}
@@ -2266,25 +3268,24 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public void init() {
-			runnerBase.setCountReverseKmers(KestrelRunnerBase.DEFAULT_COUNT_REV_KMER);
+			runnerBase.setCanonicalCounts(KestrelRunnerBase.DEFAULT_CANONICAL_COUNTS);
 		}
 	}
 	
 	/**
-	 * Option: Do not delete generated indexed k-mer count (IKC) files.
+	 * Option: Count k-mers on each strand separately.
 	 */
-	protected class OptNoCountReverseKmers extends OptionSpecElement {
+	protected class OptNoCanonicalCounts extends OptionSpecElement {
 		
 		/**
 		 * Create option.
 		 */
-		public OptNoCountReverseKmers() {
-			super('\0', "nocountrev",
+		public OptNoCanonicalCounts() {
+			super('\0', "nocanonical",
 					OptionArgumentType.NONE,
-					null, (KestrelRunnerBase.DEFAULT_COUNT_REV_KMER ? null : ""),
-					"Do not include the reverse complement of k-mers in read depth estimates. " +
-					"If all sequence reads are in the same orientation as the reference, then " +
-					"this option should be used."
+					null, (KestrelRunnerBase.DEFAULT_CANONICAL_COUNTS ? null : ""),
+					"Count k-mers and their reverse complements separately and look up both when " +
+					"estimating read depth."
 					);
 		}
 		
@@ -2296,12 +3297,12 @@ public class KestrelArgumentParser extends ArgumentParser {
 		 */
 		@Override
 		public boolean invoke(String option, String argument) {
-			runnerBase.setCountReverseKmers(false);
+			runnerBase.setCanonicalCounts(false);
 			
 			return true;
 		}
 		
-		// Init by OptCountReverseKmers
+		// Init by OptCanonicalCounts
 	}
 	
 	/**
@@ -2413,6 +3414,65 @@ public class KestrelArgumentParser extends ArgumentParser {
 		}
 	}
 	
+	/**
+	 * Option: Genotype known alleles.
+	 */
+	protected class OptKnownAlleleFile extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptKnownAlleleFile() {
+			super('\0', "knownalleles",
+					OptionArgumentType.REQUIRED,
+					"VCF_FILE", null,
+					"Reads a VCF file of known alleles and genotypes each sample for these alleles " +
+					"instead of searching for variants. Haplotypes with and without each allele are built " +
+					"from the reference, and their depth is estimated from k-mer counts without active " +
+					"region detection or assembly. Only the CHROM, POS, REF, and ALT fields are read, and " +
+					"symbolic alleles are skipped. Files ending in \".gz\" are decompressed. This option " +
+					"may be given more than once."
+			);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			
+			File vcfFile = new File(argument);
+			
+			try {
+				if (runnerBase.readKnownAlleles(vcfFile) == 0) {
+					error("Error reading known allele file (" + option + "): No alleles found in file: " + vcfFile.getPath(), KAnalyzeConstants.ERR_USAGE);
+					return false;
+				}
+				
+			} catch (FileNotFoundException ex) {
+				error("Error reading known allele file (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+				
+			} catch (IOException ex) {
+				error("Error reading known allele file (" + option + "): " + ex.getMessage(), KAnalyzeConstants.ERR_USAGE);
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.clearKnownAlleles();
+		}
+	}
+	
 	/**
 	 * Option: Set interval flank length.
 	 */
@@ -2845,6 +3905,234 @@ public class KestrelArgumentParser extends ArgumentParser {
 	
 	
 	
+	/**
+	 * Option: Read intervals from indexed reference files
+	 */
+	protected class OptIndexReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptIndexReference() {
+			super('\0', "refindex",
+					OptionArgumentType.NONE,
+					null, (ReferenceReader.DEFAULT_INDEX_FASTA ? "" : null),
+					"When intervals are set, read only the bases of each interval and its flanks from " +
+					"uncompressed FASTA reference files. Each file is indexed in the format written by " +
+					"\"samtools faidx\", and if the index file (the reference file name with \".fai\" appended) " +
+					"is missing or older than the reference, it is created. If any reference cannot be indexed " +
+					"or if reference sequence descriptions are not removed (see --normrefdesc), whole reference " +
+					"sequences are read."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setIndexReference(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setIndexReference(ReferenceReader.DEFAULT_INDEX_FASTA);
+		}
+	}
+	
+	/**
+	 * Option: Do not read intervals from indexed reference files
+	 */
+	protected class OptNoIndexReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoIndexReference() {
+			super('\0', "norefindex",
+					OptionArgumentType.NONE,
+					null, (ReferenceReader.DEFAULT_INDEX_FASTA ? null : ""),
+					"Read whole reference sequences even when intervals are set, and do not index " +
+					"reference files."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setIndexReference(false);
+			
+			return true;
+		}
+		
+		// Init by OptIndexReference
+	}
+	
+	/**
+	 * Option: Read reference regions as they are processed
+	 */
+	protected class OptStreamReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptStreamReference() {
+			super('\0', "refstream",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_STREAM_REFERENCE ? "" : null),
+					"Read reference regions from uncompressed FASTA reference files as they are processed " +
+					"instead of reading all regions before processing samples. Each region is released " +
+					"after it is processed, so memory is bounded by the largest reference region instead " +
+					"of the whole reference, and the next regions are read while a region is processed. " +
+					"References are indexed as with --refindex. If any reference cannot be indexed, " +
+					"if references are not indexed (see --norefindex), or if reference sequence " +
+					"descriptions are not removed (see --normrefdesc), all regions are read into memory."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setStreamReference(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setStreamReference(KestrelRunnerBase.DEFAULT_STREAM_REFERENCE);
+		}
+	}
+	
+	/**
+	 * Option: Read all reference regions into memory
+	 */
+	protected class OptNoStreamReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoStreamReference() {
+			super('\0', "norefstream",
+					OptionArgumentType.NONE,
+					null, (KestrelRunnerBase.DEFAULT_STREAM_REFERENCE ? null : ""),
+					"Read all reference regions into memory before processing samples."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setStreamReference(false);
+			
+			return true;
+		}
+		
+		// Init by OptStreamReference
+	}
+	
+	/**
+	 * Option: Cache reference sequence digests
+	 */
+	protected class OptCacheReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptCacheReference() {
+			super('\0', "refcache",
+					OptionArgumentType.NONE,
+					null, (ReferenceReader.DEFAULT_CACHE_METADATA ? "" : null),
+					"Cache the size and digest of each reference sequence in a file next to each reference " +
+					"file (the reference file name with \"" + ReferenceMetadataCache.CACHE_SUFFIX + "\" appended). " +
+					"If the reference file has the same size, modification time, and sampled checksum as when " +
+					"the cache was written, digests are read from the cache instead of being computed from " +
+					"every base of the reference. Digests are written to the variant and haplotype output " +
+					"headers."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setCacheReferenceMetadata(true);
+			
+			return true;
+		}
+		
+		/**
+		 * Initialize this option.
+		 */
+		@Override
+		public void init() {
+			runnerBase.setCacheReferenceMetadata(ReferenceReader.DEFAULT_CACHE_METADATA);
+		}
+	}
+	
+	/**
+	 * Option: Do not cache reference sequence digests
+	 */
+	protected class OptNoCacheReference extends OptionSpecElement {
+		
+		/**
+		 * Create option.
+		 */
+		public OptNoCacheReference() {
+			super('\0', "norefcache",
+					OptionArgumentType.NONE,
+					null, (ReferenceReader.DEFAULT_CACHE_METADATA ? null : ""),
+					"Compute the digest of each reference sequence on every run, and do not read or write " +
+					"reference metadata cache files."
+					);
+		}
+		
+		/**
+		 * Invoke this option
+		 * 
+		 * @param option Option.
+		 * @param argument Option argument.
+		 */
+		@Override
+		public boolean invoke(String option, String argument) {
+			runnerBase.setCacheReferenceMetadata(false);
+			
+			return true;
+		}
+		
+		// Init by OptCacheReference
+	}
+	
 	/**
 	 * Option: Reverse complement negative strand reference regions
 	 */
@@ -19,28 +19,46 @@ package edu.gatech.kestrel.runner;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Iterator;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kanalyze.module.count.CountModule;
 import edu.gatech.kanalyze.util.kmer.KmerUtil;
-import edu.gatech.kestrel.activeregion.ActiveRegionContainer;
+import edu.gatech.kestrel.activeregion.ActiveRegionChunk;
 import edu.gatech.kestrel.activeregion.ActiveRegionDetector;
+import edu.gatech.kestrel.activeregion.CountHistogram;
 import edu.gatech.kestrel.activeregion.Haplotype;
 import edu.gatech.kestrel.activeregion.RegionHaplotype;
 import edu.gatech.kestrel.counter.CountMap;
+import edu.gatech.kestrel.counter.IkcCountCache;
 import edu.gatech.kestrel.counter.IkcCountMap;
 import edu.gatech.kestrel.counter.MemoryCountMap;
+import edu.gatech.kestrel.counter.TargetReadFilter;
 import edu.gatech.kestrel.hapwriter.HaplotypeWriter;
 import edu.gatech.kestrel.hapwriter.HaplotypeWriterInitException;
 import edu.gatech.kestrel.hapwriter.NullHaplotypeWriter;
 import edu.gatech.kestrel.io.InputSample;
+import edu.gatech.kestrel.knownallele.KnownAllele;
+import edu.gatech.kestrel.knownallele.KnownAlleleGenotyper;
+import edu.gatech.kestrel.refreader.ContainerRegionSource;
 import edu.gatech.kestrel.refreader.ReferenceReader;
 import edu.gatech.kestrel.refreader.ReferenceRegion;
 import edu.gatech.kestrel.refreader.ReferenceRegionContainer;
-import edu.gatech.kestrel.refreader.ReferenceSequence;
+import edu.gatech.kestrel.refreader.ReferenceRegionSource;
 import edu.gatech.kestrel.varfilter.VariantFilterRunner;
 import edu.gatech.kestrel.variant.VariantCall;
 import edu.gatech.kestrel.variant.VariantCaller;
@@ -62,6 +80,32 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 	/** Set to a throwable object if <code>exec()</code> fails for any reason. */
 	private Throwable errThrowable;
 	
+	/**
+	 * Pool haplotype branches are explored in while <code>exec()</code> runs, or <code>null</code>
+	 * if <code>branchThreads</code> is <code>1</code>. The pool is shared by all active region detectors.
+	 */
+	private ForkJoinPool branchPool;
+	
+	/**
+	 * When reference regions are processed by more than one thread, the number of regions that may
+	 * be queued or completed, but not yet written, is limited to the number of threads multiplied
+	 * by this factor.
+	 */
+	private static final int REGION_QUEUE_FACTOR = 4;
+	
+	/**
+	 * When samples are counted ahead of the sample being processed, a sample is only counted ahead
+	 * if at least this fraction of the maximum heap size and of the maximum direct memory size is
+	 * free. Otherwise, it is counted when it is processed.
+	 */
+	private static final double PIPELINE_MIN_FREE_MEMORY = 0.25;
+	
+	/** Name of the buffer pool that allocates direct buffers, which hold in-memory k-mer counts. */
+	private static final String DIRECT_BUFFER_POOL_NAME = "direct";
+	
+	/** JVM option setting the maximum direct memory size. */
+	private static final String MAX_DIRECT_MEMORY_OPTION = "-XX:MaxDirectMemorySize=";
+	
 	/**
 	 * Create a Kestrel runner.
 	 */
@@ -82,18 +126,28 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 		// Declarations
 		KmerUtil kUtil;  // k-mer utility
 		
-		ReferenceRegionContainer refRegionContainer;            // Reference sequences regions
-		Iterator<ReferenceSequence> refRegionSequenceIterator;  // Iterator for references in refRegionContainer
+		ReferenceRegionSource refRegionSource;  // Reference sequences regions
+		ReferenceRegion[] refRegionArray;       // Batch of reference regions from refRegionSource
 		
-		ReferenceSequence refSequence;     // A reference sequence from refRegionSequenceIterator
-		ReferenceRegion[] refRegionArray;  // Reference regions associated with refSequence
+		boolean countInMemory;         // Keep k-mer counts in memory if true, and use IKC files if false
+		TargetReadFilter targetReadFilter;  // Keeps reads overlapping reference regions or null to count all reads
+		IkcCountCache countCache;      // Count cache shared by all counters or null if counts are not cached
+		CountMap[] counters;           // K-mer counters, one for each sample in flight
+		CountMap counter;              // K-mer counter for the sample being processed
+		int counterIndex;              // Index of counter in counters
 		
-		CountMap counter;             // K-mer counter
+		ExecutorService countExecutor;  // Counts samples ahead of the sample being processed if pipelineSamples is greater than 1
+		Future<?>[] countFutures;       // Count task for each counter, or null if the counter is not counting ahead
+		int nextCountIndex;             // Index of the next sample in sampleList to count
 		
-		ActiveRegionDetector arDetector;        // Detects active regions
-		ActiveRegionContainer regionContainer;  // A container of active regions
+		RegionWorker[] regionWorkers;      // Finds active regions and calls variants for each counter if threads is 1
+		List<ThreadLocal<RegionWorker>> workerLocalList;  // Region workers for each counter and thread if threads is greater than 1
+		ExecutorService regionExecutor;    // Processes reference regions if threads is greater than 1
+		ArrayDeque<Future<RegionResult>> regionFutureQueue;  // Regions submitted, but not yet written
+		int maxRegionQueueSize;            // Maximum size of regionFutureQueue
+		ActiveRegionChunk[] chunks;        // Chunks of a large reference region processed in parallel
+		int chunkScanLimit;                // End-scan limit of active region detectors for splitting regions into chunks
 		
-		VariantCaller varCaller;  // Calls variants from alignments
 		VariantFilterRunner variantFilterRunner;
 		
 		VariantWriter variantWriter;      // Writes variants to output
@@ -101,10 +155,17 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 		
 		int flankLength;  // Length of flanks to add to regions extracted from reference sequences
 		
+		final Map<String, KnownAllele[]> knownAlleleMap;  // Known alleles by reference sequence name or null if active regions are detected
+		
 		// Init
 		logger.trace("exec(): Started");
 		errThrowable = null;
 		
+		regionExecutor = null;
+		countExecutor = null;
+		branchPool = null;
+		refRegionSource = null;
+		
 		try {
 			
 			// Set flank length
@@ -126,33 +187,42 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			if (tempDirName.isEmpty())
 				tempDirName = ".";
 			
-			// Setup counter and kUtil
-			if (kmerCountInMemory) {
+			// Setup kUtil. Targeted counts are small and are kept in memory. Filtered reads are not
+			// the sample the count cache is keyed on, so they are never counted from IKC files.
+			if (targetedCount && intervalContainer.isEmpty())
+				logger.warn("Ignoring targeted k-mer counting: No intervals were set");
+			
+			countInMemory = kmerCountInMemory || targetedCount && ! intervalContainer.isEmpty();
+			
+			if (countInMemory) {
 				kUtil = KmerUtil.get(kSize);
 				
 				logger.info("Counting k-mers in memory");
-				counter = new MemoryCountMap(kUtil, getCountModule());
+				
+				if (countCacheDirName != null)
+					logger.warn("Ignoring count cache: K-mer counts are kept in memory");
 				
 			} else {
 				kUtil = KmerUtil.get(kSize, kMinSize, kMinMask);
 				
 				logger.info("Counting k-mers from file");
-				counter = new IkcCountMap(kUtil, getCountModule(), new File(tempDirName), removeIkc);
+				
+				if (countCacheDirName != null)
+					logger.info("Caching k-mer counts in {}", countCacheDirName);
+			}
+			
+			if (canonicalCounts) {
+				
+				if (countReverseKmers)
+					logger.info("Counting k-mers in canonical form");
+				else
+					logger.warn("Ignoring canonical k-mer counts: Reverse complement k-mers are not counted");
 			}
 			
 			// Create filter runner
 			variantFilterRunner = new VariantFilterRunner();
 			variantFilterRunner.addFilter(variantFilterList);
 			
-			// Create aligner and variant caller
-			varCaller = new VariantCaller();
-			varCaller.setCallAmbiguousVariant(callAmbiguousVariant);
-			
-			if (variantCallByRegion)
-				varCaller.setVariantCallByRegion();
-			else
-				varCaller.setVariantCallByReference();
-			
 			// Read reference sequences
 			logger.info("Reading references");
 			
@@ -160,12 +230,32 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			referenceReader.setFlankLength(flankLength);
 			referenceReader.setRemoveDescription(removeReferenceSequenceDescription);
 			referenceReader.setRevComplementNegStrand(reverseComplementNegativeStrand);
+			referenceReader.setIndexFasta(indexReference);
+			referenceReader.setCacheMetadata(cacheReferenceMetadata);
 			
 			try {
-				refRegionContainer = referenceReader.read(
-						referenceList.toArray(new SequenceSource[0]),
-						((intervalContainer.isEmpty()) ? null : intervalContainer.getMap())
-				);
+				if (streamReference) {
+					refRegionSource = referenceReader.openStream(
+							referenceList.toArray(new SequenceSource[0]),
+							((intervalContainer.isEmpty()) ? null : intervalContainer.getMap())
+					);
+					
+					if (refRegionSource != null)
+						logger.info("Streaming reference regions from indexed FASTA files");
+					else
+						logger.warn("Reading all reference regions into memory: References cannot be streamed (uncompressed FASTA files with index and sequence description removal are required)");
+				}
+				
+				if (refRegionSource == null) {
+					ReferenceRegionContainer refRegionContainer = referenceReader.read(
+							referenceList.toArray(new SequenceSource[0]),
+							((intervalContainer.isEmpty()) ? null : intervalContainer.getMap())
+					);
+					
+					refRegionContainer.sortReferences();
+					
+					refRegionSource = new ContainerRegionSource(refRegionContainer);
+				}
 				
 			} catch (IOException ex) {
 				err("Error reading reference sequence(s)", ex);
@@ -174,35 +264,114 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			}
 			
 			// Check reference sequences
-			if (refRegionContainer.isEmpty()) {
+			if (refRegionSource.isEmpty()) {
 				err("No reference sequences (see -r option)", null);
 				
 				return;
 			}
 			
-			// Sort references
-			refRegionContainer.sortReferences();
-			
-			// Get k-mer counter and active region detector
-			arDetector = new ActiveRegionDetector(counter);
-			
-			arDetector.setAlignmentWeight(alignmentWeight);
-			arDetector.setMinimumDifference(minimumDifference);
-			arDetector.setDifferenceQuantile(differenceQuantile);
-			arDetector.setAnchorBothEnds(anchorBothEnds);
-			arDetector.setCountReverseKmers(countReverseKmers);
-			arDetector.setPeakScanLength(peakScanLength);
-			arDetector.setScanLimitFactor(scanLimitFactor);
-			arDetector.setCallAmbiguousRegions(callAmbiguousRegions);
-			arDetector.setDecayMinimum(expDecayMin);
-			arDetector.setDecayAlpha(expDecayAlpha);
-			arDetector.setMaxAlignerState(maxAlignerState);
-			arDetector.setMaxHaplotypes(maxHaplotypes);
-			arDetector.setMaxRepeatCount(maxRepeatCount);
+			// Restrict counting to reads overlapping reference regions
+			targetReadFilter = null;
+			
+			if (targetedCount && ! intervalContainer.isEmpty()) {
+				
+				try {
+					targetReadFilter = getTargetReadFilter(refRegionSource);
+					
+				} catch (IOException ex) {
+					err("Error reading reference regions for targeted counting", ex);
+					
+					return;
+				}
+			}
+			
+			// Create counters (one count cache is shared so no counter evicts an entry another is reading)
+			counters = new CountMap[Math.max(1, Math.min(pipelineSamples, sampleList.size()))];
+			
+			try {
+				if (! countInMemory && countCacheDirName != null)
+					countCache = new IkcCountCache(new File(countCacheDirName), countCacheMaxSize * 1024L * 1024L, countCacheMaxAge * 86400000L);  // throws IOException
+				else
+					countCache = null;
+				
+				for (int index = 0; index < counters.length; ++index)
+					counters[index] = getCountMap(kUtil, countInMemory, countCache);
+				
+			} catch (IOException ex) {
+				err("Error creating k-mer counter", ex);
+				
+				return;
+			}
+			
+			countFutures = new Future<?>[counters.length];
+			nextCountIndex = 0;
+			
+			if (counters.length > 1) {
+				logger.info("Counting up to {} samples ahead", counters.length - 1);
+				
+				countExecutor = Executors.newSingleThreadExecutor();
+			}
+			
+			// Group known alleles (shared by all region workers)
+			if (! knownAlleleList.isEmpty()) {
+				knownAlleleMap = KnownAllele.getSequenceMap(knownAlleleList);
+				
+				logger.info("Genotyping {} known alleles without active region detection", knownAlleleList.size());
+				
+			} else {
+				knownAlleleMap = null;
+			}
+			
+			// Create a pool for exploring haplotype branches (shared by all region workers)
+			if (branchThreads > 1) {
+				logger.info("Exploring haplotype branches with {} threads", branchThreads);
+				
+				branchPool = new ForkJoinPool(branchThreads);
+			}
+			
+			// Create region workers
+			if (threads > 1) {
+				logger.info("Processing reference regions with {} threads", threads);
+				
+				workerLocalList = new ArrayList<ThreadLocal<RegionWorker>>(counters.length);
+				
+				for (final CountMap workerCounter : counters) {
+					workerLocalList.add(new ThreadLocal<RegionWorker>() {
+						@Override
+						protected RegionWorker initialValue() {
+							return new RegionWorker(workerCounter, knownAlleleMap);
+						}
+					});
+				}
+				
+				regionExecutor = Executors.newFixedThreadPool(threads);
+				regionFutureQueue = new ArrayDeque<Future<RegionResult>>();
+				
+				chunkScanLimit = ActiveRegionDetector.getScanLimit(alignmentWeight, scanLimitFactor, kSize);
+				
+				maxRegionQueueSize = threads * REGION_QUEUE_FACTOR;
+				
+				if (maxRegionQueueSize < 0)
+					maxRegionQueueSize = Integer.MAX_VALUE;
+				
+				regionWorkers = null;
+				
+			} else {
+				regionWorkers = new RegionWorker[counters.length];
+				
+				for (int index = 0; index < counters.length; ++index)
+					regionWorkers[index] = new RegionWorker(counters[index], knownAlleleMap);
+				
+				workerLocalList = null;
+				regionFutureQueue = null;
+				maxRegionQueueSize = 0;
+				
+				chunkScanLimit = 0;
+			}
 			
 			// Open output
 			try {
-				variantWriter = VariantWriter.getWriter(outputFormat, outputFile, refRegionContainer.getReferenceSequenceArray(), variantCallByRegion, loader);
+				variantWriter = VariantWriter.getWriter(outputFormat, outputFile, refRegionSource.getReferenceSequenceArray(), variantCallByRegion, loader);
 				
 			} catch (IllegalArgumentException ex) {
 				err("Error opening variant writer: " + ex.getMessage(), ex);
@@ -224,7 +393,7 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			// Open haplotype output
 			try {
 				if (haplotypeOutputFile != null)
-					haplotypeWriter = HaplotypeWriter.getWriter(haplotypeOutputFormat, haplotypeOutputFile, refRegionContainer.getReferenceSequenceArray(), loader);
+					haplotypeWriter = HaplotypeWriter.getWriter(haplotypeOutputFormat, haplotypeOutputFile, refRegionSource.getReferenceSequenceArray(), loader);
 				else
 					haplotypeWriter = new NullHaplotypeWriter();
 				
@@ -246,15 +415,30 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			}
 			
 			// Process samples
-			for (InputSample sample : sampleList) {
+			for (int sampleIndex = 0; sampleIndex < sampleList.size(); ++sampleIndex) {
+				
+				InputSample sample = sampleList.get(sampleIndex);
+				
 				logger.info("Processing sample: {}", sample.name);
 				
 				variantWriter.setSampleName(sample.name);
 				haplotypeWriter.setSampleName(sample.name);
 				
-				// Get counts
+				counterIndex = sampleIndex % counters.length;
+				counter = counters[counterIndex];
+				
+				// Get counts (count now if the sample was not counted ahead)
 				try {
-					counter.set(sample);
+					if (sampleIndex == nextCountIndex) {
+						counter.set((targetReadFilter != null) ? targetReadFilter.filter(sample) : sample);
+						++nextCountIndex;
+						
+					} else {
+						logger.trace("Waiting for k-mer counts: {}", sample.name);
+						
+						countFutures[counterIndex].get();
+						countFutures[counterIndex] = null;
+					}
 					
 				} catch (FileNotFoundException ex) {
 					err(null, ex);
@@ -263,54 +447,88 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 				} catch (IOException ex) {
 					err(null, ex);
 					return;
+					
+				} catch (ExecutionException ex) {
+					err(null, ex.getCause());
+					return;
+				}
+				
+				// Count the next samples while this sample is processed
+				while (countExecutor != null && nextCountIndex < sampleList.size() && nextCountIndex < sampleIndex + counters.length) {
+					
+					final InputSample aheadSample = (targetReadFilter != null) ? targetReadFilter.filter(sampleList.get(nextCountIndex)) : sampleList.get(nextCountIndex);
+					final CountMap aheadCounter = counters[nextCountIndex % counters.length];
+					
+					if (! isPipelineMemoryAvailable(countInMemory)) {
+						logger.info("Not counting sample {} ahead: Free memory is low", aheadSample.name);
+						break;
+					}
+					
+					logger.trace("Counting sample ahead: {}", aheadSample.name);
+					
+					countFutures[nextCountIndex % counters.length] = countExecutor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							aheadCounter.set(aheadSample);
+							
+							return null;
+						}
+					});
+					
+					++nextCountIndex;
 				}
 				
 				// Find active regions
 				logger.trace("Getting active regions: {}", sample.name);
 				
-				// Iterate over reference sequences
-				refRegionSequenceIterator = refRegionContainer.refSequenceIterator();
+				// Iterate over batches of reference regions (a batch is released once it is processed)
+				refRegionSource.reset();
 				
-				while (refRegionSequenceIterator.hasNext()) {
-					
-					refSequence = refRegionSequenceIterator.next();
-					
-					refRegionArray = refRegionContainer.get(refSequence);
+				while ((refRegionArray = refRegionSource.next()) != null) {
 					
 					// Iterate over reference regions
-					for (ReferenceRegion refRegion : refRegionArray) {
-						logger.trace("Searching for active regions in {}", refRegion);
+					for (final ReferenceRegion refRegion : refRegionArray) {
 						
-						variantWriter.setReferenceRegion(refRegion);
+						if (regionWorkers != null) {
+							writeRegion(regionWorkers[counterIndex].process(refRegion), variantWriter, haplotypeWriter, variantFilterRunner);
+							
+							continue;
+						}
 						
-						regionContainer = arDetector.getActiveRegions(refRegion);
+						// Write completed regions in order until there is room in the queue
+						while (regionFutureQueue.size() >= maxRegionQueueSize)
+							writeRegion(regionFutureQueue.remove().get(), variantWriter, haplotypeWriter, variantFilterRunner);
 						
-						// Find variants in active regions
-						for (RegionHaplotype thisRegionHaplotype : regionContainer.haplotypes) {
-							
-							logger.trace("Found: {} ({} haplotypes)", thisRegionHaplotype.toString(), thisRegionHaplotype.haplotype.length);
-							
-							varCaller.init(thisRegionHaplotype.activeRegion);
+						final ThreadLocal<RegionWorker> workerLocal = workerLocalList.get(counterIndex);
+						
+						// Split large regions into chunks (known alleles are genotyped without active region scans)
+						if (knownAlleleMap == null)
+							chunks = ActiveRegionDetector.getChunks(refRegion, regionChunkSize, kSize, chunkScanLimit, peakScanLength);
+						else
+							chunks = null;
+						
+						if (chunks != null) {
+							logger.trace("Splitting {} into {} chunks", refRegion, chunks.length);
 							
-							// Find variants in each haplotype
-							for (Haplotype haplotype : thisRegionHaplotype.haplotype) {
-								
-								logger.trace("Found: {}", haplotype.toString());
-								
-								varCaller.add(haplotype);
-								haplotypeWriter.add(haplotype);
-							}
+							regionFutureQueue.add(submitChunks(refRegion, chunks, regionExecutor, workerLocal));
 							
-							// Output variant
-							for (VariantCall var : varCaller.getVariants()) {
-								var = variantFilterRunner.filter(var);
-								
-								if (var != null)
-									variantWriter.writeVariant(var);
-							}
+							continue;
 						}
+						
+						regionFutureQueue.add(regionExecutor.submit(new Callable<RegionResult>() {
+							@Override
+							public RegionResult call() {
+								return workerLocal.get().process(refRegion);
+							}
+						}));
 					}
 				}
+				
+				// Write remaining regions for this sample before the counter is set to the next sample
+				if (regionFutureQueue != null) {
+					while (! regionFutureQueue.isEmpty())
+						writeRegion(regionFutureQueue.remove().get(), variantWriter, haplotypeWriter, variantFilterRunner);
+				}
 			}
 			
 			/** Flush variants and haplotypes. */
@@ -321,11 +539,334 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 			/** Complete. */
 			logger.trace("exec(): Complete");
 			
+		} catch (ExecutionException ex) {
+			err("Error processing reference region", ex.getCause());
+			
 		} catch (Exception ex) {
 			logger.error("Unexpected exception in run(): {} ({})", ex.getMessage(), ex.getClass().getSimpleName());
 			errThrowable = ex;
 			
 			ex.printStackTrace();
+			
+		} finally {
+			if (regionExecutor != null)
+				regionExecutor.shutdownNow();
+			
+			if (countExecutor != null)
+				countExecutor.shutdownNow();
+			
+			if (branchPool != null) {
+				branchPool.shutdownNow();
+				branchPool = null;
+			}
+			
+			if (refRegionSource != null) {
+				try {
+					refRegionSource.close();
+					
+				} catch (IOException ex) {
+					logger.warn("Error closing reference sequence(s): {}", ex.getMessage());
+				}
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Create and configure a k-mer counter with its own count module.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * @param countInMemory Keep k-mer counts in memory if <code>true</code>, and read them from
+	 *   IKC files if <code>false</code>.
+	 * @param countCache Count cache shared by all counters, or <code>null</code> if counts are not
+	 *   cached. Ignored if <code>countInMemory</code> is set.
+	 * 
+	 * @return A configured k-mer counter.
+	 * 
+	 * @throws IOException If an IO error occurs creating the counter.
+	 */
+	private CountMap getCountMap(KmerUtil kUtil, boolean countInMemory, IkcCountCache countCache)
+			throws IOException {
+		
+		CountModule countModule;  // Module the counter gets k-mer counts from
+		CountMap counter;         // K-mer counter
+		
+		countModule = getCountModule();
+		
+		if (countInMemory) {
+			counter = new MemoryCountMap(kUtil, countModule);
+			
+		} else {
+			counter = new IkcCountMap(kUtil, countModule, new File(tempDirName), removeIkc, mapIkc);  // throws IOException
+			
+			if (countCache != null)
+				((IkcCountMap) counter).setCountCache(countCache, "mincount=" + minKmerCount);
+		}
+		
+		if (canonicalCounts && countReverseKmers)
+			counter.setCanonical(true);
+		
+		return counter;
+	}
+	
+	/**
+	 * Determine if there is enough free memory to count another sample ahead of the sample being
+	 * processed. Heap memory that has not yet been allocated by the JVM is counted as free. When
+	 * k-mer counts are kept in memory, they are held in direct buffers outside the heap, and the
+	 * direct memory in use is also checked against the maximum direct memory size. If direct memory
+	 * use cannot be read, in-memory counts are not counted ahead.
+	 * 
+	 * @param countInMemory <code>true</code> if k-mer counts are kept in direct buffers.
+	 * 
+	 * @return <code>true</code> if at least <code>PIPELINE_MIN_FREE_MEMORY</code> of the maximum
+	 *   heap size is free and, if <code>countInMemory</code> is set, at least this fraction of the
+	 *   maximum direct memory size is free.
+	 * 
+	 * @see #PIPELINE_MIN_FREE_MEMORY
+	 */
+	private static boolean isPipelineMemoryAvailable(boolean countInMemory) {
+		
+		Runtime runtime = Runtime.getRuntime();
+		
+		long freeMemory;     // Free heap memory
+		long maxDirect;      // Maximum direct memory size
+		long directUsed;     // Direct memory in use or -1 if it cannot be read
+		
+		// Check heap
+		freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		
+		if (freeMemory < runtime.maxMemory() * PIPELINE_MIN_FREE_MEMORY)
+			return false;
+		
+		if (! countInMemory)
+			return true;
+		
+		// Check direct memory
+		directUsed = -1;
+		
+		for (BufferPoolMXBean bufferPool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (bufferPool.getName().equals(DIRECT_BUFFER_POOL_NAME)) {
+				directUsed = bufferPool.getMemoryUsed();
+				break;
+			}
+		}
+		
+		maxDirect = getMaxDirectMemory();
+		
+		if (directUsed < 0 || maxDirect <= 0)
+			return false;
+		
+		return maxDirect - directUsed >= maxDirect * PIPELINE_MIN_FREE_MEMORY;
+	}
+	
+	/**
+	 * Get the maximum amount of memory the JVM allocates for direct buffers. This is the value
+	 * of <code>-XX:MaxDirectMemorySize</code> if it was set. Otherwise, the JVM limits direct memory
+	 * to the maximum heap size.
+	 * 
+	 * @return Maximum direct memory size in bytes, or <code>-1</code> if the JVM option cannot
+	 *   be parsed.
+	 */
+	private static long getMaxDirectMemory() {
+		
+		long maxDirect;  // Maximum direct memory size
+		String size;     // Size argument of the JVM option
+		long unit;       // Bytes per unit of size
+		
+		maxDirect = Runtime.getRuntime().maxMemory();
+		
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			
+			if (! arg.startsWith(MAX_DIRECT_MEMORY_OPTION))
+				continue;
+			
+			size = arg.substring(MAX_DIRECT_MEMORY_OPTION.length()).trim().toLowerCase();
+			unit = 1;
+			
+			if (size.endsWith("k"))
+				unit = 1024L;
+			else if (size.endsWith("m"))
+				unit = 1024L * 1024L;
+			else if (size.endsWith("g"))
+				unit = 1024L * 1024L * 1024L;
+			else if (size.endsWith("t"))
+				unit = 1024L * 1024L * 1024L * 1024L;
+			
+			if (unit > 1)
+				size = size.substring(0, size.length() - 1);
+			
+			try {
+				maxDirect = Long.parseLong(size) * unit;
+				
+			} catch (NumberFormatException ex) {
+				return -1;
+			}
+			
+			// The last occurrence of the option is used, so continue
+		}
+		
+		// A size of 0 lets the JVM choose, which is the maximum heap size
+		if (maxDirect == 0)
+			maxDirect = Runtime.getRuntime().maxMemory();
+		
+		return maxDirect;
+	}
+	
+	/**
+	 * Build a filter keeping reads that share a seed with reference regions.
+	 * 
+	 * @param refRegionSource Reference regions.
+	 * 
+	 * @return Target read filter.
+	 * 
+	 * @throws IOException If an IO error occurs reading reference regions.
+	 */
+	private TargetReadFilter getTargetReadFilter(ReferenceRegionSource refRegionSource)
+			throws IOException {
+		
+		TargetReadFilter readFilter;       // Reference seeds of reference regions
+		ReferenceRegion[] refRegionArray;  // Batch of reference regions
+		
+		logger.info("Building targeted read filter (seed size = {})", Math.min(targetSeedSize, kSize));
+		
+		readFilter = new TargetReadFilter(KmerUtil.get(Math.min(targetSeedSize, kSize)), loader);
+		
+		refRegionSource.reset();
+		
+		while ((refRegionArray = refRegionSource.next()) != null) {
+			for (ReferenceRegion refRegion : refRegionArray)
+				readFilter.add(refRegion);
+		}
+		
+		logger.info("Counting reads sharing a seed with {} targeted reference seeds", readFilter.getSize());
+		
+		return readFilter;
+	}
+	
+	/**
+	 * Create and configure an active region detector.
+	 * 
+	 * @param counter K-mer counter. This counter may be shared by several detectors.
+	 * 
+	 * @return A configured active region detector.
+	 */
+	private ActiveRegionDetector getActiveRegionDetector(CountMap counter) {
+		
+		ActiveRegionDetector arDetector = new ActiveRegionDetector(counter);
+		
+		arDetector.setAlignmentWeight(alignmentWeight);
+		arDetector.setMinimumDifference(minimumDifference);
+		arDetector.setDifferenceQuantile(differenceQuantile);
+		arDetector.setAnchorBothEnds(anchorBothEnds);
+		arDetector.setCountReverseKmers(countReverseKmers);
+		arDetector.setPeakScanLength(peakScanLength);
+		arDetector.setScanLimitFactor(scanLimitFactor);
+		arDetector.setStreamWindowSize(streamWindowSize);
+		arDetector.setCallAmbiguousRegions(callAmbiguousRegions);
+		arDetector.setDecayMinimum(expDecayMin);
+		arDetector.setDecayAlpha(expDecayAlpha);
+		arDetector.setMaxAlignerState(maxAlignerState);
+		arDetector.setMaxHaplotypes(maxHaplotypes);
+		arDetector.setMaxRepeatCount(maxRepeatCount);
+		arDetector.setBandedAlignment(bandedAlignment);
+		arDetector.setBestFirstAssembly(bestFirstAssembly);
+		arDetector.setBranchPool(branchPool);
+		arDetector.setSnvFastPath(snvFastPath);
+		
+		return arDetector;
+	}
+	
+	/**
+	 * Create and configure a variant caller.
+	 * 
+	 * @return A configured variant caller.
+	 */
+	private VariantCaller getVariantCaller() {
+		
+		VariantCaller varCaller = new VariantCaller();
+		varCaller.setCallAmbiguousVariant(callAmbiguousVariant);
+		
+		if (variantCallByRegion)
+			varCaller.setVariantCallByRegion();
+		else
+			varCaller.setVariantCallByReference();
+		
+		return varCaller;
+	}
+	
+	/**
+	 * Submit tasks to find active regions and call variants in each chunk of a reference region.
+	 * Difference histograms are computed for all chunks first, then each chunk is scanned with
+	 * the threshold of the whole region, and the last task merges the chunks in order. Tasks
+	 * only wait on tasks submitted before them, and the executor starts tasks in the order they
+	 * are submitted, so a task never waits on a task that cannot start.
+	 * 
+	 * @param refRegion Reference region.
+	 * @param chunks Chunks of <code>refRegion</code>.
+	 * @param regionExecutor Executor to submit tasks to.
+	 * @param workerLocal Region worker for each thread of <code>regionExecutor</code>.
+	 * 
+	 * @return A future for haplotypes and variants found in the whole reference region.
+	 */
+	private Future<RegionResult> submitChunks(final ReferenceRegion refRegion, ActiveRegionChunk[] chunks, ExecutorService regionExecutor, final ThreadLocal<RegionWorker> workerLocal) {
+		
+		final List<Future<CountHistogram>> histFutureList;      // Count difference histogram of each chunk
+		final List<Future<ActiveRegionChunk>> chunkFutureList;  // Scanned chunks
+		
+		histFutureList = new ArrayList<Future<CountHistogram>>(chunks.length);
+		chunkFutureList = new ArrayList<Future<ActiveRegionChunk>>(chunks.length);
+		
+		// Get count differences
+		for (final ActiveRegionChunk chunk : chunks) {
+			histFutureList.add(regionExecutor.submit(new Callable<CountHistogram>() {
+				@Override
+				public CountHistogram call() {
+					return workerLocal.get().getDifferenceHistogram(chunk);
+				}
+			}));
+		}
+		
+		// Scan chunks
+		for (final ActiveRegionChunk chunk : chunks) {
+			chunkFutureList.add(regionExecutor.submit(new Callable<ActiveRegionChunk>() {
+				@Override
+				public ActiveRegionChunk call() throws InterruptedException, ExecutionException {
+					return workerLocal.get().scanChunk(chunk, histFutureList);
+				}
+			}));
+		}
+		
+		// Merge chunks
+		return regionExecutor.submit(new Callable<RegionResult>() {
+			@Override
+			public RegionResult call() throws InterruptedException, ExecutionException {
+				return workerLocal.get().mergeChunks(refRegion, chunkFutureList);
+			}
+		});
+	}
+	
+	/**
+	 * Write haplotypes and variants found in one reference region. Regions must be written in
+	 * reference order.
+	 * 
+	 * @param regionResult Haplotypes and variants found in a reference region.
+	 * @param variantWriter Variant writer.
+	 * @param haplotypeWriter Haplotype writer.
+	 * @param variantFilterRunner Variant filters.
+	 */
+	private static void writeRegion(RegionResult regionResult, VariantWriter variantWriter, HaplotypeWriter haplotypeWriter, VariantFilterRunner variantFilterRunner) {
+		
+		variantWriter.setReferenceRegion(regionResult.refRegion);
+		
+		for (Haplotype haplotype : regionResult.haplotypeList)
+			haplotypeWriter.add(haplotype);
+		
+		for (VariantCall var : regionResult.variantList) {
+			var = variantFilterRunner.filter(var);
+			
+			if (var != null)
+				variantWriter.writeVariant(var);
 		}
 		
 		return;
@@ -380,6 +921,223 @@ public class KestrelRunner extends KestrelRunnerBase implements Runnable {
 		return;
 	}
 	
+	/**
+	 * Finds active regions and calls variants in reference regions. Each worker has its own
+	 * active region detector (with its own aligner) and variant caller, and it must only be
+	 * used by one thread. The k-mer counter may be shared by all workers. If known alleles are
+	 * set, the worker genotypes them instead of detecting active regions.
+	 */
+	private class RegionWorker {
+		
+		/** Active region detector or <code>null</code> if known alleles are genotyped. */
+		private final ActiveRegionDetector arDetector;
+		
+		/** Known allele genotyper or <code>null</code> if active regions are detected. */
+		private final KnownAlleleGenotyper genotyper;
+		
+		/** Variant caller. */
+		private final VariantCaller varCaller;
+		
+		/**
+		 * Create a region worker.
+		 * 
+		 * @param counter K-mer counter.
+		 * @param knownAlleleMap Known alleles by reference sequence name, or <code>null</code>
+		 *   to detect active regions.
+		 */
+		public RegionWorker(CountMap counter, Map<String, KnownAllele[]> knownAlleleMap) {
+			
+			if (knownAlleleMap != null) {
+				arDetector = null;
+				genotyper = new KnownAlleleGenotyper(counter, alignmentWeight, countReverseKmers, knownAlleleMap);
+				
+			} else {
+				arDetector = getActiveRegionDetector(counter);
+				genotyper = null;
+			}
+			
+			varCaller = getVariantCaller();
+			
+			return;
+		}
+		
+		/**
+		 * Find active regions, haplotypes, and variants in a reference region.
+		 * 
+		 * @param refRegion Reference region.
+		 * 
+		 * @return Haplotypes and variants found in <code>refRegion</code>.
+		 */
+		public RegionResult process(ReferenceRegion refRegion) {
+			
+			RegionHaplotype[] regionHaplotypes;  // Active regions and their haplotypes
+			RegionResult regionResult;           // Haplotypes and variants for refRegion
+			
+			regionResult = new RegionResult(refRegion);
+			
+			if (genotyper != null) {
+				logger.trace("Genotyping known alleles in {}", refRegion);
+				
+				regionHaplotypes = genotyper.getHaplotypes(refRegion);
+				
+			} else {
+				logger.trace("Searching for active regions in {}", refRegion);
+				
+				regionHaplotypes = arDetector.getActiveRegions(refRegion).haplotypes;
+			}
+			
+			callVariants(regionHaplotypes, regionResult);
+			
+			return regionResult;
+		}
+		
+		/**
+		 * Get the differences between neighboring k-mer counts in a chunk.
+		 * 
+		 * @param chunk Chunk.
+		 * 
+		 * @return A histogram of count differences.
+		 */
+		public CountHistogram getDifferenceHistogram(ActiveRegionChunk chunk) {
+			return arDetector.getDifferenceHistogram(chunk);
+		}
+		
+		/**
+		 * Find active regions in a chunk with the difference threshold of the whole reference region.
+		 * 
+		 * @param chunk Chunk.
+		 * @param histFutureList Count difference histogram of every chunk of the reference region.
+		 * 
+		 * @return <code>chunk</code>.
+		 * 
+		 * @throws InterruptedException If the thread is interrupted while waiting for a histogram.
+		 * @throws ExecutionException If a histogram could not be computed.
+		 */
+		public ActiveRegionChunk scanChunk(ActiveRegionChunk chunk, List<Future<CountHistogram>> histFutureList)
+				throws InterruptedException, ExecutionException {
+			
+			CountHistogram diffHist;  // Count differences over the whole reference region
+			
+			diffHist = new CountHistogram();
+			
+			for (Future<CountHistogram> histFuture : histFutureList)
+				diffHist.add(histFuture.get());
+			
+			logger.trace("Searching for active regions in {}", chunk);
+			
+			return arDetector.getActiveRegions(chunk, arDetector.getDifferenceThreshold(diffHist));
+		}
+		
+		/**
+		 * Merge chunks of a reference region and call variants. Each chunk contributes the active
+		 * regions found after the k-mer where the scan over the chunks before it stopped. If the scan
+		 * over a chunk did not visit this k-mer, the chunk is scanned again from it, so the active
+		 * regions are the same as they would be if the region was not split.
+		 * 
+		 * @param refRegion Reference region.
+		 * @param chunkFutureList Scanned chunks of <code>refRegion</code> in reference order.
+		 * 
+		 * @return Haplotypes and variants found in <code>refRegion</code>.
+		 * 
+		 * @throws InterruptedException If the thread is interrupted while waiting for a chunk.
+		 * @throws ExecutionException If a chunk could not be scanned.
+		 */
+		public RegionResult mergeChunks(ReferenceRegion refRegion, List<Future<ActiveRegionChunk>> chunkFutureList)
+				throws InterruptedException, ExecutionException {
+			
+			RegionResult regionResult;  // Haplotypes and variants for refRegion
+			ActiveRegionChunk chunk;    // Scanned chunk
+			int nextIndex;              // Index of the next k-mer the scan over the whole region visits
+			
+			regionResult = new RegionResult(refRegion);
+			nextIndex = 1;
+			
+			for (Future<ActiveRegionChunk> chunkFuture : chunkFutureList) {
+				
+				chunk = chunkFuture.get();
+				
+				// Stop if an active region reached the end of the reference region
+				if (nextIndex >= chunk.kmerCount)
+					break;
+				
+				// Scan again if the chunk did not visit the k-mer
+				if (! chunk.isVisited(nextIndex)) {
+					logger.trace("Scanning chunk again from k-mer {}: {}", nextIndex, chunk);
+					
+					chunk = arDetector.getActiveRegions(chunk.getRescan(nextIndex), chunk.getDifferenceThreshold());
+				}
+				
+				callVariants(chunk.getHaplotypes(nextIndex), regionResult);
+				
+				nextIndex = chunk.getNextIndex();
+			}
+			
+			return regionResult;
+		}
+		
+		/**
+		 * Call variants in active regions.
+		 * 
+		 * @param regionHaplotypes Active regions and their haplotypes.
+		 * @param regionResult Haplotypes and variants are added to this result.
+		 */
+		private void callVariants(RegionHaplotype[] regionHaplotypes, RegionResult regionResult) {
+			
+			// Find variants in active regions
+			for (RegionHaplotype thisRegionHaplotype : regionHaplotypes) {
+				
+				logger.trace("Found: {} ({} haplotypes)", thisRegionHaplotype.toString(), thisRegionHaplotype.haplotype.length);
+				
+				varCaller.init(thisRegionHaplotype.activeRegion);
+				
+				// Find variants in each haplotype
+				for (Haplotype haplotype : thisRegionHaplotype.haplotype) {
+					
+					logger.trace("Found: {}", haplotype.toString());
+					
+					varCaller.add(haplotype);
+					regionResult.haplotypeList.add(haplotype);
+				}
+				
+				// Save variants
+				for (VariantCall var : varCaller.getVariants())
+					regionResult.variantList.add(var);
+			}
+			
+			return;
+		}
+	}
+	
+	/**
+	 * Haplotypes and variants found in one reference region. Variants are not yet filtered.
+	 */
+	private static class RegionResult {
+		
+		/** Reference region. */
+		public final ReferenceRegion refRegion;
+		
+		/** Haplotypes in the order they were found. */
+		public final List<Haplotype> haplotypeList;
+		
+		/** Variants in the order they were called. */
+		public final List<VariantCall> variantList;
+		
+		/**
+		 * Create an empty result for a reference region.
+		 * 
+		 * @param refRegion Reference region.
+		 */
+		public RegionResult(ReferenceRegion refRegion) {
+			
+			this.refRegion = refRegion;
+			
+			haplotypeList = new ArrayList<Haplotype>();
+			variantList = new ArrayList<VariantCall>();
+			
+			return;
+		}
+	}
+	
 	/**
 	 * Set to <code>errThrowable</code> by <code>err</code> when the throwable cause is
 	 * <code>null</code>.
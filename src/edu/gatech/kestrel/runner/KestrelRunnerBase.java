@@ -51,6 +51,8 @@ import edu.gatech.kestrel.interval.RegionInterval;
 import edu.gatech.kestrel.interval.RegionIntervalContainer;
 import edu.gatech.kestrel.io.InputSample;
 import edu.gatech.kestrel.io.StreamableOutput;
+import edu.gatech.kestrel.knownallele.KnownAllele;
+import edu.gatech.kestrel.knownallele.KnownAlleleReader;
 import edu.gatech.kestrel.refreader.ReferenceReader;
 import edu.gatech.kestrel.varfilter.VariantFilter;
 import edu.gatech.kestrel.varfilter.VariantFilterInitException;
@@ -137,6 +139,12 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	 */
 	protected boolean kmerCountInMemory;
 	
+	/**
+	 * If <code>true</code>, indexed k-mer count files are memory-mapped and shared by all threads.
+	 * If <code>false</code>, each thread reads counts through its own IKC reader.
+	 */
+	protected boolean mapIkc;
+	
 	/**
 	 * Free resources as soon as possible if set to <code>true</code>. This may use less memory, but
 	 * some expensive resources may have to be recreated for each sample.
@@ -157,6 +165,13 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** If <code>true</code>, count reverse k-mers in region statistics. */
 	protected boolean countReverseKmers;
 	
+	/**
+	 * If <code>true</code>, k-mers are counted under the lesser of the k-mer and its reverse
+	 * complement so that both strands are found with one lookup. This option has no effect
+	 * if <code>countReverseKmers</code> is <code>false</code>.
+	 */
+	protected boolean canonicalCounts;
+	
 	/** Minimum k-mer difference to flag a potential active region. */
 	protected int minimumDifference;
 	
@@ -183,6 +198,12 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	 */
 	protected double scanLimitFactor;
 	
+	/**
+	 * Look up reference k-mer counts in windows of this many k-mers. If <code>0</code>, counts for
+	 * whole reference regions are kept in memory.
+	 */
+	protected int streamWindowSize;
+	
 	/**
 	 * The alpha value used to calculate lambda (log(alpha)/k) for the exponential decay function
 	 * in the active region detector.
@@ -198,6 +219,15 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** Maximum number of k-mer repeats allowed in a haplotype assembly. */
 	protected int maxRepeatCount;
 	
+	/** If <code>true</code>, haplotypes are aligned in banded mode. */
+	protected boolean bandedAlignment;
+	
+	/** If <code>true</code>, haplotypes are assembled best-first. */
+	protected boolean bestFirstAssembly;
+	
+	/** Test short active regions for single-base substitutions before they are assembled. */
+	protected boolean snvFastPath;
+	
 	/**
 	 * If <code>true</code>, then allow haplotypes and variants to occur over ambiguous regions.
 	 */
@@ -215,6 +245,12 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** Length of flanks to add to intervals over the reference sequence. */
 	protected int flankLength;
 	
+	/**
+	 * Known alleles to genotype. If not empty, known alleles are genotyped from k-mer counts
+	 * instead of detecting active regions and assembling haplotypes.
+	 */
+	protected List<KnownAllele> knownAlleleList;
+	
 	/** Output variant calls relative to the reference regions when <code>true</code>. */
 	protected boolean variantCallByRegion;
 	
@@ -230,12 +266,64 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** <code>true</code> if reference regions on the negative strand should be reverse complemented before variant calling. */
 	protected boolean reverseComplementNegativeStrand;
 	
+	/** <code>true</code> if intervals are read from indexed FASTA reference files. */
+	protected boolean indexReference;
+	
+	/**
+	 * <code>true</code> if reference regions are read from indexed FASTA files as they are
+	 * processed instead of reading all regions before the first sample.
+	 */
+	protected boolean streamReference;
+	
+	/** <code>true</code> if reference sequence sizes and digests are cached next to reference files. */
+	protected boolean cacheReferenceMetadata;
+	
 	/** Haplotype output file or <code>null</code> if haplotypes are not output. */
 	protected StreamableOutput haplotypeOutputFile;
 	
 	/** Haplotype output format. Determines the format of the output file for <code>haplotypeOutputFile</code>. */
 	protected String haplotypeOutputFormat;
 	
+	/** Number of threads for finding active regions and calling variants over reference regions. */
+	protected int threads;
+	
+	/** Number of threads for exploring haplotype branches within active regions. */
+	protected int branchThreads;
+	
+	/**
+	 * When more than one thread processes reference regions, regions with more k-mers than this
+	 * are split into chunks of about this many k-mers, and the chunks are processed in parallel.
+	 * If <code>0</code>, regions are not split.
+	 */
+	protected int regionChunkSize;
+	
+	/**
+	 * If <code>true</code> and intervals are set, only reads that share a seed with the reference
+	 * regions are counted.
+	 */
+	protected boolean targetedCount;
+	
+	/** Size of exact matches between reads and reference regions that select reads in targeted mode. */
+	protected int targetSeedSize;
+	
+	/**
+	 * Directory where IKC files are cached across runs, or <code>null</code> if IKC files are
+	 * not cached.
+	 */
+	protected String countCacheDirName;
+	
+	/** Maximum total size of the count cache in megabytes, or <code>0</code> for no limit. */
+	protected long countCacheMaxSize;
+	
+	/** Maximum number of days since a count cache entry was last used, or <code>0</code> for no limit. */
+	protected int countCacheMaxAge;
+	
+	/**
+	 * Number of samples that may be counted or processed at the same time. If greater than
+	 * <code>1</code>, the next samples are counted while a sample is processed.
+	 */
+	protected int pipelineSamples;
+	
 	
 	//
 	// Limits and defaults
@@ -298,6 +386,9 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** Default option for storing k-mer counts in memory. */
 	public static final boolean DEFAULT_KMER_COUNT_IN_MEMORY = false;
 	
+	/** Default option for memory-mapping indexed k-mer count files. */
+	public static final boolean DEFAULT_MAP_IKC = true;
+	
 	/** Free resources as soon as possible if set. */
 	public static final boolean DEFAULT_FREE_RESOURCES = false;
 	
@@ -307,6 +398,9 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** Count reverse complement k-mers in region statistics. */
 	public static final boolean DEFAULT_COUNT_REV_KMER = true;
 	
+	/** Default option for counting k-mers in canonical form. */
+	public static final boolean DEFAULT_CANONICAL_COUNTS = false;
+	
 	/** This value is multiplied by the k-mer size to determine the default flank length. */
 	public static final double DEFAULT_FLANK_LENGTH_MULTIPLIER = 3.5;
 	
@@ -316,6 +410,33 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 	/** Default haplotype output format. */
 	public static final String DEFAULT_HAPLOTYPE_OUTPUT_FORMAT = "sam";
 	
+	/** Default number of threads for finding active regions and calling variants. */
+	public static final int DEFAULT_THREADS = 1;
+	
+	/** Default number of threads for exploring haplotype branches within active regions. */
+	public static final int DEFAULT_BRANCH_THREADS = 1;
+	
+	/** Default number of k-mers in each chunk of a large reference region. */
+	public static final int DEFAULT_REGION_CHUNK_SIZE = 1000000;
+	
+	/** Default option for counting only reads near reference regions when intervals are set. */
+	public static final boolean DEFAULT_TARGETED_COUNT = false;
+	
+	/** Default size of exact matches between reads and reference regions in targeted mode. */
+	public static final int DEFAULT_TARGET_SEED_SIZE = 21;
+	
+	/** Default maximum total size of the count cache in megabytes (0 is no limit). */
+	public static final long DEFAULT_COUNT_CACHE_MAX_SIZE = 0;
+	
+	/** Default maximum number of days since a count cache entry was last used (0 is no limit). */
+	public static final int DEFAULT_COUNT_CACHE_MAX_AGE = 30;
+	
+	/** Default number of samples that may be counted or processed at the same time. */
+	public static final int DEFAULT_PIPELINE_SAMPLES = 1;
+	
+	/** Default option for reading reference regions as they are processed. */
+	public static final boolean DEFAULT_STREAM_REFERENCE = false;
+	
 	
 	//
 	// Other constants
@@ -338,6 +459,7 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		sampleList = new ArrayList<InputSample>();
 		variantFilterList = new ArrayList<VariantFilter>();
 		intervalContainer = new RegionIntervalContainer();
+		knownAlleleList = new ArrayList<KnownAllele>();
 		
 		// Initialize loader and URLs
 		libraryUrlList = new ArrayList<URL>();
@@ -1108,6 +1230,30 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return kmerCountInMemory;
 	}
 	
+	/**
+	 * Set the property to memory-map indexed k-mer count files. If set to <code>true</code>,
+	 * the IKC file for each sample is mapped once and shared by all threads. If set to
+	 * <code>false</code>, each thread opens its own IKC reader. This option has no effect
+	 * when k-mer counts are kept in memory.
+	 * 
+	 * @param mapIkc The property to memory-map indexed k-mer count files.
+	 */
+	public void setMapIkc(boolean mapIkc) {
+		this.mapIkc = mapIkc;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to memory-map indexed k-mer count files.
+	 * 
+	 * @return <code>true</code> if indexed k-mer count files are memory-mapped and shared by
+	 *   all threads.
+	 */
+	public boolean isMapIkc() {
+		return mapIkc;
+	}
+	
 	/**
 	 * Free resources as soon as possible is set to <code>true</code>. This may force expensive
 	 * resource allocation between samples.
@@ -1179,6 +1325,33 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return countReverseKmers;
 	}
 	
+	/**
+	 * Set the property to count k-mers in canonical form. Each k-mer is counted under the
+	 * lesser of itself and its reverse complement, and the count of both strands is found
+	 * with one lookup. The minimum k-mer count is applied to the count of both strands
+	 * instead of each strand separately. IKC files given as input must have been counted
+	 * in canonical mode. This option has no effect if reverse complement k-mers are not
+	 * counted.
+	 * 
+	 * @param canonicalCounts Count k-mers in canonical form.
+	 * 
+	 * @see #DEFAULT_CANONICAL_COUNTS
+	 */
+	public void setCanonicalCounts(boolean canonicalCounts) {
+		this.canonicalCounts = canonicalCounts;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to count k-mers in canonical form.
+	 * 
+	 * @return <code>true</code> if k-mers are counted in canonical form.
+	 */
+	public boolean getCanonicalCounts() {
+		return canonicalCounts;
+	}
+	
 	/**
 	 * If set to <code>true</code>, allow active regions to include ambiguous bases.
 	 * 
@@ -1289,6 +1462,41 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return scanLimitFactor;
 	}
 	
+	/**
+	 * Set the number of k-mers in each window when streaming k-mer counts over long reference
+	 * regions. This bounds the memory used for k-mer counts, but counts are looked up twice.
+	 * 
+	 * @param streamWindowSize Number of k-mers in each window or <code>0</code> to keep counts for
+	 *   whole reference regions in memory.
+	 * 
+	 * @throws IllegalArgumentException If <code>streamWindowSize</code> is negative.
+	 * 
+	 * @see ActiveRegionDetector#setStreamWindowSize(int)
+	 */
+	public void setStreamWindowSize(int streamWindowSize)
+			throws IllegalArgumentException {
+		
+		if (streamWindowSize < 0)
+			throw new IllegalArgumentException("Stream window size is negative: " + streamWindowSize);
+		
+		this.streamWindowSize = streamWindowSize;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of k-mers in each window when streaming k-mer counts over long reference
+	 * regions.
+	 * 
+	 * @return Number of k-mers in each window or <code>0</code> if counts for whole reference
+	 *   regions are kept in memory.
+	 * 
+	 * @see #setStreamWindowSize(int)
+	 */
+	public int getStreamWindowSize() {
+		return streamWindowSize;
+	}
+	
 
 	/**
 	 * Set the exponential decay minimum. This is the minimum value (asymptotic lower bound)
@@ -1391,6 +1599,84 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return maxRepeatCount;
 	}
 	
+	/**
+	 * Set banded alignment. When banded, haplotypes are aligned by computing only cells near
+	 * the best alignment so far instead of the full length of the active region. Large active
+	 * regions align much faster, but alignments with large gaps may be missed.
+	 * 
+	 * @param bandedAlignment <code>true</code> to align haplotypes in banded mode.
+	 * 
+	 * @see ActiveRegionDetector#DEFAULT_BANDED_ALIGNMENT
+	 */
+	public void setBandedAlignment(boolean bandedAlignment) {
+		this.bandedAlignment = bandedAlignment;
+		
+		return;
+	}
+	
+	/**
+	 * Get banded alignment.
+	 * 
+	 * @return <code>true</code> if haplotypes are aligned in banded mode.
+	 * 
+	 * @see #setBandedAlignment(boolean)
+	 */
+	public boolean getBandedAlignment() {
+		return bandedAlignment;
+	}
+	
+	/**
+	 * Set best-first assembly. In best-first mode, the assembly branch with the greatest minimum
+	 * k-mer depth is followed next instead of the last branch found, and branches that cannot
+	 * produce a haplotype within the haplotype limit are discarded.
+	 * 
+	 * @param bestFirstAssembly <code>true</code> to assemble haplotypes best-first.
+	 * 
+	 * @see ActiveRegionDetector#DEFAULT_BEST_FIRST_ASSEMBLY
+	 */
+	public void setBestFirstAssembly(boolean bestFirstAssembly) {
+		this.bestFirstAssembly = bestFirstAssembly;
+		
+		return;
+	}
+	
+	/**
+	 * Get best-first assembly.
+	 * 
+	 * @return <code>true</code> if haplotypes are assembled best-first.
+	 * 
+	 * @see #setBestFirstAssembly(boolean)
+	 */
+	public boolean getBestFirstAssembly() {
+		return bestFirstAssembly;
+	}
+	
+	/**
+	 * Set the SNV fast path. When set, active regions about the length of an isolated SNV region
+	 * are tested for single-base substitutions, and they are only assembled if the test does not
+	 * find the haplotypes assembly would find.
+	 * 
+	 * @param snvFastPath <code>true</code> to test short regions for single-base substitutions.
+	 * 
+	 * @see ActiveRegionDetector#DEFAULT_SNV_FAST_PATH
+	 */
+	public void setSnvFastPath(boolean snvFastPath) {
+		this.snvFastPath = snvFastPath;
+		
+		return;
+	}
+	
+	/**
+	 * Get the SNV fast path.
+	 * 
+	 * @return <code>true</code> if short regions are tested for single-base substitutions.
+	 * 
+	 * @see #setSnvFastPath(boolean)
+	 */
+	public boolean getSnvFastPath() {
+		return snvFastPath;
+	}
+	
 	/**
 	 * Add a variant filter by its string specification. The filter specification is a filter
 	 * name followed by a list of arguments separated by a colon. Whitespace around the colon
@@ -1518,6 +1804,44 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return;
 	}
 	
+	/**
+	 * Read known alleles from a VCF file. When known alleles are set, each sample is genotyped
+	 * for these alleles from k-mer counts alone, and active region detection and haplotype
+	 * assembly are skipped.
+	 * 
+	 * @param vcfFile VCF file of known alleles. If the file name ends with &quot;.gz&quot;, it
+	 *   is read as a compressed file.
+	 * 
+	 * @return The number of alleles added.
+	 * 
+	 * @throws NullPointerException If <code>vcfFile</code> is <code>null</code>.
+	 * @throws FileNotFoundException If <code>vcfFile</code> cannot be found.
+	 * @throws IOException If there is any error reading <code>vcfFile</code> including
+	 *   errors in the file contents.
+	 * 
+	 * @see KnownAlleleReader
+	 */
+	public int readKnownAlleles(File vcfFile)
+			throws NullPointerException, FileNotFoundException, IOException {
+		
+		KnownAllele[] alleles = KnownAlleleReader.read(vcfFile);
+		
+		for (KnownAllele allele : alleles)
+			knownAlleleList.add(allele);
+		
+		return alleles.length;
+	}
+	
+	/**
+	 * Clear all known alleles. Variants are called by detecting active regions and assembling
+	 * haplotypes.
+	 */
+	public void clearKnownAlleles() {
+		knownAlleleList.clear();
+		
+		return;
+	}
+	
 	/**
 	 * Set the length of flanks to add to intervals where variants are called. Adding flanks
 	 * improves active region detection, and therefore variant recovery, but it does not otherwise
@@ -1662,6 +1986,309 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return maxHaplotypes;
 	}
 	
+	/**
+	 * Set the number of threads used to find active regions and call variants. Reference regions
+	 * are distributed over a pool of workers, each with its own active region detector, aligner, and
+	 * variant caller, and the k-mer counts for the sample are shared by all workers. Results are
+	 * written in reference order regardless of the number of threads.
+	 * 
+	 * @param threads Number of threads.
+	 * 
+	 * @throws IllegalArgumentException If <code>threads</code> is less than <code>1</code>.
+	 * 
+	 * @see #DEFAULT_THREADS
+	 */
+	public void setThreads(int threads)
+		throws IllegalArgumentException {
+		
+		if (threads < 1)
+			throw new IllegalArgumentException("Number of threads must not be less than 1: " + threads);
+		
+		this.threads = threads;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of threads used to find active regions and call variants.
+	 * 
+	 * @return Number of threads.
+	 * 
+	 * @see #setThreads(int)
+	 */
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * Set the number of threads used to explore haplotype branches within active regions. When
+	 * greater than <code>1</code>, branches saved while assembling the haplotypes of one active
+	 * region are explored by a fork-join pool of this many threads whenever its threads are idle.
+	 * The pool is shared by all region threads (see <code>setThreads()</code>).
+	 * 
+	 * @param branchThreads Number of threads.
+	 * 
+	 * @throws IllegalArgumentException If <code>branchThreads</code> is less than <code>1</code>.
+	 * 
+	 * @see #DEFAULT_BRANCH_THREADS
+	 */
+	public void setBranchThreads(int branchThreads)
+		throws IllegalArgumentException {
+		
+		if (branchThreads < 1)
+			throw new IllegalArgumentException("Number of branch threads must not be less than 1: " + branchThreads);
+		
+		this.branchThreads = branchThreads;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of threads used to explore haplotype branches within active regions.
+	 * 
+	 * @return Number of threads.
+	 * 
+	 * @see #setBranchThreads(int)
+	 */
+	public int getBranchThreads() {
+		return branchThreads;
+	}
+	
+	/**
+	 * Set the number of k-mers in each chunk of a large reference region. When more than one thread
+	 * processes reference regions (see <code>setThreads()</code>), regions with at least twice this
+	 * many k-mers are split into chunks, and active regions are found in the chunks in parallel.
+	 * Chunks overlap, and active regions in the overlaps are merged so that the haplotypes and
+	 * variants are the same as they would be if the region was not split. Regions are not split if
+	 * wildtype active regions are emitted.
+	 * 
+	 * @param regionChunkSize Number of k-mers in each chunk or <code>0</code> to never split
+	 *   reference regions. Chunks are never smaller than four times the scan limit.
+	 * 
+	 * @throws IllegalArgumentException If <code>regionChunkSize</code> is negative.
+	 * 
+	 * @see #DEFAULT_REGION_CHUNK_SIZE
+	 * @see ActiveRegionDetector#getChunks(edu.gatech.kestrel.refreader.ReferenceRegion, int)
+	 */
+	public void setRegionChunkSize(int regionChunkSize)
+			throws IllegalArgumentException {
+		
+		if (regionChunkSize < 0)
+			throw new IllegalArgumentException("Region chunk size is negative: " + regionChunkSize);
+		
+		this.regionChunkSize = regionChunkSize;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of k-mers in each chunk of a large reference region.
+	 * 
+	 * @return Number of k-mers in each chunk or <code>0</code> if reference regions are never split.
+	 * 
+	 * @see #setRegionChunkSize(int)
+	 */
+	public int getRegionChunkSize() {
+		return regionChunkSize;
+	}
+	
+	/**
+	 * Set the property to count only reads that may contribute to variant calls in the reference
+	 * regions. When intervals are set, reads that do not share at least one seed (see
+	 * <code>setTargetSeedSize()</code>) with a flanked reference region are discarded before they
+	 * are counted, and all k-mers of the remaining reads are counted. Since few k-mers remain, counts are kept in memory instead of an IKC file.
+	 * This option has no effect if no intervals are set.
+	 * 
+	 * @param targetedCount Count only reads that share a k-mer with the reference regions.
+	 * 
+	 * @see #DEFAULT_TARGETED_COUNT
+	 */
+	public void setTargetedCount(boolean targetedCount) {
+		this.targetedCount = targetedCount;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to count only reads that share a seed with the reference regions.
+	 * 
+	 * @return <code>true</code> if only reads near reference regions are counted when
+	 *   intervals are set.
+	 */
+	public boolean isTargetedCount() {
+		return targetedCount;
+	}
+	
+	/**
+	 * Set the size of exact matches between reads and reference regions that select reads in
+	 * targeted mode. A read is counted if any of its sub-sequences of this size is in a flanked
+	 * reference region. Reads inside a cluster of variants may have no reference k-mer, so seeds
+	 * shorter than the k-mer size keep them. Seeds longer than the k-mer size are shortened to it.
+	 * 
+	 * @param targetSeedSize Seed size.
+	 * 
+	 * @throws IllegalArgumentException If <code>targetSeedSize</code> is less than
+	 *   <code>KestrelConstants.MIN_KMER_SIZE</code>.
+	 * 
+	 * @see #DEFAULT_TARGET_SEED_SIZE
+	 */
+	public void setTargetSeedSize(int targetSeedSize)
+			throws IllegalArgumentException {
+		
+		if (targetSeedSize < KestrelConstants.MIN_KMER_SIZE)
+			throw new IllegalArgumentException("Target seed size must not be less than " + KestrelConstants.MIN_KMER_SIZE + ": " + targetSeedSize);
+		
+		this.targetSeedSize = targetSeedSize;
+		
+		return;
+	}
+	
+	/**
+	 * Get the size of exact matches between reads and reference regions in targeted mode.
+	 * 
+	 * @return Seed size.
+	 * 
+	 * @see #setTargetSeedSize(int)
+	 */
+	public int getTargetSeedSize() {
+		return targetSeedSize;
+	}
+	
+	/**
+	 * Set the directory where indexed k-mer count (IKC) files are cached across runs. When a
+	 * sample is run again with the same input files and count settings, its counts are read
+	 * from the cache instead of being counted again. The directory is created if it does not
+	 * exist. Cached files are not removed after each sample, but they are evicted by the limits
+	 * set by <code>setCountCacheMaxSize()</code> and <code>setCountCacheMaxAge()</code>. This
+	 * option has no effect when k-mer counts are kept in memory.
+	 * 
+	 * @param countCacheDirName Cache directory or <code>null</code> to disable the count cache.
+	 *   If this name is empty or contains only whitespace, the count cache is disabled.
+	 */
+	public void setCountCacheDirName(String countCacheDirName) {
+		
+		if (countCacheDirName != null) {
+			countCacheDirName = countCacheDirName.trim();
+			
+			if (countCacheDirName.isEmpty())
+				countCacheDirName = null;
+		}
+		
+		this.countCacheDirName = countCacheDirName;
+		
+		return;
+	}
+	
+	/**
+	 * Get the directory where indexed k-mer count (IKC) files are cached across runs.
+	 * 
+	 * @return Cache directory or <code>null</code> if the count cache is disabled.
+	 */
+	public String getCountCacheDirName() {
+		return countCacheDirName;
+	}
+	
+	/**
+	 * Set the maximum total size of the count cache. When a new entry is added, the least
+	 * recently used entries are removed until the cache is no larger than this size.
+	 * 
+	 * @param countCacheMaxSize Maximum size in megabytes, or <code>0</code> for no limit.
+	 * 
+	 * @throws IllegalArgumentException If <code>countCacheMaxSize</code> is negative.
+	 * 
+	 * @see #DEFAULT_COUNT_CACHE_MAX_SIZE
+	 */
+	public void setCountCacheMaxSize(long countCacheMaxSize)
+		throws IllegalArgumentException {
+		
+		if (countCacheMaxSize < 0)
+			throw new IllegalArgumentException("Maximum count cache size is negative: " + countCacheMaxSize);
+		
+		this.countCacheMaxSize = countCacheMaxSize;
+		
+		return;
+	}
+	
+	/**
+	 * Get the maximum total size of the count cache.
+	 * 
+	 * @return Maximum size in megabytes, or <code>0</code> for no limit.
+	 * 
+	 * @see #setCountCacheMaxSize(long)
+	 */
+	public long getCountCacheMaxSize() {
+		return countCacheMaxSize;
+	}
+	
+	/**
+	 * Set the maximum number of days since a count cache entry was last used. When a new entry
+	 * is added, entries that have not been used for longer are removed.
+	 * 
+	 * @param countCacheMaxAge Maximum age in days, or <code>0</code> for no limit.
+	 * 
+	 * @throws IllegalArgumentException If <code>countCacheMaxAge</code> is negative.
+	 * 
+	 * @see #DEFAULT_COUNT_CACHE_MAX_AGE
+	 */
+	public void setCountCacheMaxAge(int countCacheMaxAge)
+		throws IllegalArgumentException {
+		
+		if (countCacheMaxAge < 0)
+			throw new IllegalArgumentException("Maximum count cache age is negative: " + countCacheMaxAge);
+		
+		this.countCacheMaxAge = countCacheMaxAge;
+		
+		return;
+	}
+	
+	/**
+	 * Get the maximum number of days since a count cache entry was last used.
+	 * 
+	 * @return Maximum age in days, or <code>0</code> for no limit.
+	 * 
+	 * @see #setCountCacheMaxAge(int)
+	 */
+	public int getCountCacheMaxAge() {
+		return countCacheMaxAge;
+	}
+	
+	/**
+	 * Set the number of samples that may be counted or processed at the same time. If this
+	 * number is greater than <code>1</code>, up to <code>pipelineSamples - 1</code> samples are
+	 * counted in the background while a sample is processed, and each sample in flight has its
+	 * own k-mer counter. Samples are counted one at a time, and a sample is not counted ahead
+	 * if free heap memory is low. If k-mer counts are kept in memory, each sample in flight
+	 * holds its counts in memory.
+	 * 
+	 * @param pipelineSamples Number of samples in flight. If <code>1</code>, each sample is
+	 *   counted after the last sample is processed.
+	 * 
+	 * @throws IllegalArgumentException If <code>pipelineSamples</code> is less than <code>1</code>.
+	 * 
+	 * @see #DEFAULT_PIPELINE_SAMPLES
+	 */
+	public void setPipelineSamples(int pipelineSamples)
+		throws IllegalArgumentException {
+		
+		if (pipelineSamples < 1)
+			throw new IllegalArgumentException("Number of samples in flight must be at least 1: " + pipelineSamples);
+		
+		this.pipelineSamples = pipelineSamples;
+		
+		return;
+	}
+	
+	/**
+	 * Get the number of samples that may be counted or processed at the same time.
+	 * 
+	 * @return Number of samples in flight.
+	 * 
+	 * @see #setPipelineSamples(int)
+	 */
+	public int getPipelineSamples() {
+		return pipelineSamples;
+	}
+	
 	/**
 	 * Set the property to remove the  reference sequence description from each sequence name.
 	 * The sequence name is defined as everything up to the first whitespace character, and the
@@ -1715,6 +2342,89 @@ public abstract class KestrelRunnerBase extends KAnalyzeRunnable {
 		return reverseComplementNegativeStrand;
 	}
 	
+	/**
+	 * Set the property to read intervals from indexed FASTA reference files. When set and
+	 * intervals are defined, only the bases of each interval and its flanks are read from
+	 * the reference files, and an index is written next to each reference file if one
+	 * does not exist.
+	 * 
+	 * @param indexReference Read intervals from indexed FASTA files if <code>true</code>.
+	 * 
+	 * @see ReferenceReader#DEFAULT_INDEX_FASTA
+	 */
+	public void setIndexReference(boolean indexReference) {
+		this.indexReference = indexReference;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to read intervals from indexed FASTA reference files.
+	 * 
+	 * @return The &quot;index reference&quot; property.
+	 * 
+	 * @see #setIndexReference(boolean)
+	 */
+	public boolean getIndexReference() {
+		return indexReference;
+	}
+	
+	/**
+	 * Set the property to read reference regions as they are processed. When set, reference
+	 * sequences are indexed, and each batch of regions is read from the reference files when it
+	 * is processed and released after it is processed. This bounds memory by the largest batch
+	 * instead of all reference regions. If the references are not uncompressed FASTA files,
+	 * or if indexing references or removing sequence descriptions is disabled, all regions are
+	 * read into memory.
+	 * 
+	 * @param streamReference Read reference regions as they are processed if <code>true</code>.
+	 * 
+	 * @see #DEFAULT_STREAM_REFERENCE
+	 * @see #setIndexReference(boolean)
+	 */
+	public void setStreamReference(boolean streamReference) {
+		this.streamReference = streamReference;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to read reference regions as they are processed.
+	 * 
+	 * @return The &quot;stream reference&quot; property.
+	 * 
+	 * @see #setStreamReference(boolean)
+	 */
+	public boolean getStreamReference() {
+		return streamReference;
+	}
+	
+	/**
+	 * Set the property to cache reference sequence sizes and digests in a file next to each
+	 * reference file. When set, later runs on the same reference read digests from the cache
+	 * instead of computing them from every base.
+	 * 
+	 * @param cacheReferenceMetadata Cache reference sequence digests if <code>true</code>.
+	 * 
+	 * @see ReferenceReader#DEFAULT_CACHE_METADATA
+	 */
+	public void setCacheReferenceMetadata(boolean cacheReferenceMetadata) {
+		this.cacheReferenceMetadata = cacheReferenceMetadata;
+		
+		return;
+	}
+	
+	/**
+	 * Get the property to cache reference sequence sizes and digests.
+	 * 
+	 * @return The &quot;cache reference metadata&quot; property.
+	 * 
+	 * @see #setCacheReferenceMetadata(boolean)
+	 */
+	public boolean getCacheReferenceMetadata() {
+		return cacheReferenceMetadata;
+	}
+	
 	/**
 	 * Set the file haplotypes will be output to. 
 	 * 
@@ -0,0 +1,395 @@
+// Copyright (c) 2017 Peter A. Audano III
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 3 of the License or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but
+// WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Library General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with this program; see the file COPYING.LESSER.  If not, see
+// <http://www.gnu.org/licenses/>
+
+package edu.gatech.kestrel.test.counter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import edu.gatech.kanalyze.comp.reader.FileSequenceSource;
+import edu.gatech.kanalyze.comp.reader.SequenceSource;
+import edu.gatech.kanalyze.module.count.CountModule;
+import edu.gatech.kanalyze.util.kmer.KmerUtil;
+import edu.gatech.kestrel.counter.CountMap;
+import edu.gatech.kestrel.counter.IkcCountMap;
+import edu.gatech.kestrel.counter.MemoryCountMap;
+import edu.gatech.kestrel.io.InputSample;
+import edu.gatech.kestrel.runner.KestrelRunnerBase;
+
+/**
+ * Tests the concurrent read contract of <code>CountMap</code>. After a sample is set, many threads
+ * call <code>get()</code> at the same time, and every count must equal the count returned by
+ * sequential calls from one thread.
+ */
+@RunWith(Parameterized.class)
+public class TestCountMapConcurrency {
+	
+	/** Count map implementation to test. */
+	private final String mapType;
+	
+	/** Temporary directory for reads and count files. */
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+	
+	/** K-mer size. */
+	private static final int K_SIZE = 31;
+	
+	/** Size of the sequence reads are sampled from. */
+	private static final int GENOME_SIZE = 20000;
+	
+	/** Number of reads. */
+	private static final int READ_COUNT = 4000;
+	
+	/** Size of each read. */
+	private static final int READ_SIZE = 100;
+	
+	/** Number of k-mers that are not in any read added to the queries. */
+	private static final int ABSENT_KMER_COUNT = 20000;
+	
+	/** Number of threads reading counts at the same time. */
+	private static final int THREAD_COUNT = 8;
+	
+	/** Number of passes each thread makes over the queries. */
+	private static final int PASS_COUNT = 4;
+	
+	/** Bases for generating sequences. */
+	private static final char[] BASES = new char[] {'A', 'C', 'G', 'T'};
+	
+	/**
+	 * Create a test.
+	 * 
+	 * @param mapType Count map implementation to test: <code>memory</code>, <code>ikc</code>, or
+	 *   <code>ikcmap</code>.
+	 */
+	public TestCountMapConcurrency(String mapType) {
+		
+		this.mapType = mapType;
+		
+		return;
+	}
+	
+	/**
+	 * Get test parameters.
+	 * 
+	 * @return A collection of count map implementations to test.
+	 */
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> parameters() {
+		return Arrays.asList(new Object[][] {
+			{"memory"},
+			{"ikc"},
+			{"ikcmap"}
+		});
+	}
+	
+	/**
+	 * Read counts from many threads and compare them to sequential reads.
+	 * 
+	 * @throws Exception If any error occurs.
+	 */
+	@Test
+	public void testConcurrentGet()
+			throws Exception {
+		
+		final CountMap countMap;  // Map under test
+		final int[][] kmerArray;  // K-mers to query
+		final int[] expected;     // Counts from sequential queries
+		
+		Thread[] threads;                              // Threads querying the map
+		final CountDownLatch startLatch;               // Starts all threads at the same time
+		final AtomicReference<String> failure;         // First mismatch or error found by a thread
+		
+		Random random;    // Random source
+		String genome;    // Sequence reads are sampled from
+		File readFile;    // File of reads
+		KmerUtil kUtil;   // K-mer utility
+		int nPresent;     // Number of queried k-mers with a count
+		
+		// Write reads
+		random = new Random(1117);
+		genome = randomSequence(random, GENOME_SIZE);
+		readFile = tempFolder.newFile("reads.fq");
+		
+		writeReads(random, genome, readFile);
+		
+		// Set sample
+		if (mapType.equals("memory"))
+			kUtil = KmerUtil.get(K_SIZE);
+		else
+			kUtil = KmerUtil.get(K_SIZE, KestrelRunnerBase.DEFAULT_MINIMIZER_SIZE, KestrelRunnerBase.DEFAULT_MINIMIZER_MASK);
+		
+		countMap = getCountMap(kUtil);
+		
+		countMap.set(new InputSample("concurrent", new SequenceSource[] {
+				new FileSequenceSource(readFile, "auto", KestrelRunnerBase.DEFAULT_CHARSET, 1, "")
+		}));
+		
+		// Get k-mers and expected counts
+		kmerArray = getKmers(random, kUtil, genome);
+		expected = new int[kmerArray.length];
+		nPresent = 0;
+		
+		for (int index = 0; index < kmerArray.length; ++index) {
+			expected[index] = countMap.get(kmerArray[index]);
+			
+			if (expected[index] > 0)
+				++nPresent;
+		}
+		
+		assertTrue("No queried k-mers were counted", nPresent > 0);
+		assertTrue("All queried k-mers were counted", nPresent < kmerArray.length);
+		
+		// Query from many threads
+		threads = new Thread[THREAD_COUNT];
+		startLatch = new CountDownLatch(1);
+		failure = new AtomicReference<String>(null);
+		
+		for (int threadIndex = 0; threadIndex < THREAD_COUNT; ++threadIndex) {
+			final int[] order = shuffledOrder(new Random(threadIndex), kmerArray.length);
+			
+			threads[threadIndex] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					
+					int count;  // Count returned by the map
+					
+					try {
+						startLatch.await();
+						
+						for (int pass = 0; pass < PASS_COUNT && failure.get() == null; ++pass) {
+							for (int index : order) {
+								count = countMap.get(kmerArray[index]);
+								
+								if (count != expected[index]) {
+									failure.compareAndSet(null, String.format("K-mer %d: expected count %d, found %d", index, expected[index], count));
+									
+									return;
+								}
+							}
+						}
+						
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex.toString());
+					}
+					
+					return;
+				}
+			});
+			
+			threads[threadIndex].start();
+		}
+		
+		startLatch.countDown();
+		
+		for (Thread thread : threads)
+			thread.join();
+		
+		assertEquals("Concurrent count mismatch (" + mapType + ")", null, failure.get());
+		
+		return;
+	}
+	
+	/**
+	 * Create the count map under test.
+	 * 
+	 * @param kUtil K-mer utility.
+	 * 
+	 * @return A new count map.
+	 * 
+	 * @throws IOException If the temporary directory cannot be created.
+	 */
+	private CountMap getCountMap(KmerUtil kUtil)
+			throws IOException {
+		
+		CountModule countModule;  // Module counting k-mers
+		File tempDir;             // Directory for temporary files
+		
+		tempDir = tempFolder.newFolder("temp");
+		
+		countModule = new CountModule();
+		countModule.configure(null);
+		countModule.setKSize(K_SIZE);
+		countModule.setTempDirName(tempDir.getAbsolutePath());
+		
+		if (mapType.equals("memory"))
+			return new MemoryCountMap(kUtil, countModule);
+		
+		return new IkcCountMap(kUtil, countModule, tempDir, true, mapType.equals("ikcmap"));
+	}
+	
+	/**
+	 * Get k-mers to query. This includes every k-mer of the genome in both orientations and
+	 * random k-mers that are not likely to be in any read.
+	 * 
+	 * @param random Random source.
+	 * @param kUtil K-mer utility.
+	 * @param genome Sequence reads were sampled from.
+	 * 
+	 * @return An array of k-mers.
+	 */
+	private static int[][] getKmers(Random random, KmerUtil kUtil, String genome) {
+		
+		List<int[]> kmerList;  // K-mers to return
+		int[] kmer;            // Current k-mer
+		
+		kmerList = new ArrayList<>();
+		
+		for (int index = 0; index + K_SIZE <= genome.length(); ++index) {
+			kmer = kUtil.toKmer(genome.substring(index, index + K_SIZE), null);
+			
+			kmerList.add(kmer);
+			kmerList.add(kUtil.revComplement(kmer, null));
+		}
+		
+		for (int index = 0; index < ABSENT_KMER_COUNT; ++index)
+			kmerList.add(kUtil.toKmer(randomSequence(random, K_SIZE), null));
+		
+		return kmerList.toArray(new int[kmerList.size()][]);
+	}
+	
+	/**
+	 * Write reads sampled from both strands of a sequence in FASTQ format.
+	 * 
+	 * @param random Random source.
+	 * @param genome Sequence to sample reads from.
+	 * @param readFile File to write.
+	 * 
+	 * @throws IOException If the file cannot be written.
+	 */
+	private static void writeReads(Random random, String genome, File readFile)
+			throws IOException {
+		
+		String read;  // Current read
+		char[] qual;  // Quality string
+		
+		qual = new char[READ_SIZE];
+		Arrays.fill(qual, 'I');
+		
+		try (PrintWriter writer = new PrintWriter(readFile)) {
+			for (int index = 0; index < READ_COUNT; ++index) {
+				int start = random.nextInt(genome.length() - READ_SIZE + 1);
+				
+				read = genome.substring(start, start + READ_SIZE);
+				
+				if (random.nextBoolean())
+					read = reverseComplement(read);
+				
+				writer.printf("@read%d\n%s\n+\n%s\n", index, read, new String(qual));
+			}
+		}
+		
+		return;
+	}
+	
+	/**
+	 * Generate a random sequence.
+	 * 
+	 * @param random Random source.
+	 * @param size Sequence size.
+	 * 
+	 * @return A random sequence.
+	 */
+	private static String randomSequence(Random random, int size) {
+		
+		char[] seq = new char[size];  // Sequence to return
+		
+		for (int index = 0; index < size; ++index)
+			seq[index] = BASES[random.nextInt(4)];
+		
+		return new String(seq);
+	}
+	
+	/**
+	 * Get the reverse complement of a sequence.
+	 * 
+	 * @param seq Sequence.
+	 * 
+	 * @return Reverse complement of <code>seq</code>.
+	 */
+	private static String reverseComplement(String seq) {
+		
+		StringBuilder builder = new StringBuilder(seq.length());  // Reverse complement
+		
+		for (int index = seq.length() - 1; index >= 0; --index) {
+			switch (seq.charAt(index)) {
+			case 'A':
+				builder.append('T');
+				break;
+			
+			case 'C':
+				builder.append('G');
+				break;
+			
+			case 'G':
+				builder.append('C');
+				break;
+			
+			default:
+				builder.append('A');
+				break;
+			}
+		}
+		
+		return builder.toString();
+	}
+	
+	/**
+	 * Get indices in a random order.
+	 * 
+	 * @param random Random source.
+	 * @param size Number of indices.
+	 * 
+	 * @return A permutation of <code>0</code> to <code>size - 1</code>.
+	 */
+	private static int[] shuffledOrder(Random random, int size) {
+		
+		int[] order = new int[size];  // Order to return
+		int swapIndex;                // Index to swap with
+		int temp;                     // Swap value
+		
+		for (int index = 0; index < size; ++index)
+			order[index] = index;
+		
+		for (int index = size - 1; index > 0; --index) {
+			swapIndex = random.nextInt(index + 1);
+			
+			temp = order[index];
+			order[index] = order[swapIndex];
+			order[swapIndex] = temp;
+		}
+		
+		return order;
+	}
+}
@@ -73,6 +73,50 @@ public class Digest implements Comparable<Digest> {
 		return;
 	}
 	
+	/**
+	 * Create a digest from a string of hex characters as returned by <code>toString()</code>.
+	 * 
+	 * @param digestString String of digest bytes with two hex characters for each byte.
+	 * @param algorithm Algorithm.
+	 * 
+	 * @return A new digest.
+	 * 
+	 * @throws NullPointerException If <code>digestString</code> or <code>algorithm</code>
+	 *   is <code>null</code>.
+	 * @throws IllegalArgumentException If <code>digestString</code> is empty, has an odd number
+	 *   of characters, or contains a character that is not a hex digit, or if <code>algorithm</code>
+	 *   is empty.
+	 * 
+	 * @see #toString()
+	 */
+	public static Digest parse(String digestString, String algorithm)
+			throws NullPointerException, IllegalArgumentException {
+		
+		byte[] digestBytes;  // Parsed bytes
+		int high;            // Value of the first hex character of a byte
+		int low;             // Value of the second hex character of a byte
+		
+		if (digestString == null)
+			throw new NullPointerException("Digest string is null");
+		
+		if (digestString.length() % 2 != 0)
+			throw new IllegalArgumentException("Digest string does not have an even number of characters: " + digestString);
+		
+		digestBytes = new byte[digestString.length() / 2];
+		
+		for (int index = 0; index < digestBytes.length; ++index) {
+			high = Character.digit(digestString.charAt(index * 2), 16);
+			low = Character.digit(digestString.charAt(index * 2 + 1), 16);
+			
+			if (high < 0 || low < 0)
+				throw new IllegalArgumentException("Digest string contains a character that is not a hex digit: " + digestString);
+			
+			digestBytes[index] = (byte) ((high << 4) | low);
+		}
+		
+		return new Digest(digestBytes, algorithm);  // throws IllegalArgumentException if digestBytes is empty
+	}
+	
 	/**
 	 * Get a string of the digest bytes.
 	 * 
@@ -195,7 +195,7 @@ public class VariantCaller {
 					// Create variant node
 					newNode = new CallerVarNode(VariantType.SNP,
 							refPosition + 1,
-							"" + (char) activeRegion.refRegion.sequence[refPosition],
+							"" + (char) activeRegion.refRegion.getBaseByIndex(refPosition),
 							"" + (char) haplotype.sequence[altPosition],
 							haplotype
 					);
@@ -260,7 +260,7 @@ public class VariantCaller {
 				startPosition = refPosition;
 				
 				for (int index = 0; index < alignNode.n; ++index)
-					strBuilder.append((char) activeRegion.refRegion.sequence[refPosition++]);
+					strBuilder.append((char) activeRegion.refRegion.getBaseByIndex(refPosition++));
 				
 				// Create node
 				newNode = new CallerVarNode(VariantType.DELETION,
@@ -19,11 +19,13 @@ package edu.gatech.kestrel.writer.vcf;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 
+import edu.gatech.kestrel.refreader.ReferenceSequence;
 import edu.gatech.kestrel.variant.VariantCall;
 
 /**
@@ -138,10 +140,21 @@ public class VcfRecordContainer {
 	 * Get an iterator to generate a string for each VCF record, and return records
 	 * in VCF order.
 	 * 
+	 * @param referenceSequenceArray Reference sequences in the order they appear in the
+	 *   VCF header. Records are ordered by reference sequence in this order, and records
+	 *   on a sequence not in this array follow all others sorted by the sequence name.
+	 * 
 	 * @return VCF formatted record iterator.
+	 * 
+	 * @throws NullPointerException If <code>referenceSequenceArray</code> is <code>null</code>.
 	 */
-	public Iterator<String> vcfLineIterator() {
-		return new VcfStringRecordIterator();
+	public Iterator<String> vcfLineIterator(ReferenceSequence[] referenceSequenceArray)
+			throws NullPointerException {
+		
+		if (referenceSequenceArray == null)
+			throw new NullPointerException("Cannot order VCF records with reference sequence array: null");
+		
+		return new VcfStringRecordIterator(referenceSequenceArray);
 	}
 	
 	/**
@@ -268,7 +281,8 @@ public class VcfRecordContainer {
 		
 		/**
 		 * Compare VCF records by the variant they represent. This does not include
-		 * the samples in the VCF record, only the pos, ref, and alt fields. 
+		 * the samples in the VCF record, only the pos, ref, and alt fields. Records
+		 * on different reference sequences are ordered by <code>VcfStringRecordIterator</code>.
 		 */
 		@Override
 		public int compareTo(VcfVariantRecord vcfRecord)
@@ -358,16 +372,54 @@ public class VcfRecordContainer {
 		
 		/**
 		 * Create a new record iterator.
+		 * 
+		 * @param referenceSequenceArray Reference sequences in the order records are returned.
 		 */
-		public VcfStringRecordIterator() {
+		public VcfStringRecordIterator(ReferenceSequence[] referenceSequenceArray) {
 			
 			Collection<VcfVariantRecord> recordCollection = recordMap.values();
 			
+			final HashMap<String, Integer> refIndexMap;  // Index of each reference sequence by name
+			
+			assert (referenceSequenceArray != null) :
+				"referenceSequenceArray is null";
+			
+			// Get reference order
+			refIndexMap = new HashMap<String, Integer>();
+			
+			for (int index = 0; index < referenceSequenceArray.length; ++index)
+				refIndexMap.put(referenceSequenceArray[index].name, index);
+			
+			// Sort records
 			vcfRecordSize = recordCollection.size();
 			vcfRecordList = recordCollection.toArray(new VcfVariantRecord[vcfRecordSize]);
 			vcfRecordIndex = 0;
 			
-			Arrays.sort(vcfRecordList);
+			Arrays.sort(vcfRecordList, new Comparator<VcfVariantRecord>() {
+				
+				@Override
+				public int compare(VcfVariantRecord record1, VcfVariantRecord record2) {
+					
+					Integer refIndex1 = refIndexMap.get(record1.chrom);  // Header index of record1 chrom
+					Integer refIndex2 = refIndexMap.get(record2.chrom);  // Header index of record2 chrom
+					
+					if (! record1.chrom.equals(record2.chrom)) {
+						
+						if (refIndex1 != null && refIndex2 != null)
+							return refIndex1 - refIndex2;
+						
+						if (refIndex1 != null)
+							return -1;
+						
+						if (refIndex2 != null)
+							return 1;
+						
+						return record1.chrom.compareTo(record2.chrom);
+					}
+					
+					return record1.compareTo(record2);
+				}
+			});
 			
 			return;
 		}
@@ -431,9 +483,9 @@ public class VcfRecordContainer {
 			for (String sampleName : sampleNameList) {
 				
 				if (sampleName.equals(sampleInfo.sampleName)) {
-					// Sample has an info record
+					// Sample has an info record (a genotyped known allele with no depth is not present)
 					record.append("\t");
-					record.append("1:");
+					record.append((sampleInfo.variantCall.variantDepth > 0) ? "1:" : "0:");
 					record.append(sampleInfo.variantCall.variantDepth);
 					record.append(":");
 					record.append(sampleInfo.variantCall.locusDepth);
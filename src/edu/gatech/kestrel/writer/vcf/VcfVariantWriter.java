@@ -119,7 +119,7 @@ public class VcfVariantWriter extends VariantWriter {
 	@Override
 	public void flush() {
 		
-		Iterator<String> recordIter = recordContainer.vcfLineIterator();
+		Iterator<String> recordIter = recordContainer.vcfLineIterator(referenceSequenceArray);
 		
 		// Write contig headers
 		for (ReferenceSequence refSequence : referenceSequenceArray) {